@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * A small, self-contained benchmark runner, in the spirit of JMH but needing nothing beyond the JDK.
+ *
+ * Each benchmark is an operation that is run repeatedly: first for a warm-up period (so the JIT compiler
+ * has done its work), then for a number of timed iterations of fixed length.  We report the average time per
+ * operation over the iterations, with its spread, so a regression shows up as a number.  Results returned by
+ * the operations are folded into a "sink" that is printed at the end, so the JIT can't optimize the work away.
+ */
+public class BenchmarkHarness {
+
+    /**
+     * One operation to be timed
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    private final double warmupSeconds;
+    private final double iterationSeconds;
+    private final int iterations;
+    private final String filter;
+    private final ArrayList<String> results = new ArrayList<>();
+    private long sink = 0;
+
+    /**
+     * Constructor
+     * @param warmupSeconds         How long to run each benchmark before timing it
+     * @param iterationSeconds      Length of each timed iteration
+     * @param iterations            Number of timed iterations
+     * @param filter                Only run benchmarks whose name contains this (empty = all)
+     */
+    public BenchmarkHarness(double warmupSeconds, double iterationSeconds, int iterations, String filter) {
+        this.warmupSeconds = warmupSeconds;
+        this.iterationSeconds = iterationSeconds;
+        this.iterations = iterations;
+        this.filter = filter;
+    }
+
+    /**
+     * Run and report one benchmark (if it passes the filter)
+     * @param name              Name to report it under
+     * @param operation         Operation to be timed
+     * @throws Exception        The operation failed
+     */
+    public void run(String name, Operation operation) throws Exception {
+        if (!name.contains(this.filter)) {
+            return;
+        }
+        this.runFor(operation, this.warmupSeconds);
+        double[] nanosPerOperation = new double[this.iterations];
+        long totalOperations = 0;
+        for (int iteration = 0; iteration < this.iterations; iteration++) {
+            long startNanos = System.nanoTime();
+            long operations = this.runFor(operation, this.iterationSeconds);
+            nanosPerOperation[iteration] = (double) (System.nanoTime() - startNanos) / operations;
+            totalOperations += operations;
+        }
+
+        double mean = 0.0;
+        for (double value : nanosPerOperation) {
+            mean += value;
+        }
+        mean /= this.iterations;
+        double variance = 0.0;
+        for (double value : nanosPerOperation) {
+            variance += (value - mean) * (value - mean);
+        }
+        double deviation = (this.iterations > 1) ? Math.sqrt(variance / (this.iterations - 1)) : 0.0;
+
+        String result = String.format(Locale.ROOT, "%-40s %14s/op  +- %-12s (%d ops)",
+                name, formatNanos(mean), formatNanos(deviation), totalOperations);
+        this.results.add(result);
+        System.out.println(result);
+    }
+
+    /**
+     * Run the operation repeatedly for (at least) the given time
+     * @param operation         Operation to run
+     * @param seconds           How long to keep running it
+     * @return (long)           Number of times it was run
+     * @throws Exception        The operation failed
+     */
+    private long runFor(Operation operation, double seconds) throws Exception {
+        long endNanos = System.nanoTime() + (long) (seconds * 1.0e9);
+        long operations = 0;
+        do {
+            Object result = operation.run();
+            this.sink += (result == null) ? 0 : result.hashCode();
+            operations++;
+        } while (System.nanoTime() < endNanos);
+        return operations;
+    }
+
+    private static String formatNanos(double nanos) {
+        if (nanos >= 1.0e6) {
+            return String.format(Locale.ROOT, "%.3f ms", nanos / 1.0e6);
+        } else if (nanos >= 1.0e3) {
+            return String.format(Locale.ROOT, "%.3f us", nanos / 1.0e3);
+        }
+        return String.format(Locale.ROOT, "%.1f ns", nanos);
+    }
+
+    /**
+     * All the results reported so far, one line each
+     * @return (ArrayList)
+     */
+    public ArrayList<String> getResults() {
+        return this.results;
+    }
+
+    /**
+     * The accumulated results of the operations - print it so the work can't be optimized away
+     * @return (long)
+     */
+    public long getSink() {
+        return this.sink;
+    }
+}
@@ -0,0 +1,171 @@
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import java.util.ArrayList;
+
+/**
+ * Benchmarks of the per-frame hot paths of an acquisition session, so changes to per-frame overhead can be
+ * judged with numbers.  Run from the command line, with the application classes on the class path:
+ *
+ *      java Benchmarks [warmup=1] [seconds=1] [iterations=5] [filter=text]
+ *
+ * warmup and seconds are the warm-up time and the length of each timed iteration, in seconds, and filter
+ * runs only the benchmarks whose names contain the given text.
+ *
+ * The frame-loop benchmarks run against a TheSkyXStandIn server started in this process, with its simulated
+ * equipment delays set to zero, so they measure only our own overhead: building the scripts, the network
+ * round trips and parsing the replies.  They run twice: with no network latency, and with 2 ms per command,
+ * which is closer to a real network and shows the value of sending fewer commands.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        double warmupSeconds = 1.0;
+        double iterationSeconds = 1.0;
+        int iterations = 5;
+        String filter = "";
+        for (String argument : args) {
+            String[] parts = argument.split("=", 2);
+            String value = (parts.length > 1) ? parts[1] : "";
+            switch (parts[0]) {
+                case "warmup":
+                    warmupSeconds = Double.parseDouble(value);
+                    break;
+                case "seconds":
+                    iterationSeconds = Double.parseDouble(value);
+                    break;
+                case "iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "filter":
+                    filter = value;
+                    break;
+                default:
+                    System.out.println("Unknown argument: " + argument);
+                    System.out.println("Usage: java Benchmarks [warmup=1] [seconds=1] [iterations=5] [filter=text]");
+                    return;
+            }
+        }
+        BenchmarkHarness harness = new BenchmarkHarness(warmupSeconds, iterationSeconds, iterations, filter);
+
+        benchmarkScripts(harness);
+        benchmarkDithering(harness);
+        benchmarkDataModel(harness);
+        benchmarkFrameLoop(harness, 0.0);
+        benchmarkFrameLoop(harness, 0.002);
+
+        System.out.println("(sink " + harness.getSink() + ")");
+    }
+
+    /**
+     * Building command scripts and checking the replies
+     * @param harness       Benchmark runner
+     */
+    private static void benchmarkScripts(BenchmarkHarness harness) throws Exception {
+        harness.run("script.flatFrameStatements", () ->
+                TheSkyXServer.flatFrameStatements(2.5, 2, true, false));
+        harness.run("script.measureAndSaveBatch", () -> {
+            TheSkyXBatch batch = new TheSkyXBatch();
+            batch.addStep("camera", TheSkyXServer.flatFrameStatements(2.5, 2, false, false), "cameraResult");
+            batch.addStep("adu", "ccdsoftCameraImage.AttachToActive();",
+                    "ccdsoftCameraImage.averagePixelValue()");
+            batch.addStep("saved", "var inRange=(" + TheSkyXBatch.variable("adu") + ">=20000);"
+                    + "if (inRange) {" + TheSkyXServer.slewStatements(45.0, 180.0, true)
+                    + TheSkyXServer.saveImageStatements("Flat-Red-2x2-1-2.50s.fit", null) + "}", "inRange");
+            return batch.toScript();
+        });
+        harness.run("reply.errorCheckResult", () ->
+                TheSkyXServer.errorCheckResult("0|No error. Error = 0."));
+        harness.run("reply.parseBatchResult", () -> {
+            TheSkyXBatch batch = new TheSkyXBatch().addStep("camera", "", "0").addStep("adu", "", "0")
+                    .addStep("saved", "", "0");
+            return batch.parseResponse("0|24873.6|true|No error. Error = 0.").getDouble("adu");
+        });
+        harness.run("reply.parseAltAz", () ->
+                TheSkyXServer.parseAltAz("45.123456789/180.987654321"));
+    }
+
+    /**
+     * Calculating dither positions
+     * @param harness       Benchmark runner
+     */
+    private static void benchmarkDithering(BenchmarkHarness harness) throws Exception {
+        DitherController dither = new DitherController(45.0, 180.0, 5.0, 60.0);
+        harness.run("dither.calculateNextFrame", dither::calculateNextFrame);
+    }
+
+    /**
+     * Saving and loading the data model, in the binary plan format and the XML it replaced, and building
+     * the work list from it
+     * @param harness       Benchmark runner
+     */
+    private static void benchmarkDataModel(BenchmarkHarness harness) throws Exception {
+        DataModel dataModel = sampleDataModel();
+        AppPreferences preferences = AppPreferences.createPreferences();
+        String serialized = dataModel.serialize();
+        byte[] encoded = dataModel.toBytes();
+        harness.run("dataModel.serialize", dataModel::serialize);
+        harness.run("dataModel.newFromXml", () -> DataModel.newFromXml(serialized));
+        harness.run("dataModel.toBytes", dataModel::toBytes);
+        harness.run("dataModel.newFromBytes", () -> DataModel.newFromBytes(encoded));
+        harness.run("dataModel.getFlatSetsToAcquire", () -> dataModel.getFlatSetsToAcquire(preferences));
+        harness.run("dataModel.atLeastOneFrameSetWanted", dataModel::atLeastOneFrameSetWanted);
+    }
+
+    /**
+     * A data model like a typical session's: 5 filters, 2 binnings, 16 frames of each
+     * @return (DataModel)
+     */
+    private static DataModel sampleDataModel() {
+        DataModel dataModel = new DataModel();
+        ArrayList<FilterSpec> filters = new ArrayList<>();
+        String[] filterNames = {"Red", "Green", "Blue", "Luminance", "H-alpha"};
+        for (int slot = 1; slot <= filterNames.length; slot++) {
+            filters.add(new FilterSpec(slot, filterNames[slot - 1]));
+        }
+        ArrayList<BinningSpec> binnings = new ArrayList<>();
+        binnings.add(new BinningSpec(1, BinningAvailability.DEFAULT));
+        binnings.add(new BinningSpec(2, BinningAvailability.DEFAULT));
+        FrameCountMatrix frameCounts = new FrameCountMatrix(filters.size(), binnings.size());
+        frameCounts.fill(16);
+        dataModel.setFiltersInUse(filters);
+        dataModel.setBinningsInUse(binnings);
+        dataModel.setFrameCounts(frameCounts);
+        return dataModel;
+    }
+
+    /**
+     * A complete frame - expose, measure, save if in range - against the stand-in server, both batched
+     * into one command and as the separate commands used before batching
+     * @param harness           Benchmark runner
+     * @param latencySeconds    Simulated network and server latency per command
+     */
+    private static void benchmarkFrameLoop(BenchmarkHarness harness, double latencySeconds) throws Exception {
+        TheSkyXStandIn.Settings settings = TheSkyXStandIn.Settings.defaults()
+                .set("port", "0")
+                .set("timeScale", "0")
+                .set("commandLatencySeconds", String.valueOf(latencySeconds));
+        String suffix = String.format("[%.0fms]", latencySeconds * 1000.0);
+        TheSkyXStandIn standIn = new TheSkyXStandIn(settings);
+        standIn.start();
+        TheSkyXServer server = new TheSkyXServer("localhost", standIn.getPort());
+        try {
+            server.connectCameraAndSelectFilter(4);
+            harness.run("frameLoop.batched" + suffix, () ->
+                    server.exposeMeasureAndSaveIfInRange(0.5, 1, ADUMeasurementMode.FULL_FRAME, 0, 65535, "Flat.fit", null,
+                            ImmutablePair.of(45.0, 180.0)));
+            harness.run("frameLoop.separateCommands" + suffix, () -> {
+                server.exposeFlatFrame(0.5, 1, false, false);
+                int averageADUs = server.getLastImageADUs();
+                server.slewToAltAz(45.0, 180.0, true);
+                server.saveImageToAutoSave("Flat.fit");
+                return averageADUs;
+            });
+            harness.run("frameLoop.pollCompletion" + suffix, server::exposureIsComplete);
+            System.out.println("Stand-in server: " + standIn.describeStatistics());
+            System.out.println("Connection: " + server.describeConnectionMetrics());
+        } finally {
+            server.close();
+            standIn.stop();
+        }
+    }
+}
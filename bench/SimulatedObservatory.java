@@ -0,0 +1,572 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulated equipment for the stand-in TheSkyX server: a camera with filter wheel, the camera's image
+ * (measurement and saving), a mount, and the star chart (only for the observer's location).  Each is exposed
+ * to scripts under the name TheSkyX uses - ccdsoftCamera, ccdsoftCameraImage, sky6RASCOMTele and
+ * sky6StarChart - with the properties and methods this application uses.
+ *
+ * Timing is modelled so sessions behave realistically: filter wheel moves take time per slot, exposures take
+ * their exposure time, downloads take time that shrinks with binning, measuring an image takes time, and
+ * slews take time proportional to the distance moved.  All of these are scaled by the time-scale setting, so a
+ * soak test can run faster than real time.  Flat frame brightness comes from the measured regression curves
+ * in SimulatedFlatResponse, optionally made to fade or brighten over time like twilight sky.
+ *
+ * Not thread-safe: the server runs one script at a time against the observatory.
+ */
+public class SimulatedObservatory {
+    private static final int BIAS_FRAME = 2;
+    private static final double HOME_ALTITUDE = 0.0;
+    private static final double HOME_AZIMUTH = 0.0;
+    //  Observer's location, as TheSkyX gives it (longitude positive west): Ottawa
+    private static final double SITE_LATITUDE = 45.42;
+    private static final double SITE_WEST_LONGITUDE = 75.70;
+
+    private final TheSkyXStandIn.Settings settings;
+    private final double startSeconds = now();
+    private final Random random = new Random();
+
+    private final Camera camera = new Camera();
+    private final CameraImage cameraImage = new CameraImage();
+    private final Mount mount = new Mount();
+    private final StarChart starChart = new StarChart();
+
+    //  Statistics
+    private int framesTaken = 0;
+    private int imagesMeasured = 0;
+    private int imagesSaved = 0;
+    private int slews = 0;
+
+    /**
+     * Constructor
+     * @param settings      Latencies and behaviour of the simulated equipment
+     */
+    public SimulatedObservatory(TheSkyXStandIn.Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * The scripting objects, by the names TheSkyX gives them
+     * @return (HashMap)
+     */
+    public HashMap<String, Object> scriptingObjects() {
+        HashMap<String, Object> objects = new HashMap<>();
+        objects.put("ccdsoftCamera", this.camera);
+        objects.put("ccdsoftCameraImage", this.cameraImage);
+        objects.put("sky6RASCOMTele", this.mount);
+        objects.put("sky6StarChart", this.starChart);
+        return objects;
+    }
+
+    /**
+     * Brief description of the work done, for the server's log
+     * @return (String)
+     */
+    public String describeStatistics() {
+        return String.format("%d frames taken, %d measured, %d saved, %d slews",
+                this.framesTaken, this.imagesMeasured, this.imagesSaved, this.slews);
+    }
+
+    private static double now() {
+        return System.nanoTime() / 1.0e9;
+    }
+
+    /**
+     * Wait for a simulated duration, scaled to real time
+     * @param simulatedSeconds          Duration in simulated time
+     * @throws TheSkyXScript.ScriptException    Interrupted (server shutting down)
+     */
+    private void pause(double simulatedSeconds) throws TheSkyXScript.ScriptException {
+        this.pauseUntil(now() + simulatedSeconds * this.settings.getTimeScale());
+    }
+
+    /**
+     * Wait until a moment has passed.  Sleeps are rounded up, and repeated if they end early, so something
+     * due at that moment (a frame ready, a slew finished) is never reported too soon.
+     * @param untilSeconds              Moment to wait for, on the System.nanoTime clock in seconds
+     * @throws TheSkyXScript.ScriptException    Interrupted (server shutting down)
+     */
+    private void pauseUntil(double untilSeconds) throws TheSkyXScript.ScriptException {
+        for (double remaining = untilSeconds - now(); remaining > 0.0; remaining = untilSeconds - now()) {
+            try {
+                Thread.sleep((long) Math.ceil(remaining * 1000.0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TheSkyXScript.ScriptException("TypeError: Process aborted. Error = 206.");
+            }
+        }
+    }
+
+    /**
+     * Simulated time elapsed, in minutes, from the observatory's creation to a given moment.
+     * (With a time scale of zero no simulated time ever passes.)
+     * @param atSeconds     Moment of interest, on the System.nanoTime clock in seconds
+     * @return (double)
+     */
+    private double simulatedMinutes(double atSeconds) {
+        if (this.settings.getTimeScale() <= 0.0) {
+            return 0.0;
+        }
+        return (atSeconds - this.startSeconds) / this.settings.getTimeScale() / 60.0;
+    }
+
+    private static double argument(List<Object> arguments, int index) {
+        return (index < arguments.size()) ? TheSkyXScript.toNumber(arguments.get(index)) : 0.0;
+    }
+
+    /**
+     * A frame the camera has taken (or is taking)
+     */
+    private static class Frame {
+        final int filterSlot;
+        final int binning;
+        final double exposureSeconds;
+        final int averageADUs;
+        final double readySeconds;
+
+        Frame(int filterSlot, int binning, double exposureSeconds, int averageADUs, double readySeconds) {
+            this.filterSlot = filterSlot;
+            this.binning = binning;
+            this.exposureSeconds = exposureSeconds;
+            this.averageADUs = averageADUs;
+            this.readySeconds = readySeconds;
+        }
+    }
+
+    /**
+     * ccdsoftCamera: camera and filter wheel
+     */
+    private class Camera implements TheSkyXScript.ScriptObject {
+        private final HashMap<String, Object> properties = new HashMap<>();
+        private int wheelSlot = 1;
+        private Frame frame = null;
+
+        Camera() {
+            this.properties.put("Asynchronous", false);
+            this.properties.put("AutoSaveOn", false);
+            this.properties.put("BinX", 1.0);
+            this.properties.put("BinY", 1.0);
+            this.properties.put("ExposureTime", 1.0);
+            this.properties.put("Frame", 1.0);
+            this.properties.put("FilterIndexZeroBased", 0.0);
+        }
+
+        boolean isExposureComplete() {
+            return this.frame == null || now() >= this.frame.readySeconds;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            switch (name) {
+                case "IsExposureComplete":
+                    return this.isExposureComplete() ? 1.0 : 0.0;
+                case "AutoSavePath":
+                    return SimulatedObservatory.this.settings.getAutosavePath();
+                default:
+                    return this.properties.get(name);
+            }
+        }
+
+        @Override
+        public void setProperty(String name, Object value) {
+            this.properties.put(name, value);
+        }
+
+        @Override
+        public Object call(String method, List<Object> arguments) throws TheSkyXScript.ScriptException {
+            switch (method) {
+                case "Connect":
+                case "Disconnect":
+                case "filterWheelConnect":
+                    return 0.0;
+                case "TakeImage":
+                    return this.takeImage();
+                case "Abort":
+                    if (this.frame != null && !this.isExposureComplete()) {
+                        this.frame = null;
+                    }
+                    return 0.0;
+                default:
+                    throw new TheSkyXScript.ScriptException("TypeError: ccdsoftCamera." + method
+                            + " is not supported. Error = 21.");
+            }
+        }
+
+        private Object takeImage() throws TheSkyXScript.ScriptException {
+            if (!this.isExposureComplete()) {
+                throw new TheSkyXScript.ScriptException("TypeError: Camera is busy. Error = 206.");
+            }
+            TheSkyXStandIn.Settings settings = SimulatedObservatory.this.settings;
+            int binning = Math.max(1, (int) TheSkyXScript.toNumber(this.properties.get("BinX")));
+            int filterSlot = 1 + (int) TheSkyXScript.toNumber(this.properties.get("FilterIndexZeroBased"));
+            boolean bias = TheSkyXScript.toNumber(this.properties.get("Frame")) == BIAS_FRAME;
+            double exposure = bias ? 0.0 : TheSkyXScript.toNumber(this.properties.get("ExposureTime"));
+
+            //  The filter wheel moves when the exposure starts
+            int slotsMoved = Math.abs(filterSlot - this.wheelSlot);
+            double wheelSeconds = (slotsMoved == 0) ? 0.0
+                    : settings.getFilterSettleSeconds() + slotsMoved * settings.getFilterSecondsPerSlot();
+            this.wheelSlot = filterSlot;
+            double downloadSeconds = settings.getDownloadSeconds() / (binning * binning);
+            double totalSeconds = wheelSeconds + exposure + downloadSeconds;
+            double startSeconds = now();
+            double readySeconds = startSeconds + totalSeconds * settings.getTimeScale();
+
+            //  The light collected depends on the brightness at mid-exposure, if the sky is changing
+            double midMinutes = SimulatedObservatory.this.simulatedMinutes(
+                    startSeconds + (wheelSeconds + exposure / 2.0) * settings.getTimeScale());
+            double offset = SimulatedFlatResponse.expectedADUs(filterSlot, binning, 0.0);
+            double light = SimulatedFlatResponse.expectedADUs(filterSlot, binning, exposure) - offset;
+            double brightness = Math.pow(1.0 + settings.getSkyTrendPercentPerMinute() / 100.0, midMinutes);
+            int averageADUs = SimulatedFlatResponse.measuredADUs(offset + light * brightness);
+
+            this.frame = new Frame(filterSlot, binning, exposure, averageADUs, readySeconds);
+            SimulatedObservatory.this.framesTaken++;
+            if (!TheSkyXScript.isTruthy(this.properties.get("Asynchronous"))) {
+                SimulatedObservatory.this.pauseUntil(readySeconds);
+            }
+            if (TheSkyXScript.isTruthy(this.properties.get("AutoSaveOn"))) {
+                SimulatedObservatory.this.cameraImage.save(this.frame,
+                        settings.getAutosavePath() + File.separator + String.format("Frame-%05d.fit",
+                                SimulatedObservatory.this.framesTaken));
+            }
+            return 0.0;
+        }
+    }
+
+    /**
+     * ccdsoftCameraImage: the camera's most recent image, for measuring and saving
+     */
+    private class CameraImage implements TheSkyXScript.ScriptObject {
+        private Frame attached = null;
+        private String path = "";
+
+        @Override
+        public Object getProperty(String name) throws TheSkyXScript.ScriptException {
+            switch (name) {
+                case "Path":
+                    return this.path;
+                case "WidthInPixels":
+                    return (double) SimulatedObservatory.this.imageWidth(this.attachedFrame());
+                case "HeightInPixels":
+                    return (double) SimulatedObservatory.this.imageHeight(this.attachedFrame());
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public void setProperty(String name, Object value) {
+            if (name.equals("Path")) {
+                this.path = TheSkyXScript.toDisplayString(value);
+            }
+        }
+
+        @Override
+        public Object call(String method, List<Object> arguments) throws TheSkyXScript.ScriptException {
+            switch (method) {
+                case "AttachToActive":
+                case "AttachToActiveImager":
+                    Camera camera = SimulatedObservatory.this.camera;
+                    if (camera.frame == null || !camera.isExposureComplete()) {
+                        throw new TheSkyXScript.ScriptException("TypeError: No active image. Error = 1.");
+                    }
+                    this.attached = camera.frame;
+                    return 0.0;
+                case "averagePixelValue":
+                    Frame frame = this.attachedFrame();
+                    SimulatedObservatory.this.pause(
+                            SimulatedObservatory.this.settings.getMeasureSeconds() / (frame.binning * frame.binning));
+                    SimulatedObservatory.this.imagesMeasured++;
+                    return (double) frame.averageADUs;
+                case "scanLine":
+                    return this.scanLine(this.attachedFrame(), (int) argument(arguments, 0));
+                case "Save":
+                    this.save(this.attachedFrame(), this.path);
+                    return 0.0;
+                default:
+                    throw new TheSkyXScript.ScriptException("TypeError: ccdsoftCameraImage." + method
+                            + " is not supported. Error = 21.");
+            }
+        }
+
+        /**
+         * One row of the image: Gaussian noise around the frame's average ADUs.  Reading it takes the time to
+         * measure the whole image divided by the number of rows.
+         * @param frame         Frame to read
+         * @param row           Row number (from 0)
+         * @return (List)       Pixel values
+         * @throws TheSkyXScript.ScriptException    Row out of range
+         */
+        private List<Object> scanLine(Frame frame, int row) throws TheSkyXScript.ScriptException {
+            int width = SimulatedObservatory.this.imageWidth(frame);
+            int height = SimulatedObservatory.this.imageHeight(frame);
+            if (row < 0 || row >= height) {
+                throw new TheSkyXScript.ScriptException("TypeError: Invalid line number. Error = 21.");
+            }
+            SimulatedObservatory.this.pause(SimulatedObservatory.this.settings.getMeasureSeconds()
+                    / (frame.binning * frame.binning) / height);
+            ArrayList<Object> line = new ArrayList<>(width);
+            for (int column = 0; column < width; column++) {
+                line.add((double) SimulatedObservatory.this.noisyPixel(frame));
+            }
+            return line;
+        }
+
+        private Frame attachedFrame() throws TheSkyXScript.ScriptException {
+            if (this.attached == null) {
+                throw new TheSkyXScript.ScriptException("TypeError: No image attached. Error = 1.");
+            }
+            return this.attached;
+        }
+
+        /**
+         * Save a frame.  Optionally a real FITS file is written, as noise around the frame's average ADUs.
+         * @param frame             Frame to save
+         * @param fileName          Path to save to
+         * @throws TheSkyXScript.ScriptException    Save failed (injected fault, or folder missing)
+         */
+        void save(Frame frame, String fileName) throws TheSkyXScript.ScriptException {
+            TheSkyXStandIn.Settings settings = SimulatedObservatory.this.settings;
+            if (SimulatedObservatory.this.random.nextDouble() < settings.getSaveErrorRate()) {
+                throw new TheSkyXScript.ScriptException("TypeError: CFITSIO error. Error = 206.");
+            }
+            if (settings.getWriteFiles()) {
+                File file = new File(fileName);
+                if (file.getParentFile() == null || !file.getParentFile().isDirectory()) {
+                    throw new TheSkyXScript.ScriptException("TypeError: CFITSIO error. Error = 206.");
+                }
+                try {
+                    SimulatedObservatory.this.writeFits(file, frame);
+                } catch (IOException e) {
+                    throw new TheSkyXScript.ScriptException("TypeError: CFITSIO error. Error = 206.");
+                }
+            }
+            SimulatedObservatory.this.imagesSaved++;
+        }
+    }
+
+    /**
+     * Write a frame as a 16-bit FITS image: Gaussian noise around its average ADUs
+     * @param file          File to write
+     * @param frame         Frame to be written
+     * @throws IOException  Error writing the file
+     */
+    private void writeFits(File file, Frame frame) throws IOException {
+        int width = this.imageWidth(frame);
+        int height = this.imageHeight(frame);
+        StringBuilder header = new StringBuilder();
+        header.append(FitsImage.card("SIMPLE", "T"));
+        header.append(FitsImage.card("BITPIX", "16"));
+        header.append(FitsImage.card("NAXIS", "2"));
+        header.append(FitsImage.card("NAXIS1", String.valueOf(width)));
+        header.append(FitsImage.card("NAXIS2", String.valueOf(height)));
+        header.append(FitsImage.card("BZERO", "32768"));
+        header.append(FitsImage.card("BSCALE", "1"));
+        header.append(FitsImage.card("EXPTIME", String.format("%.3f", frame.exposureSeconds)));
+        header.append(FitsImage.card("XBINNING", String.valueOf(frame.binning)));
+        header.append(FitsImage.card("YBINNING", String.valueOf(frame.binning)));
+        header.append(FitsImage.card("FILTER", "'Slot " + frame.filterSlot + "'"));
+        header.append(FitsImage.card("IMAGETYP", "'Flat Field'"));
+        header.append(FitsImage.card("DATE-OBS",
+                "'" + LocalDateTime.now().withNano(0).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME) + "'"));
+        header.append(String.format("%-80s", "END"));
+        while (header.length() % 2880 != 0) {
+            header.append(' ');
+        }
+
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            output.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+            long pixels = (long) width * height;
+            for (long pixel = 0; pixel < pixels; pixel++) {
+                output.writeShort(this.noisyPixel(frame) - 32768);
+            }
+            long dataBytes = pixels * 2;
+            for (long padding = dataBytes; padding % 2880 != 0; padding++) {
+                output.writeByte(0);
+            }
+        }
+    }
+
+    private int imageWidth(Frame frame) {
+        return Math.max(1, this.settings.getSensorWidth() / frame.binning);
+    }
+
+    private int imageHeight(Frame frame) {
+        return Math.max(1, this.settings.getSensorHeight() / frame.binning);
+    }
+
+    /**
+     * One pixel of a frame: Gaussian (shot) noise around the frame's average ADUs
+     * @param frame         Frame the pixel belongs to
+     * @return (int)        Pixel value, clipped to the sensor's range
+     */
+    private int noisyPixel(Frame frame) {
+        double value = frame.averageADUs + Math.sqrt(Math.max(1.0, frame.averageADUs)) * this.random.nextGaussian();
+        return (int) Math.max(0, Math.min(SimulatedFlatResponse.MAXIMUM_ADUS, Math.round(value)));
+    }
+
+    /**
+     * sky6RASCOMTele: the mount
+     */
+    private class Mount implements TheSkyXScript.ScriptObject {
+        private final HashMap<String, Object> properties = new HashMap<>();
+        //  Current slew: where from, where to, and when it started and will end
+        private double fromAltitude = HOME_ALTITUDE;
+        private double fromAzimuth = HOME_AZIMUTH;
+        private double toAltitude = HOME_ALTITUDE;
+        private double toAzimuth = HOME_AZIMUTH;
+        private double slewStartSeconds = 0.0;
+        private double slewEndSeconds = 0.0;
+
+        Mount() {
+            this.properties.put("Asynchronous", false);
+            this.properties.put("IsTracking", 1.0);
+            this.properties.put("dAlt", HOME_ALTITUDE);
+            this.properties.put("dAz", HOME_AZIMUTH);
+        }
+
+        private boolean isSlewComplete() {
+            return now() >= this.slewEndSeconds;
+        }
+
+        /**
+         * Where the mount is now, partway through any slew
+         * @return (double[])   Altitude and azimuth
+         */
+        private double[] position() {
+            double time = now();
+            if (time >= this.slewEndSeconds) {
+                return new double[] {this.toAltitude, this.toAzimuth};
+            }
+            double fraction = (time - this.slewStartSeconds) / (this.slewEndSeconds - this.slewStartSeconds);
+            return new double[] {this.fromAltitude + fraction * (this.toAltitude - this.fromAltitude),
+                    this.fromAzimuth + fraction * azimuthChange(this.fromAzimuth, this.toAzimuth)};
+        }
+
+        private double azimuthChange(double from, double to) {
+            double change = (to - from) % 360.0;
+            if (change > 180.0) {
+                change -= 360.0;
+            } else if (change < -180.0) {
+                change += 360.0;
+            }
+            return change;
+        }
+
+        private void slewTo(double altitude, double azimuth, boolean asynchronous)
+                throws TheSkyXScript.ScriptException {
+            TheSkyXStandIn.Settings settings = SimulatedObservatory.this.settings;
+            double[] current = this.position();
+            double distance = Math.max(Math.abs(altitude - current[0]),
+                    Math.abs(this.azimuthChange(current[1], azimuth)));
+            double seconds = distance / settings.getSlewDegreesPerSecond() + settings.getSlewSettleSeconds();
+            this.fromAltitude = current[0];
+            this.fromAzimuth = current[1];
+            this.toAltitude = altitude;
+            this.toAzimuth = azimuth;
+            this.slewStartSeconds = now();
+            this.slewEndSeconds = this.slewStartSeconds + seconds * settings.getTimeScale();
+            SimulatedObservatory.this.slews++;
+            if (!asynchronous) {
+                SimulatedObservatory.this.pauseUntil(this.slewEndSeconds);
+            }
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            if (name.equals("IsSlewComplete")) {
+                return this.isSlewComplete() ? 1.0 : 0.0;
+            }
+            return this.properties.get(name);
+        }
+
+        @Override
+        public void setProperty(String name, Object value) {
+            if (name.equals("IsTracking")) {
+                value = TheSkyXScript.isTruthy(value) ? 1.0 : 0.0;
+            }
+            this.properties.put(name, value);
+        }
+
+        @Override
+        public Object call(String method, List<Object> arguments) throws TheSkyXScript.ScriptException {
+            boolean asynchronous = TheSkyXScript.isTruthy(this.properties.get("Asynchronous"));
+            switch (method) {
+                case "Connect":
+                    return 0.0;
+                case "SlewToAzAlt":
+                    this.slewTo(argument(arguments, 1), argument(arguments, 0), asynchronous);
+                    return 0.0;
+                case "GetAzAlt":
+                    double[] position = this.position();
+                    this.properties.put("dAlt", position[0]);
+                    this.properties.put("dAz", (position[1] % 360.0 + 360.0) % 360.0);
+                    return 0.0;
+                case "Abort":
+                    double[] stopped = this.position();
+                    this.toAltitude = stopped[0];
+                    this.toAzimuth = stopped[1];
+                    this.slewEndSeconds = now();
+                    return 0.0;
+                case "FindHome":
+                    this.slewTo(HOME_ALTITUDE, HOME_AZIMUTH, asynchronous);
+                    return 0.0;
+                case "Park":
+                    this.slewTo(HOME_ALTITUDE, HOME_AZIMUTH, asynchronous);
+                    this.properties.put("IsTracking", 0.0);
+                    return 0.0;
+                default:
+                    throw new TheSkyXScript.ScriptException("TypeError: sky6RASCOMTele." + method
+                            + " is not supported. Error = 21.");
+            }
+        }
+    }
+
+    /**
+     * sky6StarChart: only the document properties giving the observer's location
+     */
+    private static class StarChart implements TheSkyXScript.ScriptObject {
+        private double documentPropertyOut = 0.0;
+
+        @Override
+        public Object getProperty(String name) {
+            return name.equals("DocPropOut") ? this.documentPropertyOut : null;
+        }
+
+        @Override
+        public void setProperty(String name, Object value) {
+            //  Nothing settable
+        }
+
+        @Override
+        public Object call(String method, List<Object> arguments) throws TheSkyXScript.ScriptException {
+            if (method.equals("DocumentProperty")) {
+                switch ((int) argument(arguments, 0)) {
+                    case 0:
+                        this.documentPropertyOut = SITE_LATITUDE;
+                        return 0.0;
+                    case 1:
+                        this.documentPropertyOut = SITE_WEST_LONGITUDE;
+                        return 0.0;
+                    default:
+                        break;
+                }
+            }
+            throw new TheSkyXScript.ScriptException("TypeError: sky6StarChart." + method
+                    + " is not supported. Error = 21.");
+        }
+    }
+}
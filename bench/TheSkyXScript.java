@@ -0,0 +1,640 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A very small JavaScript interpreter - just enough of the language to run the scripts this application
+ * sends to TheSkyX, so the stand-in server can execute them against simulated equipment.
+ *
+ * Supported: var declarations, assignment (= += -=) to variables and object properties, if/else and
+ * for loops with blocks, calls to methods of the scripting objects (ccdsoftCamera etc.) and of Math,
+ * array indexing and length (for arrays returned by the scripting objects), string, numeric and boolean
+ * literals, and the operators + - * / % ! && || == != === !== < > <= >=, with JavaScript's rules for
+ * mixing strings and numbers.  Anything else is reported as a TypeError, as TheSkyX would.
+ *
+ * Each script runs with fresh variables; the scripting objects themselves persist between scripts.
+ * The script's result is the value of the variable "Out", as with TheSkyX.
+ */
+public class TheSkyXScript {
+
+    /**
+     * An object visible to scripts, such as the simulated camera
+     */
+    public interface ScriptObject {
+        Object getProperty(String name) throws ScriptException;
+        void setProperty(String name, Object value) throws ScriptException;
+        Object call(String method, List<Object> arguments) throws ScriptException;
+    }
+
+    /**
+     * A script failed.  The message is in TheSkyX's form, e.g. "TypeError: ... Error = 21."
+     */
+    public static class ScriptException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public ScriptException(String message) {
+            super(message);
+        }
+    }
+
+    //  A script that loops this many times is assumed to be stuck
+    private static final int MAXIMUM_LOOP_ITERATIONS = 10_000_000;
+    private static final MathObject MATH = new MathObject();
+
+    private static final String[] MULTI_CHARACTER_OPERATORS = {"===", "!==", "==", "!=", "<=", ">=",
+            "&&", "||", "+=", "-="};
+
+    private final Map<String, Object> globals;
+    private final HashMap<String, Object> variables = new HashMap<>();
+    private ArrayList<String> tokens;
+    private int position;
+
+    /**
+     * Constructor
+     * @param globals       The scripting objects available to the script, by name
+     */
+    public TheSkyXScript(Map<String, Object> globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * Run a script and return the value it left in "Out"
+     * @param script                JavaScript source
+     * @return (String)             Value of Out, converted to a string as JavaScript would
+     * @throws ScriptException      Script failed, or used something we don't support
+     */
+    public String run(String script) throws ScriptException {
+        this.tokens = tokenize(script);
+        this.position = 0;
+        this.variables.clear();
+        while (this.position < this.tokens.size()) {
+            this.statement(true);
+        }
+        return toDisplayString(this.variables.get("Out"));
+    }
+
+    //  Tokenizing.  Tokens are kept as strings; string literals keep their opening quote so they
+    //  can be told apart from identifiers.
+
+    private static ArrayList<String> tokenize(String script) throws ScriptException {
+        ArrayList<String> result = new ArrayList<>();
+        int index = 0;
+        int length = script.length();
+        while (index < length) {
+            char character = script.charAt(index);
+            if (Character.isWhitespace(character)) {
+                index++;
+            } else if (script.startsWith("/*", index)) {
+                int end = script.indexOf("*/", index + 2);
+                index = (end < 0) ? length : end + 2;
+            } else if (script.startsWith("//", index)) {
+                int end = script.indexOf('\n', index);
+                index = (end < 0) ? length : end + 1;
+            } else if (character == '"' || character == '\'') {
+                StringBuilder literal = new StringBuilder().append('"');
+                index++;
+                while (index < length && script.charAt(index) != character) {
+                    char next = script.charAt(index);
+                    if (next == '\\' && index + 1 < length) {
+                        index++;
+                        char escaped = script.charAt(index);
+                        literal.append(escaped == 'n' ? '\n' : (escaped == 't' ? '\t'
+                                : (escaped == 'r' ? '\r' : escaped)));
+                    } else {
+                        literal.append(next);
+                    }
+                    index++;
+                }
+                if (index >= length) {
+                    throw new ScriptException("TypeError: Unterminated string. Error = 21.");
+                }
+                index++;
+                result.add(literal.toString());
+            } else if (Character.isDigit(character)
+                    || (character == '.' && index + 1 < length && Character.isDigit(script.charAt(index + 1)))) {
+                int start = index;
+                while (index < length && (Character.isDigit(script.charAt(index)) || script.charAt(index) == '.'
+                        || script.charAt(index) == 'e' || script.charAt(index) == 'E'
+                        || ((script.charAt(index) == '-' || script.charAt(index) == '+')
+                            && (script.charAt(index - 1) == 'e' || script.charAt(index - 1) == 'E')))) {
+                    index++;
+                }
+                result.add(script.substring(start, index));
+            } else if (Character.isJavaIdentifierStart(character)) {
+                int start = index;
+                while (index < length && Character.isJavaIdentifierPart(script.charAt(index))) {
+                    index++;
+                }
+                result.add(script.substring(start, index));
+            } else {
+                String operator = String.valueOf(character);
+                for (String candidate : MULTI_CHARACTER_OPERATORS) {
+                    if (script.startsWith(candidate, index)) {
+                        operator = candidate;
+                        break;
+                    }
+                }
+                index += operator.length();
+                result.add(operator);
+            }
+        }
+        return result;
+    }
+
+    private String peek(int ahead) {
+        int index = this.position + ahead;
+        return (index < this.tokens.size()) ? this.tokens.get(index) : "";
+    }
+
+    private boolean accept(String token) {
+        if (this.peek(0).equals(token)) {
+            this.position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) throws ScriptException {
+        if (!this.accept(token)) {
+            throw new ScriptException("TypeError: Expected '" + token + "' but found '" + this.peek(0)
+                    + "'. Error = 21.");
+        }
+    }
+
+    private String identifier() throws ScriptException {
+        String token = this.peek(0);
+        if (token.isEmpty() || !Character.isJavaIdentifierStart(token.charAt(0))) {
+            throw new ScriptException("TypeError: Expected a name but found '" + token + "'. Error = 21.");
+        }
+        this.position++;
+        return token;
+    }
+
+    //  Statements.  Each takes an "execute" flag: when false (the untaken branch of an if) the statement is
+    //  parsed but has no effect.
+
+    private void statement(boolean execute) throws ScriptException {
+        if (this.accept(";")) {
+            return;
+        }
+        if (this.accept("{")) {
+            while (!this.accept("}")) {
+                if (this.position >= this.tokens.size()) {
+                    throw new ScriptException("TypeError: Missing '}'. Error = 21.");
+                }
+                this.statement(execute);
+            }
+            return;
+        }
+        if (this.accept("if")) {
+            this.expect("(");
+            Object condition = this.expression(execute);
+            this.expect(")");
+            boolean taken = execute && isTruthy(condition);
+            this.statement(taken);
+            if (this.accept("else")) {
+                this.statement(execute && !taken);
+            }
+            return;
+        }
+        if (this.accept("for")) {
+            this.forLoop(execute);
+            return;
+        }
+        this.simpleStatement(execute);
+        this.accept(";");
+    }
+
+    /**
+     * A declaration, assignment or expression - the statements that can also appear in a for loop's header
+     * @param execute       Execute the statement (else just parse it)
+     */
+    private void simpleStatement(boolean execute) throws ScriptException {
+        if (this.accept("var")) {
+            String name = this.identifier();
+            Object value = null;
+            if (this.accept("=")) {
+                value = this.expression(execute);
+            }
+            if (execute) {
+                this.variables.put(name, value);
+            }
+        } else if (this.isAssignment()) {
+            this.assignment(execute);
+        } else {
+            this.expression(execute);
+        }
+    }
+
+    /**
+     * for (initialization; condition; update) statement
+     * Since we execute as we parse, each time around the loop we go back to the condition's tokens and
+     * parse them again, then the body, then the update.  When the condition fails the body is parsed
+     * without executing, which leaves us at the end of the loop.
+     * @param execute       Execute the loop (else just parse it)
+     */
+    private void forLoop(boolean execute) throws ScriptException {
+        this.expect("(");
+        if (!this.peek(0).equals(";")) {
+            this.simpleStatement(execute);
+        }
+        this.expect(";");
+        int conditionPosition = this.position;
+        for (int iteration = 0; ; iteration++) {
+            if (iteration > MAXIMUM_LOOP_ITERATIONS) {
+                throw new ScriptException("TypeError: Script took too long. Error = 21.");
+            }
+            this.position = conditionPosition;
+            boolean hasCondition = !this.peek(0).equals(";");
+            Object condition = hasCondition ? this.expression(execute) : Boolean.TRUE;
+            boolean running = execute && isTruthy(condition);
+            this.expect(";");
+            int updatePosition = this.position;
+            if (!this.peek(0).equals(")")) {
+                this.simpleStatement(false);
+            }
+            this.expect(")");
+            this.statement(running);
+            if (!running) {
+                return;
+            }
+            int endPosition = this.position;
+            this.position = updatePosition;
+            if (!this.peek(0).equals(")")) {
+                this.simpleStatement(true);
+            }
+            this.position = endPosition;
+        }
+    }
+
+    /**
+     * Does the statement starting here have the form  name(.name)* (= or +=) ... ?
+     * @return (boolean)
+     */
+    private boolean isAssignment() {
+        int ahead = 0;
+        String token = this.peek(ahead);
+        if (token.isEmpty() || !Character.isJavaIdentifierStart(token.charAt(0))) {
+            return false;
+        }
+        ahead++;
+        while (this.peek(ahead).equals(".")) {
+            ahead += 2;
+        }
+        String operator = this.peek(ahead);
+        return operator.equals("=") || operator.equals("+=") || operator.equals("-=");
+    }
+
+    private void assignment(boolean execute) throws ScriptException {
+        ArrayList<String> names = new ArrayList<>();
+        names.add(this.identifier());
+        while (this.accept(".")) {
+            names.add(this.identifier());
+        }
+        String operator = this.tokens.get(this.position++);
+        Object value = this.expression(execute);
+        if (!execute) {
+            return;
+        }
+        if (names.size() == 1) {
+            String name = names.get(0);
+            Object current = this.variables.containsKey(name) ? this.variables.get(name) : this.globals.get(name);
+            this.variables.put(name, combine(operator, current, value));
+        } else {
+            Object target = this.lookup(names.get(0));
+            for (int index = 1; index < names.size() - 1; index++) {
+                target = asObject(target, names.get(index - 1)).getProperty(names.get(index));
+            }
+            ScriptObject object = asObject(target, names.get(names.size() - 2));
+            String property = names.get(names.size() - 1);
+            Object current = operator.equals("=") ? null : object.getProperty(property);
+            object.setProperty(property, combine(operator, current, value));
+        }
+    }
+
+    private static Object combine(String operator, Object current, Object value) {
+        switch (operator) {
+            case "+=":
+                return add(current, value);
+            case "-=":
+                return toNumber(current) - toNumber(value);
+            default:
+                return value;
+        }
+    }
+
+    //  Expressions, by increasing precedence
+
+    private Object expression(boolean execute) throws ScriptException {
+        Object left = this.logicalAnd(execute);
+        while (this.accept("||")) {
+            boolean leftTrue = execute && isTruthy(left);
+            Object right = this.logicalAnd(execute && !leftTrue);
+            if (execute && !leftTrue) {
+                left = right;
+            }
+        }
+        return left;
+    }
+
+    private Object logicalAnd(boolean execute) throws ScriptException {
+        Object left = this.equality(execute);
+        while (this.accept("&&")) {
+            boolean leftTrue = execute && isTruthy(left);
+            Object right = this.equality(execute && leftTrue);
+            if (leftTrue) {
+                left = right;
+            }
+        }
+        return left;
+    }
+
+    private Object equality(boolean execute) throws ScriptException {
+        Object left = this.relational(execute);
+        while (true) {
+            String operator = this.peek(0);
+            if (!(operator.equals("==") || operator.equals("!=") || operator.equals("===")
+                    || operator.equals("!=="))) {
+                return left;
+            }
+            this.position++;
+            Object right = this.relational(execute);
+            boolean equal = looselyEqual(left, right);
+            left = operator.startsWith("!") != equal;
+        }
+    }
+
+    private Object relational(boolean execute) throws ScriptException {
+        Object left = this.additive(execute);
+        while (true) {
+            String operator = this.peek(0);
+            if (!(operator.equals("<") || operator.equals(">") || operator.equals("<=") || operator.equals(">="))) {
+                return left;
+            }
+            this.position++;
+            Object right = this.additive(execute);
+            int comparison = (left instanceof String && right instanceof String)
+                    ? ((String) left).compareTo((String) right)
+                    : Double.compare(toNumber(left), toNumber(right));
+            switch (operator) {
+                case "<":
+                    left = comparison < 0;
+                    break;
+                case ">":
+                    left = comparison > 0;
+                    break;
+                case "<=":
+                    left = comparison <= 0;
+                    break;
+                default:
+                    left = comparison >= 0;
+                    break;
+            }
+        }
+    }
+
+    private Object additive(boolean execute) throws ScriptException {
+        Object left = this.multiplicative(execute);
+        while (true) {
+            if (this.accept("+")) {
+                left = add(left, this.multiplicative(execute));
+            } else if (this.accept("-")) {
+                left = toNumber(left) - toNumber(this.multiplicative(execute));
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Object multiplicative(boolean execute) throws ScriptException {
+        Object left = this.unary(execute);
+        while (true) {
+            if (this.accept("*")) {
+                left = toNumber(left) * toNumber(this.unary(execute));
+            } else if (this.accept("/")) {
+                left = toNumber(left) / toNumber(this.unary(execute));
+            } else if (this.accept("%")) {
+                left = toNumber(left) % toNumber(this.unary(execute));
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Object unary(boolean execute) throws ScriptException {
+        if (this.accept("!")) {
+            return !isTruthy(this.unary(execute));
+        }
+        if (this.accept("-")) {
+            return -toNumber(this.unary(execute));
+        }
+        return this.postfix(execute);
+    }
+
+    private Object postfix(boolean execute) throws ScriptException {
+        String previousName = this.peek(0);
+        Object value = this.primary(execute);
+        while (true) {
+            if (this.accept("[")) {
+                Object index = this.expression(execute);
+                this.expect("]");
+                value = execute ? element(value, index, previousName) : null;
+            } else if (this.accept(".")) {
+                String name = this.identifier();
+                if (this.accept("(")) {
+                    List<Object> arguments = this.arguments(execute);
+                    value = execute ? asObject(value, previousName).call(name, arguments) : null;
+                } else if (execute && name.equals("length") && value instanceof List) {
+                    value = (double) ((List<?>) value).size();
+                } else {
+                    value = execute ? asObject(value, previousName).getProperty(name) : null;
+                }
+                previousName = name;
+            } else {
+                return value;
+            }
+        }
+    }
+
+    private static Object element(Object array, Object index, String name) throws ScriptException {
+        if (!(array instanceof List)) {
+            throw new ScriptException("TypeError: " + name + " is not an array. Error = 21.");
+        }
+        List<?> list = (List<?>) array;
+        double number = toNumber(index);
+        int element = (int) number;
+        return (element == number && element >= 0 && element < list.size()) ? list.get(element) : null;
+    }
+
+    private List<Object> arguments(boolean execute) throws ScriptException {
+        ArrayList<Object> arguments = new ArrayList<>();
+        if (!this.accept(")")) {
+            do {
+                arguments.add(this.expression(execute));
+            } while (this.accept(","));
+            this.expect(")");
+        }
+        return arguments;
+    }
+
+    private Object primary(boolean execute) throws ScriptException {
+        String token = this.peek(0);
+        if (token.isEmpty()) {
+            throw new ScriptException("TypeError: Unexpected end of script. Error = 21.");
+        }
+        this.position++;
+        if (token.equals("(")) {
+            Object value = this.expression(execute);
+            this.expect(")");
+            return value;
+        }
+        if (token.startsWith("\"")) {
+            return token.substring(1);
+        }
+        if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+            try {
+                return Double.parseDouble(token);
+            } catch (NumberFormatException e) {
+                throw new ScriptException("TypeError: Invalid number " + token + ". Error = 21.");
+            }
+        }
+        if (token.equals("true") || token.equals("false")) {
+            return Boolean.valueOf(token);
+        }
+        if (Character.isJavaIdentifierStart(token.charAt(0))) {
+            if (this.peek(0).equals("(")) {
+                throw new ScriptException("TypeError: Function " + token + " is not supported. Error = 21.");
+            }
+            return execute ? this.lookup(token) : null;
+        }
+        throw new ScriptException("TypeError: Unexpected '" + token + "'. Error = 21.");
+    }
+
+    private Object lookup(String name) throws ScriptException {
+        if (this.variables.containsKey(name)) {
+            return this.variables.get(name);
+        }
+        if (this.globals.containsKey(name)) {
+            return this.globals.get(name);
+        }
+        if (name.equals("Math")) {
+            return MATH;
+        }
+        throw new ScriptException("TypeError: Can't find variable: " + name + ". Error = 21.");
+    }
+
+    private static ScriptObject asObject(Object value, String name) throws ScriptException {
+        if (value instanceof ScriptObject) {
+            return (ScriptObject) value;
+        }
+        throw new ScriptException("TypeError: " + name + " is not an object. Error = 21.");
+    }
+
+    /**
+     * The parts of JavaScript's Math object that scripts use
+     */
+    private static class MathObject implements ScriptObject {
+        @Override
+        public Object getProperty(String name) throws ScriptException {
+            if (name.equals("PI")) {
+                return Math.PI;
+            }
+            throw new ScriptException("TypeError: Math." + name + " is not supported. Error = 21.");
+        }
+
+        @Override
+        public void setProperty(String name, Object value) throws ScriptException {
+            throw new ScriptException("TypeError: Math is read-only. Error = 21.");
+        }
+
+        @Override
+        public Object call(String method, List<Object> arguments) throws ScriptException {
+            double first = arguments.isEmpty() ? Double.NaN : toNumber(arguments.get(0));
+            double second = (arguments.size() < 2) ? Double.NaN : toNumber(arguments.get(1));
+            switch (method) {
+                case "abs":
+                    return Math.abs(first);
+                case "floor":
+                    return Math.floor(first);
+                case "ceil":
+                    return Math.ceil(first);
+                case "round":
+                    return Math.floor(first + 0.5);
+                case "sqrt":
+                    return Math.sqrt(first);
+                case "min":
+                    return Math.min(first, second);
+                case "max":
+                    return Math.max(first, second);
+                case "random":
+                    return Math.random();
+                default:
+                    throw new ScriptException("TypeError: Math." + method + " is not supported. Error = 21.");
+            }
+        }
+    }
+
+    //  JavaScript value rules
+
+    private static Object add(Object left, Object right) {
+        if (left instanceof String || right instanceof String || left == null || right == null) {
+            return toDisplayString(left) + toDisplayString(right);
+        }
+        return toNumber(left) + toNumber(right);
+    }
+
+    private static boolean looselyEqual(Object left, Object right) {
+        if (left instanceof String && right instanceof String) {
+            return left.equals(right);
+        }
+        if (left == null || right == null) {
+            return left == right;
+        }
+        return toNumber(left) == toNumber(right);
+    }
+
+    public static boolean isTruthy(Object value) {
+        if (value == null) {
+            return false;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof Double) {
+            double number = (Double) value;
+            return number != 0.0 && !Double.isNaN(number);
+        } else if (value instanceof String) {
+            return !((String) value).isEmpty();
+        }
+        return true;
+    }
+
+    public static double toNumber(Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1.0 : 0.0;
+        } else if (value instanceof String) {
+            try {
+                return ((String) value).trim().isEmpty() ? 0.0 : Double.parseDouble(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    public static String toDisplayString(Object value) {
+        if (value == null) {
+            return "undefined";
+        } else if (value instanceof Double) {
+            double number = (Double) value;
+            if (number == Math.rint(number) && !Double.isInfinite(number) && Math.abs(number) < 1.0e15) {
+                return String.valueOf((long) number);
+            }
+            return String.valueOf(number);
+        } else if (value instanceof ScriptObject) {
+            return "[object]";
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,377 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for TheSkyX's TCP server, so sessions can be run, benchmarked and soak-tested on a computer
+ * with no TheSkyX and no hardware.  It accepts connections on the TheSkyX port, reads command packets in
+ * the same form (a script between the Socket Start and Socket End markers), runs the script with a small
+ * JavaScript interpreter against simulated camera, filter wheel and mount, and replies with the script's
+ * output as TheSkyX would.
+ *
+ * It is test scaffolding, kept with the benchmarks rather than in the application.  Run from the command line,
+ * with the application classes on the class path, as
+ *
+ *      java TheSkyXStandIn [name=value ...]
+ *
+ * with any of the settings described in Settings, for example
+ *
+ *      java TheSkyXStandIn port=3040 timeScale=0.1 dropRate=0.01 skyTrendPercentPerMinute=-20
+ *
+ * Faults can be injected at random to test error handling: dropped connections, script errors, stalls,
+ * and failed saves.
+ */
+public class TheSkyXStandIn {
+    public static final int DEFAULT_PORT = 3040;
+
+    private static final String START_MARKER = "/* Socket Start Packet */";
+    private static final String END_MARKER = "/* Socket End Packet */";
+    private static final String SCRIPT_MARKER = "/* Java Script */";
+    private static final String NO_ERROR_SUFFIX = "|No error. Error = 0.";
+
+    private final Settings settings;
+    private final SimulatedObservatory observatory;
+    private final Random random = new Random();
+    private ServerSocket serverSocket = null;
+    private Thread acceptThread = null;
+
+    //  Statistics
+    private final AtomicLong connectionsAccepted = new AtomicLong();
+    private final AtomicLong commandsRun = new AtomicLong();
+    private final AtomicLong faultsInjected = new AtomicLong();
+
+    /**
+     * Constructor.  The server isn't started until start() is called.
+     * @param settings      Behaviour of the server and simulated equipment
+     */
+    public TheSkyXStandIn(Settings settings) {
+        this.settings = settings;
+        this.observatory = new SimulatedObservatory(settings);
+    }
+
+    /**
+     * Command-line entry point: start a server and run until killed
+     * @param args      Settings, as name=value
+     */
+    public static void main(String[] args) {
+        try {
+            Settings settings = Settings.fromArguments(args);
+            TheSkyXStandIn server = new TheSkyXStandIn(settings);
+            server.start();
+            System.out.println("TheSkyX stand-in listening on port " + server.getPort() + ": " + settings.describe());
+            server.acceptThread.join();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(Settings.usage());
+        } catch (IOException e) {
+            System.out.println("Unable to start server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Start listening for connections, on a background thread
+     * @throws IOException      Unable to open the server port
+     */
+    public void start() throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(this.settings.getPort()));
+        this.acceptThread = new Thread(this::acceptConnections, "TheSkyX stand-in");
+        this.acceptThread.start();
+    }
+
+    /**
+     * Stop the server.  Connections in progress are closed as they next try to read.
+     */
+    public void stop() {
+        if (this.serverSocket != null) {
+            try {
+                this.serverSocket.close();
+            } catch (IOException e) {
+                // Ignore, we're stopping anyway
+            }
+        }
+    }
+
+    /**
+     * The port the server is listening on (useful if started on port 0, meaning any free port)
+     * @return (int)
+     */
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * Brief description of the work done, for logging
+     * @return (String)
+     */
+    public String describeStatistics() {
+        return String.format("%d connections, %d commands, %d faults injected; %s",
+                this.connectionsAccepted.get(), this.commandsRun.get(), this.faultsInjected.get(),
+                this.observatory.describeStatistics());
+    }
+
+    private void acceptConnections() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                Socket socket = this.serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                this.connectionsAccepted.incrementAndGet();
+                Thread handler = new Thread(() -> this.serveConnection(socket), "TheSkyX stand-in connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // Server socket closed - we're stopping
+            }
+        }
+    }
+
+    /**
+     * Serve one client connection: read command packets and answer them until the client closes
+     * the connection (or we drop it, or close it after one reply to imitate a non-persistent server).
+     * @param socket        Connection to serve
+     */
+    private void serveConnection(Socket socket) {
+        try (Socket connection = socket;
+             BufferedReader input = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+             PrintStream output = new PrintStream(connection.getOutputStream(), false)) {
+            String packet;
+            while ((packet = readPacket(input)) != null) {
+                this.commandsRun.incrementAndGet();
+                if (this.inject(this.settings.getDropRate())) {
+                    break;
+                }
+                if (this.inject(this.settings.getStallRate())) {
+                    Thread.sleep(Math.round(this.settings.getStallSeconds() * 1000.0));
+                }
+                String reply = this.runPacket(packet);
+                long latencyMilliseconds = Math.round(this.settings.getCommandLatencySeconds() * 1000.0);
+                if (latencyMilliseconds > 0) {
+                    Thread.sleep(latencyMilliseconds);
+                }
+                output.print(reply);
+                output.flush();
+                if (this.settings.getCloseAfterReply()) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            // Client went away
+        } catch (IOException | InterruptedException e) {
+            if (this.settings.getVerbose()) {
+                System.out.println("Connection ended: " + e.getMessage());
+            }
+        }
+        if (this.settings.getVerbose()) {
+            System.out.println(this.describeStatistics());
+        }
+    }
+
+    /**
+     * Decide at random whether to inject a fault
+     * @param rate          Probability of the fault
+     * @return (boolean)    Inject it this time
+     */
+    private boolean inject(double rate) {
+        synchronized (this.random) {
+            if (this.random.nextDouble() < rate) {
+                this.faultsInjected.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Read one command packet: lines up to and including the end marker
+     * @param input         Stream from client
+     * @return (String)     Complete packet, or null if the client closed the connection
+     * @throws IOException  Network error
+     */
+    private static String readPacket(BufferedReader input) throws IOException {
+        StringBuilder packet = new StringBuilder();
+        String line;
+        while ((line = input.readLine()) != null) {
+            packet.append(line).append('\n');
+            if (line.contains(END_MARKER)) {
+                return packet.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run the script in a packet and format the reply as TheSkyX does: the script's output, then (on the
+     * same line, if the output didn't end one) the error status.
+     * @param packet        Complete command packet
+     * @return (String)     Reply to send
+     */
+    private String runPacket(String packet) {
+        int start = packet.indexOf(START_MARKER);
+        start = (start >= 0) ? start + START_MARKER.length()
+                : (packet.contains(SCRIPT_MARKER) ? packet.indexOf(SCRIPT_MARKER) + SCRIPT_MARKER.length() : 0);
+        int end = packet.lastIndexOf(END_MARKER);
+        String script = packet.substring(start, Math.max(start, end));
+
+        String output;
+        if (this.inject(this.settings.getErrorRate())) {
+            output = "TypeError: Injected fault. Error = 21.";
+        } else {
+            //  TheSkyX runs one script at a time, however many clients are connected
+            synchronized (this.observatory) {
+                try {
+                    output = new TheSkyXScript(this.observatory.scriptingObjects()).run(script);
+                } catch (TheSkyXScript.ScriptException e) {
+                    output = e.getMessage();
+                }
+            }
+        }
+        if (this.settings.getVerbose()) {
+            System.out.println("> " + script.trim());
+            System.out.println("< " + output.trim());
+        }
+        return output.endsWith("\n") ? output : output + NO_ERROR_SUFFIX + "\n";
+    }
+
+    /**
+     * Settings for the stand-in server and its simulated equipment.  Times are in simulated seconds, which
+     * the time scale converts to real seconds (0.1 runs ten times faster than real time).
+     */
+    public static class Settings {
+        private final HashMap<String, String> values = new HashMap<>();
+
+        private static final String[][] DEFAULTS = {
+                {"port", String.valueOf(DEFAULT_PORT), "TCP port to listen on (0 = any free port)"},
+                {"timeScale", "1.0", "Real seconds per simulated second"},
+                {"commandLatencySeconds", "0.005", "Delay before each reply"},
+                {"downloadSeconds", "2.0", "Image download time unbinned (divided by binning squared)"},
+                {"measureSeconds", "0.3", "Time to measure an unbinned image (divided by binning squared)"},
+                {"filterSettleSeconds", "1.0", "Fixed time for any filter wheel move"},
+                {"filterSecondsPerSlot", "0.75", "Filter wheel travel time per slot"},
+                {"slewDegreesPerSecond", "3.0", "Mount slew rate"},
+                {"slewSettleSeconds", "0.5", "Settle time at the end of each slew"},
+                {"skyTrendPercentPerMinute", "0.0", "Change in light level per minute (negative = dusk)"},
+                {"autosavePath", System.getProperty("java.io.tmpdir"), "Folder reported as the AutoSave path"},
+                {"writeFiles", "false", "Write saved images as FITS files"},
+                {"sensorWidth", "1024", "Width of written images, unbinned"},
+                {"sensorHeight", "768", "Height of written images, unbinned"},
+                {"dropRate", "0.0", "Probability of dropping the connection instead of replying"},
+                {"errorRate", "0.0", "Probability of replying with a script error"},
+                {"stallRate", "0.0", "Probability of stalling before replying"},
+                {"stallSeconds", "3.0", "Length of an injected stall (real seconds)"},
+                {"saveErrorRate", "0.0", "Probability of an image save failing"},
+                {"closeAfterReply", "false", "Close the connection after every reply"},
+                {"verbose", "false", "Log every command and reply"},
+        };
+
+        /**
+         * Default settings
+         * @return (Settings)
+         */
+        public static Settings defaults() {
+            Settings settings = new Settings();
+            for (String[] setting : DEFAULTS) {
+                settings.values.put(setting[0], setting[1]);
+            }
+            return settings;
+        }
+
+        /**
+         * Settings from command-line arguments of the form name=value, defaults for the rest
+         * @param arguments     Command-line arguments
+         * @return (Settings)
+         */
+        public static Settings fromArguments(String[] arguments) {
+            Settings settings = defaults();
+            for (String argument : arguments) {
+                int equals = argument.indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("Settings must be given as name=value: " + argument);
+                }
+                settings.set(argument.substring(0, equals), argument.substring(equals + 1));
+            }
+            return settings;
+        }
+
+        /**
+         * Change a setting
+         * @param name          Setting name
+         * @param value         New value
+         * @return (Settings)   These settings, so calls can be chained
+         */
+        public Settings set(String name, String value) {
+            if (!this.values.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown setting: " + name);
+            }
+            this.values.put(name, value);
+            return this;
+        }
+
+        private double getDouble(String name) {
+            try {
+                return Double.parseDouble(this.values.get(name));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Setting " + name + " must be a number: " + this.values.get(name));
+            }
+        }
+
+        public int getPort() { return (int) this.getDouble("port"); }
+        public double getTimeScale() { return this.getDouble("timeScale"); }
+        public double getCommandLatencySeconds() { return this.getDouble("commandLatencySeconds"); }
+        public double getDownloadSeconds() { return this.getDouble("downloadSeconds"); }
+        public double getMeasureSeconds() { return this.getDouble("measureSeconds"); }
+        public double getFilterSettleSeconds() { return this.getDouble("filterSettleSeconds"); }
+        public double getFilterSecondsPerSlot() { return this.getDouble("filterSecondsPerSlot"); }
+        public double getSlewDegreesPerSecond() { return this.getDouble("slewDegreesPerSecond"); }
+        public double getSlewSettleSeconds() { return this.getDouble("slewSettleSeconds"); }
+        public double getSkyTrendPercentPerMinute() { return this.getDouble("skyTrendPercentPerMinute"); }
+        public String getAutosavePath() { return this.values.get("autosavePath"); }
+        public boolean getWriteFiles() { return Boolean.parseBoolean(this.values.get("writeFiles")); }
+        public int getSensorWidth() { return (int) this.getDouble("sensorWidth"); }
+        public int getSensorHeight() { return (int) this.getDouble("sensorHeight"); }
+        public double getDropRate() { return this.getDouble("dropRate"); }
+        public double getErrorRate() { return this.getDouble("errorRate"); }
+        public double getStallRate() { return this.getDouble("stallRate"); }
+        public double getStallSeconds() { return this.getDouble("stallSeconds"); }
+        public double getSaveErrorRate() { return this.getDouble("saveErrorRate"); }
+        public boolean getCloseAfterReply() { return Boolean.parseBoolean(this.values.get("closeAfterReply")); }
+        public boolean getVerbose() { return Boolean.parseBoolean(this.values.get("verbose")); }
+
+        /**
+         * Description of all the settings, with their defaults, for the command line
+         * @return (String)
+         */
+        public static String usage() {
+            StringBuilder result = new StringBuilder("Settings (name=value):");
+            for (String[] setting : DEFAULTS) {
+                result.append(String.format("%n    %-26s %s (default %s)", setting[0], setting[2], setting[1]));
+            }
+            return result.toString();
+        }
+
+        /**
+         * The settings as name=value pairs, for logging
+         * @return (String)
+         */
+        public String describe() {
+            StringBuilder result = new StringBuilder();
+            for (String[] setting : DEFAULTS) {
+                if (result.length() > 0) {
+                    result.append(' ');
+                }
+                result.append(setting[0]).append('=').append(this.values.get(setting[0]));
+            }
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * A frame's measured ADU level, with a bound on its error.  A full-frame average is exact (zero error);
+ * an estimate from a sample of pixels comes with the half-width of its confidence interval.
+ *
+ * Frames are accepted or rejected only when the whole confidence interval is on one side of the limits of
+ * the acceptable range.  Otherwise the estimate is uncertain and the frame should be measured in full.
+ */
+public class ADUEstimate {
+    private final double adus;
+    private final double errorBound;
+    private final long pixelsMeasured;
+
+    /**
+     * Constructor
+     * @param adus              Measured (or estimated) ADU level
+     * @param errorBound        Half-width of the confidence interval (0 if exact)
+     * @param pixelsMeasured    Number of pixels the measurement used
+     */
+    public ADUEstimate(double adus, double errorBound, long pixelsMeasured) {
+        this.adus = adus;
+        this.errorBound = errorBound;
+        this.pixelsMeasured = pixelsMeasured;
+    }
+
+    public double getADUs() { return adus; }
+    public double getErrorBound() { return errorBound; }
+    public long getPixelsMeasured() { return pixelsMeasured; }
+
+    /**
+     * Is the level certainly within the given range - even allowing for the error?
+     * @param lowADUs       Lowest acceptable level
+     * @param highADUs      Highest acceptable level
+     * @return (boolean)
+     */
+    public boolean isCertainlyWithin(double lowADUs, double highADUs) {
+        return (this.adus - this.errorBound >= lowADUs) && (this.adus + this.errorBound <= highADUs);
+    }
+
+    /**
+     * Is the level certainly outside the given range - even allowing for the error?
+     * @param lowADUs       Lowest acceptable level
+     * @param highADUs      Highest acceptable level
+     * @return (boolean)
+     */
+    public boolean isCertainlyOutside(double lowADUs, double highADUs) {
+        return (this.adus + this.errorBound < lowADUs) || (this.adus - this.errorBound > highADUs);
+    }
+
+    /**
+     * Describe the measurement for the console
+     * @return (String)
+     */
+    public String describe() {
+        return String.format("%.0f +- %.0f ADUs from %d pixels", this.adus, this.errorBound, this.pixelsMeasured);
+    }
+}
@@ -0,0 +1,38 @@
+import java.io.Serializable;
+
+/**
+ * enum to record how the ADU level of a frame is measured.  For a flat we only need a good estimate of the
+ * illumination level, so instead of averaging every pixel we can average a sample of them, which is much
+ * quicker on a large sensor, and get a confidence interval with the estimate.
+ * The order matches the entries in the main window's measurement menu.
+ */
+public enum ADUMeasurementMode implements Serializable {
+    FULL_FRAME,         // Average of every pixel
+    CENTRAL_REGION,     // Evenly spaced sample of the central region of the frame
+    SAMPLING_GRID,      // Evenly spaced sample of the whole frame
+    RANDOM_SAMPLE;      // Random sample of the whole frame
+
+    /**
+     * Is the frame measured from a sample of its pixels?
+     * @return (boolean)
+     */
+    public boolean isSampled() {
+        return this != FULL_FRAME;
+    }
+
+    /**
+     * Are the sampled pixels chosen at random (rather than evenly spaced)?
+     * @return (boolean)
+     */
+    public boolean isRandom() {
+        return this == RANDOM_SAMPLE;
+    }
+
+    /**
+     * Fraction of the frame's width and height, centred, that the sample is taken from
+     * @return (double)
+     */
+    public double regionFraction() {
+        return (this == CENTRAL_REGION) ? Common.ADU_CENTRAL_REGION_FRACTION : 1.0;
+    }
+}
@@ -10,6 +10,7 @@ import java.util.stream.Collectors;
  */
 public class AppPreferences {
     private Preferences preferences;
+    private ExposureEstimateCache exposureEstimates;
 
     private static final Double INITIAL_EXPOSURE_ESTIMATE = 10.0;
 
@@ -37,6 +38,8 @@ public class AppPreferences {
     public static AppPreferences createPreferences() {
         AppPreferences thePrefsObject = new AppPreferences();
         thePrefsObject.preferences = Preferences.userRoot().node("FlatCaptureNow2");
+        thePrefsObject.exposureEstimates = new ExposureEstimateCache(thePrefsObject.preferences, EXPOSURE_ESTIMATE,
+                INITIAL_EXPOSURE_ESTIMATE, Common.EXPOSURE_ESTIMATE_FLUSH_SECONDS);
         return thePrefsObject;
     }
 
@@ -216,16 +219,23 @@ public class AppPreferences {
     }
 
     //  For every combination of filter and binning, we store an estimated exposure time
-    //  These are encoded as separate items with a name, then the filter slot number, then the binning level
+    //  These are encoded as separate items with a name, then the filter slot number, then the binning level.
+    //  They are changed with every frame taken, so are held in a cache and written to the store later.
 
     public double getInitialExposure(int filterSlot, int binningLevel) {
-        String key = EXPOSURE_ESTIMATE + ":" + filterSlot + ":" + binningLevel;
-        return this.preferences.getDouble(key, INITIAL_EXPOSURE_ESTIMATE);
+        return this.exposureEstimates.get(filterSlot, binningLevel);
     }
 
     public void setInitialExposure(int filterSlot, int binningLevel, double exposure) {
-        String key = EXPOSURE_ESTIMATE + ":" + filterSlot + ":" + binningLevel;
-        this.preferences.putDouble(key, exposure);
+        this.exposureEstimates.put(filterSlot, binningLevel, exposure);
+    }
+
+    /**
+     * Write changed exposure estimates to the preferences store soon, in the background (e.g. when a set
+     * is complete, so a crash later won't lose them)
+     */
+    public void saveInitialExposures() {
+        this.exposureEstimates.flushSoon();
     }
 
     /**
@@ -239,5 +249,6 @@ public class AppPreferences {
                 this.setInitialExposure(filterSlot, binning, INITIAL_EXPOSURE_ESTIMATE);
             }
         }
+        this.saveInitialExposures();
     }
 }
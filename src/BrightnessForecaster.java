@@ -0,0 +1,178 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Forecasts the brightness of a changing light source - the twilight sky - so the exposure for the next
+ * frame can be chosen for the sky as it will be when that frame is taken, not as it was for the last frame.
+ *
+ * Twilight brightness changes roughly exponentially with time, so we work with the logarithm of the
+ * light rate (ADUs above the bias level, per second of exposure), which changes roughly linearly.  Each frame
+ * gives one sample of log rate at its mid-exposure time; a weighted straight-line fit over the recent samples
+ * gives the trend, which we extrapolate to the predicted mid-exposure time of the next frame.  Since that time
+ * itself depends on the exposure chosen, we iterate a few times to settle on a consistent exposure.
+ *
+ * The trend is the same for every filter (it's the sky that is changing, not the filter), so a trend fitted
+ * in one frame set can be passed to the next one as a starting point, letting it forecast from its first frame.
+ */
+public class BrightnessForecaster {
+    //  How many recent frames to fit, and how quickly older ones lose weight
+    private static final int SAMPLE_WINDOW = 6;
+    private static final double SAMPLE_WEIGHT_DECAY = 0.7;
+    //  Weight given to each new observation of the time between frames
+    private static final double OVERHEAD_LEARNING_RATE = 0.5;
+    //  Iterations used to reconcile exposure length and mid-exposure time
+    private static final int EXPOSURE_ITERATIONS = 5;
+
+    private final double targetADUs;
+    private final double biasADUs;
+    private final double priorTrendPerSecond;
+
+    //  Samples: mid-exposure time (seconds) and natural log of light rate (ADUs per second)
+    private final ArrayDeque<double[]> samples = new ArrayDeque<>(SAMPLE_WINDOW);
+
+    //  Fitted line: log rate at the reference time, and slope (trend) in log units per second
+    private double referenceTime = 0.0;
+    private double referenceLogRate = 0.0;
+    private double trendPerSecond = 0.0;
+    private boolean trendFitted = false;
+
+    //  Time from the end of one exposure to the start of the next (measuring, saving, dithering, commands)
+    private double overheadSeconds = 0.0;
+    private double lastStartSeconds = Double.NaN;
+    private double lastExposureSeconds = 0.0;
+
+    /**
+     * Constructor
+     * @param targetADUs            ADU level we are trying to hit
+     * @param biasADUs              Camera bias level (ADUs in a zero-length exposure)
+     * @param priorTrendPerSecond   Trend carried over from an earlier frame set, or NaN if none known
+     */
+    public BrightnessForecaster(double targetADUs, double biasADUs, double priorTrendPerSecond) {
+        this.targetADUs = targetADUs;
+        this.biasADUs = biasADUs;
+        this.priorTrendPerSecond = priorTrendPerSecond;
+    }
+
+    /**
+     * A frame has been exposed and measured.  Add it to the samples and re-fit the trend.
+     * @param startSeconds          Time the exposure started, in seconds on any consistent clock
+     * @param exposureSeconds       Exposure time of the frame
+     * @param averageADUs           Average ADUs measured
+     */
+    public void recordFrame(double startSeconds, double exposureSeconds, int averageADUs) {
+        if (!Double.isNaN(this.lastStartSeconds)) {
+            double overhead = Math.max(0.0, startSeconds - this.lastStartSeconds - this.lastExposureSeconds);
+            this.overheadSeconds += OVERHEAD_LEARNING_RATE * (overhead - this.overheadSeconds);
+        }
+        this.lastStartSeconds = startSeconds;
+        this.lastExposureSeconds = exposureSeconds;
+
+        //  Saturated frames, or frames no brighter than bias, don't tell us the light rate
+        if (averageADUs >= Common.SATURATION_ADU_LIMIT || averageADUs <= this.biasADUs || exposureSeconds <= 0.0) {
+            return;
+        }
+        double logRate = Math.log((averageADUs - this.biasADUs) / exposureSeconds);
+        if (this.samples.size() == SAMPLE_WINDOW) {
+            this.samples.removeFirst();
+        }
+        this.samples.addLast(new double[] {startSeconds + exposureSeconds / 2.0, logRate});
+        this.fitTrend();
+    }
+
+    /**
+     * Weighted least-squares fit of log rate against time, newest samples weighted most
+     */
+    private void fitTrend() {
+        double weight = 1.0;
+        double sumWeights = 0.0;
+        double sumTime = 0.0;
+        double sumLogRate = 0.0;
+        //  Walk newest to oldest so the weights decay with age
+        for (Iterator<double[]> iterator = this.samples.descendingIterator(); iterator.hasNext(); ) {
+            double[] sample = iterator.next();
+            sumWeights += weight;
+            sumTime += weight * sample[0];
+            sumLogRate += weight * sample[1];
+            weight *= SAMPLE_WEIGHT_DECAY;
+        }
+        this.referenceTime = sumTime / sumWeights;
+        this.referenceLogRate = sumLogRate / sumWeights;
+
+        double covariance = 0.0;
+        double variance = 0.0;
+        weight = 1.0;
+        for (Iterator<double[]> iterator = this.samples.descendingIterator(); iterator.hasNext(); ) {
+            double[] sample = iterator.next();
+            double timeOffset = sample[0] - this.referenceTime;
+            covariance += weight * timeOffset * (sample[1] - this.referenceLogRate);
+            variance += weight * timeOffset * timeOffset;
+            weight *= SAMPLE_WEIGHT_DECAY;
+        }
+        if (this.samples.size() >= 2 && variance > 0.0) {
+            this.trendPerSecond = covariance / variance;
+            this.trendFitted = true;
+        } else {
+            this.trendPerSecond = Double.isNaN(this.priorTrendPerSecond) ? 0.0 : this.priorTrendPerSecond;
+            this.trendFitted = false;
+        }
+    }
+
+    /**
+     * Do we have enough to forecast?  Either a trend fitted from this set's frames, or one frame plus
+     * a trend carried over from an earlier set.
+     * @return (boolean)
+     */
+    public boolean canForecast() {
+        return this.trendFitted || (!this.samples.isEmpty() && !Double.isNaN(this.priorTrendPerSecond));
+    }
+
+    /**
+     * Was the trend fitted from this set's own frames?
+     * @return (boolean)
+     */
+    public boolean hasFittedTrend() {
+        return this.trendFitted;
+    }
+
+    /**
+     * Forecast light rate at a given time
+     * @param timeSeconds       Time of interest, same clock as recorded frames
+     * @return (double)         Forecast ADUs per second of exposure
+     */
+    public double forecastRate(double timeSeconds) {
+        return Math.exp(this.referenceLogRate + this.trendPerSecond * (timeSeconds - this.referenceTime));
+    }
+
+    /**
+     * Predict the exposure that will hit the target ADUs for a frame started after the usual overhead
+     * from now.  Call only if canForecast() is true.
+     * @param nowSeconds            Current time, same clock as recorded frames
+     * @param currentExposure       Exposure most recently used, as a starting point
+     * @return (double)             Exposure in seconds
+     */
+    public double predictExposure(double nowSeconds, double currentExposure) {
+        assert this.canForecast();
+        double startSeconds = nowSeconds + this.overheadSeconds;
+        double exposure = currentExposure;
+        for (int iteration = 0; iteration < EXPOSURE_ITERATIONS; iteration++) {
+            double rate = this.forecastRate(startSeconds + exposure / 2.0);
+            exposure = (this.targetADUs - this.biasADUs) / rate;
+        }
+        return exposure;
+    }
+
+    public double getTrendPerSecond() { return trendPerSecond; }
+
+    /**
+     * Brief description of the forecast, for the session console
+     * @return (String)
+     */
+    public String describe() {
+        if (!this.canForecast()) {
+            return "Sky brightness trend not yet known";
+        }
+        double percentPerMinute = 100.0 * (Math.exp(this.trendPerSecond * 60.0) - 1.0);
+        return String.format("Sky brightness changing %+.1f%% per minute%s, bias %.0f ADUs, %.1f s between frames",
+                percentPerMinute, this.trendFitted ? "" : " (carried over)", this.biasADUs, this.overheadSeconds);
+    }
+}
@@ -15,14 +15,72 @@ public class Common {
     public static final double SCOPE_SLEW_POLLING_SECONDS = 0.5;
     //  How often do we pulse the "Slewing" message on the user interface?
     public static final long SLEWING_FEEDBACK_INTERVAL_MILLISECONDS = 500;
+    //  Dither moves are tiny, so while waiting for one we ask much more often
+    public static final double DITHER_SLEW_POLLING_SECONDS = 0.1;
+
+    //  Connection to TheSkyX server.
+
+    //  How long may the connection sit unused before we assume the server may have dropped it?
+    public static final double SERVER_CONNECTION_IDLE_LIMIT_SECONDS = 60.0;
+    //  How many times in a row can a re-used connection turn out stale before we stop keeping it open?
+    public static final int SERVER_STALE_REUSE_LIMIT = 3;
+    //  How long a quick query from a window (e.g. the scope position) waits for the server to reply
+    public static final int SERVER_QUERY_TIMEOUT_MILLISECONDS = 10 * 1000;
+
+    //  Ordering the work list.  Rough costs of the transitions between flat sets, for planning.
+
+    //  Filter wheel: a fixed settle time for any move, plus travel time per slot moved
+    public static final double FILTER_CHANGE_SETTLE_SECONDS = 1.0;
+    public static final double FILTER_CHANGE_SECONDS_PER_SLOT = 0.75;
+    //  Camera reconfiguring for a new binning (the first download at a new binning is often slower)
+    public static final double BINNING_CHANGE_SECONDS = 1.0;
 
     //  When taking flats, how many failed exposures in a row causes an abort?
     public static final int ADU_FAILURE_RETRY_LIMIT = 10;
 
+    //  Choosing exposures.
+
+    //  Frames at or above this average are treated as saturated and kept out of the exposure model
+    public static final int SATURATION_ADU_LIMIT = 60000;
+    //  Weight decay applied to older frames in the exposure model (1.0 = never forget)
+    public static final double EXPOSURE_MODEL_FORGETTING_FACTOR = 0.9;
+    //  Largest factor by which one exposure may differ from the last, and the shortest exposure we'll ask for
+    public static final double EXPOSURE_MAXIMUM_STEP_FACTOR = 4.0;
+    public static final double MINIMUM_EXPOSURE_SECONDS = 0.001;
+
     //  When exposing a flat, how long after the exposure should be finished do we consider
     //  continued non-completion a timeout error?
     public static final double FRAME_COMPLETION_POLL_INTERVAL_SECONDS = 0.5;
     public static final double FRAME_COMPLETION_TIMEOUT_SECONDS = 60.0;
+    //  Around the predicted completion time we poll rapidly.  How early do we start (seconds, or fraction
+    //  of the predicted time if that is larger), and how rapidly do we poll?
+    public static final double COMPLETION_POLL_GUARD_SECONDS = 0.15;
+    public static final double COMPLETION_POLL_GUARD_FRACTION = 0.05;
+    public static final double COMPLETION_POLL_MINIMUM_SECONDS = 0.05;
+    //  Frames whose exposure plus download is no longer than this are exposed, measured and saved in a
+    //  single blocking command to the server.  Longer ones are done asynchronously so they can be cancelled.
+    public static final double FUSED_FRAME_MAXIMUM_SECONDS = 3.0;
+
+    //  When frames are saved to a local folder, measure them here from the saved file rather than on the server.
+    //  The ADU level used is the mean after clipping pixels more than this many standard deviations away.
+    public static final boolean MEASURE_SAVED_FRAMES_LOCALLY = true;
+    public static final double FRAME_CLIP_SIGMA = 3.0;
+    public static final int FRAME_CLIP_ITERATIONS = 5;
+
+    //  Measuring a frame from a sample of its pixels (see ADUMeasurementMode): how many rows are sampled, how
+    //  many pixels in each row, the centred fraction of width and height used by the central-region mode,
+    //  and the z value giving the confidence interval (1.96 = 95%).
+    public static final int ADU_SAMPLE_ROWS = 48;
+    public static final int ADU_SAMPLE_COLUMNS = 128;
+    public static final double ADU_CENTRAL_REGION_FRACTION = 0.5;
+    public static final double ADU_CONFIDENCE_Z = 1.96;
+
+    //  Building a sigma-clipped mean master flat: pixel values more than this many standard deviations from
+    //  the pixel's running mean are left out, once it has been seen in at least this many frames.
+    public static final double MASTER_FLAT_CLIP_SIGMA = 3.0;
+    public static final int MASTER_FLAT_CLIP_MINIMUM_FRAMES = 3;
+    //  How long the end of a session waits for master flats still being built
+    public static final int MASTER_FLAT_WAIT_SECONDS = 600;
 
     //  Are we simulating ADU measurement rather than using the server?
     public static final boolean SIMULATE_ADU_MEASUREMENT = false;
@@ -31,8 +89,69 @@ public class Common {
     //  Information about files saved from the application
 
     public static final String DATA_FILE_SUFFIX = "fcn2";
+    //  Version of the data model saved in plan files.  1: XML files; 2: compact binary files (DataModelCodec)
+    public static final int DATA_MODEL_VERSION = 2;
     public static final String UNSAVED_FILE_TITLE = "(Unsaved File)";
     public static final boolean FEEDBACK_EXPOSURE_ADJUSTMENT = false;
+    public static final boolean FEEDBACK_COMPLETION_WAIT = false;
+    public static final boolean FEEDBACK_FRAME_STATISTICS = false;
+
+    //  Files the application keeps for itself, in a folder in the user's home directory
+    public static final String APPLICATION_DATA_FOLDER = ".FlatCaptureNow2";
+    public static final String SESSION_JOURNAL_FILE = "session-journal.txt";
+    public static final String FLAT_LIBRARY_FILE = "flat-library.dat";
+    public static final String EXPOSURE_HISTORY_FILE = "exposure-history.dat";
+    public static final String SESSION_CONSOLE_LOG_FILE = "session-console.log";
+    public static final String SESSION_METRICS_FILE = "session-metrics.csv";
+
+    //  An unfinished session in the journal can be resumed (if the user agrees) only if its last frame was
+    //  taken this long ago at most - i.e. on the same night
+    public static final int SESSION_JOURNAL_RESUME_HOURS = 12;
+
+    //  How often changed exposure estimates are written to the preferences store (they are also written when
+    //  each frame set is complete, and when the application quits)
+    public static final int EXPOSURE_ESTIMATE_FLUSH_SECONDS = 60;
+
+    //  Choosing a set's first exposure from the history of frames accepted before: samples kept for each
+    //  filter and binning, fewest samples to use, and (for sky flats) how near the sun's altitude, in degrees,
+    //  must have been to its altitude now
+    public static final int EXPOSURE_HISTORY_SAMPLES = 48;
+    public static final int EXPOSURE_HISTORY_MINIMUM_SAMPLES = 3;
+    public static final double EXPOSURE_HISTORY_SUN_ALTITUDE_WINDOW = 0.5;
+
+    //  Session console: most lines kept in the window (all are written to the log file), how often new
+    //  lines are shown, and how often they are written to the log
+    public static final int CONSOLE_MAXIMUM_LINES = 2000;
+    public static final int CONSOLE_REFRESH_MILLISECONDS = 100;
+    public static final int CONSOLE_LOG_FLUSH_MILLISECONDS = 1000;
+
+    //  Metrics endpoint for monitoring dashboards: port it listens on, and how many of the latest frames'
+    //  ADU levels the ADU trend is fitted to
+    public static final int METRICS_ENDPOINT_PORT = 9464;
+    public static final int METRICS_ADU_TREND_FRAMES = 6;
+
+    /**
+     * Get the location of a file the application keeps for itself (not a user document)
+     * @param fileName      Name of the file
+     * @return (Path)       Full path in the application data folder
+     */
+    public static Path applicationDataPath(String fileName) {
+        return Paths.get(System.getProperty("user.home"), APPLICATION_DATA_FOLDER, fileName);
+    }
+
+    /**
+     * A filter slot and binning combined into one int, for keying per-set data such as exposure estimates.
+     * Binning is at most 4, so the low byte holds it and the slot goes above.
+     * @param filterSlot    Filter wheel slot
+     * @param binning       Binning
+     * @return (int)        Key
+     */
+    public static int filterBinningKey(int filterSlot, int binning) {
+        return (filterSlot << 8) | (binning & 0xFF);
+    }
+
+    public static int filterSlotFromKey(int filterBinningKey) { return filterBinningKey >> 8; }
+    public static int binningFromKey(int filterBinningKey) { return filterBinningKey & 0xFF; }
 
     /**
      * Given a full path, get just the file name, without the extension.
@@ -1,13 +1,13 @@
 import org.xml.sax.InputSource;
 
 import java.beans.XMLDecoder;
+import java.beans.Transient;
 import java.beans.XMLEncoder;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -41,6 +41,10 @@ public class DataModel  implements Serializable {
     private Boolean     trackingOff = false;
     private Boolean     slewToLight = false;
     private Boolean     parkWhenDone = false;
+    private FlatLightSource lightSource = FlatLightSource.PANEL;
+    private ADUMeasurementMode aduMeasurement = ADUMeasurementMode.FULL_FRAME;
+    private MasterFlatCombine masterFlatCombine = MasterFlatCombine.NONE;
+    private MetricsEndpointMode metricsEndpoint = MetricsEndpointMode.OFF;
 
     //  Filters that are in use for this session
     private ArrayList<FilterSpec> filtersInUse = null;
@@ -53,19 +57,17 @@ public class DataModel  implements Serializable {
     //  various binnings.  Only filters and binnings that are in use (i.e. the same ones in the above two
     //  tables) have corresponding rows and columns in this table
 
-    private ArrayList<ArrayList<Integer>> frameTableData = null;
+    private FrameCountMatrix frameCounts = null;
 
     /**
-     * Try to create a data model by loading xml-encoding from the file at the given path
+     * Try to create a data model by loading the file at the given path
      * @param filePath      Full path to saved file
      * @return (model)      Data model or null if not readable or invalid
      */
     public static DataModel tryLoadFromFile(String filePath) {
         DataModel result;
         try {
-            byte[] encoded = Files.readAllBytes(Paths.get(filePath));
-            String encodedData = new String(encoded, StandardCharsets.US_ASCII);
-            result = DataModel.newFromXml(encodedData);
+            result = DataModel.newFromBytes(Files.readAllBytes(Paths.get(filePath)));
         } catch (IOException e) {
             result = null;
         }
@@ -98,9 +100,8 @@ public class DataModel  implements Serializable {
      * @param columnIndex       Binning to use
      * @return (Integer)        Number of frames to take with these settings
      */
-    public Integer getFrameCountAt(int rowIndex, int columnIndex) {
-        ArrayList<Integer> entireRow = this.frameTableData.get(rowIndex);
-        return entireRow.get(columnIndex);
+    public int getFrameCountAt(int rowIndex, int columnIndex) {
+        return this.frameCounts.get(rowIndex, columnIndex);
     }
 
     /**
@@ -111,8 +112,7 @@ public class DataModel  implements Serializable {
      * @param frameCount        Number of frames to take with these settings
      */
     public void setFrameCountAt(int rowIndex, int columnIndex, int frameCount) {
-        ArrayList<Integer> entireRow = this.frameTableData.get(rowIndex);
-        entireRow.set(columnIndex, frameCount);
+        this.frameCounts.set(rowIndex, columnIndex, frameCount);
     }
     //  Getters and Setters
 
@@ -170,6 +170,18 @@ public class DataModel  implements Serializable {
     public Boolean getParkWhenDone() { return parkWhenDone; }
     public void setParkWhenDone(Boolean parkWhenDone) { this.parkWhenDone = parkWhenDone; }
 
+    public FlatLightSource getLightSource() { return lightSource; }
+    public void setLightSource(FlatLightSource lightSource) { this.lightSource = lightSource; }
+
+    public ADUMeasurementMode getAduMeasurement() { return aduMeasurement; }
+    public void setAduMeasurement(ADUMeasurementMode aduMeasurement) { this.aduMeasurement = aduMeasurement; }
+
+    public MasterFlatCombine getMasterFlatCombine() { return masterFlatCombine; }
+    public void setMasterFlatCombine(MasterFlatCombine masterFlatCombine) { this.masterFlatCombine = masterFlatCombine; }
+
+    public MetricsEndpointMode getMetricsEndpoint() { return metricsEndpoint; }
+    public void setMetricsEndpoint(MetricsEndpointMode metricsEndpoint) { this.metricsEndpoint = metricsEndpoint; }
+
     public String getLocalPath() { return localPath; }
     public void setLocalPath(String localPath) { this.localPath = localPath; }
 
@@ -182,8 +194,18 @@ public class DataModel  implements Serializable {
     public ArrayList<BinningSpec> getBinningsInUse() { return binningsInUse; }
     public void setBinningsInUse(ArrayList<BinningSpec> binningsInUse) { this.binningsInUse = binningsInUse; }
 
-    public ArrayList<ArrayList<Integer>> getFrameTableData() { return frameTableData; }
-    public void setFrameTableData(ArrayList<ArrayList<Integer>> frameTableData) { this.frameTableData = frameTableData; }
+    //  The frame table is saved in XML plan files (and by the XML encoder) as this property, a list of rows.
+    //  The matrix itself is marked transient so the XML encoder, which can't construct it, leaves it alone.
+    @Transient
+    public FrameCountMatrix getFrameCounts() { return frameCounts; }
+    public void setFrameCounts(FrameCountMatrix frameCounts) { this.frameCounts = frameCounts; }
+
+    public ArrayList<ArrayList<Integer>> getFrameTableData() {
+        return (this.frameCounts == null) ? null : this.frameCounts.toLists();
+    }
+    public void setFrameTableData(ArrayList<ArrayList<Integer>> frameTableData) {
+        this.frameCounts = (frameTableData == null) ? null : FrameCountMatrix.fromLists(frameTableData);
+    }
 
     /**
      * Static constructor for data model.  Create a new data model with default values.
@@ -201,13 +223,59 @@ public class DataModel  implements Serializable {
         newModel.setDitherFlats(preferences.getDitherFlats());
         newModel.setDitherRadius(preferences.getDitherRadius());
         newModel.setDitherMaximum(preferences.getMaximumDither());
+        newModel.setModelVersion(Common.DATA_MODEL_VERSION);
+
 
+        return newModel;
+    }
 
+    /**
+     * Create a new instance of data model from the contents of a plan file.  Plan files are in the compact
+     * binary format (see DataModelCodec), unless saved before it existed, in which case they are XML.
+     * Either way the model is brought up to the current version.
+     * @param encoded           Contents of the plan file
+     * @return (DataModel)      Data model, or null if the file is not a valid plan
+     */
+    public static DataModel newFromBytes(byte[] encoded) {
+        DataModel newModel;
+        if (DataModelCodec.isEncoded(encoded)) {
+            try {
+                newModel = DataModelCodec.decode(encoded);
+            } catch (IOException e) {
+                System.out.println("Unable to decode plan file: " + e.getMessage());
+                newModel = null;
+            }
+        } else {
+            newModel = DataModel.newFromXml(new String(encoded, StandardCharsets.UTF_8));
+        }
+        if (newModel != null) {
+            newModel.migrate();
+        }
         return newModel;
     }
 
     /**
-     * De-serializer
+     * Bring a model loaded from a file saved by an earlier version of the application up to date,
+     * according to the model version it was saved with
+     */
+    private void migrate() {
+        //  Version 1 models were XML files.  No field changed meaning in version 2; fields added since
+        //  (light source, ADU measurement, master flats) are missing from those files and keep their defaults.
+        //  (A version 1 model's version isn't in its file - XMLEncoder leaves out default values - so it
+        //  is set by the constructor.)
+        this.modelVersion = Common.DATA_MODEL_VERSION;
+    }
+
+    /**
+     * Encode this data model for writing to a plan file
+     * @return (byte[])         Contents of the plan file
+     */
+    public byte[] toBytes() {
+        return DataModelCodec.encode(this);
+    }
+
+    /**
+     * De-serializer for plan files saved before the binary format
      *
      * Create a new instance of data model by decoding the provided xml string
      * * @param serialized      String containing xml-encoded data model
@@ -270,14 +338,7 @@ public class DataModel  implements Serializable {
         }
 
         //  Create 2-dimensional table of filters-in-use vs binnings-in-use
-        int numTableRows = this.filtersInUse.size();
-        int numTableColumns = this.binningsInUse.size();
-        this.frameTableData = new ArrayList<>(numTableRows);
-        for (int rowIndex = 0; rowIndex < numTableRows; rowIndex++) {
-            // Create a set of columns for this row
-            ArrayList<Integer> thisRowOfColumns = new ArrayList<>(Collections.nCopies(numTableColumns, 0));
-            this.frameTableData.add(thisRowOfColumns);
-        }
+        this.frameCounts = new FrameCountMatrix(this.filtersInUse.size(), this.binningsInUse.size());
 
         //  Set the frames table to the default values
         setDefaultFrameCounts();
@@ -289,14 +350,12 @@ public class DataModel  implements Serializable {
      * all the rows in the given table since it already has been set up with only filters (rows) needed
       */
     private  void setDefaultFrameCounts() {
-        for (ArrayList<Integer> thisRow : frameTableData) {
-            for (int columnIndex = 0; columnIndex < binningsInUse.size(); columnIndex++) {
-                BinningAvailability binningAvailability = binningsInUse.get(columnIndex).getAvailability();
-                if (binningAvailability == BinningAvailability.DEFAULT) {
-                    thisRow.set(columnIndex, defaultFrameCount);
-                } else {
-                    thisRow.set(columnIndex, 0);
-                }
+        for (int columnIndex = 0; columnIndex < binningsInUse.size(); columnIndex++) {
+            BinningAvailability binningAvailability = binningsInUse.get(columnIndex).getAvailability();
+            if (binningAvailability == BinningAvailability.DEFAULT) {
+                frameCounts.column(columnIndex).fill(defaultFrameCount);
+            } else {
+                frameCounts.column(columnIndex).fill(0);
             }
         }
     }
@@ -331,18 +390,11 @@ public class DataModel  implements Serializable {
      * @return (boolean)    true if at least one frame set is requested
      */
     public boolean atLeastOneFrameSetWanted() {
-        for (ArrayList<Integer> thisRow : this.frameTableData) {
-            for (Integer oneValue : thisRow) {
-                if (oneValue > 0) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return this.frameCounts.anyNonZero();
     }
 
     /**
-     * XML-serialize this data model for writing to a file.  Note that the built-in serializer
+     * XML-serialize this data model, as plan files were written before the binary format.  Note that the built-in serializer
      * only records the differences between the model and its default state from the constructor,
      * which is sufficient to rebuild it. This can be surprising because if you look in the saved
      * file you don't see xml items for all the model's fields - only for those which are
@@ -375,19 +427,10 @@ public class DataModel  implements Serializable {
      */
     public ArrayList<FlatSet> getFlatSetsToAcquire(AppPreferences preferences) {
         ArrayList<FlatSet> result = new ArrayList<>(this.filtersInUse.size() * this.binningsInUse.size());
-        for (int rowIndex = 0; rowIndex < this.filtersInUse.size(); rowIndex++) {
-            FilterSpec thisFilter = this.filtersInUse.get(rowIndex);
-            ArrayList<Integer> thisRow = this.frameTableData.get(rowIndex);
-            for (int columnIndex = 0; columnIndex < this.binningsInUse.size(); columnIndex++) {
-                int thisCount = thisRow.get(columnIndex);
-                if (thisCount > 0) {
-                    FlatSet thisSet = new FlatSet(thisCount, thisFilter,
-                            this.binningsInUse.get(columnIndex).getBinningValue(),
-                            preferences);
-                    result.add(thisSet);
-                }
-            }
-        }
+        this.frameCounts.forEachNonZero((rowIndex, columnIndex, thisCount) ->
+                result.add(new FlatSet(thisCount, this.filtersInUse.get(rowIndex),
+                        this.binningsInUse.get(columnIndex).getBinningValue(),
+                        preferences)));
         return result;
     }
 }
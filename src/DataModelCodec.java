@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Compact binary encoding of a data model, the format plan files are saved in.
+ *
+ * The file starts with a magic number and a format version, followed by the model's fields.  Each field is
+ * written as a tag byte identifying it, the length of its value in bytes, then the value.  Fields that are
+ * null aren't written, and fields missing when reading keep the data model's defaults, so a field can be added
+ * to the data model without changing the format: older files just don't have it.  A reader skips any tag it
+ * doesn't recognize, so a file written by a newer version of the application can still be opened.  Enums are
+ * written by name, so reordering an enum doesn't change the meaning of saved files.
+ *
+ * Plan files saved before this format are XML (see DataModel.newFromXml); DataModel.newFromBytes tells them
+ * apart by the magic number.
+ */
+public class DataModelCodec {
+    private static final long MAGIC = 0x46434E32504C414EL;      // "FCN2PLAN"
+    private static final short FORMAT_VERSION = 1;
+
+    //  Field tags.  Never reuse or renumber a tag; add new ones at the end.
+    private static final byte TAG_MODEL_VERSION = 1;
+    private static final byte TAG_USE_FILTER_WHEEL = 2;
+    private static final byte TAG_DEFAULT_FRAME_COUNT = 3;
+    private static final byte TAG_TARGET_ADUS = 4;
+    private static final byte TAG_ADU_TOLERANCE = 5;
+    private static final byte TAG_SERVER_ADDRESS = 6;
+    private static final byte TAG_PORT_NUMBER = 7;
+    private static final byte TAG_LIGHT_SOURCE_ALT = 8;
+    private static final byte TAG_LIGHT_SOURCE_AZ = 9;
+    private static final byte TAG_DITHER_FLATS = 10;
+    private static final byte TAG_DITHER_RADIUS = 11;
+    private static final byte TAG_DITHER_MAXIMUM = 12;
+    private static final byte TAG_WARM_UP_WHEN_DONE = 13;
+    private static final byte TAG_USE_THESKY_AUTOSAVE = 14;
+    private static final byte TAG_LOCAL_PATH = 15;
+    private static final byte TAG_CONTROL_MOUNT = 16;
+    private static final byte TAG_HOME_MOUNT = 17;
+    private static final byte TAG_TRACKING_OFF = 18;
+    private static final byte TAG_SLEW_TO_LIGHT = 19;
+    private static final byte TAG_PARK_WHEN_DONE = 20;
+    private static final byte TAG_LIGHT_SOURCE = 21;
+    private static final byte TAG_ADU_MEASUREMENT = 22;
+    private static final byte TAG_MASTER_FLAT_COMBINE = 23;
+    private static final byte TAG_FILTERS_IN_USE = 24;
+    private static final byte TAG_BINNINGS_IN_USE = 25;
+    private static final byte TAG_FRAME_TABLE_DATA = 26;
+    private static final byte TAG_METRICS_ENDPOINT = 27;
+
+    private final ByteBuffer buffer;
+
+    private DataModelCodec(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Does this file content look like the binary format?
+     * @param encoded           File content
+     * @return (boolean)
+     */
+    public static boolean isEncoded(byte[] encoded) {
+        return encoded.length >= Long.BYTES && ByteBuffer.wrap(encoded).getLong() == MAGIC;
+    }
+
+    /**
+     * Encode a data model
+     * @param model             Data model
+     * @return (byte[])         Encoded model, the content of a plan file
+     */
+    public static byte[] encode(DataModel model) {
+        int capacity = 1024;
+        while (true) {
+            try {
+                DataModelCodec codec = new DataModelCodec(ByteBuffer.allocate(capacity));
+                codec.writeModel(model);
+                ByteBuffer written = codec.buffer.flip();
+                byte[] encoded = new byte[written.remaining()];
+                written.get(encoded);
+                return encoded;
+            } catch (BufferOverflowException e) {
+                //  A big frame table; try again with more room
+                capacity *= 4;
+            }
+        }
+    }
+
+    /**
+     * Decode a data model
+     * @param encoded           Encoded model, as written by encode()
+     * @return (DataModel)      Data model
+     * @throws IOException      Not an encoded data model, a newer format than we can read, or damaged
+     */
+    public static DataModel decode(byte[] encoded) throws IOException {
+        if (!isEncoded(encoded)) {
+            throw new IOException("Not a plan file");
+        }
+        DataModelCodec codec = new DataModelCodec(ByteBuffer.wrap(encoded));
+        try {
+            return codec.readModel();
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Plan file is damaged");
+        }
+    }
+
+    private void writeModel(DataModel model) {
+        this.buffer.putLong(MAGIC);
+        this.buffer.putShort(FORMAT_VERSION);
+        this.writeInteger(TAG_MODEL_VERSION, model.getModelVersion());
+        this.writeBoolean(TAG_USE_FILTER_WHEEL, model.getUseFilterWheel());
+        this.writeInteger(TAG_DEFAULT_FRAME_COUNT, model.getDefaultFrameCount());
+        this.writeInteger(TAG_TARGET_ADUS, model.getTargetADUs());
+        this.writeDouble(TAG_ADU_TOLERANCE, model.getAduTolerance());
+        this.writeString(TAG_SERVER_ADDRESS, model.getServerAddress());
+        this.writeInteger(TAG_PORT_NUMBER, model.getPortNumber());
+        this.writeDouble(TAG_LIGHT_SOURCE_ALT, model.getLightSourceAlt());
+        this.writeDouble(TAG_LIGHT_SOURCE_AZ, model.getLightSourceAz());
+        this.writeBoolean(TAG_DITHER_FLATS, model.getDitherFlats());
+        this.writeDouble(TAG_DITHER_RADIUS, model.getDitherRadius());
+        this.writeDouble(TAG_DITHER_MAXIMUM, model.getDitherMaximum());
+        this.writeBoolean(TAG_WARM_UP_WHEN_DONE, model.getWarmUpWhenDone());
+        this.writeBoolean(TAG_USE_THESKY_AUTOSAVE, model.getUseTheSkyAutosave());
+        this.writeString(TAG_LOCAL_PATH, model.getLocalPath());
+        this.writeBoolean(TAG_CONTROL_MOUNT, model.getControlMount());
+        this.writeBoolean(TAG_HOME_MOUNT, model.getHomeMount());
+        this.writeBoolean(TAG_TRACKING_OFF, model.getTrackingOff());
+        this.writeBoolean(TAG_SLEW_TO_LIGHT, model.getSlewToLight());
+        this.writeBoolean(TAG_PARK_WHEN_DONE, model.getParkWhenDone());
+        this.writeEnum(TAG_LIGHT_SOURCE, model.getLightSource());
+        this.writeEnum(TAG_ADU_MEASUREMENT, model.getAduMeasurement());
+        this.writeEnum(TAG_MASTER_FLAT_COMBINE, model.getMasterFlatCombine());
+        this.writeEnum(TAG_METRICS_ENDPOINT, model.getMetricsEndpoint());
+
+        if (model.getFiltersInUse() != null) {
+            int start = this.startField(TAG_FILTERS_IN_USE);
+            this.buffer.putInt(model.getFiltersInUse().size());
+            for (FilterSpec filter : model.getFiltersInUse()) {
+                this.buffer.putInt(filter.getSlotNumber());
+                this.putString(filter.getName());
+            }
+            this.endField(start);
+        }
+        if (model.getBinningsInUse() != null) {
+            int start = this.startField(TAG_BINNINGS_IN_USE);
+            this.buffer.putInt(model.getBinningsInUse().size());
+            for (BinningSpec binning : model.getBinningsInUse()) {
+                this.buffer.putInt(binning.getBinningValue());
+                this.putString(binning.getAvailability().name());
+            }
+            this.endField(start);
+        }
+        FrameCountMatrix frameCounts = model.getFrameCounts();
+        if (frameCounts != null) {
+            int start = this.startField(TAG_FRAME_TABLE_DATA);
+            this.buffer.putInt(frameCounts.getRows());
+            for (int rowIndex = 0; rowIndex < frameCounts.getRows(); rowIndex++) {
+                this.buffer.putInt(frameCounts.getColumns());
+                for (int columnIndex = 0; columnIndex < frameCounts.getColumns(); columnIndex++) {
+                    this.buffer.putInt(frameCounts.get(rowIndex, columnIndex));
+                }
+            }
+            this.endField(start);
+        }
+    }
+
+    private DataModel readModel() throws IOException {
+        this.buffer.getLong();
+        short formatVersion = this.buffer.getShort();
+        if (formatVersion > FORMAT_VERSION) {
+            throw new IOException("Plan file was saved by a newer version of this application");
+        }
+        DataModel model = new DataModel();
+        while (this.buffer.hasRemaining()) {
+            byte tag = this.buffer.get();
+            int length = this.buffer.getInt();
+            if (length < 0 || length > this.buffer.remaining()) {
+                throw new IOException("Plan file is damaged");
+            }
+            int end = this.buffer.position() + length;
+            switch (tag) {
+                case TAG_MODEL_VERSION: model.setModelVersion(this.buffer.getInt()); break;
+                case TAG_USE_FILTER_WHEEL: model.setUseFilterWheel(this.getBoolean()); break;
+                case TAG_DEFAULT_FRAME_COUNT: model.setDefaultFrameCount(this.buffer.getInt()); break;
+                case TAG_TARGET_ADUS: model.setTargetADUs(this.buffer.getInt()); break;
+                case TAG_ADU_TOLERANCE: model.setAduTolerance(this.buffer.getDouble()); break;
+                case TAG_SERVER_ADDRESS: model.setServerAddress(this.getString()); break;
+                case TAG_PORT_NUMBER: model.setPortNumber(this.buffer.getInt()); break;
+                case TAG_LIGHT_SOURCE_ALT: model.setLightSourceAlt(this.buffer.getDouble()); break;
+                case TAG_LIGHT_SOURCE_AZ: model.setLightSourceAz(this.buffer.getDouble()); break;
+                case TAG_DITHER_FLATS: model.setDitherFlats(this.getBoolean()); break;
+                case TAG_DITHER_RADIUS: model.setDitherRadius(this.buffer.getDouble()); break;
+                case TAG_DITHER_MAXIMUM: model.setDitherMaximum(this.buffer.getDouble()); break;
+                case TAG_WARM_UP_WHEN_DONE: model.setWarmUpWhenDone(this.getBoolean()); break;
+                case TAG_USE_THESKY_AUTOSAVE: model.setUseTheSkyAutosave(this.getBoolean()); break;
+                case TAG_LOCAL_PATH: model.setLocalPath(this.getString()); break;
+                case TAG_CONTROL_MOUNT: model.setControlMount(this.getBoolean()); break;
+                case TAG_HOME_MOUNT: model.setHomeMount(this.getBoolean()); break;
+                case TAG_TRACKING_OFF: model.setTrackingOff(this.getBoolean()); break;
+                case TAG_SLEW_TO_LIGHT: model.setSlewToLight(this.getBoolean()); break;
+                case TAG_PARK_WHEN_DONE: model.setParkWhenDone(this.getBoolean()); break;
+                case TAG_LIGHT_SOURCE:
+                    model.setLightSource(this.getEnum(FlatLightSource.class, model.getLightSource()));
+                    break;
+                case TAG_ADU_MEASUREMENT:
+                    model.setAduMeasurement(this.getEnum(ADUMeasurementMode.class, model.getAduMeasurement()));
+                    break;
+                case TAG_MASTER_FLAT_COMBINE:
+                    model.setMasterFlatCombine(this.getEnum(MasterFlatCombine.class, model.getMasterFlatCombine()));
+                    break;
+                case TAG_METRICS_ENDPOINT:
+                    model.setMetricsEndpoint(this.getEnum(MetricsEndpointMode.class, model.getMetricsEndpoint()));
+                    break;
+                case TAG_FILTERS_IN_USE: {
+                    int count = this.buffer.getInt();
+                    ArrayList<FilterSpec> filters = new ArrayList<>(Math.min(count, length));
+                    for (int index = 0; index < count; index++) {
+                        int slotNumber = this.buffer.getInt();
+                        filters.add(new FilterSpec(slotNumber, this.getString()));
+                    }
+                    model.setFiltersInUse(filters);
+                    break;
+                }
+                case TAG_BINNINGS_IN_USE: {
+                    int count = this.buffer.getInt();
+                    ArrayList<BinningSpec> binnings = new ArrayList<>(Math.min(count, length));
+                    for (int index = 0; index < count; index++) {
+                        int binningValue = this.buffer.getInt();
+                        binnings.add(new BinningSpec(binningValue,
+                                this.getEnum(BinningAvailability.class, BinningAvailability.AVAILABLE)));
+                    }
+                    model.setBinningsInUse(binnings);
+                    break;
+                }
+                case TAG_FRAME_TABLE_DATA: {
+                    //  Stored row by row, each row with its length
+                    int rows = this.buffer.getInt();
+                    if (rows < 0 || rows > length) {
+                        throw new IOException("Plan file is damaged");
+                    }
+                    int[][] table = new int[rows][];
+                    int columns = 0;
+                    for (int rowIndex = 0; rowIndex < rows; rowIndex++) {
+                        int rowLength = this.buffer.getInt();
+                        if (rowLength < 0 || rowLength > length) {
+                            throw new IOException("Plan file is damaged");
+                        }
+                        table[rowIndex] = new int[rowLength];
+                        for (int columnIndex = 0; columnIndex < rowLength; columnIndex++) {
+                            table[rowIndex][columnIndex] = this.buffer.getInt();
+                        }
+                        columns = Math.max(columns, rowLength);
+                    }
+                    FrameCountMatrix frameCounts = new FrameCountMatrix(rows, columns);
+                    for (int rowIndex = 0; rowIndex < rows; rowIndex++) {
+                        for (int columnIndex = 0; columnIndex < table[rowIndex].length; columnIndex++) {
+                            frameCounts.set(rowIndex, columnIndex, table[rowIndex][columnIndex]);
+                        }
+                    }
+                    model.setFrameCounts(frameCounts);
+                    break;
+                }
+                default:
+                    //  A field from a newer version of the application - skip it
+                    break;
+            }
+            if (this.buffer.position() > end) {
+                throw new IOException("Plan file is damaged");
+            }
+            this.buffer.position(end);
+        }
+        return model;
+    }
+
+    //  Writing fields.  Each returns without writing anything if the value is null.
+
+    private void writeInteger(byte tag, Integer value) {
+        if (value != null) {
+            int start = this.startField(tag);
+            this.buffer.putInt(value);
+            this.endField(start);
+        }
+    }
+
+    private void writeDouble(byte tag, Double value) {
+        if (value != null) {
+            int start = this.startField(tag);
+            this.buffer.putDouble(value);
+            this.endField(start);
+        }
+    }
+
+    private void writeBoolean(byte tag, Boolean value) {
+        if (value != null) {
+            int start = this.startField(tag);
+            this.buffer.put((byte) (value ? 1 : 0));
+            this.endField(start);
+        }
+    }
+
+    private void writeString(byte tag, String value) {
+        if (value != null) {
+            int start = this.startField(tag);
+            this.putString(value);
+            this.endField(start);
+        }
+    }
+
+    private void writeEnum(byte tag, Enum<?> value) {
+        if (value != null) {
+            this.writeString(tag, value.name());
+        }
+    }
+
+    /**
+     * Write a field's tag and leave room for its length, which is filled in by endField
+     * @param tag               Field tag
+     * @return (int)            Position of the length
+     */
+    private int startField(byte tag) {
+        this.buffer.put(tag);
+        int lengthPosition = this.buffer.position();
+        this.buffer.putInt(0);
+        return lengthPosition;
+    }
+
+    private void endField(int lengthPosition) {
+        this.buffer.putInt(lengthPosition, this.buffer.position() - lengthPosition - Integer.BYTES);
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        this.buffer.putInt(bytes.length);
+        this.buffer.put(bytes);
+    }
+
+    //  Reading values
+
+    private boolean getBoolean() {
+        return this.buffer.get() != 0;
+    }
+
+    private String getString() {
+        byte[] bytes = new byte[this.buffer.getInt()];
+        this.buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read an enum value written by name
+     * @param enumClass         The enum
+     * @param defaultValue      Value to use if the name isn't one of the enum's (written by a newer version)
+     * @return (E)              Value
+     */
+    private <E extends Enum<E>> E getEnum(Class<E> enumClass, E defaultValue) {
+        String name = this.getString();
+        for (E value : enumClass.getEnumConstants()) {
+            if (value.name().equals(name)) {
+                return value;
+            }
+        }
+        return defaultValue;
+    }
+}
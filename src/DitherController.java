@@ -91,6 +91,24 @@ public class DitherController {
         return ImmutableTriple.of(slewScope, targetAlt, targetAz);
     }
 
+    /**
+     * Look ahead at what calculateNextFrame will return, without advancing to it.  This lets a slew to the
+     * next position be started early, before we know for sure that the current frame will be kept.
+     * @return (triple)     Move scope?   Alt coordinates?   Az Coordinates?
+     */
+    public ImmutableTriple<Boolean, Double, Double> peekNextFrame() {
+        int savedCountInSet = this.countInSet;
+        double savedAngleRadians = this.angleRadians;
+        int savedSteps = this.steps;
+        double savedCurrentRadiusRadians = this.currentRadiusRadians;
+        ImmutableTriple<Boolean, Double, Double> nextFrame = this.calculateNextFrame();
+        this.countInSet = savedCountInSet;
+        this.angleRadians = savedAngleRadians;
+        this.steps = savedSteps;
+        this.currentRadiusRadians = savedCurrentRadiusRadians;
+        return nextFrame;
+    }
+
     /**
      * Calculate the next dithering offset, in radians, around the concentric circles that
      * build outward from the original point.
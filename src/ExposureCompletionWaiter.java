@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Waits for an asynchronous camera exposure to complete, with as little dead time as possible between
+ * the camera finishing and our noticing.
+ *
+ * We predict when the frame will be ready (exposure plus the download time for its binning), sleep until
+ * shortly before that, then poll the camera rapidly around the predicted moment.  If the frame is late we back
+ * off exponentially to the normal polling interval, so a slow camera isn't flooded with requests.
+ * Each completion teaches us more about the real download time for that binning, so the prediction improves
+ * as the session goes on.
+ *
+ * We also keep statistics comparing this with the old fixed scheme (sleep for the measured time, then poll every
+ * FRAME_COMPLETION_POLL_INTERVAL_SECONDS), so the session can report how much dead time was eliminated.
+ */
+public class ExposureCompletionWaiter {
+    //  Weight given to each new observation when refining the download time estimate
+    private static final double DOWNLOAD_LEARNING_RATE = 0.3;
+
+    private final TheSkyXServer server;
+
+    //  Download time estimates, by binning: as originally measured (for comparison), and as refined
+    private final HashMap<Integer, Double> measuredDownloadSeconds;
+    private final HashMap<Integer, Double> learnedDownloadSeconds;
+
+    //  Accumulated statistics
+    private int framesWaited = 0;
+    private int totalPolls = 0;
+    private double totalSlackSeconds = 0.0;
+    private double totalDeadTimeEliminatedSeconds = 0.0;
+
+    /**
+     * Constructor
+     * @param server                    Server to poll for completion
+     * @param measuredDownloadSeconds   Download times measured before the session, by binning
+     */
+    public ExposureCompletionWaiter(TheSkyXServer server, HashMap<Integer, Double> measuredDownloadSeconds) {
+        this.server = server;
+        this.measuredDownloadSeconds = new HashMap<>(measuredDownloadSeconds);
+        this.learnedDownloadSeconds = new HashMap<>(measuredDownloadSeconds);
+    }
+
+    /**
+     * Our current best estimate of the download time for a given binning
+     * @param binning       Binning value
+     * @return (double)     Estimated download time in seconds
+     */
+    public double getDownloadSeconds(int binning) {
+        return this.learnedDownloadSeconds.get(binning);
+    }
+
+    /**
+     * Wait for the exposure, which has just been started asynchronously, to complete.
+     * @param exposureSeconds       How long is the exposure
+     * @param binning               Binning in use (to look up download time)
+     * @return (FrameStats)         Statistics about this wait
+     * @throws InterruptedException Thread interrupted (user clicked Cancel)
+     * @throws IOException          I/O error polling server
+     * @throws TimeoutException     Exposure did not complete long after it should have
+     */
+    public FrameStats waitForCompletion(double exposureSeconds, int binning)
+            throws InterruptedException, IOException, TimeoutException {
+        long startNanos = System.nanoTime();
+        double predictedSeconds = exposureSeconds + this.getDownloadSeconds(binning);
+        double guardSeconds = Math.max(Common.COMPLETION_POLL_GUARD_SECONDS,
+                predictedSeconds * Common.COMPLETION_POLL_GUARD_FRACTION);
+
+        //  Sleep until just before the frame should be ready
+        long initialSleepMilliseconds = Math.round((predictedSeconds - guardSeconds) * 1000.0);
+        if (initialSleepMilliseconds > 0) {
+            Thread.sleep(initialSleepMilliseconds);
+        }
+
+        //  Now poll: rapidly while we're near the predicted time, backing off once we're past it
+        double pollInterval = Common.COMPLETION_POLL_MINIMUM_SECONDS;
+        double lastIncompleteSeconds = -1.0;
+        int polls = 0;
+        while (true) {
+            polls++;
+            boolean complete = this.server.exposureIsComplete();
+            double elapsedSeconds = (System.nanoTime() - startNanos) / 1.0e9;
+            if (complete) {
+                return this.recordCompletion(exposureSeconds, binning, predictedSeconds, guardSeconds,
+                        lastIncompleteSeconds, elapsedSeconds, polls);
+            }
+            lastIncompleteSeconds = elapsedSeconds;
+            if (elapsedSeconds > predictedSeconds + Common.FRAME_COMPLETION_TIMEOUT_SECONDS) {
+                throw new TimeoutException("Exposure timed out");
+            }
+            if (elapsedSeconds > predictedSeconds + guardSeconds) {
+                pollInterval = Math.min(pollInterval * 2.0, Common.FRAME_COMPLETION_POLL_INTERVAL_SECONDS);
+            }
+            Thread.sleep(Math.round(pollInterval * 1000.0));
+        }
+    }
+
+    /**
+     * The exposure has been seen to complete.  Refine the download estimate and record statistics.
+     * The frame actually finished somewhere between the last poll that said "not yet" and the poll that
+     * said "done".  If the very first poll said "done", we only know it finished before then.
+     * @param exposureSeconds           Exposure time
+     * @param binning                   Binning value
+     * @param predictedSeconds          When we predicted the frame would be ready
+     * @param guardSeconds              Margin we started polling before the prediction
+     * @param lastIncompleteSeconds     Time of last "not yet" poll, or negative if there wasn't one
+     * @param detectedSeconds           Time of the poll that saw completion
+     * @param polls                     Number of polls made
+     * @return (FrameStats)             Statistics about this wait
+     */
+    private FrameStats recordCompletion(double exposureSeconds, int binning,
+                                        double predictedSeconds, double guardSeconds,
+                                        double lastIncompleteSeconds, double detectedSeconds, int polls) {
+        double slackSeconds;
+        double completedSeconds;
+        if (lastIncompleteSeconds < 0) {
+            //  Finished before we started looking.  Assume it was early by about the guard margin.
+            completedSeconds = Math.max(exposureSeconds, detectedSeconds - guardSeconds);
+            slackSeconds = detectedSeconds - completedSeconds;
+        } else {
+            completedSeconds = (lastIncompleteSeconds + detectedSeconds) / 2.0;
+            slackSeconds = detectedSeconds - lastIncompleteSeconds;
+        }
+
+        //  Learn from this the actual download time
+        double observedDownload = Math.max(0.0, completedSeconds - exposureSeconds);
+        double oldEstimate = this.getDownloadSeconds(binning);
+        this.learnedDownloadSeconds.put(binning,
+                oldEstimate + DOWNLOAD_LEARNING_RATE * (observedDownload - oldEstimate));
+
+        //  When would the old fixed sleep-then-poll scheme have noticed?
+        double legacyPredicted = exposureSeconds + this.measuredDownloadSeconds.get(binning);
+        double legacyDetected = legacyPredicted;
+        if (completedSeconds > legacyPredicted) {
+            double legacyPolls = Math.ceil((completedSeconds - legacyPredicted)
+                    / Common.FRAME_COMPLETION_POLL_INTERVAL_SECONDS);
+            legacyDetected += legacyPolls * Common.FRAME_COMPLETION_POLL_INTERVAL_SECONDS;
+        }
+        double eliminatedSeconds = legacyDetected - detectedSeconds;
+
+        this.framesWaited++;
+        this.totalPolls += polls;
+        this.totalSlackSeconds += slackSeconds;
+        this.totalDeadTimeEliminatedSeconds += eliminatedSeconds;
+        return new FrameStats(polls, slackSeconds, eliminatedSeconds, predictedSeconds, detectedSeconds);
+    }
+
+    /**
+     * Summary of the waiting done so far, suitable for the session console
+     * @return (String)
+     */
+    public String describeStatistics() {
+        if (this.framesWaited == 0) {
+            return "no asynchronous frames";
+        }
+        return String.format("%d frames, %.1f polls per frame, average slack %.0f ms, "
+                        + "%.1f seconds of dead time eliminated",
+                this.framesWaited, ((double) this.totalPolls) / this.framesWaited,
+                1000.0 * this.totalSlackSeconds / this.framesWaited,
+                this.totalDeadTimeEliminatedSeconds);
+    }
+
+    /**
+     * Statistics about waiting for a single frame
+     */
+    public static class FrameStats {
+        private final int polls;
+        private final double slackSeconds;
+        private final double eliminatedSeconds;
+        private final double predictedSeconds;
+        private final double detectedSeconds;
+
+        FrameStats(int polls, double slackSeconds, double eliminatedSeconds,
+                   double predictedSeconds, double detectedSeconds) {
+            this.polls = polls;
+            this.slackSeconds = slackSeconds;
+            this.eliminatedSeconds = eliminatedSeconds;
+            this.predictedSeconds = predictedSeconds;
+            this.detectedSeconds = detectedSeconds;
+        }
+
+        public int getPolls() { return polls; }
+        public double getSlackSeconds() { return slackSeconds; }
+        public double getEliminatedSeconds() { return eliminatedSeconds; }
+        public double getPredictedSeconds() { return predictedSeconds; }
+        public double getDetectedSeconds() { return detectedSeconds; }
+
+        /**
+         * Brief description for the session console
+         * @return (String)
+         */
+        public String describe() {
+            return String.format("Ready after %.2f s (predicted %.2f s), %d polls, slack %.0f ms, %.0f ms saved",
+                    this.detectedSeconds, this.predictedSeconds, this.polls,
+                    1000.0 * this.slackSeconds, 1000.0 * this.eliminatedSeconds);
+        }
+    }
+}
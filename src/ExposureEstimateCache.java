@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * In-memory cache of the exposure estimates kept in the preferences, one per combination of filter and binning.
+ *
+ * Every accepted frame updates its set's estimate, and writing to the preferences backing store that often is
+ * slow and pointless - only the last value matters.  So estimates are read from the preferences once, then
+ * held here; changes are marked dirty and written back later ("write-behind"): when a frame set is complete,
+ * every so often on a background thread, and when the application shuts down.
+ *
+ * Thread-safe: the acquisition thread, the user interface and the flushing thread all use it.
+ */
+public class ExposureEstimateCache {
+
+    private final Preferences preferences;
+    private final String keyPrefix;
+    private final double defaultEstimate;
+    //  Estimates by filter slot and binning (see Common.filterBinningKey), and which have changed since they were last written
+    private final HashMap<Integer, Double> estimates = new HashMap<>();
+    private final HashMap<Integer, Double> dirty = new HashMap<>();
+    //  Held for a whole flush, so two flushes can't write the same estimate out of order
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Constructor.  Starts flushing periodically, and arranges a flush when the application shuts down.
+     * @param preferences           Preferences the estimates are stored in
+     * @param keyPrefix             Start of each estimate's preference key, which is prefix:slot:binning
+     * @param defaultEstimate       Estimate to use for a combination never exposed before
+     * @param flushSeconds          How often to write changed estimates
+     */
+    public ExposureEstimateCache(Preferences preferences, String keyPrefix, double defaultEstimate, int flushSeconds) {
+        this.preferences = preferences;
+        this.keyPrefix = keyPrefix;
+        this.defaultEstimate = defaultEstimate;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Exposure estimate flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "Exposure estimate final flush"));
+    }
+
+    private String preferenceKey(int cacheKey) {
+        return this.keyPrefix + ":" + Common.filterSlotFromKey(cacheKey) + ":" + Common.binningFromKey(cacheKey);
+    }
+
+    /**
+     * Get the estimate for a filter and binning, reading it from the preferences the first time
+     * @param filterSlot        Filter wheel slot
+     * @param binning           Binning
+     * @return (double)         Exposure estimate, seconds
+     */
+    public synchronized double get(int filterSlot, int binning) {
+        int key = Common.filterBinningKey(filterSlot, binning);
+        Double estimate = this.estimates.get(key);
+        if (estimate == null) {
+            estimate = this.preferences.getDouble(this.preferenceKey(key), this.defaultEstimate);
+            this.estimates.put(key, estimate);
+        }
+        return estimate;
+    }
+
+    /**
+     * Change the estimate for a filter and binning.  It is written to the preferences later.
+     * @param filterSlot        Filter wheel slot
+     * @param binning           Binning
+     * @param exposure          Exposure estimate, seconds
+     */
+    public synchronized void put(int filterSlot, int binning, double exposure) {
+        int key = Common.filterBinningKey(filterSlot, binning);
+        this.estimates.put(key, exposure);
+        this.dirty.put(key, exposure);
+    }
+
+    /**
+     * Write every changed estimate to the preferences, and the preferences to their backing store, now
+     */
+    public void flush() {
+        synchronized (this.flushLock) {
+            ArrayList<Integer> keys;
+            ArrayList<Double> values;
+            synchronized (this) {
+                if (this.dirty.isEmpty()) {
+                    return;
+                }
+                keys = new ArrayList<>(this.dirty.keySet());
+                values = new ArrayList<>(this.dirty.values());
+                this.dirty.clear();
+            }
+            //  Writing the backing store can be slow, so it's done without holding the cache's lock
+            for (int index = 0; index < keys.size(); index++) {
+                this.preferences.putDouble(this.preferenceKey(keys.get(index)), values.get(index));
+            }
+            //  Make sure they reach the backing store: at shutdown the JDK's own preferences sync may run
+            //  before this flush, and nothing would sync them after it
+            try {
+                this.preferences.flush();
+            } catch (BackingStoreException e) {
+                System.out.println("Unable to save exposure estimates: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Ask for a flush soon, on the background thread, without waiting for it
+     */
+    public void flushSoon() {
+        this.flusher.execute(this::flush);
+    }
+}
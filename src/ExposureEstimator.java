@@ -0,0 +1,215 @@
+/**
+ * Online model of how a frame set's average ADUs respond to exposure time, used to choose the exposure
+ * for the next frame.
+ *
+ * The simple approach - scale the last exposure by how far its ADUs missed the target - assumes the
+ * response passes through zero.  Real cameras have a bias offset, and the measured response for some
+ * filters has a large intercept (e.g. nearly 20,000 ADUs for luminance on a real setup), so proportional
+ * correction overshoots or undershoots and frames are rejected.  Instead we fit
+ *
+ *      ADUs = slope * exposure + intercept
+ *
+ * by recursive least squares, updating after every measured frame (rejected ones too - they are just as
+ * informative), with a forgetting factor so a slowly changing light source is tracked.  Two exposures close
+ * together can't separate the intercept from the slope - measurement noise alone then gives absurd models - so
+ * the fit is only trusted once the exposures seen span a wide range and the fit has predicted a later frame
+ * to within the ADU tolerance.  Until then we fall back to proportional correction.
+ *
+ * We also count how many kept frames the proportional method would, by the fitted model, have missed -
+ * an estimate of the frames this model saved.
+ */
+public class ExposureEstimator {
+    //  Initial uncertainty of the model parameters (large = no prior knowledge)
+    private static final double INITIAL_COVARIANCE = 1.0e6;
+    //  Exposures must differ by at least this ratio before we trust the fitted intercept
+    private static final double DISTINCT_EXPOSURE_RATIO = 1.5;
+
+    private final double targetADUs;
+    private final double aduTolerance;
+
+    //  Model parameters, in units of the target ADU level (so values are near 1 and well-conditioned)
+    private double slope = 0.0;
+    private double intercept = 0.0;
+    //  Symmetric 2x2 covariance matrix of the parameters
+    private double p00 = INITIAL_COVARIANCE;
+    private double p01 = 0.0;
+    private double p11 = INITIAL_COVARIANCE;
+
+    private int observations = 0;
+    //  How well the fit predicted frames once the exposures spanned a wide range: forgetting-weighted mean
+    //  of the squared prediction errors (relative to target), and how many predictions went into it
+    private double predictionErrorSquares = 0.0;
+    private int predictionsChecked = 0;
+    private double minimumExposure = Double.MAX_VALUE;
+    private double maximumExposure = 0.0;
+    private double lastExposure = 0.0;
+    private int lastADUs = 0;
+
+    //  Metrics
+    private int framesMeasured = 0;
+    private int framesRejected = 0;
+    private int framesSavedByModel = 0;
+
+    /**
+     * Constructor
+     * @param targetADUs        ADU level we are trying to hit
+     * @param aduTolerance      Tolerance around target, as a fraction between 0 and 1
+     */
+    public ExposureEstimator(double targetADUs, double aduTolerance) {
+        this.targetADUs = targetADUs;
+        this.aduTolerance = aduTolerance;
+    }
+
+    /**
+     * A frame has been exposed and measured.  Add it to the model.
+     * @param exposureSeconds       Exposure time of the frame
+     * @param averageADUs           Average ADUs measured
+     * @param accepted              Was the frame within tolerance and kept?
+     */
+    public void recordFrame(double exposureSeconds, int averageADUs, boolean accepted) {
+        //  What would the proportional method have chosen for this frame, given the previous one?
+        double proportionalExposure = (this.framesMeasured > 0 && this.lastADUs > 0)
+                ? this.lastExposure * this.targetADUs / this.lastADUs : 0.0;
+
+        this.framesMeasured++;
+        if (!accepted) {
+            this.framesRejected++;
+        }
+        this.lastExposure = exposureSeconds;
+        this.lastADUs = averageADUs;
+
+        //  Saturated frames are not on the linear part of the response; don't let them distort the fit
+        if (averageADUs < Common.SATURATION_ADU_LIMIT) {
+            this.updateModel(exposureSeconds, averageADUs / this.targetADUs);
+        }
+
+        //  Would the proportional method have missed a frame we kept?
+        if (accepted && proportionalExposure > 0.0 && this.hasLinearModel()) {
+            double proportionalResult = this.slope * proportionalExposure + this.intercept;
+            if (Math.abs(proportionalResult - 1.0) > this.aduTolerance) {
+                this.framesSavedByModel++;
+            }
+        }
+    }
+
+    /**
+     * Recursive least squares update of the model with one observation
+     * @param exposureSeconds       Exposure time (the x value)
+     * @param relativeADUs          ADUs as a fraction of target (the y value)
+     */
+    private void updateModel(double exposureSeconds, double relativeADUs) {
+        double lambda = Common.EXPOSURE_MODEL_FORGETTING_FACTOR;
+        //  P x, where x = (exposure, 1)
+        double px0 = this.p00 * exposureSeconds + this.p01;
+        double px1 = this.p01 * exposureSeconds + this.p11;
+        double denominator = lambda + exposureSeconds * px0 + px1;
+        double gain0 = px0 / denominator;
+        double gain1 = px1 / denominator;
+        double error = relativeADUs - (this.slope * exposureSeconds + this.intercept);
+        if (this.hasWideExposureRange()) {
+            //  The fit before this frame was eligible for use; score how well it predicted the frame
+            this.predictionErrorSquares = lambda * this.predictionErrorSquares + (1.0 - lambda) * error * error;
+            this.predictionsChecked++;
+        }
+        this.slope += gain0 * error;
+        this.intercept += gain1 * error;
+        //  P = (P - k x'P) / lambda
+        this.p00 = (this.p00 - gain0 * px0) / lambda;
+        this.p01 = (this.p01 - gain0 * px1) / lambda;
+        this.p11 = (this.p11 - gain1 * px1) / lambda;
+
+        this.observations++;
+        this.minimumExposure = Math.min(this.minimumExposure, exposureSeconds);
+        this.maximumExposure = Math.max(this.maximumExposure, exposureSeconds);
+    }
+
+    /**
+     * Have we seen exposures spread widely enough to separate the slope from the intercept?
+     * @return (boolean)
+     */
+    private boolean hasWideExposureRange() {
+        return this.observations >= 2
+                && this.maximumExposure >= this.minimumExposure * DISTINCT_EXPOSURE_RATIO;
+    }
+
+    /**
+     * Can we trust the fitted slope and intercept?  The exposures seen must span a wide range, and the fit
+     * must have predicted the frames since then to within the ADU tolerance.
+     * @return (boolean)
+     */
+    public boolean hasLinearModel() {
+        if (!this.hasWideExposureRange() || this.predictionsChecked == 0 || this.slope <= 0.0) {
+            return false;
+        }
+        //  Weighted mean so far, normalized for the number of predictions checked
+        double weight = 1.0 - Math.pow(Common.EXPOSURE_MODEL_FORGETTING_FACTOR, this.predictionsChecked);
+        return Math.sqrt(this.predictionErrorSquares / weight) <= this.aduTolerance;
+    }
+
+    /**
+     * Predict the exposure that will give the target ADU level, based on all the frames seen so far.
+     * The change from the last exposure is limited, so one bad measurement can't send us wildly off.
+     * @return (double)     Exposure estimate in seconds
+     */
+    public double predictExposure() {
+        double proposed;
+        if (this.lastADUs >= Common.SATURATION_ADU_LIMIT) {
+            //  Saturated - we only know it's too long, not by how much
+            proposed = this.lastExposure / 2.0;
+        } else if (this.lastADUs <= 0) {
+            proposed = this.lastExposure * Common.EXPOSURE_MAXIMUM_STEP_FACTOR;
+        } else {
+            proposed = this.lastExposure * this.targetADUs / this.lastADUs;
+            if (this.hasLinearModel()) {
+                double modelExposure = (1.0 - this.intercept) / this.slope;
+                if (modelExposure > 0.0) {
+                    proposed = modelExposure;
+                }
+            }
+        }
+        proposed = Math.min(proposed, this.lastExposure * Common.EXPOSURE_MAXIMUM_STEP_FACTOR);
+        proposed = Math.max(proposed, this.lastExposure / Common.EXPOSURE_MAXIMUM_STEP_FACTOR);
+        return Math.max(proposed, Common.MINIMUM_EXPOSURE_SECONDS);
+    }
+
+    /**
+     * Predicted average ADUs for a given exposure, from the fitted model
+     * @param exposureSeconds   Exposure to evaluate
+     * @return (double)         Predicted ADUs, or NaN if we don't have a model yet
+     */
+    public double predictADUs(double exposureSeconds) {
+        return this.hasLinearModel() ? this.targetADUs * (this.slope * exposureSeconds + this.intercept) : Double.NaN;
+    }
+
+    //  Getters for the fitted model, in ADUs and ADUs per second
+
+    public double getSlopeADUsPerSecond() { return this.slope * this.targetADUs; }
+    public double getInterceptADUs() { return this.intercept * this.targetADUs; }
+
+    //  Metrics getters
+
+    public int getFramesMeasured() { return framesMeasured; }
+    public int getFramesRejected() { return framesRejected; }
+    public int getFramesSavedByModel() { return framesSavedByModel; }
+
+    /**
+     * Rejection rate so far
+     * @return (double)     Fraction of measured frames that were rejected
+     */
+    public double getRejectionRate() {
+        return (this.framesMeasured == 0) ? 0.0 : ((double) this.framesRejected) / this.framesMeasured;
+    }
+
+    /**
+     * Brief description of the model and its metrics, for the session console
+     * @return (String)
+     */
+    public String describe() {
+        String model = this.hasLinearModel()
+                ? String.format("ADUs = %.1f x seconds %+.0f", this.getSlopeADUsPerSecond(), this.getInterceptADUs())
+                : "proportional (exposures not yet spread widely enough to fit reliably)";
+        return String.format("Exposure model %s; %d of %d frames rejected (%.0f%%), about %d frames saved by the model",
+                model, this.framesRejected, this.framesMeasured, 100.0 * this.getRejectionRate(),
+                this.framesSavedByModel);
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Recent history of the frames accepted for every combination of filter and binning, kept from session to
+ * session, used to choose the first exposure of a frame set.
+ *
+ * The preferences remember only the last exposure that worked, so a set starts from wherever the light
+ * happened to be at the end of the last one - and if that frame was near the edge of the tolerance band, or
+ * the target ADU level has changed since, the first frames miss.  Here each combination keeps a ring buffer of
+ * its most recent accepted frames (exposure, ADUs, when it was taken, and the sun's altitude then).  Every
+ * sample is scaled to the exposure it implies for the current target level, then the estimate is the mean of
+ * those implied exposures after rejecting outliers more than a few median absolute deviations from their
+ * median.  For twilight sky flats the brightness depends on how far the sun is below the horizon, so only
+ * samples taken with the sun at nearly the same altitude are used - if there aren't enough of those, there is
+ * no estimate, rather than one from samples taken in a different light.
+ *
+ * The history is a small binary file that is rewritten whole (to a temporary file, then moved into place):
+ *
+ *      magic           long        "FCN2EXH2"
+ *      combinations    int
+ *      then for each:  filter slot (short), binning (byte), sample count (short), then the samples, oldest
+ *                      first: time (long, epoch milliseconds), exposure (double), ADUs (int),
+ *                      sun altitude (float, degrees; NaN if not known)
+ *      CRC             int         CRC-32 of everything before it
+ *
+ * A history written before the sun's altitude was recorded ("FCN2EXH1", samples without it) is still read;
+ * its samples can start light panel sets but not twilight ones.
+ */
+public class ExposureHistory {
+    private static final long MAGIC = 0x46434E3245584832L;      // "FCN2EXH2"
+    private static final long MAGIC_WITHOUT_SUN = 0x46434E3245584831L;     // "FCN2EXH1"
+    //  Samples further than this many (scaled) median absolute deviations from the median are outliers
+    private static final double OUTLIER_DEVIATIONS = 3.0;
+    //  Scales the median absolute deviation to a standard deviation, for normally distributed values
+    private static final double MAD_TO_SIGMA = 1.4826;
+
+    private final Path historyPath;
+    private final int capacity;
+    //  Ring buffers by filter slot and binning (see Common.filterBinningKey)
+    private final HashMap<Integer, Ring> rings = new HashMap<>();
+    private boolean changed = false;
+
+    /**
+     * One accepted frame
+     */
+    public static class Sample {
+        private final long timeMillis;
+        private final double exposureSeconds;
+        private final int averageADUs;
+        private final float sunAltitude;
+
+        Sample(long timeMillis, double exposureSeconds, int averageADUs, float sunAltitude) {
+            this.timeMillis = timeMillis;
+            this.exposureSeconds = exposureSeconds;
+            this.averageADUs = averageADUs;
+            this.sunAltitude = sunAltitude;
+        }
+
+        public long getTimeMillis() { return timeMillis; }
+        public double getExposureSeconds() { return exposureSeconds; }
+        public int getAverageADUs() { return averageADUs; }
+        public float getSunAltitude() { return sunAltitude; }
+    }
+
+    /**
+     * Fixed-size buffer of the most recent samples for one combination; the oldest is overwritten when full
+     */
+    private static class Ring {
+        private final Sample[] samples;
+        private int next = 0;
+        private int count = 0;
+
+        Ring(int capacity) {
+            this.samples = new Sample[capacity];
+        }
+
+        void add(Sample sample) {
+            this.samples[this.next] = sample;
+            this.next = (this.next + 1) % this.samples.length;
+            this.count = Math.min(this.count + 1, this.samples.length);
+        }
+
+        /**
+         * The samples held, oldest first
+         * @return (List)
+         */
+        List<Sample> samples() {
+            ArrayList<Sample> result = new ArrayList<>(this.count);
+            int first = (this.next - this.count + this.samples.length) % this.samples.length;
+            for (int index = 0; index < this.count; index++) {
+                result.add(this.samples[(first + index) % this.samples.length]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Constructor.  Doesn't touch the file - that happens on load().
+     * @param historyPath       Location of the history file
+     * @param capacity          Samples kept for each combination of filter and binning
+     */
+    public ExposureHistory(Path historyPath, int capacity) {
+        this.historyPath = historyPath;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Read the history from its file.  A missing file is an empty history.
+     * @throws IOException      Unable to read the file, or it isn't a valid exposure history
+     */
+    public synchronized void load() throws IOException {
+        this.rings.clear();
+        this.changed = false;
+        if (!Files.exists(this.historyPath)) {
+            return;
+        }
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(this.historyPath));
+        try {
+            long magic = (contents.remaining() < Long.BYTES + Integer.BYTES) ? 0 : contents.getLong();
+            if (magic != MAGIC && magic != MAGIC_WITHOUT_SUN) {
+                throw new IOException("Not an exposure history: " + this.historyPath);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(contents.array(), 0, contents.limit() - Integer.BYTES);
+            if (contents.getInt(contents.limit() - Integer.BYTES) != (int) crc.getValue()) {
+                throw new IOException("Exposure history is damaged: " + this.historyPath);
+            }
+            int combinations = contents.getInt();
+            for (int combination = 0; combination < combinations; combination++) {
+                int filterSlot = contents.getShort();
+                int binning = contents.get();
+                int sampleCount = contents.getShort();
+                Ring ring = this.rings.computeIfAbsent(Common.filterBinningKey(filterSlot, binning),
+                        key -> new Ring(this.capacity));
+                for (int index = 0; index < sampleCount; index++) {
+                    long timeMillis = contents.getLong();
+                    double exposureSeconds = contents.getDouble();
+                    int averageADUs = contents.getInt();
+                    float sunAltitude = (magic == MAGIC) ? contents.getFloat() : Float.NaN;
+                    ring.add(new Sample(timeMillis, exposureSeconds, averageADUs, sunAltitude));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Exposure history is truncated: " + this.historyPath);
+        }
+    }
+
+    /**
+     * Write the history to its file, if it has changed since it was loaded or last saved.  It is written to a
+     * temporary file which then replaces the old one, so a crash while saving can't lose the history.
+     * @throws IOException      Unable to write the file
+     */
+    public synchronized void save() throws IOException {
+        if (!this.changed) {
+            return;
+        }
+        int size = Long.BYTES + Integer.BYTES + Integer.BYTES;
+        for (Ring ring : this.rings.values()) {
+            size += Short.BYTES + Byte.BYTES + Short.BYTES
+                    + ring.count * (Long.BYTES + Double.BYTES + Integer.BYTES + Float.BYTES);
+        }
+        ByteBuffer contents = ByteBuffer.allocate(size);
+        contents.putLong(MAGIC);
+        contents.putInt(this.rings.size());
+        for (Map.Entry<Integer, Ring> entry : this.rings.entrySet()) {
+            List<Sample> samples = entry.getValue().samples();
+            contents.putShort((short) Common.filterSlotFromKey(entry.getKey()));
+            contents.put((byte) Common.binningFromKey(entry.getKey()));
+            contents.putShort((short) samples.size());
+            for (Sample sample : samples) {
+                contents.putLong(sample.getTimeMillis());
+                contents.putDouble(sample.getExposureSeconds());
+                contents.putInt(sample.getAverageADUs());
+                contents.putFloat(sample.getSunAltitude());
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(contents.array(), 0, contents.position());
+        contents.putInt((int) crc.getValue());
+
+        Files.createDirectories(this.historyPath.getParent());
+        Path tempFile = this.historyPath.resolveSibling(this.historyPath.getFileName() + ".tmp");
+        Files.write(tempFile, contents.array());
+        Files.move(tempFile, this.historyPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.changed = false;
+    }
+
+    /**
+     * Record an accepted frame
+     * @param filterSlot        Filter wheel slot
+     * @param binning           Binning
+     * @param exposureSeconds   Exposure of the frame
+     * @param averageADUs       Measured ADU level
+     * @param sunAltitude       Sun's altitude when the frame was taken, degrees (NaN if not known)
+     */
+    public synchronized void addSample(int filterSlot, int binning, double exposureSeconds, int averageADUs,
+                                       double sunAltitude) {
+        this.rings.computeIfAbsent(Common.filterBinningKey(filterSlot, binning), key -> new Ring(this.capacity))
+                .add(new Sample(System.currentTimeMillis(), exposureSeconds, averageADUs, (float) sunAltitude));
+        this.changed = true;
+    }
+
+    /**
+     * Get the samples held for a filter and binning
+     * @param filterSlot        Filter wheel slot
+     * @param binning           Binning
+     * @return (List)           Samples, oldest first (empty if none)
+     */
+    public synchronized List<Sample> getSamples(int filterSlot, int binning) {
+        Ring ring = this.rings.get(Common.filterBinningKey(filterSlot, binning));
+        return (ring == null) ? new ArrayList<>() : ring.samples();
+    }
+
+    /**
+     * Estimate the exposure that will give the target ADU level for a filter and binning
+     * @param filterSlot            Filter wheel slot
+     * @param binning               Binning
+     * @param targetADUs            ADU level wanted
+     * @param biasADUs              Camera bias level (0 if not known)
+     * @param sunAltitude           If not null, use only samples taken with the sun within the window of this
+     *                              altitude, degrees
+     * @param altitudeWindow        Sun altitude window, degrees either side
+     * @param minimumSamples        Fewest samples the estimate will use
+     * @return (Estimate)           Estimate, or null if there aren't enough samples
+     */
+    public synchronized Estimate estimateExposure(int filterSlot, int binning, double targetADUs, int biasADUs,
+                                                  Double sunAltitude, double altitudeWindow, int minimumSamples) {
+        List<Sample> usable = new ArrayList<>();
+        for (Sample sample : this.getSamples(filterSlot, binning)) {
+            //  (A sample whose sun altitude isn't known is never within the window)
+            if (sample.getAverageADUs() > biasADUs && sample.getAverageADUs() < Common.SATURATION_ADU_LIMIT
+                    && sample.getExposureSeconds() > 0.0
+                    && (sunAltitude == null || Math.abs(sample.getSunAltitude() - sunAltitude) <= altitudeWindow)) {
+                usable.add(sample);
+            }
+        }
+        if (usable.size() < minimumSamples || usable.isEmpty()) {
+            return null;
+        }
+
+        //  What each sample says the exposure should be, assuming the response is linear above the bias
+        double[] implied = new double[usable.size()];
+        for (int index = 0; index < implied.length; index++) {
+            Sample sample = usable.get(index);
+            implied[index] = sample.getExposureSeconds() * (targetADUs - biasADUs)
+                    / (sample.getAverageADUs() - biasADUs);
+        }
+        double median = median(implied);
+        double[] deviations = new double[implied.length];
+        for (int index = 0; index < implied.length; index++) {
+            deviations[index] = Math.abs(implied[index] - median);
+        }
+        double limit = OUTLIER_DEVIATIONS * MAD_TO_SIGMA * median(deviations);
+        double total = 0.0;
+        int kept = 0;
+        for (double exposure : implied) {
+            if (Math.abs(exposure - median) <= limit) {
+                total += exposure;
+                kept++;
+            }
+        }
+        return new Estimate(total / kept, kept, implied.length - kept);
+    }
+
+    /**
+     * An estimated exposure, and how it was arrived at
+     */
+    public static class Estimate {
+        private final double exposureSeconds;
+        private final int samplesUsed;
+        private final int outliersRejected;
+
+        Estimate(double exposureSeconds, int samplesUsed, int outliersRejected) {
+            this.exposureSeconds = exposureSeconds;
+            this.samplesUsed = samplesUsed;
+            this.outliersRejected = outliersRejected;
+        }
+
+        public double getExposureSeconds() { return exposureSeconds; }
+        public int getSamplesUsed() { return samplesUsed; }
+        public int getOutliersRejected() { return outliersRejected; }
+
+        public String describe() {
+            return String.format("%.3f seconds from %d earlier frames (%d outliers ignored)",
+                    this.exposureSeconds, this.samplesUsed, this.outliersRejected);
+        }
+    }
+
+    /**
+     * Median of a few values (the array isn't changed)
+     * @param values        Values
+     * @return (double)     Median; the mean of the two middle values if there is an even number
+     */
+    private static double median(double[] values) {
+        double[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return ((sorted.length & 1) == 1) ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+    }
+}
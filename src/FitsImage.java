@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The primary image of a FITS file, memory-mapped or read into memory, and a writer for the images we produce.
+ *
+ * Reading handles integer images of 8 or 16 bits per pixel (BITPIX 8 or 16, which is what cameras write).
+ * Pixels are read from the mapped buffer with absolute gets, which don't move the buffer's position, so any
+ * number of threads can read the same image at once.  FITS data is big-endian, the buffer's default order.
+ * Raw values are as stored (signed for 16 bits); toADUs applies the image's BZERO and BSCALE.
+ *
+ * A mapping is only released when the buffer is garbage collected, and until then Windows won't delete the
+ * file, so a file that may be deleted after it is looked at (a frame being measured) is read with read()
+ * instead of being mapped with open().
+ *
+ * Images are written as 32-bit floating point (BITPIX -32), as calibration masters usually are.
+ */
+public class FitsImage {
+
+    private static final int FITS_BLOCK_SIZE = 2880;
+    private static final int FITS_CARD_SIZE = 80;
+
+    private final Path file;
+    private final ByteBuffer data;
+    private final LinkedHashMap<String, String> cards = new LinkedHashMap<>();
+    private int bytesPerPixel;
+    private int width = 1;
+    private int height = 1;
+    private long pixels;
+    private int dataOffset;
+    private double bZero = 0.0;
+    private double bScale = 1.0;
+
+    /**
+     * Supplies the rows of an image being written
+     */
+    public interface RowSource {
+        /**
+         * Fill in one row of the image
+         * @param row               Row number (from 0)
+         * @param values            Receives the row's pixel values
+         * @throws IOException      Unable to produce the row
+         */
+        void fillRow(int row, float[] values) throws IOException;
+    }
+
+    private FitsImage(Path file, ByteBuffer data) {
+        this.file = file;
+        this.data = data;
+    }
+
+    /**
+     * Open a FITS file and map its primary image into memory
+     * @param file                  FITS file
+     * @return (FitsImage)          Mapped image
+     * @throws IOException          File can't be read, or isn't a FITS image we can handle
+     */
+    public static FitsImage open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("FITS file too large to map: " + file);
+            }
+            FitsImage image = new FitsImage(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            image.parseHeader();
+            return image;
+        }
+    }
+
+    /**
+     * Read a FITS file into memory, rather than mapping it, so nothing holds on to the file afterwards
+     * @param file                  FITS file
+     * @param buffer                Heap buffer to read into, reused if it is big enough (may be null)
+     * @return (FitsImage)          Image, whose getData() is the buffer used
+     * @throws IOException          File can't be read, or isn't a FITS image we can handle
+     */
+    public static FitsImage read(Path file, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("FITS file too large to read: " + file);
+            }
+            ByteBuffer data = (buffer != null && buffer.capacity() >= size) ? buffer : ByteBuffer.allocate((int) size);
+            data.clear().limit((int) size);
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    throw new IOException("FITS file shorter than its size: " + file);
+                }
+            }
+            data.flip();
+            FitsImage image = new FitsImage(file, data);
+            image.parseHeader();
+            return image;
+        }
+    }
+
+    /**
+     * Read the header cards of the primary HDU, up to END, and check the file holds the image they describe
+     * @throws IOException      Not a FITS image we can handle
+     */
+    private void parseHeader() throws IOException {
+        byte[] card = new byte[FITS_CARD_SIZE];
+        int bitPix = 0;
+        int axes = -1;
+        long imagePixels = 1;
+        int position = 0;
+        boolean ended = false;
+        while (!ended) {
+            if (position + FITS_CARD_SIZE > this.data.limit()) {
+                throw new IOException("FITS header has no END: " + this.file);
+            }
+            this.data.get(position, card);
+            position += FITS_CARD_SIZE;
+            String text = new String(card, StandardCharsets.US_ASCII);
+            String keyword = text.substring(0, 8).trim();
+            if (position == FITS_CARD_SIZE && !keyword.equals("SIMPLE")) {
+                throw new IOException("Not a FITS file: " + this.file);
+            }
+            String value = (text.startsWith("= ", 8)) ? cardValue(text) : "";
+            if (!keyword.isEmpty() && !keyword.equals("END")) {
+                this.cards.putIfAbsent(keyword, value);
+            }
+            try {
+                switch (keyword) {
+                    case "BITPIX":
+                        bitPix = Integer.parseInt(value);
+                        break;
+                    case "NAXIS":
+                        axes = Integer.parseInt(value);
+                        break;
+                    case "BZERO":
+                        this.bZero = Double.parseDouble(value);
+                        break;
+                    case "BSCALE":
+                        this.bScale = Double.parseDouble(value);
+                        break;
+                    case "END":
+                        ended = true;
+                        break;
+                    case "NAXIS1":
+                        this.width = Integer.parseInt(value);
+                        imagePixels *= this.width;
+                        break;
+                    case "NAXIS2":
+                        this.height = Integer.parseInt(value);
+                        imagePixels *= this.height;
+                        break;
+                    default:
+                        if (keyword.startsWith("NAXIS")) {
+                            imagePixels *= Long.parseLong(value);
+                        }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid FITS header card \"" + text.trim() + "\": " + this.file);
+            }
+        }
+        if (bitPix == 16) {
+            this.bytesPerPixel = 2;
+        } else if (bitPix == 8) {
+            this.bytesPerPixel = 1;
+        } else {
+            throw new IOException("Unsupported FITS image type (BITPIX " + bitPix + "): " + this.file);
+        }
+        this.dataOffset = ((position + FITS_BLOCK_SIZE - 1) / FITS_BLOCK_SIZE) * FITS_BLOCK_SIZE;
+        this.pixels = (axes <= 0) ? 0 : imagePixels;
+        if (this.pixels == 0) {
+            throw new IOException("FITS file has no image: " + this.file);
+        }
+        if ((long) this.dataOffset + this.pixels * this.bytesPerPixel > this.data.limit()) {
+            throw new IOException("FITS image data truncated: " + this.file);
+        }
+    }
+
+    /**
+     * The value part of a header card, without any comment or quotes
+     * @param card          Header card text
+     * @return (String)     Value
+     */
+    private static String cardValue(String card) {
+        String value = card.substring(10);
+        int slash = value.indexOf('/');
+        if (slash >= 0 && !value.trim().startsWith("'")) {
+            value = value.substring(0, slash);
+        }
+        return value.trim().replace("'", "").trim();
+    }
+
+    public Path getFile() { return file; }
+    public ByteBuffer getData() { return data; }
+    public int getBytesPerPixel() { return bytesPerPixel; }
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public long getPixels() { return pixels; }
+    public int getDataOffset() { return dataOffset; }
+
+    /**
+     * Value of a header card, as text without quotes or comment
+     * @param keyword       Card keyword
+     * @return (String)     Value, or null if there is no such card
+     */
+    public String getCardValue(String keyword) {
+        return this.cards.get(keyword);
+    }
+
+    /**
+     * Lowest possible raw pixel value (-32768 for 16-bit images, which are signed, 0 for 8-bit)
+     * @return (int)
+     */
+    public int getRawMinimum() {
+        return (this.bytesPerPixel == 2) ? Short.MIN_VALUE : 0;
+    }
+
+    /**
+     * Number of possible raw pixel values
+     * @return (int)
+     */
+    public int getRawRange() {
+        return 1 << (8 * this.bytesPerPixel);
+    }
+
+    /**
+     * Raw value of one pixel
+     * @param pixel         Pixel index, row by row from the first
+     * @return (int)        Raw value, as stored in the file
+     */
+    public int rawAt(long pixel) {
+        int index = (int) (this.dataOffset + pixel * this.bytesPerPixel);
+        return (this.bytesPerPixel == 2) ? this.data.getShort(index) : (this.data.get(index) & 0xFF);
+    }
+
+    /**
+     * Convert a raw value to ADUs, applying BZERO and BSCALE
+     * @param raw           Raw value (or an average of them)
+     * @return (double)     ADUs
+     */
+    public double toADUs(double raw) {
+        return this.bZero + this.bScale * raw;
+    }
+
+    /**
+     * Convert ADUs back to a raw value
+     * @param adus          ADUs
+     * @return (double)     Raw value (not rounded)
+     */
+    public double toRaw(double adus) {
+        return (adus - this.bZero) / this.bScale;
+    }
+
+    /**
+     * Write a 2-dimensional 32-bit floating-point FITS image
+     * @param file              File to write (replaced if it exists)
+     * @param width             Image width
+     * @param height            Image height
+     * @param extraCards        Header cards to add after the required ones, keyword to value.  Strings values
+     *                          must be given with their quotes.
+     * @param rows              Supplies the image rows, in order
+     * @throws IOException      Error writing the file, or from the row source
+     */
+    public static void writeFloatImage(Path file, int width, int height, Map<String, String> extraCards,
+                                       RowSource rows) throws IOException {
+        StringBuilder header = new StringBuilder();
+        header.append(card("SIMPLE", "T"));
+        header.append(card("BITPIX", "-32"));
+        header.append(card("NAXIS", "2"));
+        header.append(card("NAXIS1", String.valueOf(width)));
+        header.append(card("NAXIS2", String.valueOf(height)));
+        for (Map.Entry<String, String> extraCard : extraCards.entrySet()) {
+            header.append(card(extraCard.getKey(), extraCard.getValue()));
+        }
+        header.append(String.format("%-80s", "END"));
+        while (header.length() % FITS_BLOCK_SIZE != 0) {
+            header.append(' ');
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(header.toString().getBytes(StandardCharsets.US_ASCII)));
+            float[] values = new float[width];
+            ByteBuffer rowBuffer = ByteBuffer.allocate(width * Float.BYTES);
+            for (int row = 0; row < height; row++) {
+                rows.fillRow(row, values);
+                rowBuffer.clear();
+                rowBuffer.asFloatBuffer().put(values);
+                while (rowBuffer.hasRemaining()) {
+                    channel.write(rowBuffer);
+                }
+            }
+            long dataBytes = (long) width * height * Float.BYTES;
+            int padding = (int) ((FITS_BLOCK_SIZE - dataBytes % FITS_BLOCK_SIZE) % FITS_BLOCK_SIZE);
+            ByteBuffer paddingBuffer = ByteBuffer.allocate(padding);
+            while (paddingBuffer.hasRemaining()) {
+                channel.write(paddingBuffer);
+            }
+        }
+    }
+
+    /**
+     * Format a FITS header card.  Fixed format: strings start in column 11, other values end in column 30.
+     * @param keyword       Keyword (up to 8 characters)
+     * @param value         Value; strings must be given with their quotes
+     * @return (String)     80-column card
+     */
+    public static String card(String keyword, String value) {
+        String card = String.format(value.startsWith("'") ? "%-8s= %-20s" : "%-8s= %20s", keyword, value);
+        return String.format("%-80s", card).substring(0, FITS_CARD_SIZE);
+    }
+}
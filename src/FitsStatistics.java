@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Measure a saved FITS image here, instead of asking TheSkyX for averagePixelValue().
+ *
+ * The file we just saved is read into a heap buffer, reused from frame to frame, and its primary image is
+ * scanned in parallel stripes.  (It isn't memory-mapped: an out-of-range frame is deleted as soon as it is
+ * measured, and Windows won't delete a file that is still mapped.)  Each stripe counts its pixels into its
+ * own histogram - one counter per possible raw value - and the histograms are then added together.
+ * Everything we want comes from the combined histogram: mean, exact median, min/max, a sigma-clipped mean
+ * that ignores hot pixels and cosmic rays, and how many pixels are saturated.  The histograms are allocated once and reused for
+ * every frame, so scanning a frame allocates nothing per pixel.
+ *
+ * Where only an estimate of the level is wanted, sample() reads just a sample of the pixels, chosen as
+ * described by an ADUMeasurementMode, and gives a confidence interval with the estimate.  The sample is
+ * drawn the same way as by the script TheSkyXServer sends when the server measures a frame.
+ *
+ * One measurement runs at a time; measure() and sample() are synchronized.
+ */
+public class FitsStatistics {
+
+    //  Don't bother splitting an image into stripes smaller than this many bytes
+    private static final int MINIMUM_STRIPE_BYTES = 1 << 18;
+
+    private final double saturationADUs;
+    private final double clipSigma;
+    private final int clipIterations;
+    private final int[][] stripeHistograms;
+    private ByteBuffer readBuffer = null;
+
+    /**
+     * The statistics of one image, in ADUs (raw values with the image's BZERO and BSCALE applied)
+     */
+    public static class ImageStats {
+        private final long pixels;
+        private final double mean;
+        private final double median;
+        private final double clippedMean;
+        private final double minimum;
+        private final double maximum;
+        private final long saturatedPixels;
+        private final double scanSeconds;
+
+        ImageStats(long pixels, double mean, double median, double clippedMean, double minimum,
+                   double maximum, long saturatedPixels, double scanSeconds) {
+            this.pixels = pixels;
+            this.mean = mean;
+            this.median = median;
+            this.clippedMean = clippedMean;
+            this.minimum = minimum;
+            this.maximum = maximum;
+            this.saturatedPixels = saturatedPixels;
+            this.scanSeconds = scanSeconds;
+        }
+
+        public long getPixels() { return pixels; }
+        public double getMean() { return mean; }
+        public double getMedian() { return median; }
+        public double getClippedMean() { return clippedMean; }
+        public double getMinimum() { return minimum; }
+        public double getMaximum() { return maximum; }
+        public long getSaturatedPixels() { return saturatedPixels; }
+        public double getScanSeconds() { return scanSeconds; }
+
+        /**
+         * Describe the statistics for the console
+         * @return (String)
+         */
+        public String describe() {
+            return String.format("mean %.0f, median %.0f, clipped mean %.0f, range %.0f to %.0f, "
+                            + "%d saturated of %d pixels, measured in %.0f ms",
+                    this.mean, this.median, this.clippedMean, this.minimum, this.maximum,
+                    this.saturatedPixels, this.pixels, 1000.0 * this.scanSeconds);
+        }
+    }
+
+    /**
+     * Constructor
+     * @param saturationADUs        Pixels at or above this value are counted as saturated
+     * @param clipSigma             Clipped mean ignores pixels more than this many standard deviations from it
+     * @param clipIterations        Maximum passes made refining the clipped mean
+     */
+    public FitsStatistics(double saturationADUs, double clipSigma, int clipIterations) {
+        this.saturationADUs = saturationADUs;
+        this.clipSigma = clipSigma;
+        this.clipIterations = clipIterations;
+        int stripes = Math.max(1, Runtime.getRuntime().availableProcessors());
+        this.stripeHistograms = new int[stripes][1 << 16];
+    }
+
+    /**
+     * Measure the primary image in the given FITS file
+     * @param file                  FITS file
+     * @return (ImageStats)         Statistics of the image
+     * @throws IOException          File can't be read, or isn't a FITS image we can handle
+     */
+    public synchronized ImageStats measure(Path file) throws IOException {
+        long startNanos = System.nanoTime();
+        FitsImage image = this.read(file);
+        this.scanInStripes(image);
+        int[] histogram = this.mergeStripes(image.getRawRange());
+        return this.statisticsFromHistogram(histogram, image, (System.nanoTime() - startNanos) / 1.0e9);
+    }
+
+    /**
+     * Read a FITS file into the reusable buffer
+     * @param file                  FITS file
+     * @return (FitsImage)          Image
+     * @throws IOException          File can't be read, or isn't a FITS image we can handle
+     */
+    private FitsImage read(Path file) throws IOException {
+        FitsImage image = FitsImage.read(file, this.readBuffer);
+        this.readBuffer = image.getData();
+        return image;
+    }
+
+    /**
+     * Estimate the ADU level of the primary image in the given FITS file from a sample of its pixels.
+     * The sampled rows are treated as clusters: the estimate is the mean of the row means, and its error
+     * comes from how much the row means vary, so it allows for the level varying across the frame.
+     * @param file                  FITS file
+     * @param mode                  How to choose the sample (FULL_FRAME gives the exact mean)
+     * @return (ADUEstimate)        Estimated level and the half-width of its confidence interval
+     * @throws IOException          File can't be read, or isn't a FITS image we can handle
+     */
+    public synchronized ADUEstimate sample(Path file, ADUMeasurementMode mode) throws IOException {
+        FitsImage image = this.read(file);
+        if (!mode.isSampled() || image.getHeight() < 2) {
+            this.scanInStripes(image);
+            ImageStats stats = this.statisticsFromHistogram(this.mergeStripes(image.getRawRange()), image, 0.0);
+            return new ADUEstimate(stats.getMean(), 0.0, image.getPixels());
+        }
+
+        //  The centred region sampled, and how many rows and columns of it
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double fraction = mode.regionFraction();
+        int regionLeft = (int) Math.floor(width * (1.0 - fraction) / 2.0);
+        int regionTop = (int) Math.floor(height * (1.0 - fraction) / 2.0);
+        int regionWidth = Math.max(1, (int) Math.floor(width * fraction));
+        int regionHeight = Math.max(1, (int) Math.floor(height * fraction));
+        int rows = Math.min(regionHeight, Common.ADU_SAMPLE_ROWS);
+        int columns = Math.min(regionWidth, Common.ADU_SAMPLE_COLUMNS);
+
+        double sumOfRowMeans = 0.0;
+        double sumOfSquaredRowMeans = 0.0;
+        for (int row = 0; row < rows; row++) {
+            long rowStart = (long) (regionTop + sampleIndex(row, rows, regionHeight, mode.isRandom())) * width;
+            double rowSum = 0.0;
+            for (int column = 0; column < columns; column++) {
+                rowSum += image.rawAt(rowStart + regionLeft
+                        + sampleIndex(column, columns, regionWidth, mode.isRandom()));
+            }
+            double rowMean = image.toADUs(rowSum / columns);
+            sumOfRowMeans += rowMean;
+            sumOfSquaredRowMeans += rowMean * rowMean;
+        }
+        double mean = sumOfRowMeans / rows;
+        double variance = Math.max(0.0, (sumOfSquaredRowMeans - rows * mean * mean) / (rows - 1));
+        double errorBound = Common.ADU_CONFIDENCE_Z * Math.sqrt(variance / rows);
+        return new ADUEstimate(mean, errorBound, (long) rows * columns);
+    }
+
+    /**
+     * Where, along a row or column of the sampled region, is a sample taken?  Either evenly spaced (centred in
+     * equal divisions of the region) or at random.
+     * @param sample        Which sample (0 to samples-1)
+     * @param samples       Number of samples along this axis
+     * @param extent        Size of the region along this axis
+     * @param random        Choose the position at random
+     * @return (int)        Offset into the region
+     */
+    static int sampleIndex(int sample, int samples, int extent, boolean random) {
+        double position = random ? Math.random() * extent : (sample + 0.5) * extent / samples;
+        return Math.min(extent - 1, (int) Math.floor(position));
+    }
+
+    /**
+     * Count the image's pixels into the stripe histograms, one stripe per processor, in parallel.
+     * The stripes all read the same buffer, with absolute gets.
+     * @param image             Image to scan
+     */
+    private void scanInStripes(FitsImage image) {
+        ByteBuffer data = image.getData();
+        int bytesPerPixel = image.getBytesPerPixel();
+        int dataOffset = image.getDataOffset();
+        long pixels = image.getPixels();
+        int stripes = (int) Math.max(1, Math.min(this.stripeHistograms.length,
+                pixels * bytesPerPixel / MINIMUM_STRIPE_BYTES));
+        long pixelsPerStripe = (pixels + stripes - 1) / stripes;
+        for (int stripe = stripes; stripe < this.stripeHistograms.length; stripe++) {
+            Arrays.fill(this.stripeHistograms[stripe], 0);
+        }
+        IntStream.range(0, stripes).parallel().forEach(stripe -> {
+            int[] histogram = this.stripeHistograms[stripe];
+            Arrays.fill(histogram, 0);
+            int start = dataOffset + (int) (stripe * pixelsPerStripe * bytesPerPixel);
+            int end = dataOffset + (int) (Math.min(pixels, (stripe + 1) * pixelsPerStripe) * bytesPerPixel);
+            if (bytesPerPixel == 2) {
+                //  Signed 16-bit value, offset so the histogram index runs from 0 to 65535
+                for (int index = start; index < end; index += 2) {
+                    histogram[data.getShort(index) + 32768]++;
+                }
+            } else {
+                for (int index = start; index < end; index++) {
+                    histogram[data.get(index) & 0xFF]++;
+                }
+            }
+        });
+    }
+
+    /**
+     * Add the stripe histograms together into the first
+     * @param bins          Number of histogram bins in use
+     * @return (int[])      Combined histogram
+     */
+    private int[] mergeStripes(int bins) {
+        int[] merged = this.stripeHistograms[0];
+        for (int stripe = 1; stripe < this.stripeHistograms.length; stripe++) {
+            int[] histogram = this.stripeHistograms[stripe];
+            for (int bin = 0; bin < bins; bin++) {
+                merged[bin] += histogram[bin];
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Calculate the statistics from the combined histogram
+     * @param histogram         Count of pixels at each raw value (indexed from the lowest possible raw value)
+     * @param image             Image measured, giving the raw-to-ADU conversion
+     * @param scanSeconds       Time taken so far
+     * @return (ImageStats)     Statistics
+     */
+    private ImageStats statisticsFromHistogram(int[] histogram, FitsImage image, double scanSeconds) {
+        int bins = image.getRawRange();
+        long pixels = image.getPixels();
+        int lowestBin = 0;
+        while (histogram[lowestBin] == 0) {
+            lowestBin++;
+        }
+        int highestBin = bins - 1;
+        while (histogram[highestBin] == 0) {
+            highestBin--;
+        }
+
+        double sum = 0.0;
+        long saturated = 0;
+        int medianBin = -1;
+        long counted = 0;
+        long halfway = (pixels + 1) / 2;
+        for (int bin = lowestBin; bin <= highestBin; bin++) {
+            int count = histogram[bin];
+            double value = toADUs(image, bin);
+            sum += count * value;
+            if (value >= this.saturationADUs) {
+                saturated += count;
+            }
+            counted += count;
+            if (medianBin < 0 && counted >= halfway) {
+                medianBin = bin;
+            }
+        }
+        double mean = sum / pixels;
+        double clippedMean = this.clippedMean(histogram, image, lowestBin, highestBin, mean);
+        return new ImageStats(pixels, mean, toADUs(image, medianBin), clippedMean,
+                toADUs(image, lowestBin), toADUs(image, highestBin), saturated, scanSeconds);
+    }
+
+    /**
+     * Sigma-clipped mean: repeatedly take the mean and standard deviation of only the pixels within
+     * clipSigma deviations of the previous mean, until the set of pixels used stops changing.
+     * @param histogram         Combined histogram
+     * @param image             Image measured, giving the raw-to-ADU conversion
+     * @param lowestBin         Lowest bin in use
+     * @param highestBin        Highest bin in use
+     * @param mean              Unclipped mean, to start from
+     * @return (double)         Clipped mean
+     */
+    private double clippedMean(int[] histogram, FitsImage image, int lowestBin, int highestBin, double mean) {
+        int fromBin = lowestBin;
+        int toBin = highestBin;
+        double clippedMean = mean;
+        for (int iteration = 0; iteration < this.clipIterations; iteration++) {
+            double count = 0.0;
+            double sum = 0.0;
+            double sumOfSquares = 0.0;
+            for (int bin = fromBin; bin <= toBin; bin++) {
+                double value = toADUs(image, bin);
+                count += histogram[bin];
+                sum += histogram[bin] * value;
+                sumOfSquares += histogram[bin] * value * value;
+            }
+            if (count == 0.0) {
+                break;
+            }
+            clippedMean = sum / count;
+            double deviation = Math.sqrt(Math.max(0.0, sumOfSquares / count - clippedMean * clippedMean));
+            int newFromBin = Math.max(lowestBin, toBin(image, clippedMean - this.clipSigma * deviation, true));
+            int newToBin = Math.min(highestBin, toBin(image, clippedMean + this.clipSigma * deviation, false));
+            if (newFromBin == fromBin && newToBin == toBin) {
+                break;
+            }
+            fromBin = newFromBin;
+            toBin = newToBin;
+        }
+        return clippedMean;
+    }
+
+    /**
+     * Convert a histogram bin to ADUs
+     * @param image         Image measured
+     * @param bin           Histogram bin
+     * @return (double)     ADU value of pixels in that bin
+     */
+    private static double toADUs(FitsImage image, int bin) {
+        return image.toADUs(bin + image.getRawMinimum());
+    }
+
+    /**
+     * Convert an ADU value to the histogram bin containing it
+     * @param image         Image measured
+     * @param adus          ADU value
+     * @param roundUp       Round up (for the low end of a range) or down (for the high end)
+     * @return (int)        Histogram bin
+     */
+    private static int toBin(FitsImage image, double adus, boolean roundUp) {
+        double raw = image.toRaw(adus) - image.getRawMinimum();
+        double bin = roundUp ? Math.ceil(raw) : Math.floor(raw);
+        return (int) Math.max(Integer.MIN_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, bin));
+    }
+}
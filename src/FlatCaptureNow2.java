@@ -1,6 +1,7 @@
 import org.apache.commons.lang3.tuple.ImmutablePair;
 
 import javax.swing.*;
+import java.util.Arrays;
 
 /**
  * Program to control TheSkyX, over its TCP server connection, and have it capture
@@ -13,8 +14,19 @@ public class FlatCaptureNow2 {
     /**
      * Main program called from operating system
      * @param args      Array of string arguments to the program.  Arg[0] is the program name.
+     *                  "--headless" first runs a session from the given plan file with no user interface.
+     *                  "--find-flats" first lists frames from the flat library.
      */
     public static void main(String[] args) {
+        //  Run a session from the command line, with no user interface at all
+        if ((args.length > 0) && args[0].equals(HeadlessSession.COMMAND_OPTION)) {
+            System.exit(HeadlessSession.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        //  Look up captured flats for a calibration script
+        if ((args.length > 0) && args[0].equals(FlatLibraryQuery.COMMAND_OPTION)) {
+            System.exit(FlatLibraryQuery.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
         //  If we are running on a Mac, use the system menu bar instead of windows-style window menu
         String osName = System.getProperty("os.name").toLowerCase();
         if (osName.startsWith("mac os x")) {
@@ -0,0 +1,377 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Index of every flat frame the application has captured, kept from session to session, so the right flats
+ * for a light frame can be found later without scanning folders and parsing file names.
+ *
+ * The index is a compact binary file that is only ever appended to.  It starts with a magic number, then
+ * holds one record per frame:
+ *
+ *      length      int         Length of the record's contents
+ *      contents                session id (long), time (long, epoch milliseconds), filter slot (short),
+ *                              filter name (UTF), binning (byte), exposure (double), ADUs (int), path (UTF)
+ *      CRC         int         CRC-32 of the contents
+ *
+ * Strings are in DataOutputStream.writeUTF's form.  The path is the one the server saved the frame to, as the
+ * server sees it (TheSkyX may be running on another computer), or just the file name if the frame went to
+ * TheSkyX's autosave folder.
+ *
+ * Each record is forced to disk as it is added.  When the file is opened, a torn or corrupt record at the end
+ * (from a crash while it was being written) is cut off, and everything before it is kept.
+ *
+ * In memory the frames are held in one sorted set, ordered by filter slot, binning, then time, so all the
+ * frames of one filter and binning over a range of dates are a single contiguous subset.
+ */
+public class FlatLibrary {
+    private static final long MAGIC = 0x46434E324C494231L;      // "FCN2LIB1"
+    private static final int MAXIMUM_RECORD_LENGTH = 64 * 1024;
+
+    private final Path libraryPath;
+    private FileChannel channel = null;
+    private boolean readOnly = false;
+    private final TreeSet<Frame> frames = new TreeSet<>(Comparator.comparingInt(Frame::getFilterSlot)
+            .thenComparingInt(Frame::getBinning)
+            .thenComparingLong(Frame::getTimeMillis)
+            .thenComparingLong(Frame::getSequence));
+    private long nextSequence = 0;
+
+    /**
+     * One frame in the library
+     */
+    public static class Frame {
+        private final long sequence;
+        private final long sessionId;
+        private final long timeMillis;
+        private final int filterSlot;
+        private final String filterName;
+        private final int binning;
+        private final double exposureSeconds;
+        private final int averageADUs;
+        private final String path;
+
+        /**
+         * Constructor
+         * @param sequence          Order the frame was added to the library (makes frames with the same time distinct)
+         * @param sessionId         Session that captured the frame
+         * @param timeMillis        When the frame was captured (epoch milliseconds)
+         * @param filterSlot        Filter wheel slot
+         * @param filterName        Filter name
+         * @param binning           Binning
+         * @param exposureSeconds   Exposure
+         * @param averageADUs       Measured ADU level
+         * @param path              Where the server saved the frame (file name only if in TheSkyX's autosave folder)
+         */
+        Frame(long sequence, long sessionId, long timeMillis, int filterSlot, String filterName, int binning,
+              double exposureSeconds, int averageADUs, String path) {
+            this.sequence = sequence;
+            this.sessionId = sessionId;
+            this.timeMillis = timeMillis;
+            this.filterSlot = filterSlot;
+            this.filterName = filterName;
+            this.binning = binning;
+            this.exposureSeconds = exposureSeconds;
+            this.averageADUs = averageADUs;
+            this.path = path;
+        }
+
+        public long getSequence() { return sequence; }
+        public long getSessionId() { return sessionId; }
+        public long getTimeMillis() { return timeMillis; }
+        public int getFilterSlot() { return filterSlot; }
+        public String getFilterName() { return filterName; }
+        public int getBinning() { return binning; }
+        public double getExposureSeconds() { return exposureSeconds; }
+        public int getAverageADUs() { return averageADUs; }
+        public String getPath() { return path; }
+
+        public LocalDateTime getTime() {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(this.timeMillis), ZoneId.systemDefault());
+        }
+
+        /**
+         * Was the frame saved to TheSkyX's autosave folder (so only its file name is known)?
+         * @return (boolean)
+         */
+        public boolean isInAutosaveFolder() {
+            return this.path.indexOf('/') < 0 && this.path.indexOf('\\') < 0;
+        }
+
+        /**
+         * Is the frame's file still there, as seen from this computer?  Only known for frames saved to a folder
+         * that this computer can see under the same path as the server.
+         * @return (boolean)
+         */
+        public boolean fileExists() {
+            return !this.isInAutosaveFolder() && Files.isRegularFile(Paths.get(this.path));
+        }
+
+        public String describe() {
+            return String.format("%s %s %dx%d %.3fs %d ADUs %s%s", this.getTime(), this.filterName,
+                    this.binning, this.binning, this.exposureSeconds, this.averageADUs,
+                    this.isInAutosaveFolder() ? "(autosave) " : "", this.path);
+        }
+    }
+
+    /**
+     * Constructor.  Doesn't touch the file - that happens on open().
+     * @param libraryPath       Location of the library file
+     */
+    public FlatLibrary(Path libraryPath) {
+        this.libraryPath = libraryPath;
+    }
+
+    /**
+     * Open the library, creating it if it doesn't exist, and load its index
+     * @throws IOException      Unable to create or read the file, or it isn't a flat library
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(this.libraryPath.getParent());
+        this.channel = FileChannel.open(this.libraryPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.readOnly = false;
+        if (this.channel.size() == 0) {
+            ByteBuffer magic = ByteBuffer.allocate(Long.BYTES).putLong(MAGIC).flip();
+            while (magic.hasRemaining()) {
+                this.channel.write(magic);
+            }
+            this.channel.force(false);
+        } else {
+            try {
+                this.load();
+            } catch (IOException e) {
+                this.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Open an existing library only to look frames up, e.g. while a session may be adding to it.  Nothing is
+     * written, so a damaged record at the end is skipped but left in place.
+     * @throws IOException      Library doesn't exist, can't be read, or isn't a flat library
+     */
+    public synchronized void openForReading() throws IOException {
+        this.channel = FileChannel.open(this.libraryPath, StandardOpenOption.READ);
+        this.readOnly = true;
+        try {
+            this.load();
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read every record into the index.  Stop at the first torn or corrupt record, and cut it off, so
+     * new records are appended after the last good one.
+     * @throws IOException      Unable to read the file, or it isn't a flat library
+     */
+    private void load() throws IOException {
+        if (this.channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("Flat library too large: " + this.libraryPath);
+        }
+        ByteBuffer contents = ByteBuffer.allocate((int) this.channel.size());
+        while (contents.hasRemaining() && this.channel.read(contents, contents.position()) >= 0) {
+            //  Keep reading until the buffer is full
+        }
+        contents.flip();
+        if (contents.remaining() < Long.BYTES || contents.getLong() != MAGIC) {
+            throw new IOException("Not a flat library: " + this.libraryPath);
+        }
+        int endOfGoodRecords = contents.position();
+        try {
+            while (contents.hasRemaining()) {
+                int length = contents.getInt();
+                if (length <= 0 || length > MAXIMUM_RECORD_LENGTH || length + Integer.BYTES > contents.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                contents.get(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if (contents.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+                this.frames.add(this.decode(record));
+                endOfGoodRecords = contents.position();
+            }
+        } catch (BufferUnderflowException | IOException e) {
+            //  Torn record at the end of the file, or one whose contents don't decode
+        }
+        if (endOfGoodRecords < this.channel.size() && !this.readOnly) {
+            System.out.println("Flat library: discarding damaged record at end of " + this.libraryPath);
+            this.channel.truncate(endOfGoodRecords);
+        }
+    }
+
+    /**
+     * Decode a record's contents, written by addFrame
+     * @param record            Record contents
+     * @return (Frame)          Frame described
+     * @throws IOException      Contents too short, or a string isn't valid
+     */
+    private Frame decode(byte[] record) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+        long sessionId = input.readLong();
+        long timeMillis = input.readLong();
+        int filterSlot = input.readShort();
+        String filterName = input.readUTF();
+        int binning = input.readByte();
+        double exposureSeconds = input.readDouble();
+        int averageADUs = input.readInt();
+        String path = input.readUTF();
+        return new Frame(this.nextSequence++, sessionId, timeMillis, filterSlot, filterName, binning,
+                exposureSeconds, averageADUs, path);
+    }
+
+    /**
+     * Add a captured frame to the library, and force it to disk
+     * @param sessionId         Session that captured it
+     * @param flatSet           Set the frame belongs to
+     * @param exposureSeconds   Exposure
+     * @param averageADUs       Measured ADU level
+     * @param folder            Folder the server saved the frame in, as the server sees it
+     *                          (null if in TheSkyX's autosave folder)
+     * @param fileName          Name the frame was saved under
+     * @return (Frame)          Frame as added
+     * @throws IOException      Unable to write the library
+     */
+    public synchronized Frame addFrame(long sessionId, FlatSet flatSet, double exposureSeconds, int averageADUs,
+                                       String folder, String fileName) throws IOException {
+        if (this.channel == null || this.readOnly) {
+            throw new IOException("Flat library is not open for adding frames");
+        }
+        Frame frame = new Frame(this.nextSequence++, sessionId, System.currentTimeMillis(),
+                flatSet.getFilterSpec().getSlotNumber(), flatSet.getFilterSpec().getName(), flatSet.getBinning(),
+                exposureSeconds, averageADUs, (folder == null) ? fileName : folder + "/" + fileName);
+
+        ByteArrayOutputStream contents = new ByteArrayOutputStream(128);
+        DataOutputStream output = new DataOutputStream(contents);
+        output.writeLong(frame.getSessionId());
+        output.writeLong(frame.getTimeMillis());
+        output.writeShort(frame.getFilterSlot());
+        output.writeUTF(frame.getFilterName());
+        output.writeByte(frame.getBinning());
+        output.writeDouble(frame.getExposureSeconds());
+        output.writeInt(frame.getAverageADUs());
+        output.writeUTF(frame.getPath());
+        output.flush();
+        byte[] record = contents.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        ByteBuffer buffer = ByteBuffer.allocate(record.length + 2 * Integer.BYTES);
+        buffer.putInt(record.length).put(record).putInt((int) crc.getValue()).flip();
+        long position = this.channel.size();
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+        this.channel.force(false);
+        this.frames.add(frame);
+        return frame;
+    }
+
+    /**
+     * Close the library.  Every record was already forced to disk as it was written.
+     */
+    public synchronized void close() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // Ignore, nothing unwritten is lost
+            }
+            this.channel = null;
+        }
+    }
+
+    public synchronized int getFrameCount() { return frames.size(); }
+
+    /**
+     * Frames of one filter and binning, captured in a range of times, with exposures in a range
+     * @param filterSlot            Filter wheel slot
+     * @param binning               Binning
+     * @param from                  Earliest capture time (inclusive)
+     * @param to                    Latest capture time (inclusive)
+     * @param minimumExposure       Shortest exposure wanted, seconds
+     * @param maximumExposure       Longest exposure wanted, seconds
+     * @return (List)               Frames, oldest first
+     */
+    public synchronized List<Frame> find(int filterSlot, int binning, LocalDateTime from, LocalDateTime to,
+                                         double minimumExposure, double maximumExposure) {
+        ArrayList<Frame> found = new ArrayList<>();
+        for (Frame frame : this.framesBetween(filterSlot, binning, toMillis(from), toMillis(to))) {
+            if (frame.getExposureSeconds() >= minimumExposure && frame.getExposureSeconds() <= maximumExposure) {
+                found.add(frame);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The best flats to calibrate a light frame: frames of the light's filter and binning, from the single
+     * session closest in time to the light frame (the optical train, and the dust on it, is most likely to
+     * have been the same).  Only frames whose files are still there are considered.
+     * @param filterSlot            Light frame's filter wheel slot
+     * @param binning               Light frame's binning
+     * @param lightFrameTime        When the light frame was taken
+     * @return (List)               Frames, oldest first; empty if there are none
+     */
+    public synchronized List<Frame> bestFlatsFor(int filterSlot, int binning, LocalDateTime lightFrameTime) {
+        long lightMillis = toMillis(lightFrameTime);
+        HashMap<Long, ArrayList<Frame>> framesBySession = new HashMap<>();
+        long bestSession = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (Frame frame : this.framesBetween(filterSlot, binning, Long.MIN_VALUE, Long.MAX_VALUE)) {
+            if (!frame.fileExists()) {
+                continue;
+            }
+            framesBySession.computeIfAbsent(frame.getSessionId(), id -> new ArrayList<>()).add(frame);
+            long distance = Math.abs(frame.getTimeMillis() - lightMillis);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestSession = frame.getSessionId();
+            }
+        }
+        return framesBySession.getOrDefault(bestSession, new ArrayList<>());
+    }
+
+    /**
+     * The frames of one filter and binning captured between two times - a contiguous part of the sorted set
+     * @param filterSlot            Filter wheel slot
+     * @param binning               Binning
+     * @param fromMillis            Earliest time (inclusive)
+     * @param toMillis              Latest time (inclusive)
+     * @return (NavigableSet)       Frames, a view of the library's set
+     */
+    private NavigableSet<Frame> framesBetween(int filterSlot, int binning, long fromMillis, long toMillis) {
+        Frame low = new Frame(Long.MIN_VALUE, 0, fromMillis, filterSlot, "", binning, 0.0, 0, "");
+        Frame high = new Frame(Long.MAX_VALUE, 0, toMillis, filterSlot, "", binning, 0.0, 0, "");
+        return this.frames.subSet(low, true, high, true);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
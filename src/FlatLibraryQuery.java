@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * Looks frames up in the flat library from the command line, e.g. for a calibration script.  Given one time,
+ * it lists the best flats for a light frame taken then; given two, every flat captured between them:
+ *
+ *      java -jar FlatCaptureNow2.jar --find-flats filterSlot binning lightFrameTime
+ *      java -jar FlatCaptureNow2.jar --find-flats filterSlot binning from to [minSeconds maxSeconds]
+ *
+ * Times are ISO local date-times, e.g. 2026-10-17T22:30.  One frame is written per line to standard output.
+ * The library is only read, so this is safe to run while a session is adding to it.
+ */
+public class FlatLibraryQuery {
+    public static final String COMMAND_OPTION = "--find-flats";
+    private static final String USAGE = "Usage: FlatCaptureNow2 " + COMMAND_OPTION
+            + " filterSlot binning (lightFrameTime | from to [minSeconds maxSeconds])";
+
+    //  Exit statuses
+    public static final int EXIT_FOUND = 0;             // At least one frame listed
+    public static final int EXIT_NONE_FOUND = 1;        // Library read, but no frames match
+    public static final int EXIT_NOT_RUN = 2;           // Bad arguments, or no library to read
+
+    /**
+     * Run a query as given by the command-line arguments (those after COMMAND_OPTION)
+     * @param args              Arguments
+     * @return (int)            Exit status
+     */
+    public static int run(String[] args) {
+        if (args.length != 3 && args.length != 4 && args.length != 6) {
+            System.err.println(USAGE);
+            return EXIT_NOT_RUN;
+        }
+        int filterSlot;
+        int binning;
+        LocalDateTime from;
+        LocalDateTime to = null;
+        double minimumExposure = 0.0;
+        double maximumExposure = Double.MAX_VALUE;
+        try {
+            filterSlot = Integer.parseInt(args[0]);
+            binning = Integer.parseInt(args[1]);
+            from = LocalDateTime.parse(args[2]);
+            if (args.length > 3) {
+                to = LocalDateTime.parse(args[3]);
+            }
+            if (args.length > 4) {
+                minimumExposure = Double.parseDouble(args[4]);
+                maximumExposure = Double.parseDouble(args[5]);
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_NOT_RUN;
+        }
+
+        Path libraryPath = Common.applicationDataPath(Common.FLAT_LIBRARY_FILE);
+        if (!Files.exists(libraryPath)) {
+            System.err.println("No flats have been captured yet: " + libraryPath + " does not exist.");
+            return EXIT_NOT_RUN;
+        }
+        FlatLibrary library = new FlatLibrary(libraryPath);
+        List<FlatLibrary.Frame> frames;
+        try {
+            library.openForReading();
+            frames = (to == null)
+                    ? library.bestFlatsFor(filterSlot, binning, from)
+                    : library.find(filterSlot, binning, from, to, minimumExposure, maximumExposure);
+        } catch (IOException e) {
+            System.err.println("Unable to read flat library: " + e.getMessage());
+            return EXIT_NOT_RUN;
+        } finally {
+            library.close();
+        }
+
+        for (FlatLibrary.Frame frame : frames) {
+            System.out.println(frame.describe());
+        }
+        return frames.isEmpty() ? EXIT_NONE_FOUND : EXIT_FOUND;
+    }
+}
@@ -0,0 +1,20 @@
+import java.io.Serializable;
+
+/**
+ * enum to record what is lighting the flat frames.  A light panel is steady; twilight sky is
+ * steadily dimming (dusk) or brightening (dawn), which affects how we choose exposures.
+ * The order matches the entries in the main window's light source menu.
+ */
+public enum FlatLightSource implements Serializable {
+    PANEL,          // Light panel or other steady source
+    DUSK_SKY,       // Evening twilight sky, getting darker
+    DAWN_SKY;       // Morning twilight sky, getting brighter
+
+    /**
+     * Is this source the changing twilight sky?
+     * @return (boolean)
+     */
+    public boolean isSky() {
+        return this != PANEL;
+    }
+}
@@ -3,7 +3,7 @@
  */
 public class FlatSet {
     private int         numberOfFrames;
-    private int         numberDone;
+    private volatile int numberDone;        // Also read by the metrics endpoint's thread
     private FilterSpec  filterSpec;
     private int         binning;
     private AppPreferences preferences;
@@ -65,4 +65,12 @@ public class FlatSet {
     public void rememberSuccessfulExposure(double exposureSeconds) {
         this.preferences.setInitialExposure(this.filterSpec.getSlotNumber(), this.binning, exposureSeconds);
     }
+
+    /**
+     * The set is finished.  Have the remembered exposure written to the preferences store now, rather
+     * than waiting for the next periodic save.
+     */
+    public void saveRememberedExposure() {
+        this.preferences.saveInitialExposures();
+    }
 }
@@ -0,0 +1,59 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event for one flat frame: exposed, downloaded, measured, and saved or discarded.
+ * The event's duration is the whole frame, so gaps between frames show up in a recording as stalls.
+ */
+@Name("FlatCaptureNow2.FrameAcquired")
+@Label("Flat Frame")
+@Category({"FlatCaptureNow2", "Acquisition"})
+@Description("One flat frame taken during an acquisition session")
+@StackTrace(false)
+public class FrameAcquiredEvent extends Event {
+
+    @Label("Filter")
+    String filter;
+
+    @Label("Filter Slot")
+    int filterSlot;
+
+    @Label("Binning")
+    int binning;
+
+    @Label("Frame Number")
+    int frameNumber;
+
+    @Label("Exposure")
+    @Timespan(Timespan.MILLISECONDS)
+    long exposureMilliseconds;
+
+    @Label("Average ADUs")
+    int averageADUs;
+
+    @Label("Accepted")
+    boolean accepted;
+
+    /**
+     * Fill in the event's fields
+     * @param flatSet           Set the frame belongs to
+     * @param frameNumber       Number of the frame in the set
+     * @param exposureSeconds   Exposure
+     * @param averageADUs       Measured ADUs
+     * @param accepted          Was the frame kept?
+     */
+    void describe(FlatSet flatSet, int frameNumber, double exposureSeconds, int averageADUs, boolean accepted) {
+        this.filter = flatSet.getFilterSpec().getName();
+        this.filterSlot = flatSet.getFilterSpec().getSlotNumber();
+        this.binning = flatSet.getBinning();
+        this.frameNumber = frameNumber;
+        this.exposureMilliseconds = Math.round(exposureSeconds * 1000.0);
+        this.averageADUs = averageADUs;
+        this.accepted = accepted;
+    }
+}
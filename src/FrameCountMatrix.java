@@ -0,0 +1,256 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The numbers of frames wanted for every combination of filter (rows) and binning (columns), the contents
+ * of the main window's frame table.  Held as one dense array of primitive ints, row by row, so reading and
+ * changing cells doesn't box, and whole-table operations are simple loops.
+ */
+public class FrameCountMatrix implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int rows;
+    private final int columns;
+    private final int[] counts;
+
+    /**
+     * Receives the non-zero cells of the matrix
+     */
+    public interface CellVisitor {
+        void visit(int row, int column, int count);
+    }
+
+    /**
+     * A view of one row or one column of the matrix.  Changes through the view change the matrix.
+     */
+    public class Line {
+        private final int start;
+        private final int stride;
+        private final int length;
+
+        private Line(int start, int stride, int length) {
+            this.start = start;
+            this.stride = stride;
+            this.length = length;
+        }
+
+        public int size() { return length; }
+        public int get(int index) { return counts[this.position(index)]; }
+        public void set(int index, int count) { counts[this.position(index)] = count; }
+
+        /**
+         * Set every cell in the line to the same count
+         * @param count         Frame count
+         */
+        public void fill(int count) {
+            for (int index = 0; index < this.length; index++) {
+                counts[this.start + index * this.stride] = count;
+            }
+        }
+
+        /**
+         * Total frames in the line
+         * @return (int)
+         */
+        public int sum() {
+            int total = 0;
+            for (int index = 0; index < this.length; index++) {
+                total += counts[this.start + index * this.stride];
+            }
+            return total;
+        }
+
+        private int position(int index) {
+            if (index < 0 || index >= this.length) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + this.length);
+            }
+            return this.start + index * this.stride;
+        }
+    }
+
+    /**
+     * Constructor for a matrix of zeros
+     * @param rows          Number of rows (filters)
+     * @param columns       Number of columns (binnings)
+     */
+    public FrameCountMatrix(int rows, int columns) {
+        if (rows < 0 || columns < 0) {
+            throw new IllegalArgumentException("Negative matrix size " + rows + " x " + columns);
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.counts = new int[rows * columns];
+    }
+
+    /**
+     * Make a matrix from a list of rows, as plan files before this class stored the table.
+     * Short rows are padded with zeros.
+     * @param lists                 Rows of counts
+     * @return (FrameCountMatrix)
+     */
+    public static FrameCountMatrix fromLists(List<? extends List<Integer>> lists) {
+        int columns = 0;
+        for (List<Integer> row : lists) {
+            columns = Math.max(columns, row.size());
+        }
+        FrameCountMatrix matrix = new FrameCountMatrix(lists.size(), columns);
+        for (int rowIndex = 0; rowIndex < lists.size(); rowIndex++) {
+            List<Integer> row = lists.get(rowIndex);
+            for (int columnIndex = 0; columnIndex < row.size(); columnIndex++) {
+                Integer count = row.get(columnIndex);
+                matrix.set(rowIndex, columnIndex, (count == null) ? 0 : count);
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * The matrix as a list of rows (for XML plan files)
+     * @return (ArrayList)
+     */
+    public ArrayList<ArrayList<Integer>> toLists() {
+        ArrayList<ArrayList<Integer>> lists = new ArrayList<>(this.rows);
+        for (int row = 0; row < this.rows; row++) {
+            ArrayList<Integer> rowList = new ArrayList<>(this.columns);
+            for (int column = 0; column < this.columns; column++) {
+                rowList.add(this.get(row, column));
+            }
+            lists.add(rowList);
+        }
+        return lists;
+    }
+
+    public int getRows() { return rows; }
+    public int getColumns() { return columns; }
+
+    public int get(int row, int column) {
+        return this.counts[this.position(row, column)];
+    }
+
+    public void set(int row, int column, int count) {
+        this.counts[this.position(row, column)] = count;
+    }
+
+    private int position(int row, int column) {
+        if (row < 0 || row >= this.rows || column < 0 || column >= this.columns) {
+            throw new IndexOutOfBoundsException(String.format("Cell (%d, %d) outside %d x %d matrix",
+                    row, column, this.rows, this.columns));
+        }
+        return row * this.columns + column;
+    }
+
+    /**
+     * View of one row (all the binnings of one filter).  Empty if the matrix has no columns.
+     * @param row           Row index
+     * @return (Line)
+     */
+    public Line row(int row) {
+        if (row < 0 || row >= this.rows) {
+            throw new IndexOutOfBoundsException("Row " + row + " outside " + this.rows + " x " + this.columns + " matrix");
+        }
+        return new Line(row * this.columns, 1, this.columns);
+    }
+
+    /**
+     * View of one column (all the filters at one binning).  Empty if the matrix has no rows.
+     * @param column        Column index
+     * @return (Line)
+     */
+    public Line column(int column) {
+        if (column < 0 || column >= this.columns) {
+            throw new IndexOutOfBoundsException("Column " + column + " outside " + this.rows + " x " + this.columns
+                    + " matrix");
+        }
+        return new Line(column, this.columns, this.rows);
+    }
+
+    /**
+     * Set every cell to the same count
+     * @param count         Frame count
+     */
+    public void fill(int count) {
+        Arrays.fill(this.counts, count);
+    }
+
+    /**
+     * Multiply every count by a factor, rounding to whole frames (a count that was non-zero stays at least 1)
+     * @param factor        Scale factor (not negative)
+     */
+    public void scale(double factor) {
+        if (factor < 0.0) {
+            throw new IllegalArgumentException("Negative scale factor " + factor);
+        }
+        for (int index = 0; index < this.counts.length; index++) {
+            if (this.counts[index] > 0) {
+                this.counts[index] = Math.max(1, (int) Math.round(this.counts[index] * factor));
+            }
+        }
+    }
+
+    /**
+     * Total frames in the matrix
+     * @return (int)
+     */
+    public int sum() {
+        int total = 0;
+        for (int count : this.counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Is any frame wanted at all?
+     * @return (boolean)
+     */
+    public boolean anyNonZero() {
+        for (int count : this.counts) {
+            if (count > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visit every cell with a frame count greater than zero, row by row
+     * @param visitor       Receives each cell
+     */
+    public void forEachNonZero(CellVisitor visitor) {
+        int index = 0;
+        for (int row = 0; row < this.rows; row++) {
+            for (int column = 0; column < this.columns; column++) {
+                int count = this.counts[index++];
+                if (count > 0) {
+                    visitor.visit(row, column, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Independent copy of this matrix
+     * @return (FrameCountMatrix)
+     */
+    public FrameCountMatrix copy() {
+        FrameCountMatrix copy = new FrameCountMatrix(this.rows, this.columns);
+        System.arraycopy(this.counts, 0, copy.counts, 0, this.counts.length);
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof FrameCountMatrix)) {
+            return false;
+        }
+        FrameCountMatrix matrix = (FrameCountMatrix) other;
+        return this.rows == matrix.rows && this.columns == matrix.columns && Arrays.equals(this.counts, matrix.counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * this.rows + this.columns) + Arrays.hashCode(this.counts);
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs an acquisition session with no user interface, for observatory automation scripts on a computer
+ * without a display.  The plan file is loaded and acquired exactly as the Proceed button would (same work
+ * list order, same journal), the session console is written to standard output, and the exit status says
+ * whether every frame wanted was taken.  An interrupted session of the same plan from tonight is only resumed
+ * if asked for with --resume; otherwise every frame is taken again.
+ *
+ *      java -jar FlatCaptureNow2.jar --headless [--resume] [--metrics off|local|network] plan.fcn2
+ *
+ * No Swing class is loaded.  Interrupting the program (e.g. Control-C) cancels the session as the Cancel
+ * button would, waiting for the clean-up to finish; the exit status is then the usual one for the signal.
+ */
+public class HeadlessSession implements SessionListener {
+    public static final String COMMAND_OPTION = "--headless";
+    private static final String RESUME_OPTION = "--resume";
+    private static final String METRICS_OPTION = "--metrics";
+    private static final String USAGE = "Usage: FlatCaptureNow2 " + COMMAND_OPTION
+            + " [" + RESUME_OPTION + "] [" + METRICS_OPTION + " off|local|network] planFile";
+
+    //  Exit statuses
+    public static final int EXIT_COMPLETE = 0;          // Every frame wanted was taken
+    public static final int EXIT_INCOMPLETE = 1;        // Session failed part-way
+    public static final int EXIT_NOT_STARTED = 2;       // Bad arguments or plan, nothing acquired
+
+    private static final String INDENTATION_BLANKS = "    ";
+    private static final DateTimeFormatter CONSOLE_TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private final CountDownLatch sessionEnded = new CountDownLatch(1);
+
+    /**
+     * Run a session as given by the command-line arguments (those after COMMAND_OPTION)
+     * @param args              Arguments
+     * @return (int)            Exit status
+     */
+    public static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        //  Arguments
+        String planPath = null;
+        MetricsEndpointMode metricsMode = null;
+        boolean resume = false;
+        for (int index = 0; index < args.length; index++) {
+            if (args[index].equals(RESUME_OPTION)) {
+                resume = true;
+            } else if (args[index].equals(METRICS_OPTION) && (index + 1 < args.length)) {
+                try {
+                    metricsMode = MetricsEndpointMode.valueOf(args[++index].toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    System.err.println(USAGE);
+                    return EXIT_NOT_STARTED;
+                }
+            } else if (planPath == null && !args[index].startsWith("-")) {
+                planPath = args[index];
+            } else {
+                System.err.println(USAGE);
+                return EXIT_NOT_STARTED;
+            }
+        }
+        if (planPath == null) {
+            System.err.println(USAGE);
+            return EXIT_NOT_STARTED;
+        }
+
+        //  Plan
+        AppPreferences prefs = AppPreferences.createPreferences();
+        DataModel dataModel = DataModel.tryLoadFromFile(planPath);
+        if (dataModel == null) {
+            System.err.println("File " + planPath + " does not exist or is not a valid plan file.");
+            return EXIT_NOT_STARTED;
+        }
+        if (metricsMode != null) {
+            dataModel.setMetricsEndpoint(metricsMode);
+        }
+        if (!dataModel.atLeastOneFrameSetWanted()) {
+            System.err.println("No frames are requested in the plan.");
+            return EXIT_NOT_STARTED;
+        }
+        if (!dataModel.getUseTheSkyAutosave() && (dataModel.getLocalPath() == null)) {
+            System.err.println("The plan saves to a local folder but doesn't say which.");
+            return EXIT_NOT_STARTED;
+        }
+
+        //  Same work list and journal as a session started from the main window
+        WorkListPlanner planner = new WorkListPlanner(dataModel.getLightSource());
+        ArrayList<FlatSet> flatsToAcquire = planner.plan(dataModel.getFlatSetsToAcquire(prefs));
+        SessionJournal journal = new SessionJournal(Common.applicationDataPath(Common.SESSION_JOURNAL_FILE));
+        HeadlessSession console = new HeadlessSession();
+        int framesToResume = journal.framesToResume(flatsToAcquire);
+        if (resume) {
+            journal.resume(flatsToAcquire);
+        } else if (framesToResume > 0) {
+            console.sessionEvent(SessionEvent.message(String.format("A session of this plan stopped part-way "
+                    + "with %d frames taken; starting again (use %s to take only the frames still missing).",
+                    framesToResume, RESUME_OPTION), 1));
+        }
+        SessionListener listener = console;
+        MetricsEndpoint endpoint = null;
+        if (dataModel.getMetricsEndpoint() != MetricsEndpointMode.OFF) {
+            endpoint = new MetricsEndpoint(listener, dataModel, flatsToAcquire);
+            listener = endpoint;
+        }
+        SessionThread sessionRunnable = new SessionThread(listener, dataModel, flatsToAcquire,
+                planner.describe(), journal);
+        if (endpoint != null) {
+            try {
+                endpoint.start(dataModel.getMetricsEndpoint(), Common.METRICS_ENDPOINT_PORT,
+                        sessionRunnable.getMetrics());
+                console.sessionEvent(SessionEvent.message("Metrics served at " + endpoint.getUrl(), 1));
+            } catch (IOException e) {
+                console.sessionEvent(SessionEvent.message("Unable to start metrics endpoint: " + e.getMessage(), 1));
+                endpoint = null;
+            }
+        }
+
+        //  Acquire, cancelling if the program is interrupted
+        Thread sessionThread = new Thread(sessionRunnable, "Acquisition");
+        Thread cancelOnInterrupt = new Thread(() -> {
+            sessionThread.interrupt();
+            console.awaitSessionEnd();
+        });
+        Runtime.getRuntime().addShutdownHook(cancelOnInterrupt);
+        sessionThread.start();
+        console.awaitSessionEnd();
+        try {
+            Runtime.getRuntime().removeShutdownHook(cancelOnInterrupt);
+        } catch (IllegalStateException e) {
+            //  Already shutting down; the hook is waiting for us
+        }
+        if (endpoint != null) {
+            endpoint.stop();
+        }
+
+        for (FlatSet flatSet : flatsToAcquire) {
+            if (flatSet.getNumberDone() < flatSet.getNumberOfFrames()) {
+                return EXIT_INCOMPLETE;
+            }
+        }
+        return EXIT_COMPLETE;
+    }
+
+    /**
+     * Write session events to standard output, as the session window's console would show them
+     * @param event             What happened
+     */
+    @Override
+    public void sessionEvent(SessionEvent event) {
+        switch (event.getKind()) {
+            case MESSAGE:
+                this.console(event.getMessage(), event.getLevel(), event);
+                break;
+            case FRAME_ACCEPTED:
+                this.console(String.format("%d ADUs: within range, keeping this frame.", event.getAverageADUs()),
+                        3, event);
+                break;
+            case FRAME_REJECTED:
+                this.console(String.format("%d ADUs: out of range, discarding frame, adjusting exposure.",
+                        event.getAverageADUs()), 3, event);
+                break;
+            case SESSION_ENDED:
+                this.sessionEnded.countDown();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Write a console line: time, indentation by level, and message
+     * @param message           Message
+     * @param messageLevel      Level (1 is not indented)
+     * @param event             Event it came with, for the time
+     */
+    private void console(String message, int messageLevel, SessionEvent event) {
+        String time = event.getTime().format(CONSOLE_TIME_FORMAT);
+        System.out.println(time + ": " + INDENTATION_BLANKS.repeat(Math.max(0, messageLevel - 1)) + message);
+    }
+
+    /**
+     * Wait until the session thread reports that the session has ended
+     */
+    private void awaitSessionEnd() {
+        boolean waiting = true;
+        while (waiting) {
+            try {
+                this.sessionEnded.await();
+                waiting = false;
+            } catch (InterruptedException e) {
+                //  Nobody interrupts the main thread or the shutdown hook; keep waiting
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations, in the style of HdrHistogram: fixed memory, constant-time recording, and a
+ * relative precision that is the same at every scale, so one histogram holds 50 microsecond round trips
+ * and 30 second exposures equally well.
+ *
+ * Durations are recorded in microseconds.  Values below 32 have a bucket each; above that, each power of two
+ * is divided into 32 equal buckets, so a bucket's width is at most 1/32 (about 3%) of the values in it.
+ * Recording is lock-free (atomic counters), so the acquisition thread and the network code can record while
+ * the user interface reads.
+ */
+public class LatencyHistogram {
+    //  Buckets per power of two (2^SUB_BUCKET_BITS), and how many powers of two are covered
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAXIMUM_EXPONENT = 40;                  // 2^40 microseconds is nearly 13 days
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAXIMUM_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maximumMicros = new AtomicLong();
+
+    /**
+     * Record a duration
+     * @param nanoseconds       Duration, nanoseconds
+     */
+    public void record(long nanoseconds) {
+        long micros = Math.max(0L, nanoseconds / 1000L);
+        this.counts.incrementAndGet(bucketIndex(micros));
+        this.totalCount.incrementAndGet();
+        this.totalMicros.addAndGet(micros);
+        this.maximumMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Record the time since an earlier System.nanoTime()
+     * @param startNanos        When the thing being timed started
+     */
+    public void recordSince(long startNanos) {
+        this.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Which bucket holds a value
+     * @param micros            Value, microseconds
+     * @return (int)            Bucket index
+     */
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAXIMUM_EXPONENT);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) Math.min((micros >>> shift) - SUB_BUCKETS, SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The value in the middle of a bucket
+     * @param index             Bucket index
+     * @return (double)         Value, microseconds
+     */
+    private static double bucketMidpoint(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) - 1) / 2.0;
+    }
+
+    public long getCount() { return totalCount.get(); }
+
+    /**
+     * Mean of the durations recorded
+     * @return (double)         Mean, milliseconds (0 if none)
+     */
+    public double getMeanMilliseconds() {
+        long count = this.totalCount.get();
+        return (count == 0) ? 0.0 : this.totalMicros.get() / 1000.0 / count;
+    }
+
+    public double getTotalSeconds() {
+        return this.totalMicros.get() / 1.0e6;
+    }
+
+    public double getMaximumMilliseconds() {
+        return this.maximumMicros.get() / 1000.0;
+    }
+
+    /**
+     * The duration below which a given percentage of the recorded durations fall
+     * @param percentile        Percentage, 0 to 100
+     * @return (double)         Duration, milliseconds, to the precision of the buckets (0 if none recorded)
+     */
+    public double getPercentileMilliseconds(double percentile) {
+        long count = this.totalCount.get();
+        if (count == 0) {
+            return 0.0;
+        }
+        long wanted = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int index = 0; index < this.counts.length(); index++) {
+            seen += this.counts.get(index);
+            if (seen >= wanted) {
+                return Math.min(bucketMidpoint(index), this.maximumMicros.get()) / 1000.0;
+            }
+        }
+        return this.getMaximumMilliseconds();
+    }
+
+    /**
+     * Brief description, for the session console
+     * @return (String)
+     */
+    public String describe() {
+        return String.format("%d, mean %.1f ms, median %.1f ms, 90%% %.1f ms, 99%% %.1f ms, maximum %.1f ms",
+                this.getCount(), this.getMeanMilliseconds(), this.getPercentileMilliseconds(50.0),
+                this.getPercentileMilliseconds(90.0), this.getPercentileMilliseconds(99.0),
+                this.getMaximumMilliseconds());
+    }
+}
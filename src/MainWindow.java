@@ -12,9 +12,9 @@ import java.awt.desktop.QuitResponse;
 import java.awt.desktop.QuitStrategy;
 import java.awt.event.*;
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Timer;
@@ -91,6 +91,10 @@ public class MainWindow extends JFrame {
 
         this.useFilterWheelCheckbox.setSelected(dataModel.getUseFilterWheel());
         this.warmWhenDoneCheckbox.setSelected(dataModel.getWarmUpWhenDone());
+        this.lightSourceCombo.setSelectedIndex(dataModel.getLightSource().ordinal());
+        this.aduMeasurementCombo.setSelectedIndex(dataModel.getAduMeasurement().ordinal());
+        this.masterFlatCombo.setSelectedIndex(dataModel.getMasterFlatCombine().ordinal());
+        this.metricsEndpointCombo.setSelectedIndex(dataModel.getMetricsEndpoint().ordinal());
 
         if (dataModel.getUseTheSkyAutosave()) {
             this.useAutosaveButton.setSelected(true);
@@ -472,6 +476,50 @@ public class MainWindow extends JFrame {
         this.makeDirty();
     }
 
+    /**
+     * Store the light source selection from the menu to the data model
+     */
+    private void lightSourceComboActionPerformed() {
+        FlatLightSource selected = FlatLightSource.values()[this.lightSourceCombo.getSelectedIndex()];
+        if (this.dataModel != null && selected != this.dataModel.getLightSource()) {
+            this.dataModel.setLightSource(selected);
+            this.makeDirty();
+        }
+    }
+
+    /**
+     * Store the ADU measurement selection from the menu to the data model
+     */
+    private void aduMeasurementComboActionPerformed() {
+        ADUMeasurementMode selected = ADUMeasurementMode.values()[this.aduMeasurementCombo.getSelectedIndex()];
+        if (this.dataModel != null && selected != this.dataModel.getAduMeasurement()) {
+            this.dataModel.setAduMeasurement(selected);
+            this.makeDirty();
+        }
+    }
+
+    /**
+     * Store the master flat selection from the menu to the data model
+     */
+    private void masterFlatComboActionPerformed() {
+        MasterFlatCombine selected = MasterFlatCombine.values()[this.masterFlatCombo.getSelectedIndex()];
+        if (this.dataModel != null && selected != this.dataModel.getMasterFlatCombine()) {
+            this.dataModel.setMasterFlatCombine(selected);
+            this.makeDirty();
+        }
+    }
+
+    /**
+     * Store the metrics endpoint selection from the menu to the data model
+     */
+    private void metricsEndpointComboActionPerformed() {
+        MetricsEndpointMode selected = MetricsEndpointMode.values()[this.metricsEndpointCombo.getSelectedIndex()];
+        if (this.dataModel != null && selected != this.dataModel.getMetricsEndpoint()) {
+            this.dataModel.setMetricsEndpoint(selected);
+            this.makeDirty();
+        }
+    }
+
     /**
      * Store the "Use TheSkyX Autosave Folder" setting from the checkbox to the data model
      */
@@ -496,8 +544,8 @@ public class MainWindow extends JFrame {
      */
     private void queryAutosaveButtonActionPerformed() {
         String message;
-        try {
-            TheSkyXServer server = new TheSkyXServer(this.dataModel.getServerAddress(), this.dataModel.getPortNumber());
+        try (TheSkyXServer server = new TheSkyXServer(this.dataModel.getServerAddress(),
+                this.dataModel.getPortNumber(), Common.SERVER_QUERY_TIMEOUT_MILLISECONDS)) {
             message = server.getCameraAutosavePath();
         } catch (IOException e) {
             message = "I/O Error";
@@ -583,9 +631,8 @@ public class MainWindow extends JFrame {
      * Respond to button asking us to read the current pointing location from the mount
      */
     private void readScopePositionButtonActionPerformed() {
-        try {
-            TheSkyXServer server = new TheSkyXServer(this.preferences.getServerAddress(),
-                    this.preferences.getPortNumber());
+        try (TheSkyXServer server = new TheSkyXServer(this.preferences.getServerAddress(),
+                this.preferences.getPortNumber(), Common.SERVER_QUERY_TIMEOUT_MILLISECONDS)) {
             ImmutablePair<Double,Double> serverResponse = server.getScopeAltAz();
             double altitude = serverResponse.left;
             double azimuth = serverResponse.right;
@@ -811,14 +858,52 @@ public class MainWindow extends JFrame {
         this.endInProgressTableCellEdits();
         if (this.proceedButton.isEnabled()) {
 
+            //  Put the sets in the order that wastes least time, before the session table is built from them
+            WorkListPlanner planner = new WorkListPlanner(this.dataModel.getLightSource());
+            ArrayList<FlatSet> flatsToAcquire = planner.plan(this.dataModel.getFlatSetsToAcquire(this.preferences));
+            //  If an identical session died or was cancelled part-way tonight, offer to pick up where it left off
+            SessionJournal journal = new SessionJournal(Common.applicationDataPath(Common.SESSION_JOURNAL_FILE));
+            if (!this.offerToResume(journal, flatsToAcquire)) {
+                return;
+            }
+
             //  Session console window
             this.sessionWindow = new Session(this);
-            ArrayList<FlatSet> flatsToAcquire = this.dataModel.getFlatSetsToAcquire(this.preferences);
             sessionWindow.setUpUI(this.dataModel, flatsToAcquire);
             sessionWindow.setVisible(true);
 
             //  Start the acquisition thread
-            sessionWindow.spawnAcquisitionTask(sessionWindow, flatsToAcquire);
+            sessionWindow.spawnAcquisitionTask(sessionWindow, flatsToAcquire, planner.describe(), journal);
+        }
+    }
+
+    /**
+     * If the journal holds an unfinished session of this same plan from tonight, ask whether to resume it
+     * (skipping the frames it already took) or start again
+     * @param journal           Session journal
+     * @param flatsToAcquire    Sets about to be acquired (updated if resuming)
+     * @return (boolean)        Go ahead with the session (false if the user cancelled)
+     */
+    private boolean offerToResume(SessionJournal journal, ArrayList<FlatSet> flatsToAcquire) {
+        int framesToResume = journal.framesToResume(flatsToAcquire);
+        if (framesToResume == 0) {
+            return true;
+        }
+        Object[] options = {"Resume", "Start Again", "Cancel"};
+        int result = JOptionPane.showOptionDialog(this,
+                String.format("A session of this plan stopped part-way at %s, with %d frames taken.\n"
+                        + "Resume it, taking only the frames still missing, or start again and take them all?",
+                        journal.getLastActivity().format(DateTimeFormatter.ofPattern("HH:mm")), framesToResume),
+                "Resume Session", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE,
+                null, options, options[0]);
+        switch (result) {
+            case 0:
+                journal.resume(flatsToAcquire);
+                return true;
+            case 1:
+                return true;
+            default:
+                return false;
         }
     }
 
@@ -870,7 +955,7 @@ public class MainWindow extends JFrame {
     }
 
     /**
-     * Write the current data model, serialized to XML, to the given file
+     * Write the current data model, encoded, to the given file
      * Go through a temporary file so there is no data loss in the event of a crash
      * @param fileToSave        File object of file to be saved
      */
@@ -879,7 +964,7 @@ public class MainWindow extends JFrame {
         this.endInProgressTableCellEdits();
 
         // Write serialized data model to file
-        String serialized = this.dataModel.serialize();
+        byte[] encoded = this.dataModel.toBytes();
 
         // Write to temporary file then delete and rename old copy
         // This way, if system crashes, either old or new file will still exist - no data loss
@@ -889,9 +974,7 @@ public class MainWindow extends JFrame {
         String directory = fileToSave.getParent();
         try {
             File tempFile = File.createTempFile(justFileName, Common.DATA_FILE_SUFFIX, new File(directory));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile.getAbsolutePath()));
-            writer.write(serialized);
-            writer.close();
+            Files.write(tempFile.toPath(), encoded);
 
             //  Content is now in temporary file.   Delete original file name and rename temporary.
             @SuppressWarnings("unused") boolean ignored = fileToSave.delete();
@@ -943,9 +1026,7 @@ public class MainWindow extends JFrame {
      */
     private void readFromFile(String fullPath) {
         try {
-            byte[] encoded = Files.readAllBytes(Paths.get(fullPath));
-            String encodedData = new String(encoded, StandardCharsets.US_ASCII);
-            DataModel newDataModel = DataModel.newFromXml(encodedData);
+            DataModel newDataModel = DataModel.newFromBytes(Files.readAllBytes(Paths.get(fullPath)));
             if (newDataModel != null) {
                 this.dataModel = null;
                 this.setUiFromDataModel(newDataModel, Common.simpleFileNameFromPath(fullPath));
@@ -1089,6 +1170,10 @@ public class MainWindow extends JFrame {
         label3 = new JLabel();
         useFilterWheelCheckbox = new JCheckBox();
         warmWhenDoneCheckbox = new JCheckBox();
+        lightSourceCombo = new JComboBox<>();
+        aduMeasurementCombo = new JComboBox<>();
+        masterFlatCombo = new JComboBox<>();
+        metricsEndpointCombo = new JComboBox<>();
         mountPanel = new JPanel();
         label4 = new JLabel();
         controlMountCheckbox = new JCheckBox();
@@ -1352,9 +1437,9 @@ public class MainWindow extends JFrame {
                 optionsPanel.setBorder(LineBorder.createBlackLineBorder());
                 optionsPanel.setLayout(new GridBagLayout());
                 ((GridBagLayout)optionsPanel.getLayout()).columnWidths = new int[] {0, 0};
-                ((GridBagLayout)optionsPanel.getLayout()).rowHeights = new int[] {0, 0, 0, 0};
+                ((GridBagLayout)optionsPanel.getLayout()).rowHeights = new int[] {0, 0, 0, 0, 0, 0, 0, 0};
                 ((GridBagLayout)optionsPanel.getLayout()).columnWeights = new double[] {0.0, 1.0E-4};
-                ((GridBagLayout)optionsPanel.getLayout()).rowWeights = new double[] {0.0, 0.0, 0.0, 1.0E-4};
+                ((GridBagLayout)optionsPanel.getLayout()).rowWeights = new double[] {0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0E-4};
 
                 //---- label3 ----
                 label3.setText("Options");
@@ -1374,6 +1459,55 @@ public class MainWindow extends JFrame {
                 warmWhenDoneCheckbox.setText("When done warm up CCD");
                 warmWhenDoneCheckbox.addActionListener(e -> warmWhenDoneCheckboxActionPerformed());
                 optionsPanel.add(warmWhenDoneCheckbox, new GridBagConstraints(0, 2, 1, 1, 0.0, 0.0,
+                    GridBagConstraints.CENTER, GridBagConstraints.BOTH,
+                    new Insets(0, 0, 5, 0), 0, 0));
+
+                //---- lightSourceCombo ----
+                lightSourceCombo.setModel(new DefaultComboBoxModel<>(new String[] {
+                    "Light panel",
+                    "Dusk sky",
+                    "Dawn sky"
+                }));
+                lightSourceCombo.setToolTipText("What is lighting the flats. Sky flats get exposures forecast for the changing twilight.");
+                lightSourceCombo.addActionListener(e -> lightSourceComboActionPerformed());
+                optionsPanel.add(lightSourceCombo, new GridBagConstraints(0, 3, 1, 1, 0.0, 0.0,
+                    GridBagConstraints.CENTER, GridBagConstraints.BOTH,
+                    new Insets(0, 0, 5, 0), 0, 0));
+
+                //---- aduMeasurementCombo ----
+                aduMeasurementCombo.setModel(new DefaultComboBoxModel<>(new String[] {
+                    "Measure full frame",
+                    "Measure central region",
+                    "Measure sampling grid",
+                    "Measure random sample"
+                }));
+                aduMeasurementCombo.setToolTipText("How frames' ADU levels are measured. Samples are quicker; frames too close to the limits to tell are measured in full.");
+                aduMeasurementCombo.addActionListener(e -> aduMeasurementComboActionPerformed());
+                optionsPanel.add(aduMeasurementCombo, new GridBagConstraints(0, 4, 1, 1, 0.0, 0.0,
+                    GridBagConstraints.CENTER, GridBagConstraints.BOTH,
+                    new Insets(0, 0, 5, 0), 0, 0));
+
+                //---- masterFlatCombo ----
+                masterFlatCombo.setModel(new DefaultComboBoxModel<>(new String[] {
+                    "No master flat",
+                    "Master flat: median",
+                    "Master flat: sigma-clipped mean"
+                }));
+                masterFlatCombo.setToolTipText("Combine each set into a master flat as its frames are taken. Needs frames saved to a local folder.");
+                masterFlatCombo.addActionListener(e -> masterFlatComboActionPerformed());
+                optionsPanel.add(masterFlatCombo, new GridBagConstraints(0, 5, 1, 1, 0.0, 0.0,
+                    GridBagConstraints.CENTER, GridBagConstraints.BOTH,
+                    new Insets(0, 0, 5, 0), 0, 0));
+
+                //---- metricsEndpointCombo ----
+                metricsEndpointCombo.setModel(new DefaultComboBoxModel<>(new String[] {
+                    "No metrics endpoint",
+                    "Metrics endpoint: this computer",
+                    "Metrics endpoint: network"
+                }));
+                metricsEndpointCombo.setToolTipText("Serve the session's progress and metrics over HTTP, in Prometheus format, for a dashboard to watch.");
+                metricsEndpointCombo.addActionListener(e -> metricsEndpointComboActionPerformed());
+                optionsPanel.add(metricsEndpointCombo, new GridBagConstraints(0, 6, 1, 1, 0.0, 0.0,
                     GridBagConstraints.CENTER, GridBagConstraints.BOTH,
                     new Insets(0, 0, 0, 0), 0, 0));
             }
@@ -1825,6 +1959,10 @@ public class MainWindow extends JFrame {
     private JLabel label3;
     private JCheckBox useFilterWheelCheckbox;
     private JCheckBox warmWhenDoneCheckbox;
+    private JComboBox<String> lightSourceCombo;
+    private JComboBox<String> aduMeasurementCombo;
+    private JComboBox<String> masterFlatCombo;
+    private JComboBox<String> metricsEndpointCombo;
     private JPanel mountPanel;
     private JLabel label4;
     private JCheckBox controlMountCheckbox;
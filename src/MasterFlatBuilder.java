@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Combines the frames of one flat set into a master flat, taking each frame as soon as it has been saved,
+ * so the master is ready moments after the set's last frame rather than needing a separate stacking run.
+ *
+ * Each frame is normalized - every pixel divided by the frame's measured ADU level - so frames exposed to
+ * slightly different levels combine properly, and the master has a level of about 1.0.  (There is no bias
+ * or dark subtraction; the master is of the frames as taken.)
+ *
+ * Two ways of combining are offered:
+ *      - Sigma-clipped mean.  We keep, for every pixel, a running mean and sum of squared deviations
+ *          (Welford's method) and the number of values included.  Once a pixel has been seen in a few frames,
+ *          a value too far from its running mean is left out.  A few frames give a poor estimate of one pixel's
+ *          spread, so "too far" is measured against the larger of the pixel's own standard deviation and the
+ *          pooled one of all pixels; otherwise pixels whose first values happened to agree closely would have
+ *          many good values clipped.  This state is 10 bytes per pixel, held off the Java heap, however
+ *          many frames there are; each frame is folded in, in parallel over blocks of pixels, and is not
+ *          read again.
+ *      - Median.  A median needs every frame's value of a pixel at once, so we remember only the frames'
+ *          files and levels, and when the set is complete a MedianStacker combines them, out of core, from
+ *          the memory-mapped files.
+ *
+ * A builder is used by one thread at a time (the session's master flat worker), except that discard() may be
+ * called from any thread.
+ */
+public class MasterFlatBuilder {
+
+    //  Pixels per block when folding a frame into the running statistics in parallel
+    private static final int PIXELS_PER_BLOCK = 1 << 16;
+
+    private final FlatSet flatSet;
+    private final Path masterFile;
+    private final MasterFlatCombine method;
+    private int width = 0;
+    private int height = 0;
+    private int framesCombined = 0;
+    private final LongAdder valuesRejected = new LongAdder();
+    //  Set when the set won't be completed, so frames still queued for the master are skipped
+    private volatile boolean discarded = false;
+
+    //  Sigma-clipped mean: running statistics per pixel
+    private FloatBuffer runningMeans;
+    private FloatBuffer runningSquares;
+    private ShortBuffer runningCounts;
+    private double pooledDeviation = 0.0;
+
+    //  Median: the frames to be combined, and their levels
+    private final ArrayList<Path> frameFiles = new ArrayList<>();
+    private final ArrayList<Double> frameLevels = new ArrayList<>();
+
+    /**
+     * Constructor
+     * @param flatSet           Flat set whose frames are being combined
+     * @param masterFile        File the master flat is to be written to
+     * @param method            How the frames are to be combined (not NONE)
+     */
+    public MasterFlatBuilder(FlatSet flatSet, Path masterFile, MasterFlatCombine method) {
+        this.flatSet = flatSet;
+        this.masterFile = masterFile;
+        this.method = method;
+    }
+
+    public Path getMasterFile() { return masterFile; }
+    public int getFramesCombined() { return framesCombined; }
+    public long getValuesRejected() { return valuesRejected.sum(); }
+
+    /**
+     * Add a newly-saved frame to the master
+     * @param frameFile         Saved frame
+     * @param frameLevelADUs    The frame's measured ADU level, which its pixels are normalized by
+     * @throws IOException      Unable to read the frame, or it doesn't match the frames before it
+     */
+    public void addFrame(Path frameFile, double frameLevelADUs) throws IOException {
+        if (this.discarded) {
+            this.release();
+            return;
+        }
+        if (frameLevelADUs <= 0.0) {
+            throw new IOException("Frame has no usable ADU level: " + frameFile);
+        }
+        FitsImage image = FitsImage.open(frameFile);
+        if (this.framesCombined == 0) {
+            this.startMaster(image);
+        } else if (image.getWidth() != this.width || image.getHeight() != this.height) {
+            throw new IOException(String.format("Frame is %d x %d, not %d x %d like the rest of the set: %s",
+                    image.getWidth(), image.getHeight(), this.width, this.height, frameFile));
+        }
+        if (this.framesCombined >= Short.MAX_VALUE) {
+            throw new IOException("Too many frames for one master flat");
+        }
+
+        if (this.method == MasterFlatCombine.MEDIAN) {
+            this.frameFiles.add(frameFile);
+            this.frameLevels.add(frameLevelADUs);
+        } else {
+            this.foldIntoRunningStatistics(image, frameLevelADUs);
+        }
+        this.framesCombined++;
+    }
+
+    /**
+     * The first frame sets the master's dimensions, and the running statistics are allocated for them
+     * @param image             First frame
+     * @throws IOException      Image is too large
+     */
+    private void startMaster(FitsImage image) throws IOException {
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        if (this.method == MasterFlatCombine.SIGMA_CLIPPED_MEAN) {
+            long pixels = (long) this.width * this.height;
+            if (pixels * Float.BYTES > Integer.MAX_VALUE) {
+                throw new IOException("Frame too large to combine: " + image.getFile());
+            }
+            this.runningMeans = ByteBuffer.allocateDirect((int) pixels * Float.BYTES)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            this.runningSquares = ByteBuffer.allocateDirect((int) pixels * Float.BYTES)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            this.runningCounts = ByteBuffer.allocateDirect((int) pixels * Short.BYTES)
+                    .order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+    }
+
+    /**
+     * Fold one frame's normalized pixel values into the running mean and squared deviations, leaving out
+     * values too far from a pixel's mean once it is established.  Blocks of pixels are independent, so they
+     * are done in parallel; absolute gets and puts don't touch the buffers' positions.
+     * @param image             Frame
+     * @param levelADUs         Frame's ADU level
+     */
+    private void foldIntoRunningStatistics(FitsImage image, double levelADUs) {
+        long pixels = (long) this.width * this.height;
+        int blocks = (int) ((pixels + PIXELS_PER_BLOCK - 1) / PIXELS_PER_BLOCK);
+        DoubleAdder pooledSquares = new DoubleAdder();
+        LongAdder pooledDegrees = new LongAdder();
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int first = block * PIXELS_PER_BLOCK;
+            int end = (int) Math.min(pixels, (long) first + PIXELS_PER_BLOCK);
+            long rejected = 0;
+            double blockSquares = 0.0;
+            long blockDegrees = 0;
+            for (int pixel = first; pixel < end; pixel++) {
+                double value = image.toADUs(image.rawAt(pixel)) / levelADUs;
+                int count = this.runningCounts.get(pixel);
+                double mean = this.runningMeans.get(pixel);
+                double squares = this.runningSquares.get(pixel);
+                if (count >= Common.MASTER_FLAT_CLIP_MINIMUM_FRAMES) {
+                    double deviation = Math.max(this.pooledDeviation, Math.sqrt(squares / (count - 1)));
+                    if (Math.abs(value - mean) > Common.MASTER_FLAT_CLIP_SIGMA * deviation) {
+                        rejected++;
+                        blockSquares += squares;
+                        blockDegrees += count - 1;
+                        continue;
+                    }
+                }
+                count++;
+                double difference = value - mean;
+                mean += difference / count;
+                squares += difference * (value - mean);
+                this.runningCounts.put(pixel, (short) count);
+                this.runningMeans.put(pixel, (float) mean);
+                this.runningSquares.put(pixel, (float) squares);
+                blockSquares += squares;
+                blockDegrees += count - 1;
+            }
+            this.valuesRejected.add(rejected);
+            pooledSquares.add(blockSquares);
+            pooledDegrees.add(blockDegrees);
+        });
+        if (pooledDegrees.sum() > 0) {
+            this.pooledDeviation = Math.sqrt(pooledSquares.sum() / pooledDegrees.sum());
+        }
+    }
+
+    /**
+     * The set is complete: write the master flat.  The running statistics are released afterward.
+     * @return (Path)           Master flat file written
+     * @throws IOException      No frames were added, or error reading the frames or writing the master
+     */
+    public Path finish() throws IOException {
+        if (this.discarded) {
+            this.release();
+            throw new IOException("Master flat was discarded");
+        }
+        if (this.framesCombined == 0) {
+            throw new IOException("No frames to combine");
+        }
+        LinkedHashMap<String, String> cards = new LinkedHashMap<>();
+        cards.put("IMAGETYP", "'Master Flat'");
+        cards.put("FILTER", "'" + this.flatSet.getFilterSpec().getName().replace("'", "''") + "'");
+        cards.put("XBINNING", String.valueOf(this.flatSet.getBinning()));
+        cards.put("YBINNING", String.valueOf(this.flatSet.getBinning()));
+        cards.put("NCOMBINE", String.valueOf(this.framesCombined));
+        cards.put("COMBINE", "'" + this.method.headerName() + "'");
+
+        try {
+            if (this.method == MasterFlatCombine.MEDIAN) {
+                new MedianStacker(this.frameFiles, this.frameLevels).writeMaster(this.masterFile, cards);
+            } else {
+                FitsImage.writeFloatImage(this.masterFile, this.width, this.height, cards, (row, values) ->
+                        this.runningMeans.get(row * this.width, values, 0, this.width));
+            }
+        } finally {
+            this.release();
+        }
+        return this.masterFile;
+    }
+
+    /**
+     * The set won't be completed, so its master won't be written.  Frames still waiting to be added are
+     * skipped rather than read; the statistics are released by the next of them, or by release().
+     */
+    public void discard() {
+        this.discarded = true;
+    }
+
+    /**
+     * Release the running statistics and the list of frames.  Called on the master flat worker.
+     */
+    public void release() {
+        this.runningMeans = null;
+        this.runningSquares = null;
+        this.runningCounts = null;
+        this.frameFiles.clear();
+        this.frameLevels.clear();
+    }
+
+    /**
+     * Brief description for the session console
+     * @return (String)
+     */
+    public String describe() {
+        String description = String.format("%d %s frames binned %d x %d, %s",
+                this.framesCombined, this.flatSet.getFilterSpec().getName(),
+                this.flatSet.getBinning(), this.flatSet.getBinning(), this.method.headerName().toLowerCase());
+        if (this.method == MasterFlatCombine.SIGMA_CLIPPED_MEAN) {
+            description += String.format(", %d pixel values clipped", this.getValuesRejected());
+        }
+        return description;
+    }
+}
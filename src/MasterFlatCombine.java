@@ -0,0 +1,19 @@
+import java.io.Serializable;
+
+/**
+ * enum to record whether, and how, a master flat is combined from each set's frames as they are acquired.
+ * The order matches the entries in the main window's master flat menu.
+ */
+public enum MasterFlatCombine implements Serializable {
+    NONE,                   // Don't make master flats
+    MEDIAN,                 // Median of each pixel over the frames
+    SIGMA_CLIPPED_MEAN;     // Mean of each pixel over the frames, leaving out outlying values
+
+    /**
+     * Name to record in the master flat's FITS header
+     * @return (String)
+     */
+    public String headerName() {
+        return (this == MEDIAN) ? "MEDIAN" : "SIGMA-CLIPPED MEAN";
+    }
+}
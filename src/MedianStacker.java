@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Median-combines a set of saved frames into a master image without holding the frames in memory.
+ *
+ * The frames are memory-mapped, so the operating system pages in only the parts being worked on.  The master
+ * is produced a band of rows at a time, which is all that is held in memory besides one tile's working
+ * buffers per thread.  Each band is divided into tiles that are combined in parallel with fork/join: a tile's
+ * raw values are copied from every frame, a row at a time (reading each mapped file sequentially), into a
+ * short[] buffer, then for each pixel the frames' normalized values are gathered into a float[] and the
+ * median found by quickselect.  Every frame is normalized - divided by its ADU level - before combining.
+ * Each thread allocates its two buffers the first time it combines a tile and reuses them for every tile
+ * after; they are let go once the master is written.
+ */
+public class MedianStacker {
+
+    //  Rows of the master produced at a time, and the size of the tiles each band is divided into
+    private static final int BAND_ROWS = 64;
+    private static final int TILE_COLUMNS = 256;
+    //  Tiles with no more than this many pixels are combined directly rather than split further
+    private static final int TILE_PIXELS = BAND_ROWS * TILE_COLUMNS;
+
+    private final FitsImage[] frames;
+    private final double[] scales;
+    private final double[] offsets;
+    private final int width;
+    private final int height;
+
+    //  The band of the master currently produced
+    private final float[] band;
+    private int bandFirstRow = -1;
+
+    //  Each worker thread's tile buffers, and all of them so they can be let go when the master is written
+    private final ThreadLocal<TileBuffers> tileBuffers = ThreadLocal.withInitial(this::newTileBuffers);
+    private final ConcurrentLinkedQueue<TileBuffers> allTileBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor: open the frames and check they match
+     * @param frameFiles        Frames to combine
+     * @param frameLevels       Each frame's ADU level, which its pixels are divided by
+     * @throws IOException      A frame can't be read, or its size doesn't match the others
+     */
+    public MedianStacker(List<Path> frameFiles, List<Double> frameLevels) throws IOException {
+        if (frameFiles.isEmpty()) {
+            throw new IOException("No frames to combine");
+        }
+        int frameCount = frameFiles.size();
+        this.frames = new FitsImage[frameCount];
+        this.scales = new double[frameCount];
+        this.offsets = new double[frameCount];
+        for (int frame = 0; frame < frameCount; frame++) {
+            FitsImage image = FitsImage.open(frameFiles.get(frame));
+            if (frame > 0 && (image.getWidth() != this.frames[0].getWidth()
+                    || image.getHeight() != this.frames[0].getHeight())) {
+                throw new IOException(String.format("Frame is %d x %d, not %d x %d like the rest of the set: %s",
+                        image.getWidth(), image.getHeight(), this.frames[0].getWidth(),
+                        this.frames[0].getHeight(), image.getFile()));
+            }
+            //  Normalized value = ADUs / level = (bZero + bScale * raw) / level
+            double level = frameLevels.get(frame);
+            this.frames[frame] = image;
+            this.offsets[frame] = image.toADUs(0.0) / level;
+            this.scales[frame] = (image.toADUs(1.0) - image.toADUs(0.0)) / level;
+        }
+        this.width = this.frames[0].getWidth();
+        this.height = this.frames[0].getHeight();
+        this.band = new float[BAND_ROWS * this.width];
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public int getFrameCount() { return frames.length; }
+
+    /**
+     * Combine the frames and write the master
+     * @param masterFile        File to write
+     * @param extraCards        Header cards to add (see FitsImage.writeFloatImage)
+     * @throws IOException      Error writing the master
+     */
+    public void writeMaster(Path masterFile, Map<String, String> extraCards) throws IOException {
+        try {
+            FitsImage.writeFloatImage(masterFile, this.width, this.height, extraCards, this::fillRow);
+        } finally {
+            //  The pool's threads live on, so drop what their thread-locals hold for this stacker
+            for (TileBuffers buffers : this.allTileBuffers) {
+                buffers.release();
+            }
+        }
+    }
+
+    /**
+     * Supply one row of the master, combining the band it is in if that hasn't been done yet
+     * @param row               Row number
+     * @param values            Receives the row
+     */
+    private void fillRow(int row, float[] values) {
+        if (this.bandFirstRow < 0 || row < this.bandFirstRow || row >= this.bandFirstRow + BAND_ROWS) {
+            this.bandFirstRow = row - row % BAND_ROWS;
+            int rows = Math.min(BAND_ROWS, this.height - this.bandFirstRow);
+            ForkJoinPool.commonPool().invoke(new TileTask(this.bandFirstRow, rows, 0, this.width));
+        }
+        System.arraycopy(this.band, (row - this.bandFirstRow) * this.width, values, 0, this.width);
+    }
+
+    /**
+     * Combine one rectangle of the current band, splitting it in half across its longer side
+     * until it is small enough to do directly
+     */
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int firstRow;
+        private final int rows;
+        private final int firstColumn;
+        private final int columns;
+
+        TileTask(int firstRow, int rows, int firstColumn, int columns) {
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.firstColumn = firstColumn;
+            this.columns = columns;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.rows * this.columns <= TILE_PIXELS) {
+                combineTile(this.firstRow, this.rows, this.firstColumn, this.columns);
+            } else if (this.columns >= this.rows) {
+                int half = this.columns / 2;
+                invokeAll(new TileTask(this.firstRow, this.rows, this.firstColumn, half),
+                        new TileTask(this.firstRow, this.rows, this.firstColumn + half, this.columns - half));
+            } else {
+                int half = this.rows / 2;
+                invokeAll(new TileTask(this.firstRow, half, this.firstColumn, this.columns),
+                        new TileTask(this.firstRow + half, this.rows - half, this.firstColumn, this.columns));
+            }
+        }
+    }
+
+    /**
+     * One thread's working buffers, big enough for the largest tile
+     */
+    private static class TileBuffers {
+        private final int frameCount;
+        //  Raw values, frame by frame, then row by row within the tile
+        private short[] raw = null;
+        //  One pixel's normalized values from every frame
+        private float[] values = null;
+
+        TileBuffers(int frameCount) {
+            this.frameCount = frameCount;
+        }
+
+        /**
+         * Allocate the buffers, if they haven't been or were released
+         */
+        void allocate() {
+            if (this.raw == null) {
+                this.raw = new short[this.frameCount * TILE_PIXELS];
+                this.values = new float[this.frameCount];
+            }
+        }
+
+        void release() {
+            this.raw = null;
+            this.values = null;
+        }
+    }
+
+    private TileBuffers newTileBuffers() {
+        TileBuffers buffers = new TileBuffers(this.frames.length);
+        this.allTileBuffers.add(buffers);
+        return buffers;
+    }
+
+    /**
+     * Combine one tile into the band, using this thread's buffers
+     * @param firstRow          First row of the tile (in the image)
+     * @param rows              Number of rows
+     * @param firstColumn       First column
+     * @param columns           Number of columns
+     */
+    private void combineTile(int firstRow, int rows, int firstColumn, int columns) {
+        int frameCount = this.frames.length;
+        int tilePixels = rows * columns;
+        TileBuffers buffers = this.tileBuffers.get();
+        buffers.allocate();
+        short[] raw = buffers.raw;
+        for (int frame = 0; frame < frameCount; frame++) {
+            FitsImage image = this.frames[frame];
+            int index = frame * tilePixels;
+            for (int row = firstRow; row < firstRow + rows; row++) {
+                long pixel = (long) row * this.width + firstColumn;
+                for (int column = 0; column < columns; column++) {
+                    raw[index++] = (short) image.rawAt(pixel++);
+                }
+            }
+        }
+
+        float[] values = buffers.values;
+        for (int tilePixel = 0; tilePixel < tilePixels; tilePixel++) {
+            for (int frame = 0; frame < frameCount; frame++) {
+                int rawValue = (this.frames[frame].getBytesPerPixel() == 1)
+                        ? raw[frame * tilePixels + tilePixel] & 0xFF : raw[frame * tilePixels + tilePixel];
+                values[frame] = (float) (this.offsets[frame] + this.scales[frame] * rawValue);
+            }
+            int row = firstRow + tilePixel / columns;
+            int column = firstColumn + tilePixel % columns;
+            this.band[(row - this.bandFirstRow) * this.width + column] = median(values);
+        }
+    }
+
+    /**
+     * Median of an array of values, by quickselect.  The array is reordered.
+     * @param values        Values
+     * @return (float)      Median; the mean of the two middle values if there is an even number
+     */
+    static float median(float[] values) {
+        int count = values.length;
+        int middle = count / 2;
+        float upper = select(values, middle);
+        if ((count & 1) == 1) {
+            return upper;
+        }
+        //  Selecting put the values below the middle one before it; the largest of them is the other middle value
+        float lower = values[0];
+        for (int index = 1; index < middle; index++) {
+            lower = Math.max(lower, values[index]);
+        }
+        return (lower + upper) / 2.0f;
+    }
+
+    /**
+     * Find the k'th smallest value (Hoare's quickselect, with median-of-three pivots).  On return the
+     * array is partitioned around it: smaller values before position k, larger after.
+     * @param values        Values (reordered)
+     * @param k             Rank wanted, from 0
+     * @return (float)      The k'th smallest value
+     */
+    static float select(float[] values, int k) {
+        int left = 0;
+        int right = values.length - 1;
+        while (right > left) {
+            int middle = (left + right) >>> 1;
+            if (values[middle] < values[left]) {
+                swap(values, middle, left);
+            }
+            if (values[right] < values[left]) {
+                swap(values, right, left);
+            }
+            if (values[right] < values[middle]) {
+                swap(values, right, middle);
+            }
+            float pivot = values[middle];
+            int low = left;
+            int high = right;
+            while (low <= high) {
+                while (values[low] < pivot) {
+                    low++;
+                }
+                while (values[high] > pivot) {
+                    high--;
+                }
+                if (low <= high) {
+                    swap(values, low, high);
+                    low++;
+                    high--;
+                }
+            }
+            if (k <= high) {
+                right = high;
+            } else if (k >= low) {
+                left = low;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    private static void swap(float[] values, int first, int second) {
+        float temporary = values[first];
+        values[first] = values[second];
+        values[second] = temporary;
+    }
+}
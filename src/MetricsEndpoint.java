@@ -0,0 +1,340 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Small HTTP server that lets a monitoring dashboard watch an unattended session.  GET /metrics returns,
+ * in the Prometheus text format: each set's frames wanted and done, the set and exposure being taken, the
+ * ADU level of the latest frame and its trend, and the session's counters and stage latencies.
+ *
+ * The endpoint sits between the acquisition thread and the session's own listener, noting the events it
+ * needs as they pass; everything else is read from the flat sets and the session metrics when scraped.
+ * Scrapes are answered on one daemon thread, so they never hold up acquisition.  Only one endpoint runs
+ * at a time: starting a new session's endpoint stops the last one's.
+ */
+public class MetricsEndpoint implements SessionListener {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "fcn2_";
+    //  Counters reported even before they have counted anything
+    private static final String[] STANDARD_COUNTERS = {SessionMetrics.COUNT_ACCEPTED, SessionMetrics.COUNT_REJECTED,
+            SessionMetrics.COUNT_RECONNECTS, SessionMetrics.COUNT_SERVER_ERRORS};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private static final AtomicReference<MetricsEndpoint> running = new AtomicReference<>();
+
+    private final SessionListener nextListener;
+    private final ArrayList<FlatSet> flatSets;
+    private final int targetADUs;
+    private volatile SessionMetrics metrics = null;
+    private HttpServer server = null;
+    private ExecutorService scrapeThread = null;
+
+    //  What the session is doing, from its events.  Guarded by "this".
+    private boolean sessionRunning = true;
+    private int currentSet = -1;
+    private double currentExposure = Double.NaN;
+    private int lastADUs = -1;
+    private final long[] aduTimes = new long[Common.METRICS_ADU_TREND_FRAMES];
+    private final int[] aduLevels = new int[Common.METRICS_ADU_TREND_FRAMES];
+    private int aduCount = 0;
+
+    /**
+     * Constructor
+     * @param nextListener      Listener the session's events are passed on to
+     * @param dataModel         Data model of the session
+     * @param flatSets          Flat sets the session is acquiring
+     */
+    public MetricsEndpoint(SessionListener nextListener, DataModel dataModel, ArrayList<FlatSet> flatSets) {
+        this.nextListener = nextListener;
+        this.flatSets = flatSets;
+        this.targetADUs = dataModel.getTargetADUs();
+    }
+
+    /**
+     * Start answering scrapes
+     * @param mode              Who may connect (not OFF)
+     * @param port              Port to listen on
+     * @param metrics           The session's metrics
+     * @throws IOException      Unable to listen on the port
+     */
+    public void start(MetricsEndpointMode mode, int port, SessionMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        MetricsEndpoint previous = running.getAndSet(null);
+        if (previous != null) {
+            previous.stop();
+        }
+        this.server = HttpServer.create(new InetSocketAddress(mode.bindAddress(), port), 0);
+        this.scrapeThread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Metrics endpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(this.scrapeThread);
+        this.server.createContext("/metrics", this::handleScrape);
+        this.server.start();
+        running.set(this);
+    }
+
+    /**
+     * Stop answering scrapes, if started
+     */
+    public void stop() {
+        running.compareAndSet(this, null);
+        if (this.server != null) {
+            this.server.stop(0);
+            this.scrapeThread.shutdownNow();
+            this.server = null;
+        }
+    }
+
+    /**
+     * Where the endpoint can be reached, for the console
+     * @return (String)         URL
+     */
+    public String getUrl() {
+        InetSocketAddress address = this.server.getAddress();
+        String host = address.getAddress().getHostAddress();
+        if (address.getAddress().isAnyLocalAddress()) {
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                host = "localhost";
+            }
+        }
+        return "http://" + host + ":" + address.getPort() + "/metrics";
+    }
+
+    /**
+     * Note what the session is doing, and pass the event on
+     * @param event             What happened
+     */
+    @Override
+    public void sessionEvent(SessionEvent event) {
+        switch (event.getKind()) {
+            case SET_STARTED:
+                synchronized (this) {
+                    this.currentSet = event.getSetIndex();
+                    this.aduCount = 0;
+                }
+                break;
+            case FRAME_STARTED:
+                synchronized (this) {
+                    this.currentExposure = event.getExposureSeconds();
+                }
+                break;
+            case FRAME_ACCEPTED:
+            case FRAME_REJECTED:
+                synchronized (this) {
+                    this.lastADUs = event.getAverageADUs();
+                    int slot = this.aduCount % this.aduLevels.length;
+                    this.aduTimes[slot] = event.getTimeMillis();
+                    this.aduLevels[slot] = event.getAverageADUs();
+                    this.aduCount++;
+                }
+                break;
+            case SET_COMPLETED:
+                synchronized (this) {
+                    this.currentSet = -1;
+                    this.currentExposure = Double.NaN;
+                }
+                break;
+            case SESSION_ENDED:
+                synchronized (this) {
+                    this.sessionRunning = false;
+                    this.currentSet = -1;
+                    this.currentExposure = Double.NaN;
+                }
+                break;
+            default:
+                break;
+        }
+        this.nextListener.sessionEvent(event);
+    }
+
+    /**
+     * Answer one request
+     * @param exchange          The request and its response
+     * @throws IOException      Unable to send the response
+     */
+    private void handleScrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = this.describe().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream responseBody = exchange.getResponseBody()) {
+                    responseBody.write(body);
+                }
+            }
+        }
+    }
+
+    /**
+     * Everything the endpoint reports, in the Prometheus text format
+     * @return (String)
+     */
+    String describe() {
+        boolean isRunning;
+        int set;
+        double exposure;
+        int adus;
+        double aduTrend;
+        synchronized (this) {
+            isRunning = this.sessionRunning;
+            set = this.currentSet;
+            exposure = this.currentExposure;
+            adus = this.lastADUs;
+            aduTrend = this.aduTrendPerSecond();
+        }
+        StringBuilder text = new StringBuilder(4096);
+
+        gauge(text, "session_running", "1 while the acquisition session is running", isRunning ? 1 : 0);
+        gauge(text, "session_elapsed_seconds", "Time since the session started", this.metrics.getElapsedSeconds());
+        gauge(text, "frames_per_minute", "Frames accepted per minute since the session started",
+                this.metrics.getFramesPerMinute());
+
+        header(text, "set_frames_wanted", "Frames wanted in each set", "gauge");
+        for (int index = 0; index < this.flatSets.size(); index++) {
+            sample(text, "set_frames_wanted", setLabels(index, this.flatSets.get(index)),
+                    this.flatSets.get(index).getNumberOfFrames());
+        }
+        header(text, "set_frames_done", "Frames accepted in each set", "gauge");
+        for (int index = 0; index < this.flatSets.size(); index++) {
+            sample(text, "set_frames_done", setLabels(index, this.flatSets.get(index)),
+                    this.flatSets.get(index).getNumberDone());
+        }
+        gauge(text, "current_set", "Number of the set being acquired (0 if none)", set + 1);
+        gauge(text, "current_exposure_seconds", "Exposure of the frame being taken", exposure);
+        gauge(text, "target_adus", "ADU level flats are exposed for", this.targetADUs);
+        gauge(text, "last_frame_adus", "Average ADU level of the latest frame measured",
+                (adus < 0) ? Double.NaN : adus);
+        gauge(text, "adu_trend_per_second", "Change in ADU level over the set's latest frames, per second",
+                aduTrend);
+
+        TreeSet<String> counters = new TreeSet<>(List.of(STANDARD_COUNTERS));
+        counters.addAll(this.metrics.getCounterNames());
+        for (String counter : counters) {
+            String name = metricName(counter) + "_total";
+            header(text, name, counter, "counter");
+            sample(text, name, "", this.metrics.getCount(counter));
+        }
+
+        header(text, "stage_seconds", "Time taken by each stage of acquisition", "summary");
+        for (String stage : this.metrics.getStages()) {
+            LatencyHistogram histogram = this.metrics.histogram(stage);
+            String stageLabel = "stage=\"" + escapeLabel(stage) + "\"";
+            for (double quantile : QUANTILES) {
+                sample(text, "stage_seconds", stageLabel + String.format(Locale.ROOT, ",quantile=\"%s\"", quantile),
+                        histogram.getPercentileMilliseconds(quantile * 100.0) / 1000.0);
+            }
+            sample(text, "stage_seconds_sum", stageLabel, histogram.getTotalSeconds());
+            sample(text, "stage_seconds_count", stageLabel, histogram.getCount());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Slope of a least-squares line through the latest frames' ADU levels
+     * @return (double)         ADUs per second (NaN until two frames have been measured in the set)
+     */
+    private double aduTrendPerSecond() {
+        int count = Math.min(this.aduCount, this.aduLevels.length);
+        if (count < 2) {
+            return Double.NaN;
+        }
+        double meanTime = 0.0;
+        double meanLevel = 0.0;
+        for (int index = 0; index < count; index++) {
+            meanTime += (this.aduTimes[index] - this.aduTimes[0]) / 1000.0;
+            meanLevel += this.aduLevels[index];
+        }
+        meanTime /= count;
+        meanLevel /= count;
+        double covariance = 0.0;
+        double variance = 0.0;
+        for (int index = 0; index < count; index++) {
+            double time = (this.aduTimes[index] - this.aduTimes[0]) / 1000.0 - meanTime;
+            covariance += time * (this.aduLevels[index] - meanLevel);
+            variance += time * time;
+        }
+        return (variance == 0.0) ? Double.NaN : covariance / variance;
+    }
+
+    /**
+     * Labels identifying a set
+     * @param index             Index of the set in the session
+     * @param flatSet           The set
+     * @return (String)
+     */
+    private static String setLabels(int index, FlatSet flatSet) {
+        return String.format(Locale.ROOT, "set=\"%d\",filter=\"%s\",binning=\"%d\"", index + 1,
+                escapeLabel(flatSet.getFilterSpec().getName()), flatSet.getBinning());
+    }
+
+    /**
+     * Add a gauge with its description and one value
+     * @param text              Text being built
+     * @param name              Metric name, without the prefix
+     * @param help              Description
+     * @param value             Value
+     */
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        header(text, name, help, "gauge");
+        sample(text, name, "", value);
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, double value) {
+        text.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ');
+        if (Double.isNaN(value)) {
+            text.append("NaN");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1.0e15) {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+        text.append('\n');
+    }
+
+    /**
+     * Metric name for a counter, e.g. "Frames accepted" becomes "frames_accepted"
+     * @param counter           Counter name
+     * @return (String)
+     */
+    static String metricName(String counter) {
+        return counter.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "_").replaceAll("^_|_$", "");
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
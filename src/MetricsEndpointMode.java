@@ -0,0 +1,20 @@
+import java.io.Serializable;
+import java.net.InetAddress;
+
+/**
+ * enum to record whether a session's metrics are served over HTTP, for monitoring dashboards to scrape,
+ * and who can reach them.  The order matches the entries in the main window's metrics endpoint menu.
+ */
+public enum MetricsEndpointMode implements Serializable {
+    OFF,            // No endpoint
+    LOCAL,          // Endpoint on this computer only (loopback address)
+    NETWORK;        // Endpoint on every network interface, for a dashboard elsewhere on the LAN
+
+    /**
+     * Address the endpoint listens on
+     * @return (InetAddress)    Loopback address, or null for all interfaces
+     */
+    public InetAddress bindAddress() {
+        return (this == LOCAL) ? InetAddress.getLoopbackAddress() : null;
+    }
+}
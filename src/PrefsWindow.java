@@ -562,10 +562,8 @@ public class PrefsWindow extends JDialog {
      * and remember it as the Alt/Az of the flat light source.
       */
     private void readScopeButtonActionPerformed() {
-        TheSkyXServer server;
-        try {
-            server = new TheSkyXServer(this.preferences.getServerAddress(),
-                    this.preferences.getPortNumber());
+        try (TheSkyXServer server = new TheSkyXServer(this.preferences.getServerAddress(),
+                this.preferences.getPortNumber(), Common.SERVER_QUERY_TIMEOUT_MILLISECONDS)) {
             ImmutablePair<Double,Double> serverResponse = server.getScopeAltAz();
             double altitude = serverResponse.left;
             double azimuth = serverResponse.right;
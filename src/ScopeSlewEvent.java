@@ -0,0 +1,28 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for a slew of the scope to the light source, from the start of the slew
+ * until it finished, failed, or was cancelled.
+ */
+@Name("FlatCaptureNow2.ScopeSlew")
+@Label("Scope Slew")
+@Category({"FlatCaptureNow2", "Mount"})
+@Description("A slew of the scope to given Alt/Az coordinates")
+@StackTrace(false)
+public class ScopeSlewEvent extends Event {
+
+    @Label("Target Altitude")
+    double targetAltitude;
+
+    @Label("Target Azimuth")
+    double targetAzimuth;
+
+    @Label("Outcome")
+    @Description("Completed, or why it didn't")
+    String outcome;
+}
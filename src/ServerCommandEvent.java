@@ -0,0 +1,88 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Java Flight Recorder event for one command sent to TheSkyX: what kind of command, its size, the response's
+ * size and error code, and (as the event's duration) the round trip.  When no recording is running,
+ * begin/commit cost next to nothing and the command text isn't examined.
+ */
+@Name("FlatCaptureNow2.ServerCommand")
+@Label("TheSkyX Command")
+@Category({"FlatCaptureNow2", "Server"})
+@Description("A command packet sent to TheSkyX and its response")
+@StackTrace(false)
+public class ServerCommandEvent extends Event {
+    //  A method call in the command's JavaScript, e.g. ccdsoftCamera.TakeImage(
+    private static final Pattern METHOD_CALL = Pattern.compile("([A-Za-z]\\w*)\\.([A-Za-z]\\w*)\\s*\\(");
+    //  A property read (not an assignment to it), e.g. ccdsoftCamera.IsExposureComplete
+    private static final Pattern PROPERTY_READ = Pattern.compile("([A-Za-z]\\w*)\\.([A-Z]\\w*)\\b(?!\\s*=[^=])");
+    //  Methods that say what a command is for, most telling first.  A command is named for the first of these
+    //  it calls; one that calls none is named for its first call, and one with no calls for the first
+    //  property it reads.
+    private static final List<String> SIGNIFICANT_METHODS = Arrays.asList("TakeImage", "averagePixelValue",
+            "scanLine", "Save", "SlewToAzAlt", "FindHome", "Park", "Abort", "GetAzAlt", "DocumentProperty",
+            "AttachToActive", "AttachToActiveImager", "Connect", "Disconnect");
+
+    @Label("Command Kind")
+    String commandKind;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    int bytesSent;
+
+    @Label("Bytes Received")
+    @DataAmount
+    int bytesReceived;
+
+    @Label("Error Code")
+    @Description("0 = none, 1 = aborted, 2 = CFITSIO error, 3 = other error, -1 = no response (I/O error)")
+    int errorCode;
+
+    /**
+     * Fill in the event's fields, once we know it will be recorded
+     * @param commandPacket     Command sent
+     * @param response          Response received (null if the exchange failed)
+     */
+    void describe(String commandPacket, String response) {
+        this.commandKind = commandKind(commandPacket);
+        this.bytesSent = commandPacket.length();
+        this.bytesReceived = (response == null) ? 0 : response.length();
+        this.errorCode = (response == null) ? -1 : TheSkyXServer.errorCheckResult(response);
+    }
+
+    /**
+     * Classify a command by the most telling TheSkyX method it calls (see SIGNIFICANT_METHODS)
+     * @param commandPacket     Command packet
+     * @return (String)         Kind of command as "object.Method", prefixed "Batch: " if it is a batch of steps
+     */
+    static String commandKind(String commandPacket) {
+        String kind = null;
+        int kindRank = SIGNIFICANT_METHODS.size();
+        Matcher call = METHOD_CALL.matcher(commandPacket);
+        while (call.find() && kindRank > 0) {
+            if (call.group(1).equals("Math")) {
+                continue;
+            }
+            int rank = SIGNIFICANT_METHODS.indexOf(call.group(2));
+            if (kind == null || (rank >= 0 && rank < kindRank)) {
+                kind = call.group(1) + "." + call.group(2);
+                kindRank = (rank >= 0) ? rank : kindRank;
+            }
+        }
+        if (kind == null) {
+            Matcher property = PROPERTY_READ.matcher(commandPacket);
+            kind = property.find() ? property.group(1) + "." + property.group(2) : "Other";
+        }
+        return commandPacket.contains(TheSkyXBatch.variable("")) ? "Batch: " + kind : kind;
+    }
+}
@@ -5,10 +5,10 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.concurrent.locks.ReentrantLock;
 /*
  * Created by JFormDesigner on Wed Feb 26 14:14:57 EST 2020
  */
@@ -22,17 +22,18 @@ import java.util.concurrent.locks.ReentrantLock;
  * @author Richard McDonald
  */
 @SuppressWarnings({"FieldCanBeLocal", "rawtypes"})
-public class Session extends JDialog {
+public class Session extends JDialog implements SessionListener {
     DefaultTableModel sessionTableModel = null;
-    DefaultListModel<String> sessionConsoleModel = null;
+    SessionConsoleModel sessionConsoleModel = null;
     DataModel dataModel;
 
-    // Lock used to serialize UI updates coming from the sub-thread.
-    // Includes console messages, progress bar updates, highlighting and updating the session plan table.
-    // All those events are locked with the same lock, so the UI updates happen atomically and in sequence
-
-    private ReentrantLock consoleLock = null;
+    //  Events from the acquisition thread reach this window through a SessionEventQueue, which delivers
+    //  them on the Swing event thread - so the window's components are only ever changed on that thread.
     private SessionThread sessionRunnable;
+    //  Metrics of the running (or last) session, shown by the Metrics button
+    private SessionMetrics sessionMetrics = null;
+    //  HTTP endpoint serving the session's metrics to dashboards, if wanted; kept until the window is closed
+    private MetricsEndpoint metricsEndpoint = null;
     private Thread sessionThread;
 
 
@@ -109,12 +110,20 @@ public class Session extends JDialog {
     }
 
     /**
-     * Using a default list model, set up the session console list
+     * Set up the session console list, with a model that keeps only the most recent lines and
+     * also writes them all to a log file
      */
     private void setUpSessionConsole() {
-        this.sessionConsoleModel = new DefaultListModel<>();
-        //noinspection unchecked
+        this.sessionConsoleModel = new SessionConsoleModel(Common.CONSOLE_MAXIMUM_LINES,
+                Common.CONSOLE_REFRESH_MILLISECONDS);
+        try {
+            this.sessionConsoleModel.startLog(Common.applicationDataPath(Common.SESSION_CONSOLE_LOG_FILE),
+                    Common.CONSOLE_LOG_FLUSH_MILLISECONDS);
+        } catch (IOException e) {
+            System.out.println("Unable to open session console log: " + e.getMessage());
+        }
         this.sessionConsole.setModel(this.sessionConsoleModel);
+        this.sessionConsoleModel.start(this.sessionConsole);
     }
 
     /**
@@ -128,9 +137,39 @@ public class Session extends JDialog {
 
     /**
      * User clicked "close" - close the dialog.  Disabled while the acquisition thread is running.
+     * Stops the console's refresh timer and log writer and the metrics endpoint, then disposes of the window.
      */
     private void closeButtonActionPerformed() {
-        this.setVisible(false);
+        this.sessionConsoleModel.stop();
+        if (this.metricsEndpoint != null) {
+            this.metricsEndpoint.stop();
+            this.metricsEndpoint = null;
+        }
+        this.dispose();
+    }
+
+    /**
+     * User clicked the window's close box.  Treat it as the Close button, which is only allowed once the
+     * acquisition thread has finished.
+     */
+    private void thisWindowClosing() {
+        if (this.closeButton.isEnabled()) {
+            this.closeButtonActionPerformed();
+        }
+    }
+
+    /**
+     * User clicked "Metrics".  Show where the session's time has gone so far: latency of each stage of
+     * taking a frame, counts, and throughput.
+     */
+    private void metricsButtonActionPerformed() {
+        if (this.sessionMetrics != null) {
+            JTextArea text = new JTextArea(String.join("\n", this.sessionMetrics.describe()));
+            text.setEditable(false);
+            text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            JOptionPane.showMessageDialog(this, new JScrollPane(text), "Session Metrics",
+                    JOptionPane.INFORMATION_MESSAGE);
+        }
     }
 
     /**
@@ -148,18 +187,70 @@ public class Session extends JDialog {
      * Start the thread to do the flat frame acquisition
      * @param sessionWindow     This window
      * @param flatsToAcquire    The list of flat frames to acquire
+     * @param workListSummary   Description of how the list was ordered, for the console
+     * @param journal           Journal of accepted frames, already replayed if resuming
      */
-    public void spawnAcquisitionTask(Session sessionWindow, ArrayList<FlatSet> flatsToAcquire) {
-        this.consoleLock = new ReentrantLock();
-        this.sessionRunnable = new SessionThread(sessionWindow, this.dataModel, flatsToAcquire);
+    public void spawnAcquisitionTask(Session sessionWindow, ArrayList<FlatSet> flatsToAcquire,
+                                     String workListSummary, SessionJournal journal) {
+        SessionListener listener = new SessionEventQueue(sessionWindow);
+        MetricsEndpoint endpoint = null;
+        if (this.dataModel.getMetricsEndpoint() != MetricsEndpointMode.OFF) {
+            endpoint = new MetricsEndpoint(listener, this.dataModel, flatsToAcquire);
+            listener = endpoint;
+        }
+        this.sessionRunnable = new SessionThread(listener, this.dataModel, flatsToAcquire, workListSummary, journal);
+        this.sessionMetrics = this.sessionRunnable.getMetrics();
+        if (endpoint != null) {
+            try {
+                endpoint.start(this.dataModel.getMetricsEndpoint(), Common.METRICS_ENDPOINT_PORT, this.sessionMetrics);
+                this.metricsEndpoint = endpoint;
+                this.console("Metrics served at " + endpoint.getUrl(), 1, LocalTime.now());
+            } catch (IOException e) {
+                this.console("Unable to start metrics endpoint: " + e.getMessage(), 1, LocalTime.now());
+            }
+        }
         this.sessionThread = new Thread(sessionRunnable);
         this.sessionThread.start();
     }
 
+    /**
+     * Receive an event from the acquisition thread (delivered on the Swing event thread by the event queue)
+     * and show it
+     * @param event         What happened
+     */
+    @Override
+    public void sessionEvent(SessionEvent event) {
+        switch (event.getKind()) {
+            case MESSAGE:
+                this.console(event.getMessage(), event.getLevel(), event.getTime());
+                break;
+            case SET_STARTED:
+                this.highlightSessionTableRow(event.getSetIndex());
+                this.startProgressBar(event.getFramesWanted());
+                this.updateProgress(event.getSetIndex(), event.getFramesDone());
+                break;
+            case FRAME_STARTED:
+                this.updateProgress(event.getSetIndex(), event.getFramesDone());
+                break;
+            case FRAME_ACCEPTED:
+            case FRAME_REJECTED:
+                this.reportFrameADUs(event.getAverageADUs(), event.getKind() == SessionEvent.Kind.FRAME_ACCEPTED,
+                        event.getTime());
+                break;
+            case SET_COMPLETED:
+                this.updateProgress(event.getSetIndex(), event.getFramesDone());
+                this.stopProgressBar();
+                break;
+            case SESSION_ENDED:
+                this.acquisitionThreadEnded();
+                break;
+        }
+    }
+
     /**
      * Receive a message from the acquisition thread that it is finished, so we can clean up
      */
-    public void acquisitionThreadEnded() {
+    private void acquisitionThreadEnded() {
         // Revert the close and cancel buttons to their normal form
         this.closeButton.setEnabled(true);
         this.cancelButton.setEnabled(false);
@@ -175,7 +266,7 @@ public class Session extends JDialog {
      * Also re-adjust scrolling to ensure last row is still visible.
      */
     private void sessionConsoleComponentResized() {
-        JList consoleList = this.sessionConsole;
+        JList<String> consoleList = this.sessionConsole;
         JScrollPane scrollPane = this.sessionConsoleScrollPane;
         double rowHeight = consoleList.getFixedCellHeight();  // Known by supplied prototype text
         Dimension dimension = scrollPane.getViewport().getViewSize();
@@ -189,89 +280,56 @@ public class Session extends JDialog {
 
     private static final String INDENTATION_BLANKS = "    ";
 
+    private static final DateTimeFormatter CONSOLE_TIME_FORMAT = DateTimeFormatter.ofPattern("hh:mm:ss");
+
     /**
-     * Add a line to the console pane in the session pane, and scroll to keep it visible
-     * We'll do a thread-lock on this code since requests will be coming from the sub-thread and
-     * we want to ensure we don't try to run the code more than once in parallel.
+     * Add a line to the console pane in the session pane.  The console model shows it (scrolling to keep
+     * it visible) with any other lines added about the same time.
      * @param message               Text message to be added to console log
      * @param messageLevel          Indentation level of message (1 = base level)
+     * @param messageTime           When the message was sent
      */
-    public void console(String message, int messageLevel) {
-        this.consoleLock.lock();
-        try {
-            assert (messageLevel > 0);
-            String time = LocalTime.now().format(DateTimeFormatter.ofPattern("hh:mm:ss"));
-            String indentation = (messageLevel == 1) ? "" : StringUtils.repeat(INDENTATION_BLANKS, messageLevel - 1);
-            this.sessionConsoleModel.addElement(time + ": " + indentation + message);
-            //  Ensure the line we just added is visible, scrolling if necessary
-            this.sessionConsole.ensureIndexIsVisible(this.sessionConsoleModel.getSize() - 1);
-        }
-        finally {
-            //  Use try-finally to ensure unlock happens even if some kind of exception occurs
-            this.consoleLock.unlock();
-        }
+    private void console(String message, int messageLevel, LocalTime messageTime) {
+        assert (messageLevel > 0);
+        String time = messageTime.format(CONSOLE_TIME_FORMAT);
+        String indentation = (messageLevel == 1) ? "" : StringUtils.repeat(INDENTATION_BLANKS, messageLevel - 1);
+        this.sessionConsoleModel.addLine(time + ": " + indentation + message);
     }
 
     /**
      * Highlight the row in the session table that we are informed the thread is starting
      * @param rowIndex      Zero-based index of row in session table
      */
-    public void highlightSessionTableRow(int rowIndex) {
-        this.consoleLock.lock();
-        try {
-            this.sessionTable.clearSelection();
-            this.sessionTable.setRowSelectionInterval(rowIndex, rowIndex);
-        }
-        finally {
-            //  Use try-finally to ensure unlock happens even if some kind of exception occurs
-            this.consoleLock.unlock();
-        }
+    private void highlightSessionTableRow(int rowIndex) {
+        this.sessionTable.clearSelection();
+        this.sessionTable.setRowSelectionInterval(rowIndex, rowIndex);
     }
 
     /**
      * Make the progress bar visible and set it to the given maximum value.
      * @param maxValue      Value that 100% fills the bar
      */
-    public void startProgressBar(int maxValue) {
-        this.consoleLock.lock();
-        try {
-            this.progressBar.setValue(0);
-            this.progressBar.setMaximum(maxValue);
-        }
-        finally {
-            //  Use try-finally to ensure unlock happens even if some kind of exception occurs
-            this.consoleLock.unlock();
-        }
+    private void startProgressBar(int maxValue) {
+        this.progressBar.setValue(0);
+        this.progressBar.setMaximum(maxValue);
     }
 
     /**
      * Set the progress bar to invisible, as we're done with it
      */
-    public void stopProgressBar() {
-        this.consoleLock.lock();
-        try {
-            this.progressBar.setValue(0);
-            this.progressBar.setMaximum(0);
-        }
-        finally {
-            //  Use try-finally to ensure unlock happens even if some kind of exception occurs
-            this.consoleLock.unlock();
-        }
+    private void stopProgressBar() {
+        this.progressBar.setValue(0);
+        this.progressBar.setMaximum(0);
     }
 
     /**
-     * Update progress bar with given value toward the predefined maximum
-     * @param value     Value that is some amount of the way to the defined maximum
+     * Show the number of frames done in a set: in the progress bar, and the "Done" column of the session table
+     * @param rowIndex      Zero-based index of the set's row in the session table
+     * @param framesDone    Frames of the set acquired so far
      */
-    public void updateProgressBar(int value) {
-        this.consoleLock.lock();
-        try {
-            this.progressBar.setValue(value);
-        }
-        finally {
-            //  Use try-finally to ensure unlock happens even if some kind of exception occurs
-            this.consoleLock.unlock();
-        }
+    private void updateProgress(int rowIndex, int framesDone) {
+        this.progressBar.setValue(framesDone);
+        this.sessionTableModel.setValueAt(String.valueOf(framesDone), rowIndex, 3);
     }
 
     /**
@@ -280,12 +338,13 @@ public class Session extends JDialog {
      * depend on the "show ADUs" switch.
      * @param frameAverageADUs      ADUs of frame just acquired
      * @param isWithinRange         Is the ADU level within the target range?
+     * @param frameTime             When the frame was measured
      */
-    public void reportFrameADUs(int frameAverageADUs, boolean isWithinRange) {
+    private void reportFrameADUs(int frameAverageADUs, boolean isWithinRange, LocalTime frameTime) {
         if (this.showADUsCheckbox.isSelected() || !isWithinRange) {
             String conclusion = isWithinRange ? ": within range, keeping this frame."
                     : ": out of range, discarding frame, adjusting exposure.";
-            this.console(String.format("%d ADUs%s", frameAverageADUs, conclusion), 3);
+            this.console(String.format("%d ADUs%s", frameAverageADUs, conclusion), 3, frameTime);
         }
     }
 
@@ -299,16 +358,24 @@ public class Session extends JDialog {
         label4 = new JLabel();
         label5 = new JLabel();
         sessionConsoleScrollPane = new JScrollPane();
-        sessionConsole = new JList();
+        sessionConsole = new JList<>();
         scrollPane2 = new JScrollPane();
         sessionTable = new JTable();
         showADUsCheckbox = new JCheckBox();
         progressBar = new JProgressBar();
         closeButton = new JButton();
+        metricsButton = new JButton();
         cancelButton = new JButton();
 
         //======== this ========
         setMinimumSize(new Dimension(755, 630));
+        setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                thisWindowClosing();
+            }
+        });
         var contentPane = getContentPane();
         contentPane.setLayout(new BorderLayout());
 
@@ -388,6 +455,14 @@ public class Session extends JDialog {
                     GridBagConstraints.CENTER, GridBagConstraints.BOTH,
                     new Insets(0, 0, 5, 5), 0, 0));
 
+                //---- metricsButton ----
+                metricsButton.setText("Metrics...");
+                metricsButton.setToolTipText("Show where the session's time is going: how long each stage of a frame takes, and frames per minute.");
+                metricsButton.addActionListener(e -> metricsButtonActionPerformed());
+                contentPanel.add(metricsButton, new GridBagConstraints(2, 4, 2, 1, 0.0, 0.0,
+                    GridBagConstraints.CENTER, GridBagConstraints.BOTH,
+                    new Insets(0, 0, 5, 5), 0, 0));
+
                 //---- cancelButton ----
                 cancelButton.setText("Cancel");
                 cancelButton.setToolTipText("Cancel the running acquisition session (make take a few seconds).");
@@ -411,12 +486,13 @@ public class Session extends JDialog {
     private JLabel label4;
     private JLabel label5;
     private JScrollPane sessionConsoleScrollPane;
-    private JList sessionConsole;
+    private JList<String> sessionConsole;
     private JScrollPane scrollPane2;
     private JTable sessionTable;
     private JCheckBox showADUsCheckbox;
     private JProgressBar progressBar;
     private JButton closeButton;
+    private JButton metricsButton;
     private JButton cancelButton;
     // JFormDesigner - End of variables declaration  //GEN-END:variables
 }
@@ -0,0 +1,193 @@
+import javax.swing.*;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * List model for the session console, holding only the most recent lines.
+ *
+ * Lines come from the acquisition thread, but a list model must only be changed on the Swing event thread.
+ * So adding a line just puts it on a lock-free queue, and a Swing timer drains the queue a few times a
+ * second, adding everything that arrived as one batch - one change event, one scroll to the end - however
+ * many lines there were.  The lines are kept in a fixed-size ring buffer; when it is full the oldest are
+ * dropped, so a long session can't grow the console without limit.
+ *
+ * Every line is also written to a log file, so nothing dropped from the window is lost.  The log is written
+ * by its own background thread, from a second queue, so the acquisition thread never waits for the disk.
+ */
+public class SessionConsoleModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    //  Lines added but not yet shown (producer: any thread; consumer: the event thread)
+    private final ConcurrentLinkedQueue<String> pendingLines = new ConcurrentLinkedQueue<>();
+    //  Lines added but not yet written to the log (consumer: the log writer thread)
+    private final ConcurrentLinkedQueue<String> pendingLogLines = new ConcurrentLinkedQueue<>();
+
+    //  Ring buffer of the lines shown.  Only touched on the event thread.
+    private final String[] lines;
+    private int firstLine = 0;
+    private int lineCount = 0;
+
+    private final Timer refreshTimer;
+    private JList<String> list = null;
+
+    private transient volatile ScheduledExecutorService logWriter = null;
+    private transient BufferedWriter log = null;
+
+    /**
+     * Constructor
+     * @param capacity          Most lines shown
+     * @param refreshMillis     How often new lines are added to the list
+     */
+    public SessionConsoleModel(int capacity, int refreshMillis) {
+        this.lines = new String[capacity];
+        this.refreshTimer = new Timer(refreshMillis, event -> this.drain());
+    }
+
+    /**
+     * Start showing lines in a list, keeping the newest line visible
+     * @param list              List the model is shown in
+     */
+    public void start(JList<String> list) {
+        this.list = list;
+        this.refreshTimer.start();
+    }
+
+    /**
+     * Stop refreshing the list (after showing any lines still waiting) and close the log
+     */
+    public void stop() {
+        this.refreshTimer.stop();
+        this.drain();
+        this.closeLog();
+    }
+
+    /**
+     * Add a line to the console.  Safe to call from any thread, and never blocks.
+     * @param line              Text of the line
+     */
+    public void addLine(String line) {
+        this.pendingLines.offer(line);
+        if (this.logWriter != null) {
+            this.pendingLogLines.offer(line);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return this.lineCount;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return this.lines[(this.firstLine + index) % this.lines.length];
+    }
+
+    /**
+     * On the event thread: move every waiting line into the ring buffer, then tell the list once
+     */
+    private void drain() {
+        ArrayList<String> batch = new ArrayList<>();
+        for (String line = this.pendingLines.poll(); line != null; line = this.pendingLines.poll()) {
+            batch.add(line);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        //  Lines that would be pushed out by later lines in the same batch are never shown
+        int skipped = Math.max(0, batch.size() - this.lines.length);
+        int added = batch.size() - skipped;
+        int removed = Math.max(0, this.lineCount + added - this.lines.length);
+
+        for (int index = skipped; index < batch.size(); index++) {
+            if (this.lineCount < this.lines.length) {
+                this.lines[(this.firstLine + this.lineCount) % this.lines.length] = batch.get(index);
+                this.lineCount++;
+            } else {
+                this.lines[this.firstLine] = batch.get(index);
+                this.firstLine = (this.firstLine + 1) % this.lines.length;
+            }
+        }
+        if (removed > 0) {
+            this.fireIntervalRemoved(this, 0, removed - 1);
+        }
+        this.fireIntervalAdded(this, this.lineCount - added, this.lineCount - 1);
+        if (this.list != null) {
+            this.list.ensureIndexIsVisible(this.lineCount - 1);
+        }
+    }
+
+    /**
+     * Start writing every line to a log file, replacing any earlier log.  If the log can't be written,
+     * the console carries on without it.
+     * @param logPath           Log file
+     * @param flushMillis       How often lines waiting are written to the file
+     * @throws IOException      Unable to create the log file
+     */
+    public void startLog(Path logPath, int flushMillis) throws IOException {
+        Files.createDirectories(logPath.getParent());
+        this.log = Files.newBufferedWriter(logPath, StandardCharsets.UTF_8);
+        this.logWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Session console log writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.logWriter.scheduleWithFixedDelay(this::writeLog, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * On the log writer thread: write every waiting line to the log file
+     */
+    private void writeLog() {
+        if (this.log == null) {
+            this.pendingLogLines.clear();
+            return;
+        }
+        try {
+            boolean wrote = false;
+            for (String line = this.pendingLogLines.poll(); line != null; line = this.pendingLogLines.poll()) {
+                this.log.write(line);
+                this.log.newLine();
+                wrote = true;
+            }
+            if (wrote) {
+                this.log.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to write session console log, giving up on it: " + e.getMessage());
+            this.closeLogFile();
+        }
+    }
+
+    /**
+     * Write any lines still waiting, then close the log (on the log writer thread, so the caller doesn't wait)
+     */
+    private void closeLog() {
+        if (this.logWriter != null) {
+            this.logWriter.execute(() -> {
+                this.writeLog();
+                this.closeLogFile();
+            });
+            this.logWriter.shutdown();
+            this.logWriter = null;
+        }
+    }
+
+    private void closeLogFile() {
+        if (this.log != null) {
+            try {
+                this.log.close();
+            } catch (IOException e) {
+                //  Nothing more we can do about it
+            }
+            this.log = null;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+
+/**
+ * Something that happened in an acquisition session, reported by the acquisition thread to whatever is
+ * showing the session (the Session window, or the console of a headless run).  Immutable, so it can be
+ * handed between threads freely.  Made only by the static factory methods; fields that don't apply to
+ * an event's kind are zero or null.
+ */
+public class SessionEvent {
+
+    public enum Kind {
+        MESSAGE,            // Console message: message, level
+        SET_STARTED,        // Starting a frame set: setIndex, framesDone, framesWanted
+        FRAME_STARTED,      // Exposing a frame: setIndex, frameNumber, framesDone, framesWanted, exposureSeconds
+        FRAME_ACCEPTED,     // Frame measured and kept: setIndex, averageADUs
+        FRAME_REJECTED,     // Frame measured and discarded: setIndex, averageADUs
+        SET_COMPLETED,      // Frame set finished: setIndex, framesDone, framesWanted
+        SESSION_ENDED       // Acquisition thread is finished
+    }
+
+    private final Kind kind;
+    private final long timeMillis;
+    private final int setIndex;
+    private final int frameNumber;
+    private final int framesDone;
+    private final int framesWanted;
+    private final double exposureSeconds;
+    private final int averageADUs;
+    private final String message;
+    private final int level;
+
+    private SessionEvent(Kind kind, int setIndex, int frameNumber, int framesDone, int framesWanted,
+                         double exposureSeconds, int averageADUs, String message, int level) {
+        this.kind = kind;
+        this.timeMillis = System.currentTimeMillis();
+        this.setIndex = setIndex;
+        this.frameNumber = frameNumber;
+        this.framesDone = framesDone;
+        this.framesWanted = framesWanted;
+        this.exposureSeconds = exposureSeconds;
+        this.averageADUs = averageADUs;
+        this.message = message;
+        this.level = level;
+    }
+
+    /**
+     * A console message
+     * @param message           Text of the message (a time stamp is added when it is shown)
+     * @param level             Indentation level.  1 = leftmost, 2+ are indented
+     * @return (SessionEvent)
+     */
+    public static SessionEvent message(String message, int level) {
+        return new SessionEvent(Kind.MESSAGE, 0, 0, 0, 0, 0.0, 0, message, level);
+    }
+
+    /**
+     * Starting to acquire a frame set
+     * @param setIndex          Index of the set in the work list
+     * @param flatSet           The set
+     * @return (SessionEvent)
+     */
+    public static SessionEvent setStarted(int setIndex, FlatSet flatSet) {
+        return new SessionEvent(Kind.SET_STARTED, setIndex, 0, flatSet.getNumberDone(),
+                flatSet.getNumberOfFrames(), 0.0, 0, null, 0);
+    }
+
+    /**
+     * Starting to expose a frame
+     * @param setIndex          Index of the set in the work list
+     * @param flatSet           The set
+     * @param frameNumber       Number of the frame being tried
+     * @param exposureSeconds   Exposure
+     * @return (SessionEvent)
+     */
+    public static SessionEvent frameStarted(int setIndex, FlatSet flatSet, int frameNumber, double exposureSeconds) {
+        return new SessionEvent(Kind.FRAME_STARTED, setIndex, frameNumber, flatSet.getNumberDone(),
+                flatSet.getNumberOfFrames(), exposureSeconds, 0, null, 0);
+    }
+
+    /**
+     * A frame has been measured, and kept or discarded
+     * @param setIndex          Index of the set in the work list
+     * @param averageADUs       Measured ADU level
+     * @param accepted          Was the frame within range and kept?
+     * @return (SessionEvent)
+     */
+    public static SessionEvent frameMeasured(int setIndex, int averageADUs, boolean accepted) {
+        return new SessionEvent(accepted ? Kind.FRAME_ACCEPTED : Kind.FRAME_REJECTED, setIndex, 0, 0, 0,
+                0.0, averageADUs, null, 0);
+    }
+
+    /**
+     * A frame set is finished
+     * @param setIndex          Index of the set in the work list
+     * @param flatSet           The set
+     * @return (SessionEvent)
+     */
+    public static SessionEvent setCompleted(int setIndex, FlatSet flatSet) {
+        return new SessionEvent(Kind.SET_COMPLETED, setIndex, 0, flatSet.getNumberDone(),
+                flatSet.getNumberOfFrames(), 0.0, 0, null, 0);
+    }
+
+    /**
+     * The acquisition thread is finished, whether the session succeeded, failed, or was cancelled
+     * @return (SessionEvent)
+     */
+    public static SessionEvent sessionEnded() {
+        return new SessionEvent(Kind.SESSION_ENDED, 0, 0, 0, 0, 0.0, 0, null, 0);
+    }
+
+    public Kind getKind() { return kind; }
+    public long getTimeMillis() { return timeMillis; }
+    public int getSetIndex() { return setIndex; }
+    public int getFrameNumber() { return frameNumber; }
+    public int getFramesDone() { return framesDone; }
+    public int getFramesWanted() { return framesWanted; }
+    public double getExposureSeconds() { return exposureSeconds; }
+    public int getAverageADUs() { return averageADUs; }
+    public String getMessage() { return message; }
+    public int getLevel() { return level; }
+
+    public LocalTime getTime() {
+        return LocalTime.ofInstant(Instant.ofEpochMilli(this.timeMillis), ZoneId.systemDefault());
+    }
+
+    /**
+     * Does this event only report progress, so it is made redundant by a later event of the same kind
+     * for the same set?
+     * @return (boolean)
+     */
+    public boolean isProgressOnly() {
+        return this.kind == Kind.FRAME_STARTED;
+    }
+}
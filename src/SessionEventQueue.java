@@ -0,0 +1,64 @@
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Passes session events from the acquisition thread to a listener on the Swing event thread.
+ *
+ * Publishing an event just adds it to a lock-free queue and, if a drain isn't already scheduled, schedules
+ * one with invokeLater - so the acquisition thread never waits for the user interface to lock or paint.  The
+ * drain takes every event that has arrived and delivers them in order, dropping progress events that a later
+ * event in the same batch supersedes, so a user interface that falls behind catches up in one step.
+ */
+public class SessionEventQueue implements SessionListener {
+
+    private final SessionListener eventThreadListener;
+    private final ConcurrentLinkedQueue<SessionEvent> events = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    /**
+     * Constructor
+     * @param eventThreadListener   Receives the events, on the Swing event thread
+     */
+    public SessionEventQueue(SessionListener eventThreadListener) {
+        this.eventThreadListener = eventThreadListener;
+    }
+
+    /**
+     * Publish an event.  Safe to call from any thread, and never blocks.
+     * @param event             What happened
+     */
+    @Override
+    public void sessionEvent(SessionEvent event) {
+        this.events.offer(event);
+        if (this.drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drain);
+        }
+    }
+
+    /**
+     * On the event thread: deliver every event waiting, less redundant progress events
+     */
+    private void drain() {
+        //  Cleared before polling, so an event published while we drain schedules another drain
+        this.drainScheduled.set(false);
+        ArrayList<SessionEvent> batch = new ArrayList<>();
+        for (SessionEvent event = this.events.poll(); event != null; event = this.events.poll()) {
+            batch.add(event);
+        }
+        //  Working backwards, keep only the last progress event of each kind for each set
+        boolean[] keep = new boolean[batch.size()];
+        HashSet<String> progressSeen = new HashSet<>();
+        for (int index = batch.size() - 1; index >= 0; index--) {
+            SessionEvent event = batch.get(index);
+            keep[index] = !event.isProgressOnly() || progressSeen.add(event.getKind() + ":" + event.getSetIndex());
+        }
+        for (int index = 0; index < batch.size(); index++) {
+            if (keep[index]) {
+                this.eventThreadListener.sessionEvent(batch.get(index));
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of the frames accepted during an acquisition session, so that a session that dies
+ * part-way (lost connection to the server, camera timeout, computer crash) can be resumed where it stopped
+ * instead of re-shooting frames that were already saved.
+ *
+ * The journal is a small text file, one record per line, fields separated by tabs:
+ *
+ *      session     time    work-list signature     Start of a new session
+ *      resume      time                            A failed session was resumed
+ *      frame       time    slot    filter  binning exposure    ADUs    file name
+ *      end         time                            Session completed normally - nothing to resume
+ *
+ * Each line ends with a CRC of its contents, and each record is forced to disk before we go on, so after a
+ * crash the journal holds every accepted frame except possibly the very last one, whose line may be torn.
+ * A torn or corrupt line is simply ignored on replay, so at worst one frame is taken again.
+ *
+ * A session can only be resumed if the work list about to be acquired is the same as the one journaled
+ * (same filters, binnings and frame counts), the journaled session did not end normally, and its last record
+ * is recent enough to be from the same night (Common.SESSION_JOURNAL_RESUME_HOURS).  Whether to resume is up
+ * to the user: framesToResume() says what could be resumed, and resume() does it.  A cancelled session has
+ * no end record, so it can be resumed like one that failed.
+ */
+public class SessionJournal {
+    private static final String SESSION_RECORD = "session";
+    private static final String RESUME_RECORD = "resume";
+    private static final String FRAME_RECORD = "frame";
+    private static final String END_RECORD = "end";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private final Path journalPath;
+    private FileChannel channel = null;
+    private boolean resuming = false;
+    private int framesResumed = 0;
+    private LocalDateTime lastActivity = null;
+
+    /**
+     * Constructor.  Doesn't touch the file - that happens on resume() and open().
+     * @param journalPath       Location of the journal file
+     */
+    public SessionJournal(Path journalPath) {
+        this.journalPath = journalPath;
+    }
+
+    /**
+     * Identify a work list by its contents, independent of the order the sets are acquired in
+     * @param flatSets          Sets to be acquired
+     * @return (String)         Signature of the list
+     */
+    private static String signature(List<FlatSet> flatSets) {
+        TreeSet<String> entries = new TreeSet<>();
+        for (FlatSet flatSet : flatSets) {
+            entries.add(setKey(flatSet) + ":" + flatSet.getNumberOfFrames());
+        }
+        return String.join(",", entries);
+    }
+
+    /**
+     * Key identifying a flat set (its filter slot and binning)
+     * @param flatSet           Set to identify
+     * @return (String)         Key
+     */
+    private static String setKey(FlatSet flatSet) {
+        return flatSet.getFilterSpec().getSlotNumber() + "x" + flatSet.getBinning();
+    }
+
+    /**
+     * How many frames of an unfinished session for this same work list, from the same night, the journal
+     * holds.  The sets aren't changed.  Problems reading the journal just mean there is nothing to resume.
+     * @param flatSets          Sets about to be acquired
+     * @return (int)            Number of frames that resume() would restore (0 if nothing to resume)
+     */
+    public int framesToResume(List<FlatSet> flatSets) {
+        HashMap<String, Integer> framesBySet = this.replay(flatSets);
+        if (framesBySet == null) {
+            return 0;
+        }
+        int frames = 0;
+        for (FlatSet flatSet : flatSets) {
+            frames += Math.min(framesBySet.getOrDefault(setKey(flatSet), 0), flatSet.getNumberOfFrames());
+        }
+        return frames;
+    }
+
+    /**
+     * Resume the unfinished session that framesToResume() found: set the number of frames done in each
+     * set to the number journaled.  Without this, open() starts a new journal and every frame is taken.
+     * @param flatSets          Sets about to be acquired (their numberDone values are updated)
+     * @return (int)            Total number of frames restored from the journal
+     */
+    public int resume(List<FlatSet> flatSets) {
+        this.resuming = false;
+        this.framesResumed = 0;
+        HashMap<String, Integer> framesBySet = this.replay(flatSets);
+        if (framesBySet == null) {
+            return 0;
+        }
+        for (FlatSet flatSet : flatSets) {
+            int framesDone = Math.min(framesBySet.getOrDefault(setKey(flatSet), 0), flatSet.getNumberOfFrames());
+            flatSet.setNumberDone(framesDone);
+            this.framesResumed += framesDone;
+        }
+        this.resuming = true;
+        return this.framesResumed;
+    }
+
+    /**
+     * Replay the last session in the journal, counting its accepted frames by set
+     * @param flatSets          Sets about to be acquired
+     * @return (HashMap)        Frames journaled for each set key, or null if there is no unfinished session
+     *                          for this work list from the same night
+     */
+    private HashMap<String, Integer> replay(List<FlatSet> flatSets) {
+        this.lastActivity = null;
+        if (!Files.isReadable(this.journalPath)) {
+            return null;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(this.journalPath, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Unable to read session journal: " + e.getMessage());
+            return null;
+        }
+
+        String journaledSignature = null;
+        LocalDateTime lastRecordTime = null;
+        HashMap<String, Integer> framesBySet = new HashMap<>();
+        for (String line : lines) {
+            String[] fields = validatedFields(line);
+            if (fields == null) {
+                continue;
+            }
+            switch (fields[0]) {
+                case SESSION_RECORD:
+                    journaledSignature = (fields.length > 2) ? fields[2] : null;
+                    framesBySet.clear();
+                    break;
+                case FRAME_RECORD:
+                    if (fields.length > 4) {
+                        framesBySet.merge(fields[2] + "x" + fields[4], 1, Integer::sum);
+                    }
+                    break;
+                case END_RECORD:
+                    journaledSignature = null;
+                    break;
+                default:
+                    break;
+            }
+            if (fields.length > 1) {
+                try {
+                    lastRecordTime = LocalDateTime.parse(fields[1]);
+                } catch (DateTimeParseException e) {
+                    // Keep the time of the last record that had one
+                }
+            }
+        }
+        if (journaledSignature == null || !journaledSignature.equals(signature(flatSets))
+                || lastRecordTime == null || Duration.between(lastRecordTime, LocalDateTime.now())
+                        .compareTo(Duration.ofHours(Common.SESSION_JOURNAL_RESUME_HOURS)) > 0) {
+            return null;
+        }
+        this.lastActivity = lastRecordTime;
+        return framesBySet;
+    }
+
+    /**
+     * Open the journal for the session about to start.  If we are resuming, the existing journal is
+     * appended to; otherwise it is replaced by a new one for this work list.
+     * @param flatSets          Sets to be acquired
+     * @throws IOException      Unable to create or write the journal
+     */
+    public void open(List<FlatSet> flatSets) throws IOException {
+        Files.createDirectories(this.journalPath.getParent());
+        if (this.resuming) {
+            this.channel = FileChannel.open(this.journalPath,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            //  A torn line from the crash would run into our next record; start on a fresh line
+            this.channel.write(ByteBuffer.wrap("\n".getBytes(StandardCharsets.UTF_8)));
+            this.append(RESUME_RECORD, now());
+        } else {
+            this.channel = FileChannel.open(this.journalPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.append(SESSION_RECORD, now(), signature(flatSets));
+        }
+    }
+
+    /**
+     * Record a frame that has been accepted and saved
+     * @param flatSet           Set the frame belongs to
+     * @param exposureSeconds   Exposure of the frame
+     * @param averageADUs       Measured average ADUs
+     * @param fileName          Name of the file saved (in the local folder or TheSkyX's autosave folder)
+     * @throws IOException      Unable to write the journal
+     */
+    public void recordFrame(FlatSet flatSet, double exposureSeconds, int averageADUs, String fileName)
+            throws IOException {
+        this.append(FRAME_RECORD, now(),
+                String.valueOf(flatSet.getFilterSpec().getSlotNumber()),
+                flatSet.getFilterSpec().getName(),
+                String.valueOf(flatSet.getBinning()),
+                String.format("%.3f", exposureSeconds),
+                String.valueOf(averageADUs),
+                fileName);
+    }
+
+    /**
+     * The session completed normally.  Mark the journal so it won't be resumed, and close it.
+     * @throws IOException      Unable to write the journal
+     */
+    public void finish() throws IOException {
+        this.append(END_RECORD, now());
+        this.close();
+    }
+
+    /**
+     * Close the journal, ignoring errors - every record was already forced to disk as it was written
+     */
+    public void close() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // Ignore, nothing unwritten is lost
+            }
+            this.channel = null;
+        }
+    }
+
+    public boolean isResuming() { return resuming; }
+    public int getFramesResumed() { return framesResumed; }
+    public LocalDateTime getLastActivity() { return lastActivity; }
+
+    /**
+     * Write one record and force it to disk before returning
+     * @param fields            Fields of the record, the record type first
+     * @throws IOException      Unable to write the journal
+     */
+    private void append(String... fields) throws IOException {
+        if (this.channel == null) {
+            throw new IOException("Session journal is not open");
+        }
+        StringBuilder line = new StringBuilder();
+        for (int index = 0; index < fields.length; index++) {
+            if (index > 0) {
+                line.append(FIELD_SEPARATOR);
+            }
+            //  Tabs and line breaks would corrupt the record structure
+            line.append(fields[index].replaceAll("[\\t\\r\\n]", " "));
+        }
+        String content = line.toString();
+        String record = content + FIELD_SEPARATOR + checksum(content) + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+        this.channel.force(false);
+    }
+
+    /**
+     * Split a journal line into its fields, checking its CRC
+     * @param line              Line read from the journal
+     * @return (String[])       Fields of the record, or null if the line is torn or corrupt
+     */
+    private static String[] validatedFields(String line) {
+        int checksumStart = line.lastIndexOf(FIELD_SEPARATOR);
+        if (checksumStart <= 0) {
+            return null;
+        }
+        String content = line.substring(0, checksumStart);
+        if (!line.substring(checksumStart + 1).equals(checksum(content))) {
+            return null;
+        }
+        return content.split(FIELD_SEPARATOR, -1);
+    }
+
+    /**
+     * CRC-32 of a record's contents, as hex
+     * @param content           Record contents
+     * @return (String)         Checksum
+     */
+    private static String checksum(String content) {
+        CRC32 crc = new CRC32();
+        crc.update(content.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static String now() {
+        return LocalDateTime.now().toString();
+    }
+}
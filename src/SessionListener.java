@@ -0,0 +1,11 @@
+/**
+ * Receives the events of an acquisition session from the acquisition thread
+ */
+public interface SessionListener {
+
+    /**
+     * Something happened in the session.  Called on the acquisition thread, so must not block.
+     * @param event             What happened
+     */
+    void sessionEvent(SessionEvent event);
+}
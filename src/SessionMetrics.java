@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time goes in an acquisition session: a latency histogram for each stage of taking a frame (and
+ * for every server round trip), counters of what happened, and frame throughput.
+ *
+ * Recorded from the acquisition thread and the server code, and read at any time by the session window,
+ * so everything is lock-free: histograms and counters are created on first use in concurrent maps.
+ * Stage and counter names are the constants below; descriptions list them alphabetically.
+ */
+public class SessionMetrics {
+    //  Stages timed (names mustn't contain commas, as they are exported to CSV)
+    public static final String STAGE_ROUND_TRIP = "Server round trip";
+    public static final String STAGE_FRAME = "Frame end to end";
+    public static final String STAGE_EXPOSURE_WAIT = "Exposure and download wait";
+    public static final String STAGE_POLLING_SLACK = "Completion polling slack";
+    public static final String STAGE_SAVE = "Save (and measure on the server)";
+    public static final String STAGE_LOCAL_MEASURE = "Local measurement";
+    public static final String STAGE_DITHER_WAIT = "Dither slew wait";
+    public static final String STAGE_SET_SLEW = "Set slews";
+    public static final String STAGE_BOOKKEEPING = "Journal/library/master bookkeeping";
+
+    //  Things counted
+    public static final String COUNT_ACCEPTED = "Frames accepted";
+    public static final String COUNT_REJECTED = "Frames rejected";
+    public static final String COUNT_RECONNECTS = "Server reconnects";
+    public static final String COUNT_SERVER_ERRORS = "Server errors";
+
+    private final ConcurrentSkipListMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Get the histogram for a stage, creating it the first time
+     * @param stage             Stage name
+     * @return (LatencyHistogram)
+     */
+    public LatencyHistogram histogram(String stage) {
+        return this.histograms.computeIfAbsent(stage, name -> new LatencyHistogram());
+    }
+
+    /**
+     * Record the time a stage took, from an earlier System.nanoTime() to now
+     * @param stage             Stage name
+     * @param startNanos        When the stage started
+     */
+    public void recordSince(String stage, long startNanos) {
+        this.histogram(stage).recordSince(startNanos);
+    }
+
+    /**
+     * Record a duration for a stage
+     * @param stage             Stage name
+     * @param nanoseconds       Duration
+     */
+    public void record(String stage, long nanoseconds) {
+        this.histogram(stage).record(nanoseconds);
+    }
+
+    /**
+     * Add to a counter
+     * @param counter           Counter name
+     * @param amount            Amount to add
+     */
+    public void count(String counter, long amount) {
+        this.counters.computeIfAbsent(counter, name -> new LongAdder()).add(amount);
+    }
+
+    public long getCount(String counter) {
+        LongAdder adder = this.counters.get(counter);
+        return (adder == null) ? 0L : adder.sum();
+    }
+
+    public Set<String> getStages() { return histograms.keySet(); }
+    public Set<String> getCounterNames() { return counters.keySet(); }
+
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - this.startNanos) / 1.0e9;
+    }
+
+    /**
+     * Frames accepted per minute since the session started
+     * @return (double)
+     */
+    public double getFramesPerMinute() {
+        double minutes = this.getElapsedSeconds() / 60.0;
+        return (minutes <= 0.0) ? 0.0 : this.getCount(COUNT_ACCEPTED) / minutes;
+    }
+
+    /**
+     * Description of everything recorded so far, one line per item, for the session window and console
+     * @return (List)           Lines of text
+     */
+    public List<String> describe() {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add(String.format("Elapsed %.1f seconds, %d frames accepted (%.1f per minute).",
+                this.getElapsedSeconds(), this.getCount(COUNT_ACCEPTED), this.getFramesPerMinute()));
+        StringBuilder counts = new StringBuilder();
+        for (Map.Entry<String, LongAdder> entry : this.counters.entrySet()) {
+            counts.append((counts.length() == 0) ? "" : ", ").append(entry.getKey()).append(": ")
+                    .append(entry.getValue().sum());
+        }
+        if (counts.length() > 0) {
+            lines.add(counts + ".");
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : this.histograms.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue().describe() + ".");
+        }
+        return lines;
+    }
+
+    /**
+     * Write everything recorded to a CSV file: one row per stage with its percentiles, then one row
+     * per counter
+     * @param csvPath           File to write (replaced if it exists)
+     * @throws IOException      Unable to write the file
+     */
+    public void export(Path csvPath) throws IOException {
+        Files.createDirectories(csvPath.getParent());
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(csvPath, StandardCharsets.UTF_8))) {
+            writer.println("item,count,total_s,mean_ms,p50_ms,p90_ms,p99_ms,max_ms");
+            for (Map.Entry<String, LatencyHistogram> entry : this.histograms.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                writer.printf(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f%n", entry.getKey(),
+                        histogram.getCount(), histogram.getTotalSeconds(), histogram.getMeanMilliseconds(),
+                        histogram.getPercentileMilliseconds(50.0), histogram.getPercentileMilliseconds(90.0),
+                        histogram.getPercentileMilliseconds(99.0), histogram.getMaximumMilliseconds());
+            }
+            for (Map.Entry<String, LongAdder> entry : this.counters.entrySet()) {
+                writer.printf(Locale.ROOT, "%s,%d,,,,,,%n", entry.getKey(), entry.getValue().sum());
+            }
+            writer.printf(Locale.ROOT, "Elapsed,,%.3f,,,,,%n", this.getElapsedSeconds());
+            if (writer.checkError()) {
+                throw new IOException("Error writing " + csvPath);
+            }
+        }
+    }
+}
@@ -2,26 +2,68 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.ImmutableTriple;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class SessionThread implements Runnable {
+    //  Session start time in master flat file names
+    private static final DateTimeFormatter MASTER_FLAT_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
 
-    private final Session parent;
+    //  Receives progress and console messages (the session window, through an event queue)
+    private final SessionListener listener;
+    //  Index in the work list of the set being acquired
+    private int setIndex = 0;
+    //  Where the session's time goes, for the session window and the export at the end
+    private final SessionMetrics metrics = new SessionMetrics();
     private final DataModel dataModel;
     private final ArrayList<FlatSet> flatsToAcquire;
+    private final String workListSummary;
+    private final SessionJournal journal;
+    private boolean journalOpen = false;
+    //  Index of all the frames ever captured (null if it can't be opened), and this session's id in it
+    private FlatLibrary library;
+    private ExposureHistory exposureHistory;
+    //  For twilight sky flats: the observer's latitude and east longitude, to find the sun's altitude (else null)
+    private ImmutablePair<Double, Double> observerLocation = null;
+    private final long sessionId = System.currentTimeMillis();
     private TheSkyXServer server;
     private HashMap<Integer, Double> downloadTimes;
+    private ExposureCompletionWaiter completionWaiter;
+    //  Measures frames from their saved files, if they are saved where we can read them (else null)
+    private FitsStatistics frameStatistics;
+    //  Builds master flats from the saved frames, off the acquisition thread (null if not making masters)
+    private ExecutorService masterFlatWorker;
+    //  Master flat of the set being acquired, until it is queued to be finished
+    private MasterFlatBuilder unfinishedMasterFlat = null;
+    private int framesMeasured = 0;
+    private int framesRejected = 0;
+    //  For twilight sky flats: camera bias level by binning, and the sky brightness trend carried between sets
+    private final HashMap<Integer, Integer> biasLevels = new HashMap<>(4);
+    private double skyTrendPerSecond = Double.NaN;
 
-    public SessionThread(Session parent, DataModel dataModel, ArrayList<FlatSet> flatsToAcquire) {
-        this.parent = parent;
+    public SessionThread(SessionListener listener, DataModel dataModel, ArrayList<FlatSet> flatsToAcquire,
+                         String workListSummary, SessionJournal journal) {
+        this.listener = listener;
         this.dataModel = dataModel;
         this.flatsToAcquire = flatsToAcquire;
+        this.workListSummary = workListSummary;
+        this.journal = journal;
     }
 
+    public SessionMetrics getMetrics() { return metrics; }
+
     /**
      * Main routine of this thread, invoked automatically by starting the thread.
      * Set up, acquire frames, and close down the session.  There is no "user interface"
@@ -31,11 +73,20 @@ public class SessionThread implements Runnable {
     public void run() {
         try {
             this.server = new TheSkyXServer(this.dataModel.getServerAddress(), this.dataModel.getPortNumber());
+            this.server.setMetrics(this.metrics);
             this.console("Session Started", 1);
+            this.openJournal();
+            this.library = this.openLibrary();
+            this.exposureHistory = this.openExposureHistory();
+            this.observerLocation = this.findObserverLocation();
             DitherController dither = this.preSessionMountControl();
             this.measureDownloadTimes();
+            this.completionWaiter = new ExposureCompletionWaiter(this.server, this.downloadTimes);
+            this.frameStatistics = this.setUpLocalMeasurement();
+            this.masterFlatWorker = this.setUpMasterFlats();
             this.setUpDithering(dither);
             this.processWorkList(dither);
+            this.finishJournal();
             this.postSessionWarmUp();
             this.postSessionMountControl();
         } catch (IOException e) {
@@ -53,8 +104,22 @@ public class SessionThread implements Runnable {
             e.printStackTrace();
             this.console(e.getMessage(), 1);
         }
+        //  The journal has no end record, so (cancelled or failed) this session can be picked up again
+        if (this.journalOpen) {
+            this.console(String.format("The frames taken are journaled: running this plan again within %d hours "
+                    + "can resume the session.", Common.SESSION_JOURNAL_RESUME_HOURS), 1);
+        }
+        this.journal.close();
+        if (this.library != null) {
+            this.library.close();
+        }
+        //  A cancelled or failed set's accepted frames are worth keeping too
+        this.saveExposureHistory();
+        this.awaitMasterFlats();
+        this.reportStatistics();
+        this.closeServer();
         this.console("Session Ended", 1);
-        this.parent.acquisitionThreadEnded();
+        this.listener.sessionEvent(SessionEvent.sessionEnded());
     }
 
     /**
@@ -82,16 +147,21 @@ public class SessionThread implements Runnable {
      * @param dither    Dither controller (null if no dithering)
      */
     private void processWorkList(DitherController dither) throws InterruptedException, IOException, ADUExposureException, TimeoutException {
+        if (this.workListSummary != null) {
+            this.console(this.workListSummary + ".", 2);
+        }
 
         for (int itemIndex = 0; itemIndex < this.flatsToAcquire.size(); itemIndex++) {
-            //  Tell the user interface to highlight this row in the table
-            this.parent.highlightSessionTableRow(itemIndex);
-            //  Tell the console what set we're beginning
+            //  Tell the user interface we're starting this set (it highlights its row in the table)
             FlatSet thisSet = this.flatsToAcquire.get(itemIndex);
+            this.setIndex = itemIndex;
+            this.listener.sessionEvent(SessionEvent.setStarted(itemIndex, thisSet));
             console("Acquiring " + thisSet.describe() + ".", 1);
             //  Acquire all the flats in this set
             this.acquireOneFlatsSet(thisSet, dither);
+            long slewStartNanos = System.nanoTime();
             this.resetDithering(dither);
+            this.metrics.recordSince(SessionMetrics.STAGE_SET_SLEW, slewStartNanos);
         }
         
     }
@@ -112,8 +182,10 @@ public class SessionThread implements Runnable {
     private void acquireOneFlatsSet(FlatSet thisSet, DitherController dither)
             throws InterruptedException, IOException, ADUExposureException, TimeoutException {
         if (thisSet.getNumberOfFrames() > thisSet.getNumberDone()) {
-            // Connect camera
-            this.server.connectToCamera();
+            // Connect camera and set up filter if in use, in one round-trip.  We only need select the
+            // filter once, since all the frames we are about to take are identical.
+            Integer filterSlot = this.dataModel.getUseFilterWheel() ? thisSet.getFilterSpec().getSlotNumber() : null;
+            this.server.connectCameraAndSelectFilter(filterSlot);
 
             // Acquire the frames
             this.acquireFrames(thisSet, dither);
@@ -133,60 +205,170 @@ public class SessionThread implements Runnable {
      * been rejected, and fail if a threshold is exceeded.
      *
      * Because we don't want to save FITs files for frames that are rejected, we take frames with
-     * autosave OFF, then manually save each frame after it is analyzed and once we know we like it.
+     * autosave OFF, then have the server save each frame after it is analyzed and only if we like it.
+     * Measuring and saving are batched into one round-trip to the server.
+     *
+     * The stages of a frame are pipelined where they don't depend on each other:
+     *      - The exposure needs the camera free and the scope stopped at this frame's dither position
+     *      - Measuring needs the exposure downloaded; deciding to keep the frame needs the measurement
+     *      - Saving, and the dither move to the NEXT frame's position, both need only that decision - not
+     *          each other - so the dither slew is started asynchronously and the save runs while the scope moves
+     *      - Refining the exposure needs only the measurement
+     *      - The next exposure waits for the dither slew to finish, then starts at once
      * @param thisSet           Details of the frame set to be acquired
      * @param dither            Dithering controller (null if no dithering)
      */
     private void acquireFrames(FlatSet thisSet, DitherController dither) throws IOException, ADUExposureException, InterruptedException, TimeoutException {
 
-        // Set up filter if in use. We only need do this once, since all the frames
-        // we are about to take are identical.
-        if (this.dataModel.getUseFilterWheel()) {
-            this.server.selectFilter(thisSet.getFilterSpec().getSlotNumber());
-        }
-
-        // Get initial exposure estimate saved into preferences from last time we did this
-        double exposureSeconds = thisSet.getEstimatedExposure();
+        // Get initial exposure estimate from the frames we took with this filter and binning before
+        double exposureSeconds = this.initialExposure(thisSet);
+        //  Model of this set's exposure response, learned from every frame we measure
+        ExposureEstimator estimator = new ExposureEstimator(this.dataModel.getTargetADUs(),
+                this.dataModel.getAduTolerance());
+        //  With twilight sky as the light source, the brightness changes while we work, so we forecast it
+        BrightnessForecaster forecaster = this.dataModel.getLightSource().isSky()
+                ? new BrightnessForecaster(this.dataModel.getTargetADUs(),
+                        this.biasLevels.getOrDefault(thisSet.getBinning(), 0), this.skyTrendPerSecond)
+                : null;
 
-        //  We'll run a progress bar measuring the number of frames to collect, not their exposure, because
-        //  flat-frame exposures will likely be quite short and it's the total collection of frames that
-        //  has a meaningful elapsed time.
-        this.parent.startProgressBar(thisSet.getNumberOfFrames());
+        //  The user interface runs a progress bar (from the frame events we send) measuring the number of frames
+        //  to collect, not their exposure, because flat-frame exposures will likely be quite short and it's the
+        //  total collection of frames that has a meaningful elapsed time.
 
         // Loop until we have successfully saved the desired number of frames, or we fail because
         // of a number of exposure ADU out-of-spec failures in a row.
         int rejectedConsecutively = 0;
-        int frameNumberTrying = 1;
-        int lastDitheredFrameNumber = 0;
+        //  Number frames on from any already taken (in a resumed session), so file names don't collide
+        int frameNumberTrying = thisSet.getNumberDone() + 1;
+        int framesExposed = 0;
+        int framesDoneAtStart = thisSet.getNumberDone();
+        boolean ditherSlewPending = false;
+        long setStartNanos = System.nanoTime();
+        MasterFlatBuilder masterFlat = this.startMasterFlat(thisSet);
+
+        //  The first frame is taken at the dither starting point.  Later positions are moved to as each frame is kept.
+        this.ditherNextFrame(dither);
 
         while (thisSet.getNumberDone() < thisSet.getNumberOfFrames()) {
-            // Don't dither if we're trying the same frame again, only new frames
-            if (lastDitheredFrameNumber != frameNumberTrying) {
-                lastDitheredFrameNumber = frameNumberTrying;
-                this.ditherNextFrame(dither);
+            //  A frame may be exposed in a single blocking command, so check for Cancel here as well as while waiting
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Cancelled");
+            }
+            //  The camera is free, but the scope may still be moving to this frame's dither position
+            if (ditherSlewPending) {
+                long slewStartNanos = System.nanoTime();
+                this.awaitDitherSlew();
+                this.metrics.recordSince(SessionMetrics.STAGE_DITHER_WAIT, slewStartNanos);
+                ditherSlewPending = false;
             }
             this.console(String.format("Frame %d of %d: %.3f seconds", frameNumberTrying,
                     thisSet.getNumberOfFrames(), exposureSeconds), 2);
-            int frameAverageADUs = this.exposeFlatFrame(thisSet.getBinning(), exposureSeconds);
-            if (this.ADUsInRange(frameAverageADUs, this.dataModel.getTargetADUs(), this.dataModel.getAduTolerance())) {
-                this.parent.reportFrameADUs(frameAverageADUs, true);
+            this.listener.sessionEvent(SessionEvent.frameStarted(this.setIndex, thisSet, frameNumberTrying,
+                    exposureSeconds));
+            //  If more frames are needed, the move to the next dither position overlaps the save.  Measuring
+            //  locally, we don't know whether the frame will be kept until after it is saved, so the slew is
+            //  started whatever the outcome; a frame rejected there is simply retaken at the new position.
+            ImmutablePair<Double, Double> nextDitherPosition = this.nextDitherPosition(dither, thisSet);
+            boolean slewStartsBeforeMeasuring = (this.frameStatistics != null) && (nextDitherPosition != null);
+            long frameStartNanos = System.nanoTime();
+            double frameStartSeconds = frameStartNanos / 1.0e9;
+            String fileName = this.makeLocalFileName(exposureSeconds, frameNumberTrying, thisSet);
+            FrameAcquiredEvent frameEvent = new FrameAcquiredEvent();
+            frameEvent.begin();
+            ImmutablePair<Integer, Boolean> frameResult = this.exposeFlatFrame(thisSet.getBinning(), exposureSeconds,
+                    fileName, nextDitherPosition);
+            this.metrics.recordSince(SessionMetrics.STAGE_FRAME, frameStartNanos);
+            framesExposed++;
+            int frameAverageADUs = frameResult.left;
+            boolean frameSaved = frameResult.right;
+            frameEvent.end();
+            if (frameEvent.shouldCommit()) {
+                frameEvent.describe(thisSet, frameNumberTrying, exposureSeconds, frameAverageADUs, frameSaved);
+                frameEvent.commit();
+            }
+            if (frameSaved) {
+                this.metrics.count(SessionMetrics.COUNT_ACCEPTED, 1);
+                this.listener.sessionEvent(SessionEvent.frameMeasured(this.setIndex, frameAverageADUs, true));
                 thisSet.setNumberDone(1 + thisSet.getNumberDone());
+                long bookkeepingStartNanos = System.nanoTime();
+                this.journalFrame(thisSet, exposureSeconds, frameAverageADUs, fileName);
+                this.addToLibrary(thisSet, exposureSeconds, frameAverageADUs, fileName);
+                this.addToMasterFlat(masterFlat, fileName, frameAverageADUs);
                 thisSet.rememberSuccessfulExposure(exposureSeconds);
-                this.saveAcquiredFrame(exposureSeconds, frameNumberTrying, thisSet);
+                this.addToExposureHistory(thisSet, exposureSeconds, frameAverageADUs);
+                this.metrics.recordSince(SessionMetrics.STAGE_BOOKKEEPING, bookkeepingStartNanos);
                 rejectedConsecutively = 0;
                 frameNumberTrying++;
-                this.parent.updateProgressBar(frameNumberTrying);
+                if ((dither != null) && (thisSet.getNumberDone() < thisSet.getNumberOfFrames())) {
+                    //  Commit to the dither position we looked ahead at; the slew to it is already underway
+                    dither.calculateNextFrame();
+                    ditherSlewPending = (nextDitherPosition != null);
+                }
             } else{
-                this.parent.reportFrameADUs(frameAverageADUs, false);
+                this.metrics.count(SessionMetrics.COUNT_REJECTED, 1);
+                this.listener.sessionEvent(SessionEvent.frameMeasured(this.setIndex, frameAverageADUs, false));
+                ditherSlewPending = slewStartsBeforeMeasuring;
                 rejectedConsecutively += 1;
                 if (rejectedConsecutively > Common.ADU_FAILURE_RETRY_LIMIT) {
                     throw new ADUExposureException();
                 }
             }
-            exposureSeconds = this.refineExposure(exposureSeconds, frameAverageADUs, this.dataModel.getTargetADUs());
+            exposureSeconds = this.refineExposure(estimator, forecaster, frameStartSeconds,
+                    exposureSeconds, frameAverageADUs, frameSaved);
+        }
+        this.listener.sessionEvent(SessionEvent.setCompleted(this.setIndex, thisSet));
+        thisSet.saveRememberedExposure();
+        this.saveExposureHistory();
+        this.console(estimator.describe() + ".", 3);
+        if (forecaster != null) {
+            this.console(forecaster.describe() + ".", 3);
+            //  The sky's trend doesn't depend on the filter, so the next set can start forecasting at once
+            if (forecaster.hasFittedTrend()) {
+                this.skyTrendPerSecond = forecaster.getTrendPerSecond();
+            }
         }
-        this.parent.stopProgressBar();
+        this.finishMasterFlat(masterFlat);
+        this.framesMeasured += estimator.getFramesMeasured();
+        this.framesRejected += estimator.getFramesRejected();
+
+        double setSeconds = (System.nanoTime() - setStartNanos) / 1.0e9;
+        int framesKept = thisSet.getNumberDone() - framesDoneAtStart;
+        this.console(String.format("%d frames kept of %d exposed in %.1f seconds (%.1f frames per minute).",
+                framesKept, framesExposed, setSeconds, 60.0 * framesKept / setSeconds), 2);
+    }
 
+    /**
+     * Look ahead to where the scope should be dithered for the frame after the one about to be taken,
+     * so the slew there can be started as soon as this frame is kept.
+     * @param dither        Dither controller (null if no dithering)
+     * @param thisSet       Frame set being acquired
+     * @return (pair)       Alt/Az of next dither position, or null if there won't be a dither move
+     */
+    private ImmutablePair<Double, Double> nextDitherPosition(DitherController dither, FlatSet thisSet) {
+        if ((dither == null) || (thisSet.getNumberDone() + 1 >= thisSet.getNumberOfFrames())) {
+            return null;
+        }
+        ImmutableTriple<Boolean, Double, Double> ditherResponse = dither.peekNextFrame();
+        boolean moveScope = ditherResponse.left;
+        return moveScope ? ImmutablePair.of(ditherResponse.middle, ditherResponse.right) : null;
+    }
+
+    /**
+     * A dither slew was started asynchronously while the last frame was being saved.  Wait for it to finish
+     * before exposing the next frame, then turn tracking off again if wanted (slewing turns it on).
+     */
+    private void awaitDitherSlew() throws IOException, InterruptedException, TimeoutException {
+        double secondsWaited = 0.0;
+        while (!this.server.scopeSlewComplete()) {
+            if (secondsWaited > Common.SCOPE_SLEW_TIMEOUT_SECONDS) {
+                throw new TimeoutException("Dither slew timed out");
+            }
+            Thread.sleep(Math.round(1000.0 * Common.DITHER_SLEW_POLLING_SECONDS));
+            secondsWaited += Common.DITHER_SLEW_POLLING_SECONDS;
+        }
+        if (this.dataModel.getTrackingOff()) {
+            this.server.setScopeTracking(false);
+        }
     }
 
     /**
@@ -229,18 +411,13 @@ public class SessionThread implements Runnable {
     }
 
     /**
-     * The last acquired frame has been measured and found acceptable.  Tell the server to save it to disk.
-     * We'll either have it save to its defined "autosave directory", or we'll give it a path name
-     * if the server is local to this computer and that option has been selected
-     * @param exposureSeconds   Exposure to include in generated file name
+     * Where should acceptable frames be saved?  Either the server's defined "autosave directory"
+     * (signalled by null), or the local path if the server is local to this computer and that
+     * option has been selected
+     * @return (String)         Local folder to save in, or null to use the server's autosave folder
      */
-    private void saveAcquiredFrame(double exposureSeconds, int sequenceNumber, FlatSet thisSet) throws IOException {
-        String fileName = this.makeLocalFileName(exposureSeconds, sequenceNumber, thisSet);
-        if (this.dataModel.getUseTheSkyAutosave()) {
-            this.server.saveImageToAutoSave(fileName);
-        } else {
-            this.server.saveImageToLocalPath(this.dataModel.getLocalPath() + "/" + fileName);
-        }
+    private String saveFolder() {
+        return this.dataModel.getUseTheSkyAutosave() ? null : this.dataModel.getLocalPath();
     }
 
     /**
@@ -260,18 +437,38 @@ public class SessionThread implements Runnable {
     }
 
     /**
-     * Improve the estimated exposure for the next attempt.  We assume exposure-to-ADU response is linear, so
-     * the amount by which the ADU value missed the target is the amount to adjust the exposure to improve it.
-     * @param exposureSeconds       Exposure usd last time
+     * Improve the estimated exposure for the next attempt.  The frame just measured is added to the set's
+     * exposure model, which fits the camera's response (slope and bias offset) to all the frames so far and
+     * predicts the exposure that will hit the target.
+     *
+     * With twilight sky flats the light itself is changing, so an exposure that was right for the last frame
+     * is already wrong for the next one.  Once the brightness trend is known we use the forecaster instead,
+     * choosing the exposure for the sky as it will be at the middle of the next exposure.
+     * @param estimator             Exposure model for this frame set
+     * @param forecaster            Sky brightness forecaster (null if the light source is steady)
+     * @param frameStartSeconds     When the last frame's exposure was started
+     * @param exposureSeconds       Exposure used last time
      * @param frameAverageADUs      ADUs that resulted from that exposure
-     * @param targetADUs            Desired ADU level
+     * @param frameKept             Was the frame within tolerance and kept?
      * @return (double)             Improved exposure estimate
      */
-    private double refineExposure(double exposureSeconds, int frameAverageADUs, Integer targetADUs) {
-        double missFactor = ((double)frameAverageADUs) / ((double)targetADUs);
-        double newExposure = exposureSeconds / missFactor;
+    private double refineExposure(ExposureEstimator estimator, BrightnessForecaster forecaster,
+                                  double frameStartSeconds, double exposureSeconds, int frameAverageADUs,
+                                  boolean frameKept) {
+        estimator.recordFrame(exposureSeconds, frameAverageADUs, frameKept);
+        double newExposure = estimator.predictExposure();
+        if (forecaster != null) {
+            forecaster.recordFrame(frameStartSeconds, exposureSeconds, frameAverageADUs);
+            //  A saturated frame tells us nothing about the rate; let the estimator back off instead
+            if (forecaster.canForecast() && frameAverageADUs < Common.SATURATION_ADU_LIMIT) {
+                double forecast = forecaster.predictExposure(System.nanoTime() / 1.0e9, exposureSeconds);
+                forecast = Math.min(forecast, exposureSeconds * Common.EXPOSURE_MAXIMUM_STEP_FACTOR);
+                forecast = Math.max(forecast, exposureSeconds / Common.EXPOSURE_MAXIMUM_STEP_FACTOR);
+                newExposure = Math.max(forecast, Common.MINIMUM_EXPOSURE_SECONDS);
+            }
+        }
         if (Common.FEEDBACK_EXPOSURE_ADJUSTMENT) {
-            if (frameAverageADUs > targetADUs) {
+            if (newExposure < exposureSeconds) {
                 this.console(String.format("Reducing exposure to %f", newExposure), 4);
             } else {
                 this.console(String.format("Increasing exposure to %f", newExposure), 4);
@@ -282,60 +479,293 @@ public class SessionThread implements Runnable {
 
     /**
      * Expose a single flat frame with given binning and exposure.  (Filter has already been set.)
-     * Start the exposure asynchronously, then wait for it to complete.  This allows us to detect that
+     * Measure the frame's average ADUs and, if they are within the target range, save it.
+     *
+     * Normally we start the exposure asynchronously, then wait for it to complete.  This allows us to detect that
      * the thread has been interrupted via the Cancel button and send an Abort to the camera.
-     * Once the image has been acquired, ask TheSky to calculate the average ADUs and return that.
+     * Once the image has been acquired, one batched command has TheSky calculate the average ADUs and save the
+     * frame if it is in range.
+     *
+     * Very short exposures, where being unable to cancel doesn't matter, are instead done entirely in one
+     * batched command: expose, wait, measure, and conditionally save.
      * @param binning               Binning level for the frame
      * @param exposureSeconds       Exposure time for the frame
-     * @return (int)                The average ADUs of the acquired frame.
+     * @param fileName              File name to save the frame under if it is acceptable
+     * @param nextDitherPosition    Alt/Az to start a dither slew to if the frame is kept (or, measuring
+     *                              locally, once it is exposed), or null
+     * @return (pair)               The average ADUs of the acquired frame, and whether it was saved
      */
-    private int exposeFlatFrame(int binning, double exposureSeconds) throws InterruptedException, IOException, TimeoutException {
-        this.server.exposeFlatFrame(exposureSeconds, binning, true, false);
-        this.waitForExposureCompletion(exposureSeconds, binning);
-        return this.server.getLastImageADUs();
+    private ImmutablePair<Integer, Boolean> exposeFlatFrame(int binning, double exposureSeconds, String fileName,
+                                                           ImmutablePair<Double, Double> nextDitherPosition)
+            throws InterruptedException, IOException, TimeoutException {
+        ImmutablePair<Double, Double> aduRange = this.aduAcceptanceRange(this.dataModel.getTargetADUs(),
+                this.dataModel.getAduTolerance());
+        double lowADUs = aduRange.left;
+        double highADUs = aduRange.right;
+        double expectedSeconds = exposureSeconds + this.completionWaiter.getDownloadSeconds(binning);
+        if (this.frameStatistics != null) {
+            return this.exposeSaveAndMeasureLocally(binning, exposureSeconds, expectedSeconds, fileName,
+                    nextDitherPosition, lowADUs, highADUs);
+        }
+        if (expectedSeconds <= Common.FUSED_FRAME_MAXIMUM_SECONDS) {
+            return this.server.exposeMeasureAndSaveIfInRange(exposureSeconds, binning,
+                    this.dataModel.getAduMeasurement(), lowADUs, highADUs, fileName, this.saveFolder(), nextDitherPosition);
+        } else {
+            this.server.exposeFlatFrame(exposureSeconds, binning, true, false);
+            this.waitForExposureCompletion(exposureSeconds, binning);
+            long saveStartNanos = System.nanoTime();
+            ImmutablePair<Integer, Boolean> result = this.server.measureAndSaveIfInRange(
+                    this.dataModel.getAduMeasurement(), lowADUs, highADUs, fileName, this.saveFolder(),
+                    nextDitherPosition);
+            this.metrics.recordSince(SessionMetrics.STAGE_SAVE, saveStartNanos);
+            return result;
+        }
     }
 
     /**
-     * Wait for the camera exposure, which is running asynchronously, to complete.  We'll sleep for
-     * the exposure time plus the measured download time, then start polling the camera at brief
-     * intervals until it reports done.  Time out after a long wait.
-     * @param exposureSeconds       How long was the actual exposure
-     * @param binning               Binning in use (to look up download time)
+     * Frames are being saved to a folder on this computer, so instead of having the server measure each frame
+     * and save only those in range, save every frame and measure it here from the file.  This is faster than
+     * TheSkyX's averagePixelValue() on a large sensor, and the clipped mean we use ignores hot pixels.
+     * Frames that turn out to be out of range are deleted.
+     *
+     * Any dither slew is started as soon as the exposure is complete, so it overlaps both the save and the
+     * measurement.  Whether the frame will be kept isn't known yet, but dithering after a rejected frame
+     * does no harm.
+     * @param binning               Binning level for the frame
+     * @param exposureSeconds       Exposure time for the frame
+     * @param expectedSeconds       Exposure plus download time
+     * @param fileName              File name to save the frame under
+     * @param nextDitherPosition    Alt/Az to start a dither slew to once the frame is exposed, or null
+     * @param lowADUs               Lowest acceptable ADU level
+     * @param highADUs              Highest acceptable ADU level
+     * @return (pair)               The average ADUs of the acquired frame, and whether it was kept
      */
-    private void waitForExposureCompletion(double exposureSeconds, int binning) throws InterruptedException, IOException, TimeoutException {
+    private ImmutablePair<Integer, Boolean> exposeSaveAndMeasureLocally(int binning, double exposureSeconds,
+                                                                       double expectedSeconds, String fileName,
+                                                                       ImmutablePair<Double, Double> nextDitherPosition,
+                                                                       double lowADUs, double highADUs)
+            throws InterruptedException, IOException, TimeoutException {
+        String folder = this.saveFolder();
+        if (expectedSeconds <= Common.FUSED_FRAME_MAXIMUM_SECONDS) {
+            this.server.exposeAndSaveToFolder(exposureSeconds, binning, fileName, folder, nextDitherPosition);
+        } else {
+            this.server.exposeFlatFrame(exposureSeconds, binning, true, false);
+            this.waitForExposureCompletion(exposureSeconds, binning);
+            if (nextDitherPosition != null) {
+                this.server.slewToAltAz(nextDitherPosition.left, nextDitherPosition.right, true);
+            }
+            long saveStartNanos = System.nanoTime();
+            this.server.saveImageToLocalPath(folder + "/" + fileName);
+            this.metrics.recordSince(SessionMetrics.STAGE_SAVE, saveStartNanos);
+        }
 
-        //  Wait as long as it should take
-        double downloadTime = this.downloadTimes.get(binning);
-        double totalWaitSeconds = downloadTime + exposureSeconds;
-        long waitMilliseconds = Math.round(totalWaitSeconds * 1000.0 );
-        if (waitMilliseconds > 0) {
-            Thread.sleep(waitMilliseconds);
+        Path savedFile = Paths.get(folder, fileName);
+        int averageADUs;
+        try {
+            long measureStartNanos = System.nanoTime();
+            averageADUs = (int) Math.round(this.measureSavedFrame(savedFile, lowADUs, highADUs).getADUs());
+            this.metrics.recordSince(SessionMetrics.STAGE_LOCAL_MEASURE, measureStartNanos);
+        } catch (IOException e) {
+            this.console("Unable to measure saved frame, measuring on the server from now on: "
+                    + e.getMessage(), 2);
+            this.frameStatistics = null;
+            averageADUs = this.server.getLastImageADUs();
         }
 
-        double timeWaited = 0.0;
-        //  Now poll the camera until complete or timeout
-        while (!this.server.exposureIsComplete()) {
-            // Exposure is not finished.  Have we waited long enough?
-            if (timeWaited > Common.FRAME_COMPLETION_TIMEOUT_SECONDS) {
-                throw new TimeoutException("Exposure timed out");
-            } else {
-                Thread.sleep(Math.round(1000.0 * Common.FRAME_COMPLETION_POLL_INTERVAL_SECONDS));
-                timeWaited += Common.FRAME_COMPLETION_POLL_INTERVAL_SECONDS;
+        boolean inRange = (averageADUs >= lowADUs) && (averageADUs <= highADUs);
+        if (!inRange) {
+            try {
+                Files.deleteIfExists(savedFile);
+            } catch (IOException e) {
+                this.console("Unable to delete rejected frame " + savedFile + ": " + e.getMessage(), 2);
+            }
+        }
+        return ImmutablePair.of(averageADUs, inRange);
+    }
+
+    /**
+     * Measure a saved frame's ADU level.  If a sampling mode is selected we first estimate the level from a
+     * sample; only if its confidence interval straddles a limit of the acceptable range, so the estimate can't
+     * decide whether to keep the frame, do we measure every pixel.
+     * @param savedFile         Saved frame
+     * @param lowADUs           Lowest acceptable ADU level
+     * @param highADUs          Highest acceptable ADU level
+     * @return (ADUEstimate)    Measured level, with its error bound
+     * @throws IOException      Unable to read the frame
+     */
+    private ADUEstimate measureSavedFrame(Path savedFile, double lowADUs, double highADUs) throws IOException {
+        ADUMeasurementMode mode = this.dataModel.getAduMeasurement();
+        if (mode.isSampled()) {
+            ADUEstimate estimate = this.frameStatistics.sample(savedFile, mode);
+            if (Common.FEEDBACK_FRAME_STATISTICS) {
+                this.console("Sampled: " + estimate.describe(), 4);
+            }
+            if (estimate.isCertainlyWithin(lowADUs, highADUs) || estimate.isCertainlyOutside(lowADUs, highADUs)) {
+                return estimate;
+            }
+        }
+        FitsStatistics.ImageStats stats = this.frameStatistics.measure(savedFile);
+        if (Common.FEEDBACK_FRAME_STATISTICS) {
+            this.console(stats.describe(), 4);
+        }
+        return new ADUEstimate(stats.getClippedMean(), 0.0, stats.getPixels());
+    }
+
+    /**
+     * Decide whether we can measure frames ourselves: they must be saved to a folder that exists on this
+     * computer (and the ADU simulator, which doesn't look at the images, must be off)
+     * @return (FitsStatistics)     Frame measuring engine, or null to have the server measure frames
+     */
+    private FitsStatistics setUpLocalMeasurement() {
+        String folder = this.saveFolder();
+        if (!Common.MEASURE_SAVED_FRAMES_LOCALLY || Common.SIMULATE_ADU_MEASUREMENT
+                || (folder == null) || !Files.isDirectory(Paths.get(folder))) {
+            return null;
+        }
+        this.console("Measuring saved frames on this computer.", 2);
+        return new FitsStatistics(Common.SATURATION_ADU_LIMIT, Common.FRAME_CLIP_SIGMA,
+                Common.FRAME_CLIP_ITERATIONS);
+    }
+
+    /**
+     * Decide whether we can build master flats: one must be wanted, and the frames must be saved to a folder
+     * on this computer.  The building is done on a worker thread of its own, so the session doesn't wait for it;
+     * one thread, so a set's frames are added in order and its master is finished after the last of them.
+     * @return (ExecutorService)    Master flat worker, or null if we aren't making master flats
+     */
+    private ExecutorService setUpMasterFlats() {
+        if (this.dataModel.getMasterFlatCombine() == MasterFlatCombine.NONE) {
+            return null;
+        }
+        String folder = this.saveFolder();
+        if ((folder == null) || !Files.isDirectory(Paths.get(folder))) {
+            this.console("Master flats need frames saved to a folder on this computer; not making them.", 2);
+            return null;
+        }
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Master flat builder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start the master flat for a set, if we are making them
+     * @param thisSet                   Set about to be acquired
+     * @return (MasterFlatBuilder)      Master flat builder, or null
+     */
+    private MasterFlatBuilder startMasterFlat(FlatSet thisSet) {
+        if (this.masterFlatWorker == null) {
+            return null;
+        }
+        if (thisSet.getNumberDone() > 0) {
+            this.console(String.format("The master flat will include only the %d frames still to be taken.",
+                    thisSet.getNumberOfFrames() - thisSet.getNumberDone()), 2);
+        }
+        //  Named for the session's start, so earlier masters (including those of a session being resumed)
+        //  are never overwritten
+        String sessionStart = LocalDateTime.ofInstant(Instant.ofEpochMilli(this.sessionId), ZoneId.systemDefault())
+                .format(MASTER_FLAT_TIME_FORMAT);
+        String masterName = String.format("Master-Flat-%s-%dx%d-%s.fit",
+                thisSet.getFilterSpec().getName(), thisSet.getBinning(), thisSet.getBinning(), sessionStart);
+        this.unfinishedMasterFlat = new MasterFlatBuilder(thisSet, Paths.get(this.saveFolder(), masterName),
+                this.dataModel.getMasterFlatCombine());
+        return this.unfinishedMasterFlat;
+    }
+
+    /**
+     * Queue a kept frame to be added to its set's master flat
+     * @param masterFlat            Master flat builder (null if not making master flats)
+     * @param fileName              Frame's file name in the save folder
+     * @param frameAverageADUs      Frame's measured ADU level
+     */
+    private void addToMasterFlat(MasterFlatBuilder masterFlat, String fileName, int frameAverageADUs) {
+        if (masterFlat == null) {
+            return;
+        }
+        Path frameFile = Paths.get(this.saveFolder(), fileName);
+        this.masterFlatWorker.execute(() -> {
+            try {
+                masterFlat.addFrame(frameFile, frameAverageADUs);
+            } catch (IOException e) {
+                this.console("Unable to add frame to master flat: " + e.getMessage(), 2);
+            }
+        });
+    }
+
+    /**
+     * The set is complete: queue its master flat to be written once its frames have been added
+     * @param masterFlat            Master flat builder (null if not making master flats)
+     */
+    private void finishMasterFlat(MasterFlatBuilder masterFlat) {
+        if (masterFlat == null) {
+            return;
+        }
+        this.unfinishedMasterFlat = null;
+        this.masterFlatWorker.execute(() -> {
+            long startNanos = System.nanoTime();
+            try {
+                Path masterFile = masterFlat.finish();
+                this.console(String.format("Master flat %s written: %s (%.2f seconds).", masterFile.getFileName(),
+                        masterFlat.describe(), (System.nanoTime() - startNanos) / 1.0e9), 2);
+            } catch (IOException e) {
+                this.console("Unable to write master flat: " + e.getMessage(), 2);
+            }
+        });
+    }
+
+    /**
+     * At the end of the session, let the master flat worker finish what it has been given.  The master of a
+     * set that wasn't completed (the session was cancelled or failed) isn't written: it is discarded, so the
+     * worker skips the frames still queued for it instead of reading them.
+     */
+    private void awaitMasterFlats() {
+        if (this.masterFlatWorker == null) {
+            return;
+        }
+        if (this.unfinishedMasterFlat != null) {
+            this.unfinishedMasterFlat.discard();
+            this.masterFlatWorker.execute(this.unfinishedMasterFlat::release);
+            this.unfinishedMasterFlat = null;
+            this.console("The unfinished set's master flat was discarded.", 2);
+        }
+        this.masterFlatWorker.shutdown();
+        try {
+            if (!this.masterFlatWorker.awaitTermination(Common.MASTER_FLAT_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                this.console("Gave up waiting for master flats to be finished.", 1);
             }
+        } catch (InterruptedException e) {
+            this.masterFlatWorker.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for the camera exposure, which is running asynchronously, to complete.  The completion waiter
+     * sleeps until shortly before the frame should be ready, then polls the camera rapidly around that
+     * moment, backing off if it is late.  Time out after a long wait.
+     * @param exposureSeconds       How long was the actual exposure
+     * @param binning               Binning in use (to look up download time)
+     */
+    private void waitForExposureCompletion(double exposureSeconds, int binning) throws InterruptedException, IOException, TimeoutException {
+        long waitStartNanos = System.nanoTime();
+        ExposureCompletionWaiter.FrameStats waitStats = this.completionWaiter.waitForCompletion(exposureSeconds, binning);
+        this.metrics.recordSince(SessionMetrics.STAGE_EXPOSURE_WAIT, waitStartNanos);
+        this.metrics.record(SessionMetrics.STAGE_POLLING_SLACK, Math.round(waitStats.getSlackSeconds() * 1.0e9));
+        if (Common.FEEDBACK_COMPLETION_WAIT) {
+            this.console(waitStats.describe(), 4);
         }
     }
 
     /**
-     * Determine if the given ADU value is close enough to the target, within the given tolerance
-     * @param frameAverageADUs      ADU value to test
+     * Calculate the range of ADU values close enough to the target, within the given tolerance.
+     * The server uses this range to decide whether to save a frame.
      * @param targetADUs            Target ADU value
      * @param aduTolerance          Tolerance, as a percentage, as a value between 0 and 1
-     * @return (boolean)            Value is within acceptable range
+     * @return (pair)               Lowest and highest acceptable ADU values
      */
-    private boolean ADUsInRange(int frameAverageADUs, int targetADUs, double aduTolerance) {
-        double difference = Math.abs(frameAverageADUs - targetADUs);
-        double differenceRatio = difference / targetADUs;
-        return differenceRatio <= aduTolerance;
+    private ImmutablePair<Double, Double> aduAcceptanceRange(int targetADUs, double aduTolerance) {
+        double allowedDifference = targetADUs * aduTolerance;
+        return ImmutablePair.of(targetADUs - allowedDifference, targetADUs + allowedDifference);
     }
 
     /**
@@ -394,6 +824,8 @@ public class SessionThread implements Runnable {
      * Measure the download time for the given binning value by taking, and timing, a
      * zero-second bias frame.  Since bias frames are zero length, the time elapsed will be
      * just the download time for an image binned to that size.
+     * For twilight sky flats we also measure the bias frame, since the forecaster needs to know how many of the
+     * measured ADUs are camera offset rather than light.
      * @param binning       Binning value to take and time
      * @return (Double)     Elapsed time in seconds
      */
@@ -402,8 +834,13 @@ public class SessionThread implements Runnable {
         this.exposeBiasFrame(binning, false, false);
         LocalDateTime timeAfter = LocalDateTime.now();
         Duration timeTaken = Duration.between(timeAfter, timeBefore).abs();
-        double downloadSeconds = timeTaken.getSeconds();
+        double downloadSeconds = timeTaken.toMillis() / 1000.0;
         this.console(String.format("Binned %d x %d: %.02f seconds.", binning, binning, downloadSeconds), 2);
+        if (this.dataModel.getLightSource().isSky()) {
+            int biasADUs = this.server.getLastImageADUs();
+            this.biasLevels.put(binning, biasADUs);
+            this.console(String.format("Binned %d x %d: bias level %d ADUs.", binning, binning, biasADUs), 2);
+        }
         return downloadSeconds;
     }
 
@@ -440,12 +877,225 @@ public class SessionThread implements Runnable {
     }
 
     /**
-     * Send the given message info to the Session Window for display on the console frame there.
+     * Open the session journal, so every accepted frame is recorded and the session can be resumed if it
+     * fails.  If the journal can't be written we carry on without it - the frames matter more.
+     */
+    private void openJournal() {
+        try {
+            this.journal.open(this.flatsToAcquire);
+            this.journalOpen = true;
+            if (this.journal.isResuming()) {
+                this.console(String.format("Resuming interrupted session: %d frames already acquired.",
+                        this.journal.getFramesResumed()), 1);
+            }
+        } catch (IOException e) {
+            this.console("Unable to open session journal, session can't be resumed: " + e.getMessage(), 2);
+        }
+    }
+
+    /**
+     * Record an accepted frame in the session journal
+     * @param thisSet               Set the frame belongs to
+     * @param exposureSeconds       Exposure of the frame
+     * @param frameAverageADUs      Measured ADUs
+     * @param fileName              Name the frame was saved under (in the local or the autosave folder)
+     */
+    private void journalFrame(FlatSet thisSet, double exposureSeconds, int frameAverageADUs, String fileName) {
+        if (this.journalOpen) {
+            try {
+                this.journal.recordFrame(thisSet, exposureSeconds, frameAverageADUs, fileName);
+            } catch (IOException e) {
+                this.console("Unable to write session journal, session can't be resumed: " + e.getMessage(), 2);
+                this.journal.close();
+                this.journalOpen = false;
+            }
+        }
+    }
+
+    /**
+     * Open the flat library, which indexes every frame we capture.  As with the journal, if it can't be
+     * opened or written we carry on without it.
+     * @return (FlatLibrary)        Library, or null if it can't be used
+     */
+    private FlatLibrary openLibrary() {
+        FlatLibrary library = new FlatLibrary(Common.applicationDataPath(Common.FLAT_LIBRARY_FILE));
+        try {
+            library.open();
+            return library;
+        } catch (IOException e) {
+            this.console("Unable to open flat library, frames won't be indexed: " + e.getMessage(), 2);
+            return null;
+        }
+    }
+
+    /**
+     * Load the history of exposures accepted in earlier sessions.  If it can't be read we carry on
+     * without it, starting sets from the exposure saved in the preferences.
+     * @return (ExposureHistory)    History, or null if it can't be used
+     */
+    private ExposureHistory openExposureHistory() {
+        ExposureHistory history = new ExposureHistory(Common.applicationDataPath(Common.EXPOSURE_HISTORY_FILE),
+                Common.EXPOSURE_HISTORY_SAMPLES);
+        try {
+            history.load();
+            return history;
+        } catch (IOException e) {
+            this.console("Unable to read exposure history, it won't be used: " + e.getMessage(), 2);
+            return null;
+        }
+    }
+
+    /**
+     * For twilight sky flats, get the observer's location from the server, so the exposure history can be
+     * matched on the sun's altitude.  If the server can't give it, sky sets don't use the history.
+     * @return (pair)           Latitude and east longitude, degrees; null if not needed or not available
+     */
+    private ImmutablePair<Double, Double> findObserverLocation() {
+        if (this.exposureHistory == null || !this.dataModel.getLightSource().isSky()) {
+            return null;
+        }
+        try {
+            return this.server.getObserverLocation();
+        } catch (IOException | NumberFormatException e) {
+            this.console("Unable to get observer location, exposure history won't be used: " + e.getMessage(), 2);
+            return null;
+        }
+    }
+
+    /**
+     * The sun's altitude now, at the observer's location
+     * @return (double)         Altitude in degrees; NaN if the location isn't known
+     */
+    private double sunAltitudeNow() {
+        return (this.observerLocation == null) ? Double.NaN
+                : SunPosition.altitude(this.observerLocation.left, this.observerLocation.right,
+                        System.currentTimeMillis());
+    }
+
+    /**
+     * Choose the first exposure for a frame set.  If enough frames of this filter and binning have been
+     * accepted before, estimate it from them; otherwise use the last exposure saved in the preferences.
+     * @param thisSet           Frame set about to be acquired
+     * @return (double)         Exposure, seconds
+     */
+    private double initialExposure(FlatSet thisSet) {
+        boolean sky = this.dataModel.getLightSource().isSky();
+        if (this.exposureHistory != null && (!sky || this.observerLocation != null)) {
+            //  Twilight brightness depends on the sun's altitude, so only use frames taken with the sun where it is now
+            ExposureHistory.Estimate estimate = this.exposureHistory.estimateExposure(
+                    thisSet.getFilterSpec().getSlotNumber(), thisSet.getBinning(), this.dataModel.getTargetADUs(),
+                    this.biasLevels.getOrDefault(thisSet.getBinning(), 0), sky ? this.sunAltitudeNow() : null,
+                    Common.EXPOSURE_HISTORY_SUN_ALTITUDE_WINDOW, Common.EXPOSURE_HISTORY_MINIMUM_SAMPLES);
+            if (estimate != null) {
+                this.console("Initial exposure " + estimate.describe() + ".", 3);
+                return estimate.getExposureSeconds();
+            }
+        }
+        return thisSet.getEstimatedExposure();
+    }
+
+    /**
+     * Add an accepted frame to the exposure history
+     * @param thisSet               Set the frame belongs to
+     * @param exposureSeconds       Exposure of the frame
+     * @param frameAverageADUs      Measured ADUs
+     */
+    private void addToExposureHistory(FlatSet thisSet, double exposureSeconds, int frameAverageADUs) {
+        if (this.exposureHistory != null) {
+            this.exposureHistory.addSample(thisSet.getFilterSpec().getSlotNumber(), thisSet.getBinning(),
+                    exposureSeconds, frameAverageADUs, this.sunAltitudeNow());
+        }
+    }
+
+    /**
+     * A frame set is finished; save the exposure history so its frames are used next time
+     */
+    private void saveExposureHistory() {
+        if (this.exposureHistory != null) {
+            try {
+                this.exposureHistory.save();
+            } catch (IOException e) {
+                this.console("Unable to save exposure history, it won't be used: " + e.getMessage(), 2);
+                this.exposureHistory = null;
+            }
+        }
+    }
+
+    /**
+     * Add an accepted frame to the flat library
+     * @param thisSet               Set the frame belongs to
+     * @param exposureSeconds       Exposure of the frame
+     * @param frameAverageADUs      Measured ADUs
+     * @param fileName              Name the frame was saved under (in the local or the autosave folder)
+     */
+    private void addToLibrary(FlatSet thisSet, double exposureSeconds, int frameAverageADUs, String fileName) {
+        if (this.library != null) {
+            try {
+                this.library.addFrame(this.sessionId, thisSet, exposureSeconds, frameAverageADUs,
+                        this.saveFolder(), fileName);
+            } catch (IOException e) {
+                this.console("Unable to write flat library, frames won't be indexed: " + e.getMessage(), 2);
+                this.library.close();
+                this.library = null;
+            }
+        }
+    }
+
+    /**
+     * All the frames have been acquired.  Mark the journal finished so this session won't be resumed.
+     */
+    private void finishJournal() {
+        if (this.journalOpen) {
+            try {
+                this.journal.finish();
+            } catch (IOException e) {
+                this.console("Unable to finish session journal: " + e.getMessage(), 2);
+                this.journal.close();
+            }
+            this.journalOpen = false;
+        }
+    }
+
+    /**
+     * Report, on the console, statistics gathered during the session, and export the session metrics
+     * (so sessions can be compared later)
+     */
+    private void reportStatistics() {
+        if (this.framesMeasured > 0) {
+            this.console(String.format("Frames: %d measured, %d rejected (%.0f%%).", this.framesMeasured,
+                    this.framesRejected, 100.0 * this.framesRejected / this.framesMeasured), 2);
+        }
+        if (this.completionWaiter != null) {
+            this.console("Exposure completion: " + this.completionWaiter.describeStatistics() + ".", 2);
+        }
+        this.console("Session metrics:", 2);
+        for (String line : this.metrics.describe()) {
+            this.console(line, 3);
+        }
+        try {
+            this.metrics.export(Common.applicationDataPath(Common.SESSION_METRICS_FILE));
+        } catch (IOException e) {
+            this.console("Unable to export session metrics: " + e.getMessage(), 2);
+        }
+    }
+
+    /**
+     * Close our connection to the server, reporting how the network behaved during the session
+     */
+    private void closeServer() {
+        if (this.server != null) {
+            this.console("Server connection: " + this.server.describeConnectionMetrics() + ".", 2);
+            this.server.close();
+        }
+    }
+
+    /**
+     * Send the given message info to the listener (the Session Window) for display on the console there.
      * Note: a time stamp is automatically added to the displayed line.
      * @param messageText           Text to display
      * @param indentationLevel      Indentation level.  1 = leftmost, 2+ are indented
      */
     private void console(String messageText, int indentationLevel) {
-        this.parent.console(messageText, indentationLevel);
+        this.listener.sessionEvent(SessionEvent.message(messageText, indentationLevel));
     }
 }
@@ -0,0 +1,60 @@
+/**
+ * How a real camera's flat frames respond to exposure time, for simulation without a live light source.
+ * I empirically measured a bunch of cases to get some regression parameters (average ADUs as a linear
+ * function of exposure seconds), which are used both by the in-client ADU simulation and by the stand-in server.
+ */
+public class SimulatedFlatResponse {
+
+    //  Brightest value a 16-bit camera can report
+    public static final int MAXIMUM_ADUS = 65535;
+
+    /**
+     * Expected average ADUs for a flat frame, from the measured regressions.  We only measured certain
+     * filter and binning combinations; the others use the luminance figures.
+     * @param filterSlot        1-based filter wheel slot
+     * @param binning           Binning value
+     * @param exposureSeconds   Exposure time
+     * @return (double)         Expected average ADUs, before noise and saturation
+     */
+    public static double expectedADUs(int filterSlot, int binning, double exposureSeconds) {
+        double slope;
+        double intercept;
+        if ((binning == 1) && (filterSlot == 4)) {
+            // Luminance, binned 1x1
+            slope = 721.8;
+            intercept = 19817.0;
+        } else if ((binning == 2) && (filterSlot == 1)) {
+            // Red filter, binned 2x2
+            slope = 7336.7;
+            intercept = -100.48;
+        } else if ((binning == 2) && (filterSlot == 2)) {
+            // Green filter, binned 2x2
+            slope = 11678.0;
+            intercept = -293.09;
+        } else if ((binning == 2) && (filterSlot == 3)) {
+            // Blue filter, binned 2x2
+            slope = 6820.4;
+            intercept = 1858.3;
+        } else if ((binning == 1) && (filterSlot == 5)) {
+            // H-alpha filter, binned 1x1
+            slope = 67.247;
+            intercept = 2632.7;
+        } else {
+            slope = 721.8;
+            intercept = 19817.0;
+        }
+        return slope * exposureSeconds + intercept;
+    }
+
+    /**
+     * Simulated average ADUs as a camera would measure them: the expected value with a small percentage
+     * of noise so it has some variability for realism, clipped to the camera's range.
+     * @param expectedADUs      Noise-free ADU level
+     * @return (int)            Simulated measurement
+     */
+    public static int measuredADUs(double expectedADUs) {
+        double randFactorZeroCentered = Common.SIMULATION_NOISE_FRACTION * (Math.random() - 0.5);
+        double noisyResult = expectedADUs + randFactorZeroCentered * expectedADUs;
+        return Math.max(0, Math.min((int) Math.round(noisyResult), MAXIMUM_ADUS));
+    }
+}
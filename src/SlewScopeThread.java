@@ -43,6 +43,8 @@ public class SlewScopeThread implements  Runnable {
     public void run() {
 
         String finishedMessage = null;
+        ScopeSlewEvent slewEvent = new ScopeSlewEvent();
+        slewEvent.begin();
         try {
             this.server = new TheSkyXServer(this.serverAddress, this.portNumber);
             //  Slewing turns tracking on.  We'll remember the state to restore later.
@@ -70,6 +72,16 @@ public class SlewScopeThread implements  Runnable {
         } catch (TimeoutException e) {
             finishedMessage = "Timed Out";
         }
+        slewEvent.end();
+        if (slewEvent.shouldCommit()) {
+            slewEvent.targetAltitude = this.targetAltitude;
+            slewEvent.targetAzimuth = this.targetAzimuth;
+            slewEvent.outcome = (finishedMessage == null) ? "Completed" : finishedMessage;
+            slewEvent.commit();
+        }
+        if (this.server != null) {
+            this.server.close();
+        }
 
 
         parent.slewThreadFinished(finishedMessage);
@@ -0,0 +1,39 @@
+/**
+ * Altitude of the sun for an observer, from the low-precision formulae of the Astronomical Almanac (good to
+ * about 0.01 degree between 1950 and 2050, far better than twilight flats need).  Twilight sky brightness
+ * depends on how far the sun is below the horizon, not on the clock time, which drifts through the year.
+ */
+public class SunPosition {
+    private static final double MILLISECONDS_PER_DAY = 86400000.0;
+    //  Julian date of the Unix epoch, and of the J2000.0 epoch the formulae are based on
+    private static final double UNIX_EPOCH_JULIAN_DATE = 2440587.5;
+    private static final double J2000_JULIAN_DATE = 2451545.0;
+
+    /**
+     * Altitude of the sun's centre above the horizon, ignoring refraction
+     * @param latitude          Observer's latitude, degrees, north positive
+     * @param eastLongitude     Observer's longitude, degrees, east positive
+     * @param epochMillis       Time (epoch milliseconds)
+     * @return (double)         Altitude in degrees, negative when the sun is below the horizon
+     */
+    public static double altitude(double latitude, double eastLongitude, long epochMillis) {
+        double days = epochMillis / MILLISECONDS_PER_DAY + UNIX_EPOCH_JULIAN_DATE - J2000_JULIAN_DATE;
+
+        //  Sun's ecliptic longitude, then its right ascension and declination
+        double meanLongitude = 280.460 + 0.9856474 * days;
+        double meanAnomaly = Math.toRadians(357.528 + 0.9856003 * days);
+        double eclipticLongitude = Math.toRadians(meanLongitude + 1.915 * Math.sin(meanAnomaly)
+                + 0.020 * Math.sin(2.0 * meanAnomaly));
+        double obliquity = Math.toRadians(23.439 - 0.0000004 * days);
+        double rightAscension = Math.atan2(Math.cos(obliquity) * Math.sin(eclipticLongitude),
+                Math.cos(eclipticLongitude));
+        double declination = Math.asin(Math.sin(obliquity) * Math.sin(eclipticLongitude));
+
+        //  Local sidereal time, then the sun's hour angle and altitude
+        double localSiderealTime = Math.toRadians(280.46061837 + 360.98564736629 * days + eastLongitude);
+        double hourAngle = localSiderealTime - rightAscension;
+        double latitudeRadians = Math.toRadians(latitude);
+        return Math.toDegrees(Math.asin(Math.sin(latitudeRadians) * Math.sin(declination)
+                + Math.cos(latitudeRadians) * Math.cos(declination) * Math.cos(hourAngle)));
+    }
+}
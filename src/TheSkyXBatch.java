@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A batch of TheSkyX operations to be sent to the server as a single JavaScript packet, so that
+ * several steps that would otherwise be separate network round-trips cost only one.
+ *
+ * Each step is some JavaScript statements followed by an expression giving the step's result.  The
+ * result is stored in a JavaScript variable named for the step (see variable()), so later steps can
+ * use the results of earlier ones - for example, only saving an image if the measured ADUs were in range.
+ * The results of all the steps come back together, separated by "|", and are parsed into a Result.
+ */
+public class TheSkyXBatch {
+    private static final String RESULT_SEPARATOR = "|";
+
+    private final ArrayList<String> stepNames = new ArrayList<>();
+    private final StringBuilder script = new StringBuilder();
+
+    /**
+     * Get the name of the JavaScript variable holding the result of the named step
+     * @param stepName      Name of step
+     * @return (String)     JavaScript variable name
+     */
+    public static String variable(String stepName) {
+        return "batch_" + stepName;
+    }
+
+    /**
+     * Add a step to the batch
+     * @param stepName          Name of step, used to retrieve its result.  Must be a valid JavaScript identifier.
+     * @param statements        JavaScript statements to execute for this step (may be empty)
+     * @param resultExpression  JavaScript expression giving the step's result
+     * @return (TheSkyXBatch)   This batch, so calls can be chained
+     */
+    public TheSkyXBatch addStep(String stepName, String statements, String resultExpression) {
+        assert !this.stepNames.contains(stepName);
+        this.stepNames.add(stepName);
+        this.script.append(statements)
+                .append("var ").append(variable(stepName)).append("=").append(resultExpression).append(";");
+        return this;
+    }
+
+    /**
+     * How many steps in this batch?
+     * @return (int)
+     */
+    public int size() {
+        return this.stepNames.size();
+    }
+
+    /**
+     * Build the JavaScript for the complete batch: all the steps, then an output line combining the results
+     * @return (String)     JavaScript to be wrapped in a command packet
+     */
+    public String toScript() {
+        StringBuilder result = new StringBuilder(this.script);
+        result.append("var Out=\"\"");
+        for (int stepIndex = 0; stepIndex < this.stepNames.size(); stepIndex++) {
+            if (stepIndex > 0) {
+                result.append("+\"").append(RESULT_SEPARATOR).append("\"");
+            }
+            result.append("+").append(variable(this.stepNames.get(stepIndex)));
+        }
+        result.append(";Out+=\"\\n\";");
+        return result.toString();
+    }
+
+    /**
+     * Parse the server's response to this batch into a result object.  TheSkyX appends its own
+     * "|No error. Error = 0." to the response, so we take just as many fields as we have steps.
+     * @param response          Response line from the server
+     * @return (Result)         Parsed results of the steps
+     * @throws IOException      Response doesn't contain a result for every step
+     */
+    public Result parseResponse(String response) throws IOException {
+        String[] parts = response.split("\\" + RESULT_SEPARATOR, -1);
+        if (parts.length < this.stepNames.size()) {
+            throw new IOException("Invalid batch response from server: " + response);
+        }
+        HashMap<String, String> values = new HashMap<>(this.stepNames.size());
+        for (int stepIndex = 0; stepIndex < this.stepNames.size(); stepIndex++) {
+            values.put(this.stepNames.get(stepIndex), parts[stepIndex].trim());
+        }
+        return new Result(values);
+    }
+
+    /**
+     * The results of the steps in a batch that has been run, retrievable by step name
+     */
+    public static class Result {
+        private final HashMap<String, String> values;
+
+        Result(HashMap<String, String> values) {
+            this.values = values;
+        }
+
+        /**
+         * Get a step's result as the raw string returned
+         * @param stepName      Name of step
+         * @return (String)     Result of that step
+         */
+        public String getString(String stepName) {
+            String value = this.values.get(stepName);
+            assert value != null;
+            return value;
+        }
+
+        /**
+         * Get a step's result as a number
+         * @param stepName      Name of step
+         * @return (double)     Result of that step
+         * @throws IOException  Result wasn't a number
+         */
+        public double getDouble(String stepName) throws IOException {
+            String value = this.getString(stepName);
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid numeric result for " + stepName + ": " + value);
+            }
+        }
+
+        /**
+         * Get a step's result as a boolean.  JavaScript true, or a numeric 1, are both true.
+         * @param stepName      Name of step
+         * @return (boolean)    Result of that step
+         */
+        public boolean getBoolean(String stepName) {
+            String value = this.getString(stepName);
+            return value.equals("true") || value.equals("1");
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A long-lived socket connection to TheSkyX's TCP server.  Opening a new socket for every command
+ * means every command pays for a TCP handshake and teardown, which on a busy polling loop can cost
+ * more than the script itself.  Instead we keep one connection open and send command after command
+ * down it.
+ *
+ * The connection is checked before each use (still open, not idle too long) and, if a command fails
+ * on a connection we were re-using in a way that shows the server never got it - the write failed, or the
+ * connection was found closed before any of a response arrived - we assume the server quietly dropped the
+ * connection, reconnect, and try once more.  Any other failure (a timeout, a reset part-way) may have come
+ * after the server ran the command, and commands like taking an image or slewing must not be run twice, so
+ * it is passed back to the caller, as is any failure on a brand-new connection.
+ *
+ * Should the server turn out to close the socket after every response (so that every re-use fails)
+ * we give up on keeping it open and fall back to a fresh connection per command.
+ *
+ * Not thread-safe: the owning TheSkyXServer serializes access with its own lock.
+ */
+public class TheSkyXConnection {
+    private final InetSocketAddress inetSocketAddress;
+    private final int connectTimeoutMilliseconds;
+    private final int readTimeoutMilliseconds;
+
+    private Socket socket = null;
+    private PrintStream toServerStream = null;
+    private BufferedReader fromServerReader = null;
+    private long lastUsedNanos = 0;
+
+    //  Do we keep the connection open between commands?  Turned off if the server won't let us.
+    private boolean persistent = true;
+    private int consecutiveStaleReuses = 0;
+
+    //  Metrics about this connection's use
+    private long commandsSent = 0;
+    private long connectionsOpened = 0;
+    private long reconnects = 0;
+    private long failures = 0;
+    private long totalRoundTripNanos = 0;
+    private long maxRoundTripNanos = 0;
+
+    /**
+     * A command failed in a way that shows the server never received it, so it is safe to send again
+     */
+    private static class CommandNotReceivedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CommandNotReceivedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Constructor.  Doesn't connect - that happens on open() or on first use.
+     * @param inetSocketAddress             Address and port of the server
+     * @param connectTimeoutMilliseconds    How long to wait for a connection to be accepted
+     * @param readTimeoutMilliseconds       How long to wait for a response (0 to wait as long as it takes)
+     */
+    public TheSkyXConnection(InetSocketAddress inetSocketAddress, int connectTimeoutMilliseconds,
+                             int readTimeoutMilliseconds) {
+        this.inetSocketAddress = inetSocketAddress;
+        this.connectTimeoutMilliseconds = connectTimeoutMilliseconds;
+        this.readTimeoutMilliseconds = readTimeoutMilliseconds;
+    }
+
+    /**
+     * Open the connection, if it isn't already open
+     * @throws IOException      I/O error from network
+     */
+    public void open() throws IOException {
+        if (this.isOpen()) {
+            return;
+        }
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect(this.inetSocketAddress, this.connectTimeoutMilliseconds);
+            newSocket.setTcpNoDelay(true);
+            newSocket.setKeepAlive(true);
+            newSocket.setSoTimeout(this.readTimeoutMilliseconds);
+            this.toServerStream = new PrintStream(newSocket.getOutputStream());
+            this.fromServerReader = new BufferedReader(new InputStreamReader(newSocket.getInputStream()));
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        this.socket = newSocket;
+        this.lastUsedNanos = System.nanoTime();
+        this.connectionsOpened++;
+    }
+
+    /**
+     * Close the connection, ignoring any errors - we're finished with it either way.
+     */
+    public void close() {
+        if (this.socket != null) {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Ignore, we're discarding it anyway
+            }
+        }
+        this.socket = null;
+        this.toServerStream = null;
+        this.fromServerReader = null;
+    }
+
+    /**
+     * Is there an open socket?
+     * @return (boolean)
+     */
+    public boolean isOpen() {
+        return this.socket != null && !this.socket.isClosed();
+    }
+
+    /**
+     * Health check on an open connection before we re-use it.  It should still be connected, should not
+     * have been idle so long the server may have dropped it, and should have no unread data waiting
+     * (which would mean we'd read a stale response to some earlier command).
+     * @return (boolean)        Connection looks fit to re-use
+     */
+    public boolean isHealthy() {
+        if (!this.isOpen() || !this.socket.isConnected()
+                || this.socket.isInputShutdown() || this.socket.isOutputShutdown()) {
+            return false;
+        }
+        double idleSeconds = (System.nanoTime() - this.lastUsedNanos) / 1.0e9;
+        if (idleSeconds > Common.SERVER_CONNECTION_IDLE_LIMIT_SECONDS) {
+            return false;
+        }
+        try {
+            return !this.fromServerReader.ready();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Send the given command packet and return the one-line response.  Re-uses the open connection if
+     * it is healthy, otherwise opens a new one.  If a re-used connection turns out to have been dropped
+     * before the server got the command, the command is sent once more on a fresh connection.
+     * @param commandPacket         Complete command packet to be sent
+     * @return (String)             Line returned from server
+     * @throws IOException          I/O error from network
+     */
+    public String exchange(String commandPacket) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean reused = this.isOpen();
+        if (reused && !this.isHealthy()) {
+            this.close();
+            reused = false;
+        }
+        this.open();
+
+        String serverAnswer;
+        try {
+            serverAnswer = this.sendAndReceive(commandPacket);
+            if (reused) {
+                this.consecutiveStaleReuses = 0;
+            }
+        } catch (IOException e) {
+            this.close();
+            if (!reused || !(e instanceof CommandNotReceivedException)) {
+                this.failures++;
+                throw e;
+            }
+            //  The re-used connection had gone stale.  Reconnect and try again once.
+            this.reconnects++;
+            this.consecutiveStaleReuses++;
+            if (this.consecutiveStaleReuses >= Common.SERVER_STALE_REUSE_LIMIT) {
+                this.persistent = false;
+            }
+            try {
+                this.open();
+                serverAnswer = this.sendAndReceive(commandPacket);
+            } catch (IOException retryException) {
+                this.close();
+                this.failures++;
+                throw retryException;
+            }
+        }
+
+        if (!this.persistent) {
+            this.close();
+        }
+        this.lastUsedNanos = System.nanoTime();
+        long roundTripNanos = this.lastUsedNanos - startNanos;
+        this.commandsSent++;
+        this.totalRoundTripNanos += roundTripNanos;
+        this.maxRoundTripNanos = Math.max(this.maxRoundTripNanos, roundTripNanos);
+        return serverAnswer;
+    }
+
+    /**
+     * Low-level write of the packet and read of the response line on the open connection
+     * @param commandPacket         Command packet to send
+     * @return (String)             Line returned from server
+     * @throws IOException          I/O error from network (CommandNotReceivedException if the command
+     *                              was not sent, or the server had closed the connection before answering)
+     */
+    private String sendAndReceive(String commandPacket) throws IOException {
+        this.toServerStream.println(commandPacket);
+        //  PrintStream swallows its exceptions, so we have to ask if the write worked
+        if (this.toServerStream.checkError()) {
+            throw new CommandNotReceivedException("Unable to send command to server");
+        }
+        //  readLine gives null only at end of stream with nothing read
+        String serverAnswer = this.fromServerReader.readLine();
+        if (serverAnswer == null) {
+            throw new CommandNotReceivedException("Server closed connection");
+        }
+        return serverAnswer;
+    }
+
+    //  Metrics getters
+
+    public long getCommandsSent() { return commandsSent; }
+    public long getConnectionsOpened() { return connectionsOpened; }
+    public long getReconnects() { return reconnects; }
+    public long getFailures() { return failures; }
+    public boolean isPersistent() { return persistent; }
+
+    /**
+     * Average round-trip time of the commands sent so far
+     * @return (double)     Average round trip in milliseconds (0 if no commands yet)
+     */
+    public double getAverageRoundTripMilliseconds() {
+        return (this.commandsSent == 0) ? 0.0 : (this.totalRoundTripNanos / 1.0e6) / this.commandsSent;
+    }
+
+    /**
+     * Longest round-trip time of the commands sent so far
+     * @return (double)     Maximum round trip in milliseconds
+     */
+    public double getMaxRoundTripMilliseconds() {
+        return this.maxRoundTripNanos / 1.0e6;
+    }
+
+    /**
+     * Brief description of the connection metrics, suitable for the session console
+     * @return (String)
+     */
+    public String describeMetrics() {
+        return String.format("%d commands, %d connections opened, %d reconnects, %d failures, "
+                        + "round trip average %.1f ms, maximum %.1f ms%s",
+                this.commandsSent, this.connectionsOpened, this.reconnects, this.failures,
+                this.getAverageRoundTripMilliseconds(), this.getMaxRoundTripMilliseconds(),
+                this.persistent ? "" : " (server does not keep connections open)");
+    }
+}
@@ -3,40 +3,85 @@
 
 import org.apache.commons.lang3.tuple.ImmutablePair;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.InvalidPropertiesFormatException;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class TheSkyXServer {
+public class TheSkyXServer implements AutoCloseable {
     private static final int SOCKET_TIMEOUT = 5 * 1000;
 
     //  We use a lock for server commands since more than one task may be asking the server to act
     private ReentrantLock serverLock;
 
-    private InetSocketAddress inetSocketAddress;
+    //  One long-lived connection to the server, re-used for every command
+    private TheSkyXConnection connection;
+    //  Session metrics that round trips are recorded in (null if not recording)
+    private SessionMetrics metrics = null;
+
     private double rememberedExposureForSimulation = 10.0;
     private int rememberedBinningForSimulation = 1;
     private Integer rememberedFilterSlotForSimulation = 1;
 
     /**
-     * Constructor, taking address and port number, create socket for trial connection
+     * Constructor, taking address and port number, open the connection we'll use for commands.
+     * Opening it here also serves as a trial connection, so a bad address fails immediately.
+     * Responses are waited for as long as they take, since a command may wait for a long exposure or slew.
      * @param serverAddress         String giving server name or IP address
      * @param portNumber            Port number where server is listening
      * @throws IOException          I/O error from network
      */
     public TheSkyXServer(String serverAddress, Integer portNumber) throws IOException {
+        this(serverAddress, portNumber, 0);
+    }
+
+    /**
+     * Constructor, as above, with a limit on how long to wait for each response
+     * @param serverAddress             String giving server name or IP address
+     * @param portNumber                Port number where server is listening
+     * @param readTimeoutMilliseconds   How long to wait for a response before failing (0 for no limit)
+     * @throws IOException              I/O error from network
+     */
+    public TheSkyXServer(String serverAddress, Integer portNumber, int readTimeoutMilliseconds) throws IOException {
         super();
         this.serverLock = new ReentrantLock();
-        //  Trial connection
-        Socket socket = new Socket();
-        this.inetSocketAddress = new InetSocketAddress(serverAddress, portNumber);
-        socket.connect(this.inetSocketAddress, SOCKET_TIMEOUT);
-        socket.close();
+        InetSocketAddress inetSocketAddress = new InetSocketAddress(serverAddress, portNumber);
+        this.connection = new TheSkyXConnection(inetSocketAddress, SOCKET_TIMEOUT, readTimeoutMilliseconds);
+        this.connection.open();
+    }
+
+    /**
+     * Close the connection to the server.  We're finished with this server object.
+     */
+    @Override
+    public void close() {
+        this.serverLock.lock();
+        try {
+            this.connection.close();
+        } finally {
+            this.serverLock.unlock();
+        }
+    }
+
+    /**
+     * Record the time of every command's round trip, and any reconnects and errors, in session metrics
+     * @param metrics               Metrics to record in (null to stop recording)
+     */
+    public void setMetrics(SessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Description of the network statistics for this server's connection, for the session console
+     * @return (String)
+     */
+    public String describeConnectionMetrics() {
+        this.serverLock.lock();
+        try {
+            return this.connection.describeMetrics();
+        } finally {
+            this.serverLock.unlock();
+        }
     }
 
     /**
@@ -64,6 +109,23 @@ public class TheSkyXServer {
         return sendCommandPacket(commandPacket);
     }
 
+    /**
+     * Send a batch of operations to the server as a single command packet, and return the results
+     * of all its steps.
+     * @param batch                 Batch of steps to be run
+     * @return (Result)             Results of the steps, by step name
+     * @throws IOException          I/O error from network, or server reported an error running the batch
+     */
+    public TheSkyXBatch.Result sendBatch(TheSkyXBatch batch) throws IOException {
+        String result = this.sendCommandWithReturn(batch.toScript());
+        int errorCode = errorCheckResult(result);
+        if (errorCode != 0) {
+            System.out.println("Error returned from batch: " + result);
+            throw new IOException("I/O error code " + errorCode);
+        }
+        return batch.parseResponse(result);
+    }
+
     /**
      * Low-level send given command packet to server, retrieve server response
      * @param commandPacket         Command to be sent to server
@@ -72,35 +134,33 @@ public class TheSkyXServer {
      */
 
     String sendCommandPacket(String commandPacket) throws IOException {
-
         this.serverLock.lock();
-        String serverAnswer;
+        long reconnectsBefore = this.connection.getReconnects();
+        long startNanos = System.nanoTime();
+        ServerCommandEvent event = new ServerCommandEvent();
+        event.begin();
+        String response = null;
         try {
-            //  Create socket and connect
-            Socket socket = new Socket();
-            socket.connect(this.inetSocketAddress, SOCKET_TIMEOUT);
-
-            //  Send the command to the server
-            PrintStream toServerStream = new PrintStream(socket.getOutputStream());
-            toServerStream.println(commandPacket);
-
-            //  Read the response
-            InputStreamReader inputStreamReader = new InputStreamReader(socket.getInputStream());
-            BufferedReader response = new BufferedReader(inputStreamReader);
-            serverAnswer = response.readLine();
-
-            response.close();
-            inputStreamReader.close();
-            toServerStream.close();
-            socket.close();
-
+            response = this.connection.exchange(commandPacket);
+            return response;
         } catch (IOException e) {
-            this.serverLock.unlock();
+            if (this.metrics != null) {
+                this.metrics.count(SessionMetrics.COUNT_SERVER_ERRORS, 1);
+            }
             throw e;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.describe(commandPacket, response);
+                event.commit();
+            }
+            if (this.metrics != null) {
+                this.metrics.recordSince(SessionMetrics.STAGE_ROUND_TRIP, startNanos);
+                this.metrics.count(SessionMetrics.COUNT_RECONNECTS, this.connection.getReconnects() - reconnectsBefore);
+            }
+            //  Use try-finally to ensure unlock happens even if some kind of exception occurs
+            this.serverLock.unlock();
         }
-        this.serverLock.unlock();
-        return serverAnswer;
-
     }
 
     /**
@@ -111,7 +171,7 @@ public class TheSkyXServer {
         String command = "var Out=ccdsoftCamera.Connect();"
                 + "Out+=\"\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
@@ -125,7 +185,7 @@ public class TheSkyXServer {
         String command = "var Out=ccdsoftCamera.Disconnect();"
                 + "Out+=\"\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
@@ -156,7 +216,7 @@ public class TheSkyXServer {
      * @param returnedText      Server response text to be checked
      * @return (int)            Error code as described above
      */
-    private int errorCheckResult(String returnedText) {
+    static int errorCheckResult(String returnedText) {
         String returnedTextUpper = returnedText.toUpperCase();
         int result = 0;
         if (returnedTextUpper.contains("TYPEERROR: PROCESS ABORTED"))
@@ -180,7 +240,7 @@ public class TheSkyXServer {
                 + "}"
                 + "Out+=\"\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
@@ -207,8 +267,17 @@ public class TheSkyXServer {
         String commandWithReturn = "sky6RASCOMTele.GetAzAlt();"
         + "var Out=sky6RASCOMTele.dAlt + '/' + sky6RASCOMTele.dAz;"
         + "Out += \"\\n\";";
-        String returnString = this.sendCommandWithReturn(commandWithReturn);
+        return parseAltAz(this.sendCommandWithReturn(commandWithReturn));
+    }
 
+    /**
+     * Parse the server's response to a request for the scope's position
+     * @param returnString          Response: altitude and azimuth separated by /
+     * @return (pair)               Altitude, Azimuth
+     * @throws InvalidPropertiesFormatException     Response is not two values
+     * @throws NumberFormatException                Values are not numbers
+     */
+    static ImmutablePair<Double, Double> parseAltAz(String returnString) throws InvalidPropertiesFormatException {
         // Parse two floats separated by /
         String[] parts = returnString.split("/");
         if (parts.length != 2) {
@@ -220,6 +289,24 @@ public class TheSkyXServer {
         return ImmutablePair.of(altitude, azimuth);
     }
 
+    /**
+     * Get the observer's location, as set in TheSkyX.  TheSkyX counts longitude positive to the west; it is
+     * returned here positive to the east, as astronomical formulae expect.
+     * @return (pair)                   Latitude (north positive) and longitude (east positive), degrees
+     * @throws IOException              Error communicating with server
+     * @throws NumberFormatException    Badly-formatted response from server
+     */
+    public ImmutablePair<Double, Double> getObserverLocation() throws IOException, NumberFormatException {
+        String commandWithReturn = "sky6StarChart.DocumentProperty(0);"
+                + "var latitude=sky6StarChart.DocPropOut;"
+                + "sky6StarChart.DocumentProperty(1);"
+                + "var Out=latitude + '/' + sky6StarChart.DocPropOut;"
+                + "Out += \"\\n\";";
+        //  Same form of response as the scope position
+        ImmutablePair<Double, Double> location = parseAltAz(this.sendCommandWithReturn(commandWithReturn));
+        return ImmutablePair.of(location.left, -location.right);
+    }
+
     /**
      * Start scope slewing to given alt-az coordinates.  Alt-ax, not RA-Dec, because
      * the original use of this method was to slew to a flat frame light panel, which is
@@ -231,19 +318,32 @@ public class TheSkyXServer {
      * @param asynchronous          Attempt to do it asynchronously?  (May not have any effect)
      */
     public void slewToAltAz(double targetAltitude, double targetAzimuth, boolean asynchronous) throws IOException {
-        String command = "sky6RASCOMTele.Connect();"
-                + "sky6RASCOMTele.Asynchronous=" + boolToJS(asynchronous) + ";"
-                + "Out=sky6RASCOMTele.SlewToAzAlt("
-                    + targetAzimuth + ","
-                    + targetAltitude + ",'');"
+        String command = slewStatements(targetAltitude, targetAzimuth, asynchronous)
+                + "Out=slewResult;"
                 + "Out+=\"\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
     }
 
+    /**
+     * JavaScript statements to slew the scope to given alt-az coordinates.  The result of the slew
+     * command is left in "slewResult".  Shared by the single-command and batched forms of slewing.
+     * @param targetAltitude        Altitude to slew to
+     * @param targetAzimuth         Azimuth to slew to
+     * @param asynchronous          Attempt to do it asynchronously?
+     * @return (String)             JavaScript statements
+     */
+    static String slewStatements(double targetAltitude, double targetAzimuth, boolean asynchronous) {
+        return "sky6RASCOMTele.Connect();"
+                + "sky6RASCOMTele.Asynchronous=" + boolToJS(asynchronous) + ";"
+                + "var slewResult=sky6RASCOMTele.SlewToAzAlt("
+                    + targetAzimuth + ","
+                    + targetAltitude + ",'');";
+    }
+
     /**
      * Get and return whether the scope's tracking is on
      * @return (boolean)        Is scope tracking?
@@ -266,7 +366,7 @@ public class TheSkyXServer {
                 + "var Out=sky6RASCOMTele.IsTracking;"
                 + "Out+=\"\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
@@ -296,7 +396,7 @@ public class TheSkyXServer {
                 + "}"
                 + "Out+=\"\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
@@ -311,7 +411,7 @@ public class TheSkyXServer {
         + "Out=sky6RASCOMTele.FindHome();"
         + "Out += \"\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
@@ -336,9 +436,11 @@ public class TheSkyXServer {
                 + "ccdsoftCamera.ExposureTime=0;"
                 + "var cameraResult = ccdsoftCamera.TakeImage();"
                 + "var Out;Out=cameraResult+\"\\n\";";
+        this.rememberedExposureForSimulation = 0.0;
+        this.rememberedBinningForSimulation = binning;
 
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             System.out.println("Error returned from camera: " + result);
             throw new IOException("Error from camera");
@@ -356,7 +458,7 @@ public class TheSkyXServer {
                 + "ccdsoftCamera.FilterIndexZeroBased=" + (slotNumber - 1) + ";"
                 + "var Out;Out=cameraResult+\"\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
@@ -372,7 +474,33 @@ public class TheSkyXServer {
      * @param autosave              true if camera should write exposure to autosave folder
      */
     public void exposeFlatFrame(double exposureSeconds, int binning, boolean asynchronous, boolean autosave) throws IOException {
-        String command = "ccdsoftCamera.Autoguider=false;"        //  Use main camera
+        String command = flatFrameStatements(exposureSeconds, binning, asynchronous, autosave)
+                + "var Out;Out=cameraResult+\"\\n\";";
+
+        String result = this.sendCommandWithReturn(command);
+        int errorCode = errorCheckResult(result);
+        if (errorCode != 0) {
+            System.out.println("Error returned from camera: " + result);
+            throw new IOException("Error from camera");
+        }
+
+        //  Remember the exposure information we just used, in case we need it for the simulation
+        //  of ADU calculation
+        this.rememberedExposureForSimulation = exposureSeconds;
+        this.rememberedBinningForSimulation = binning;
+    }
+
+    /**
+     * JavaScript statements to take a flat frame.  The result of TakeImage is left in "cameraResult".
+     * Shared by the single-command and batched forms of exposing a flat frame.
+     * @param exposureSeconds       Exposure time in seconds (with fractions)
+     * @param binning               Binning value (1-4)
+     * @param asynchronous          true if exposure should be started asynchronously
+     * @param autosave              true if camera should write exposure to autosave folder
+     * @return (String)             JavaScript statements
+     */
+    static String flatFrameStatements(double exposureSeconds, int binning, boolean asynchronous, boolean autosave) {
+        return "ccdsoftCamera.Autoguider=false;"        //  Use main camera
                 + "ccdsoftCamera.Asynchronous=" + boolToJS(asynchronous) + ";"   //  Wait for camera?
                 + "ccdsoftCamera.Frame=4;"      // Magic code for flat frame
                 + "ccdsoftCamera.ImageReduction=0;"       // No autodark or calibration
@@ -382,20 +510,210 @@ public class TheSkyXServer {
                 + "ccdsoftCamera.BinX=" + binning + ";"
                 + "ccdsoftCamera.BinY=" + binning + ";"
                 + "ccdsoftCamera.ExposureTime=" + exposureSeconds + ";"
-                + "var cameraResult = ccdsoftCamera.TakeImage();"
-                + "var Out;Out=cameraResult+\"\\n\";";
+                + "var cameraResult = ccdsoftCamera.TakeImage();";
+    }
 
-        String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
-        if (errorCode != 0) {
-            System.out.println("Error returned from camera: " + result);
-            throw new IOException("Error from camera");
+    /**
+     * Connect to the camera and, optionally, select the filter for the coming frames - one round-trip.
+     * @param slotNumber        1-based filter slot number, or null if no filter wheel in use
+     * @throws IOException      I/O error from network, or error connecting camera
+     */
+    public void connectCameraAndSelectFilter(Integer slotNumber) throws IOException {
+        TheSkyXBatch batch = new TheSkyXBatch();
+        batch.addStep("connect", "", "ccdsoftCamera.Connect()");
+        if (slotNumber != null) {
+            batch.addStep("filter", "ccdsoftCamera.filterWheelConnect();"
+                    + "ccdsoftCamera.FilterIndexZeroBased=" + (slotNumber - 1) + ";", "0");
+            this.rememberedFilterSlotForSimulation = slotNumber;
         }
+        this.sendBatch(batch);
+    }
 
-        //  Remember the exposure information we just used, in case we need it for the simulation
-        //  of ADU calculation
+    /**
+     * Measure the average ADUs of the last-acquired image and, only if they fall within the given range,
+     * save it - one round-trip instead of separate measure and save commands.
+     * Optionally, if the image is kept, also start an asynchronous slew (a dither move for the next frame)
+     * before saving, so the mount moves while the file is being written.
+     * @param mode              How the image's ADU level is measured
+     * @param lowADUs           Lowest acceptable average ADU value
+     * @param highADUs          Highest acceptable average ADU value
+     * @param fileName          File name to save image under
+     * @param localFolder       Folder to save in, or null to save in the camera's AutoSave folder
+     * @param slewIfSaved       Alt/Az to start slewing to if the image is kept, or null for no slew
+     * @return (pair)           Average ADUs, and whether the image was saved
+     * @throws IOException      I/O error from network, or error saving
+     */
+    public ImmutablePair<Integer, Boolean> measureAndSaveIfInRange(ADUMeasurementMode mode,
+                                                                  double lowADUs, double highADUs,
+                                                                  String fileName, String localFolder,
+                                                                  ImmutablePair<Double, Double> slewIfSaved)
+            throws IOException {
+        if (Common.SIMULATE_ADU_MEASUREMENT) {
+            return this.simulatedMeasureAndSaveIfInRange(lowADUs, highADUs, fileName, localFolder, slewIfSaved);
+        }
+        TheSkyXBatch batch = new TheSkyXBatch();
+        addMeasureAndSaveSteps(batch, mode, lowADUs, highADUs, fileName, localFolder, slewIfSaved);
+        TheSkyXBatch.Result result = this.sendBatch(batch);
+        return ImmutablePair.of((int) Math.round(result.getDouble("adu")), result.getBoolean("saved"));
+    }
+
+    /**
+     * Expose a flat frame, wait for it, measure its average ADUs and, only if they fall within the given
+     * range, save it.  All in one round-trip.  The exposure is synchronous, so the server doesn't answer until
+     * it is complete; use this only for exposures short enough that we don't mind being unable to cancel them.
+     * @param exposureSeconds   Exposure time in seconds (with fractions)
+     * @param binning           Binning value (1-4)
+     * @param mode              How the image's ADU level is measured
+     * @param lowADUs           Lowest acceptable average ADU value
+     * @param highADUs          Highest acceptable average ADU value
+     * @param fileName          File name to save image under
+     * @param localFolder       Folder to save in, or null to save in the camera's AutoSave folder
+     * @param slewIfSaved       Alt/Az to start slewing to if the image is kept, or null for no slew
+     * @return (pair)           Average ADUs, and whether the image was saved
+     * @throws IOException      I/O error from network, or error from camera
+     */
+    public ImmutablePair<Integer, Boolean> exposeMeasureAndSaveIfInRange(double exposureSeconds, int binning,
+                                                                        ADUMeasurementMode mode,
+                                                                        double lowADUs, double highADUs,
+                                                                        String fileName, String localFolder,
+                                                                        ImmutablePair<Double, Double> slewIfSaved)
+            throws IOException {
+        if (Common.SIMULATE_ADU_MEASUREMENT) {
+            this.exposeFlatFrame(exposureSeconds, binning, false, false);
+            return this.simulatedMeasureAndSaveIfInRange(lowADUs, highADUs, fileName, localFolder, slewIfSaved);
+        }
+        TheSkyXBatch batch = new TheSkyXBatch();
+        batch.addStep("camera", flatFrameStatements(exposureSeconds, binning, false, false), "cameraResult");
+        addMeasureAndSaveSteps(batch, mode, lowADUs, highADUs, fileName, localFolder, slewIfSaved);
+        TheSkyXBatch.Result result = this.sendBatch(batch);
+        this.rememberedExposureForSimulation = exposureSeconds;
+        this.rememberedBinningForSimulation = binning;
+        return ImmutablePair.of((int) Math.round(result.getDouble("adu")), result.getBoolean("saved"));
+    }
+
+    /**
+     * Expose a flat frame, wait for it, and save it in the given folder, in one round-trip.  Used when we
+     * measure saved frames ourselves, so there is nothing for the server to decide.  As with
+     * exposeMeasureAndSaveIfInRange, use this only for exposures short enough not to need cancelling.
+     * Optionally start an asynchronous slew (a dither move for the next frame) as soon as the exposure is
+     * complete, so the mount moves while the file is being written.
+     * @param exposureSeconds   Exposure time in seconds (with fractions)
+     * @param binning           Binning value (1-4)
+     * @param fileName          File name to save image under
+     * @param localFolder       Folder to save in
+     * @param slewAfterExposure Alt/Az to start slewing to once the image is acquired, or null for no slew
+     * @throws IOException      I/O error from network, or error from camera or saving
+     */
+    public void exposeAndSaveToFolder(double exposureSeconds, int binning, String fileName, String localFolder,
+                                      ImmutablePair<Double, Double> slewAfterExposure)
+            throws IOException {
+        String slew = (slewAfterExposure == null) ? ""
+                : slewStatements(slewAfterExposure.left, slewAfterExposure.right, true);
+        TheSkyXBatch batch = new TheSkyXBatch();
+        batch.addStep("camera", flatFrameStatements(exposureSeconds, binning, false, false), "cameraResult");
+        batch.addStep("saved", slew + saveImageStatements(fileName, localFolder), "saveResult");
+        TheSkyXBatch.Result result = this.sendBatch(batch);
         this.rememberedExposureForSimulation = exposureSeconds;
         this.rememberedBinningForSimulation = binning;
+        if (result.getDouble("saved") != 0.0) {
+            System.out.println("Error returned from camera saving image: " + result.getString("saved"));
+            throw new IOException("Error from camera");
+        }
+    }
+
+    /**
+     * Add to a batch the steps that measure the last image ("adu") and conditionally save it ("saved").
+     * If a slew is wanted it is started, asynchronously, just before the save so the two overlap.
+     * @param batch             Batch receiving the steps
+     * @param mode              How the image's ADU level is measured
+     * @param lowADUs           Lowest acceptable average ADU value
+     * @param highADUs          Highest acceptable average ADU value
+     * @param fileName          File name to save image under
+     * @param localFolder       Folder to save in, or null to save in the camera's AutoSave folder
+     * @param slewIfSaved       Alt/Az to start slewing to if the image is kept, or null for no slew
+     */
+    private static void addMeasureAndSaveSteps(TheSkyXBatch batch, ADUMeasurementMode mode,
+                                               double lowADUs, double highADUs,
+                                               String fileName, String localFolder,
+                                               ImmutablePair<Double, Double> slewIfSaved) {
+        String adu = TheSkyXBatch.variable("adu");
+        String slew = (slewIfSaved == null) ? "" : slewStatements(slewIfSaved.left, slewIfSaved.right, true);
+        batch.addStep("adu", aduMeasurementStatements(mode, lowADUs, highADUs), "aduEstimate");
+        batch.addStep("saved", "var inRange=(" + adu + ">=" + lowADUs + ")&&(" + adu + "<=" + highADUs + ");"
+                        + "if (inRange) {" + slew + saveImageStatements(fileName, localFolder) + "}",
+                "inRange");
+    }
+
+    /**
+     * JavaScript statements to measure the ADU level of the last acquired image, leaving it in "aduEstimate".
+     *
+     * Sampling modes read only some rows (with scanLine) and some pixels in each, chosen as FitsStatistics.sample
+     * chooses them, and estimate the level and its error from the row means.  If the confidence interval
+     * straddles a limit of the acceptable range the estimate can't decide whether to keep the frame, so the
+     * script falls back to averaging the full frame - still in the same round-trip.
+     * @param mode              How the image's ADU level is measured
+     * @param lowADUs           Lowest acceptable average ADU value
+     * @param highADUs          Highest acceptable average ADU value
+     * @return (String)         JavaScript statements
+     */
+    static String aduMeasurementStatements(ADUMeasurementMode mode, double lowADUs, double highADUs) {
+        String attach = "var aduImage=ccdsoftCameraImage;aduImage.AttachToActive();";
+        if (!mode.isSampled()) {
+            return attach + "var aduEstimate=aduImage.averagePixelValue();";
+        }
+        String rowOffset = mode.isRandom() ? "Math.random()*aduHeight" : "(r+0.5)*aduHeight/aduRows";
+        String columnOffset = mode.isRandom() ? "Math.random()*aduWidth" : "(c+0.5)*aduWidth/aduColumns";
+        String certain = String.format("(aduEstimate-aduError>=%s&&aduEstimate+aduError<=%s)"
+                        + "||(aduEstimate+aduError<%s)||(aduEstimate-aduError>%s)",
+                lowADUs, highADUs, lowADUs, highADUs);
+        return attach
+                + "var w=aduImage.WidthInPixels;var h=aduImage.HeightInPixels;"
+                + "var f=" + mode.regionFraction() + ";"
+                + "var aduLeft=Math.floor(w*(1-f)/2);var aduTop=Math.floor(h*(1-f)/2);"
+                + "var aduWidth=Math.max(1,Math.floor(w*f));var aduHeight=Math.max(1,Math.floor(h*f));"
+                + "var aduRows=Math.min(aduHeight," + Common.ADU_SAMPLE_ROWS + ");"
+                + "var aduColumns=Math.min(aduWidth," + Common.ADU_SAMPLE_COLUMNS + ");"
+                + "var aduSum=0;var aduSumOfSquares=0;"
+                + "for (var r=0;r<aduRows;r+=1){"
+                +   "var line=aduImage.scanLine(aduTop+Math.min(aduHeight-1,Math.floor(" + rowOffset + ")));"
+                +   "var rowSum=0;"
+                +   "for (var c=0;c<aduColumns;c+=1){"
+                +     "rowSum+=line[aduLeft+Math.min(aduWidth-1,Math.floor(" + columnOffset + "))];"
+                +   "}"
+                +   "var rowMean=rowSum/aduColumns;aduSum+=rowMean;aduSumOfSquares+=rowMean*rowMean;"
+                + "}"
+                + "var aduEstimate=aduSum/aduRows;var aduError=1e30;"
+                + "if (aduRows>1){aduError=" + Common.ADU_CONFIDENCE_Z + "*Math.sqrt(Math.max(0,"
+                +   "(aduSumOfSquares-aduRows*aduEstimate*aduEstimate)/(aduRows-1))/aduRows);}"
+                + "if (!(" + certain + ")){aduEstimate=aduImage.averagePixelValue();}";
+    }
+
+    /**
+     * Simulated form of measure-and-save: calculate the ADUs here, and save with a separate command if in range
+     * @param lowADUs           Lowest acceptable average ADU value
+     * @param highADUs          Highest acceptable average ADU value
+     * @param fileName          File name to save image under
+     * @param localFolder       Folder to save in, or null to save in the camera's AutoSave folder
+     * @param slewIfSaved       Alt/Az to start slewing to if the image is kept, or null for no slew
+     * @return (pair)           Average ADUs, and whether the image was saved
+     */
+    private ImmutablePair<Integer, Boolean> simulatedMeasureAndSaveIfInRange(double lowADUs, double highADUs,
+                                                                            String fileName, String localFolder,
+                                                                            ImmutablePair<Double, Double> slewIfSaved)
+            throws IOException {
+        int averageADUs = this.getSimulatedADUMeasurement();
+        boolean inRange = (averageADUs >= lowADUs) && (averageADUs <= highADUs);
+        if (inRange) {
+            if (slewIfSaved != null) {
+                this.slewToAltAz(slewIfSaved.left, slewIfSaved.right, true);
+            }
+            if (localFolder == null) {
+                this.saveImageToAutoSave(fileName);
+            } else {
+                this.saveImageToLocalPath(localFolder + "/" + fileName);
+            }
+        }
+        return ImmutablePair.of(averageADUs, inRange);
     }
 
     /**
@@ -427,68 +745,20 @@ public class TheSkyXServer {
 
     /**
      * The Simulator flag is on, so instead of asking the server for the last frame's ADU measurement,
-     * we're going to calculate a realistic one.  I empirically measured a bunch of cases to get some
-     * regression parameters, which we'll use here.
+     * we're going to calculate a realistic one from the measured regressions in SimulatedFlatResponse.
      * @return (int)    Simulated ADU value
      */
     private int getSimulatedADUMeasurement() {
-        // Get the regression values.  Only measured them for certain data.
-        double exposure = this.rememberedExposureForSimulation;
-        int binning = this.rememberedBinningForSimulation;
-        int filter = this.rememberedFilterSlotForSimulation;
-        double slope;
-        double intercept;
-        if ((binning == 1) && (filter == 4)) {
-            // Luminance, binned 1x1
-            slope = 721.8;
-            intercept = 19817.0;
-        } else if ((binning == 2) && (filter == 1)) {
-            // Red filter, binned 2x2
-            slope = 7336.7;
-            intercept = -100.48;
-        } else if ((binning == 2) && (filter == 2)) {
-            // Green filter, binned 2x2
-            slope = 11678.0;
-            intercept = -293.09;
-        } else if ((binning == 2) && (filter == 3)) {
-            // Blue filter, binned 2x2
-            slope = 6820.4;
-            intercept = 1858.3;
-        } else if ((binning == 1) && (filter == 5)) {
-            // H-alpha filter, binned 1x1
-            slope = 67.247;
-            intercept = 2632.7;
-        } else {
-            slope = 721.8;
-            intercept = 19817.0;
-        }
-        double calculatedResult = slope * exposure + intercept;
-
-        // Now we'll put a small percentage noise into the value so it has some variability for realism
-        double randFactorZeroCentered = Common.SIMULATION_NOISE_FRACTION * (Math.random() - 0.5);
-        double noisyResult = calculatedResult + randFactorZeroCentered * calculatedResult;
-
-        return Math.min((int) Math.round(noisyResult), 65535);
+        return SimulatedFlatResponse.measuredADUs(SimulatedFlatResponse.expectedADUs(
+                this.rememberedFilterSlotForSimulation, this.rememberedBinningForSimulation,
+                this.rememberedExposureForSimulation));
     }
 
     /**
      * Tell the server to save the last acquired image to its autosave path
      */
     public void saveImageToAutoSave(String fileName) throws IOException {
-        String command = "cam = ccdsoftCamera;"
-                + "img = ccdsoftCameraImage;"
-                + "img.AttachToActiveImager();"
-                + "asp = cam.AutoSavePath;"
-                + String.format("img.Path = asp + '/%s';", fileName)
-                + "var Out=img.Save();"
-                + "Out += \"\\n\";";
-
-        String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
-        if (errorCode != 0) {
-            System.out.println("Error returned from camera: " + result);
-            throw new IOException("Error from camera");
-        }
+        this.sendSaveCommand(saveImageStatements(fileName, null));
     }
 
     /**
@@ -496,21 +766,51 @@ public class TheSkyXServer {
      * @param localPath   Absolute path name of the file to be saved, including file name
      */
     public void saveImageToLocalPath(String localPath) throws IOException {
-        String command = "cam = ccdsoftCamera;"
-                + "img = ccdsoftCameraImage;"
-                + "img.AttachToActiveImager();"
-                + String.format("img.Path = '%s';", localPath)
-                + "var Out=img.Save();"
+        this.sendSaveCommand(saveImageStatements(null, localPath));
+    }
+
+    /**
+     * Send the given image-save statements as a command and check the result
+     * @param saveStatements    Statements from saveImageStatements, leaving the save result in "saveResult"
+     */
+    private void sendSaveCommand(String saveStatements) throws IOException {
+        String command = saveStatements
+                + "var Out=saveResult;"
                 + "Out += \"\\n\";";
 
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             System.out.println("Error returned from camera: " + result);
             throw new IOException("Error from camera");
         }
     }
 
+    /**
+     * JavaScript statements to save the last acquired image, either in the camera's AutoSave folder or in
+     * a given folder.  The result of Save is left in "saveResult".
+     * @param fileName          File name to save under, in the AutoSave folder or the given folder
+     * @param localFolder       Folder to save in, or null to save in the camera's AutoSave folder.
+     *                          If fileName is null, this is the complete path name to save to.
+     * @return (String)         JavaScript statements
+     */
+    static String saveImageStatements(String fileName, String localFolder) {
+        String pathAssignment;
+        if (localFolder == null) {
+            pathAssignment = "asp = cam.AutoSavePath;"
+                    + String.format("img.Path = asp + '/%s';", fileName);
+        } else if (fileName == null) {
+            pathAssignment = String.format("img.Path = '%s';", localFolder);
+        } else {
+            pathAssignment = String.format("img.Path = '%s/%s';", localFolder, fileName);
+        }
+        return "cam = ccdsoftCamera;"
+                + "img = ccdsoftCameraImage;"
+                + "img.AttachToActiveImager();"
+                + pathAssignment
+                + "var saveResult=img.Save();";
+    }
+
     /**
      * Send Park command to mount
      */
@@ -520,7 +820,7 @@ public class TheSkyXServer {
                 + "Out=sky6RASCOMTele.Park();"
                 + "Out += \"\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
@@ -539,7 +839,7 @@ public class TheSkyXServer {
         command += "ccdsoftCamera.RegulateTemperature=" + boolToJS(coolingOn) + ";"
                 + "var Out = \"0\\n\";";
         String result = this.sendCommandWithReturn(command);
-        int errorCode = this.errorCheckResult(result);
+        int errorCode = errorCheckResult(result);
         if (errorCode != 0) {
             throw new IOException("I/O error code " + errorCode);
         }
@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+/**
+ * Decides the order in which the flat sets in a session are acquired.
+ *
+ * The data model lists the sets filter by filter, each filter's binnings left to right, in the order the
+ * user arranged the table.  That order can waste time: the filter wheel may travel back and forth across
+ * the wheel, and the camera changes binning at every set.  We re-order as follows:
+ *
+ *      - All the sets for one filter are always done together, so each filter is selected only once.
+ *      - With a light panel (steady light) the filters are done in wheel slot order, so the wheel only ever
+ *          moves a short way forward, and each filter's binnings run alternately up and down ("boustrophedon")
+ *          so that the binning in use at the end of one filter is the binning used to start the next.
+ *      - With twilight sky the light is changing, so the order is chosen to suit it.  At dusk the sky starts
+ *          bright and fades, so the least sensitive combinations (narrowband filters, no binning) go first,
+ *          while there is still enough light for them.  At dawn the sky starts dark and brightens, so the most
+ *          sensitive combinations go first.  Sensitivity is judged from the exposures remembered from last time.
+ *
+ * The time the re-ordering is expected to save is estimated from the transition costs in Common.
+ */
+public class WorkListPlanner {
+    private final FlatLightSource lightSource;
+
+    //  Estimates from the most recent plan, for reporting
+    private double enteredOrderSeconds = 0.0;
+    private double plannedOrderSeconds = 0.0;
+
+    /**
+     * Constructor
+     * @param lightSource       What is lighting the flats - determines how sets are ordered
+     */
+    public WorkListPlanner(FlatLightSource lightSource) {
+        this.lightSource = lightSource;
+    }
+
+    /**
+     * Produce the acquisition order for the given sets
+     * @param flatSets              Sets to be acquired, in the order entered
+     * @return (ArrayList)          The same sets, in the order they should be acquired
+     */
+    public ArrayList<FlatSet> plan(ArrayList<FlatSet> flatSets) {
+        //  Group the sets by filter, keeping the order filters were first seen (ties stay as entered)
+        LinkedHashMap<Integer, ArrayList<FlatSet>> setsByFilter = new LinkedHashMap<>();
+        for (FlatSet flatSet : flatSets) {
+            setsByFilter.computeIfAbsent(flatSet.getFilterSpec().getSlotNumber(), slot -> new ArrayList<>())
+                    .add(flatSet);
+        }
+        ArrayList<ArrayList<FlatSet>> filterGroups = new ArrayList<>(setsByFilter.values());
+
+        ArrayList<FlatSet> result = new ArrayList<>(flatSets.size());
+        if (this.lightSource.isSky()) {
+            this.orderForSky(filterGroups, result);
+        } else {
+            this.orderForPanel(filterGroups, result);
+        }
+
+        this.enteredOrderSeconds = estimateTransitionSeconds(flatSets);
+        this.plannedOrderSeconds = estimateTransitionSeconds(result);
+        return result;
+    }
+
+    /**
+     * Steady light: filters in slot order, binnings alternating direction to match at filter boundaries
+     * @param filterGroups      Sets grouped by filter
+     * @param result            List to receive the ordered sets
+     */
+    private void orderForPanel(ArrayList<ArrayList<FlatSet>> filterGroups, ArrayList<FlatSet> result) {
+        filterGroups.sort(Comparator.comparingInt(group -> group.get(0).getFilterSpec().getSlotNumber()));
+        int previousBinning = 0;
+        for (ArrayList<FlatSet> group : filterGroups) {
+            group.sort(Comparator.comparingInt(FlatSet::getBinning));
+            if (previousBinning != 0) {
+                int ascendingStart = group.get(0).getBinning();
+                int descendingStart = group.get(group.size() - 1).getBinning();
+                if (Math.abs(descendingStart - previousBinning) < Math.abs(ascendingStart - previousBinning)) {
+                    Collections.reverse(group);
+                }
+            }
+            result.addAll(group);
+            previousBinning = group.get(group.size() - 1).getBinning();
+        }
+    }
+
+    /**
+     * Changing light: least sensitive first at dusk, most sensitive first at dawn, filters kept together
+     * @param filterGroups      Sets grouped by filter
+     * @param result            List to receive the ordered sets
+     */
+    private void orderForSky(ArrayList<ArrayList<FlatSet>> filterGroups, ArrayList<FlatSet> result) {
+        //  A longer exposure means a less sensitive combination.  At dusk we want those first.
+        Comparator<FlatSet> bySensitivity = Comparator.comparingDouble(FlatSet::getEstimatedExposure);
+        if (this.lightSource == FlatLightSource.DUSK_SKY) {
+            bySensitivity = bySensitivity.reversed();
+        }
+        for (ArrayList<FlatSet> group : filterGroups) {
+            group.sort(bySensitivity);
+        }
+        //  Filters ordered by their unbinned sensitivity, so binning doesn't disguise a narrowband filter
+        Comparator<ArrayList<FlatSet>> byFilterSensitivity =
+                Comparator.comparingDouble(WorkListPlanner::unbinnedExposure);
+        if (this.lightSource == FlatLightSource.DUSK_SKY) {
+            byFilterSensitivity = byFilterSensitivity.reversed();
+        }
+        filterGroups.sort(byFilterSensitivity);
+        for (ArrayList<FlatSet> group : filterGroups) {
+            result.addAll(group);
+        }
+    }
+
+    /**
+     * Estimate the exposure a filter would need unbinned, from the estimates for its sets.  Binning n x n
+     * collects about n squared times the light per pixel, so we scale each estimate back up and average.
+     * @param group         The sets for one filter
+     * @return (double)     Estimated unbinned exposure in seconds
+     */
+    private static double unbinnedExposure(ArrayList<FlatSet> group) {
+        double total = 0.0;
+        for (FlatSet flatSet : group) {
+            total += flatSet.getEstimatedExposure() * flatSet.getBinning() * flatSet.getBinning();
+        }
+        return total / group.size();
+    }
+
+    /**
+     * Estimate the time spent changing filters and binning when acquiring sets in the given order
+     * @param flatSets          Sets in order of acquisition
+     * @return (double)         Estimated transition time in seconds
+     */
+    public static double estimateTransitionSeconds(ArrayList<FlatSet> flatSets) {
+        double seconds = 0.0;
+        for (int index = 1; index < flatSets.size(); index++) {
+            FlatSet previous = flatSets.get(index - 1);
+            FlatSet next = flatSets.get(index);
+            int slotsMoved = Math.abs(next.getFilterSpec().getSlotNumber() - previous.getFilterSpec().getSlotNumber());
+            if (slotsMoved > 0) {
+                seconds += Common.FILTER_CHANGE_SETTLE_SECONDS + slotsMoved * Common.FILTER_CHANGE_SECONDS_PER_SLOT;
+            }
+            if (next.getBinning() != previous.getBinning()) {
+                seconds += Common.BINNING_CHANGE_SECONDS;
+            }
+        }
+        return seconds;
+    }
+
+    /**
+     * Brief description of the most recent plan, for the session console
+     * @return (String)
+     */
+    public String describe() {
+        String basis;
+        switch (this.lightSource) {
+            case DUSK_SKY:
+                basis = "least sensitive filters first, for the fading dusk sky";
+                break;
+            case DAWN_SKY:
+                basis = "most sensitive filters first, for the brightening dawn sky";
+                break;
+            default:
+                basis = "filter wheel order";
+                break;
+        }
+        double savedSeconds = this.enteredOrderSeconds - this.plannedOrderSeconds;
+        return String.format("Work list ordered by %s: about %.0f seconds of filter and binning changes, "
+                        + "%.0f seconds %s than the order entered", basis, this.plannedOrderSeconds,
+                Math.abs(savedSeconds), (savedSeconds >= 0.0) ? "less" : "more");
+    }
+}
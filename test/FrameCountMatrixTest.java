@@ -0,0 +1,74 @@
+/**
+ * Checks of FrameCountMatrix, needing nothing beyond the JDK.  A failed check prints what went wrong, and
+ * the program then exits with status 1.
+ *
+ *      java -cp <classes> FrameCountMatrixTest
+ */
+public class FrameCountMatrixTest {
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        emptyMatrixHasEmptyLines();
+        linesChangeTheMatrix();
+        linesOutsideTheMatrixAreRejected();
+        System.out.println(failures == 0 ? "FrameCountMatrixTest: all checks passed"
+                : "FrameCountMatrixTest: " + failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * No filters in use (0 x N) or no binnings in use (N x 0): the lines across the empty dimension exist
+     * and are empty, so whole-column and whole-row operations do nothing
+     */
+    private static void emptyMatrixHasEmptyLines() {
+        FrameCountMatrix noRows = new FrameCountMatrix(0, 4);
+        for (int column = 0; column < 4; column++) {
+            FrameCountMatrix.Line line = noRows.column(column);
+            check(line.size() == 0, "0 x 4 column " + column + " is empty");
+            line.fill(16);
+            check(line.sum() == 0, "0 x 4 column " + column + " sums to 0");
+        }
+        check(!noRows.anyNonZero(), "0 x 4 matrix has no frames");
+
+        FrameCountMatrix noColumns = new FrameCountMatrix(3, 0);
+        for (int row = 0; row < 3; row++) {
+            FrameCountMatrix.Line line = noColumns.row(row);
+            check(line.size() == 0, "3 x 0 row " + row + " is empty");
+            line.fill(16);
+            check(line.sum() == 0, "3 x 0 row " + row + " sums to 0");
+        }
+        check(noColumns.sum() == 0, "3 x 0 matrix has no frames");
+    }
+
+    private static void linesChangeTheMatrix() {
+        FrameCountMatrix matrix = new FrameCountMatrix(3, 2);
+        matrix.column(1).fill(5);
+        matrix.row(2).set(0, 7);
+        check(matrix.get(0, 1) == 5 && matrix.get(2, 1) == 5, "column fill sets every row");
+        check(matrix.get(2, 0) == 7, "row set changes the cell");
+        check(matrix.sum() == 22, "sum is 3 x 5 + 7");
+    }
+
+    private static void linesOutsideTheMatrixAreRejected() {
+        FrameCountMatrix matrix = new FrameCountMatrix(0, 4);
+        check(throwsOutOfBounds(() -> matrix.column(4)), "column past the end is rejected");
+        check(throwsOutOfBounds(() -> matrix.row(0)), "row of a 0-row matrix is rejected");
+        check(throwsOutOfBounds(() -> new FrameCountMatrix(2, 2).column(-1)), "negative column is rejected");
+    }
+
+    private static boolean throwsOutOfBounds(Runnable action) {
+        try {
+            action.run();
+            return false;
+        } catch (IndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            System.out.println("FAILED: " + description);
+            failures++;
+        }
+    }
+}